@@ -0,0 +1,275 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * The JFR event classes behind FilterEvents.  This is kept out of the main
+ * source tree, and built (for Java 11 and up) only when the JDK has
+ * jdk.jfr, so the rest of the plugin still builds for older JVMs.
+ * FilterEvents loads it by name, and only once it knows jdk.jfr is there.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+class JfrFilterEvents implements FilterEvents.Recorder {
+
+	@Name("com.smartsheet.tin.filters.Filter")
+	@Label("Filter Event")
+	@Description("PKPublish filtering one replication event")
+	@Category({"Tungsten", "PKPublish"})
+	static class FilterEvent extends Event {
+		@Label("Seqno")
+		long seqno;
+		@Label("Changes")
+		int changes;
+	}
+
+	@Name("com.smartsheet.tin.filters.RuleMatch")
+	@Label("Rule Match")
+	@Description("Matching an event against the filter rules")
+	@Category({"Tungsten", "PKPublish"})
+	static class MatchEvent extends Event {
+		@Label("Seqno")
+		long seqno;
+		@Label("Results")
+		int results;
+	}
+
+	@Name("com.smartsheet.tin.filters.TableKeyLookup")
+	@Label("Table Key Lookup")
+	@Description("Looking up a table's primary key columns")
+	@Category({"Tungsten", "PKPublish"})
+	static class TableKeyLookupEvent extends Event {
+		@Label("Schema")
+		String schema;
+		@Label("Table")
+		String table;
+		@Label("Outcome")
+		@Description("hit, db or error")
+		String outcome;
+	}
+
+	@Name("com.smartsheet.tin.filters.Encode")
+	@Label("Encode Row Messages")
+	@Description("Formatting a row change's row messages")
+	@Category({"Tungsten", "PKPublish"})
+	static class EncodeEvent extends Event {
+		@Label("Seqno")
+		long seqno;
+		@Label("Schema")
+		String schema;
+		@Label("Table")
+		String table;
+		@Label("Rows")
+		int rows;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("com.smartsheet.tin.filters.Publish")
+	@Label("Publish")
+	@Description("Handing a message to the publisher or spool")
+	@Category({"Tungsten", "PKPublish"})
+	static class PublishEvent extends Event {
+		@Label("Seqno")
+		long seqno;
+		@Label("Schema")
+		String schema;
+		@Label("Table")
+		String table;
+		@Label("Routing Key")
+		String routingKey;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("com.smartsheet.tin.filters.Reconnect")
+	@Label("Message Queue Reconnect")
+	@Description("Reopening a message queue channel")
+	@Category({"Tungsten", "PKPublish"})
+	static class ReconnectEvent extends Event {
+		@Label("Channel")
+		int channel;
+		@Label("Connection")
+		int connection;
+		@Label("Success")
+		boolean success;
+	}
+
+	/**
+	 * Keep FilterEvents.recording up to date as recordings start and stop.
+	 */
+	@Override
+	public void watchRecordings() {
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			@Override
+			public void recorderInitialized(FlightRecorder recorder) {
+				update();
+			}
+
+			@Override
+			public void recordingStateChanged(Recording recording) {
+				update();
+			}
+		});
+		update();
+	}
+
+	private static void update() {
+		boolean running = false;
+		if (FlightRecorder.isInitialized()) {
+			for (Recording r :
+				FlightRecorder.getFlightRecorder().getRecordings()) {
+				if (r.getState() == RecordingState.RUNNING) {
+					running = true;
+					break;
+				}
+			}
+		}
+		FilterEvents.recording = running;
+	}
+
+	private static Event begin(Event e) {
+		if (! e.isEnabled()) {
+			return null;
+		}
+		e.begin();
+		return e;
+	}
+
+	@Override
+	public Object beginFilter() {
+		return begin(new FilterEvent());
+	}
+
+	@Override
+	public void endFilter(Object event, long seqno, int changes) {
+		FilterEvent e = (FilterEvent) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.seqno = seqno;
+			e.changes = changes;
+			e.commit();
+		}
+	}
+
+	@Override
+	public Object beginMatch() {
+		return begin(new MatchEvent());
+	}
+
+	@Override
+	public void endMatch(Object event, long seqno, int results) {
+		MatchEvent e = (MatchEvent) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.seqno = seqno;
+			e.results = results;
+			e.commit();
+		}
+	}
+
+	@Override
+	public Object beginTableKeyLookup() {
+		return begin(new TableKeyLookupEvent());
+	}
+
+	@Override
+	public void endTableKeyLookup(Object event, String schema, String table,
+			String outcome) {
+		TableKeyLookupEvent e = (TableKeyLookupEvent) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.schema = schema;
+			e.table = table;
+			e.outcome = outcome;
+			e.commit();
+		}
+	}
+
+	@Override
+	public Object beginEncode() {
+		return begin(new EncodeEvent());
+	}
+
+	@Override
+	public void endEncode(Object event, long seqno, String schema,
+			String table, int rows, long bytes) {
+		EncodeEvent e = (EncodeEvent) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.seqno = seqno;
+			e.schema = schema;
+			e.table = table;
+			e.rows = rows;
+			e.bytes = bytes;
+			e.commit();
+		}
+	}
+
+	@Override
+	public Object beginPublish() {
+		return begin(new PublishEvent());
+	}
+
+	@Override
+	public void endPublish(Object event, long seqno, String schema,
+			String table, String routing_key, long bytes) {
+		PublishEvent e = (PublishEvent) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.seqno = seqno;
+			e.schema = schema;
+			e.table = table;
+			e.routingKey = routing_key;
+			e.bytes = bytes;
+			e.commit();
+		}
+	}
+
+	@Override
+	public Object beginReconnect() {
+		return begin(new ReconnectEvent());
+	}
+
+	@Override
+	public void endReconnect(Object event, int channel, int connection,
+			boolean success) {
+		ReconnectEvent e = (ReconnectEvent) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.channel = channel;
+			e.connection = connection;
+			e.success = success;
+			e.commit();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+/**
+ * The set of column values to include in a row's message, in addition to
+ * its primary key.
+ */
+package com.smartsheet.tin.filters.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+
+import static com.smartsheet.tin.filters.common.JsonFilterTools.confirmNodeType;
+import static com.smartsheet.tin.filters.common.JsonFilterTools.fetchChildBoolean;
+
+/**
+ * A projection is specified in JSON as:
+ *
+ *   {"columns": ["name", "status"], "changed_only": true,
+ *    "before_image": true}
+ *
+ * where "columns" can also be "*" for all columns.  For UPDATEs,
+ * "changed_only" drops the columns whose before and after values are the
+ * same, and "before_image" adds the before values of the projected
+ * columns.
+ *
+ * The column names are resolved to column positions once per version of
+ * a table (see TableKeyInfo.resolveColumns()).
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class ColumnProjection {
+	private static Logger logger = Logger.getLogger(ColumnProjection.class);
+	private List<String> columnNames;	// null for all columns.
+	private boolean changedOnly;
+	private boolean beforeImage;
+
+	public ColumnProjection() {
+		this.columnNames = null;
+		this.changedOnly = false;
+		this.beforeImage = false;
+	}
+
+	public static ColumnProjection newFromJson(JsonNode node)
+			throws JsonFilterException {
+		confirmNodeType(node, JsonNodeType.OBJECT, "payload", logger);
+
+		ColumnProjection cp = new ColumnProjection();
+		JsonNode columns_jn = node.get("columns");
+		if (columns_jn == null || columns_jn.isNull() ||
+				(columns_jn.isTextual() && columns_jn.asText().equals("*"))) {
+			cp.setColumnNames(null);
+		} else if (columns_jn.isArray()) {
+			List<String> names = new ArrayList<String>();
+			for (JsonNode name_jn : columns_jn) {
+				confirmNodeType(name_jn, JsonNodeType.STRING, "column name",
+						logger);
+				names.add(name_jn.asText());
+			}
+			cp.setColumnNames(names);
+		} else {
+			String err = String.format("payload 'columns' must be '*' or " +
+					"an array of column names, it is '%s'", columns_jn);
+			logger.error(err);
+			throw new JsonFilterException(err);
+		}
+		cp.setChangedOnly(fetchChildBoolean(node, "changed_only", false));
+		cp.setBeforeImage(fetchChildBoolean(node, "before_image", false));
+		return cp;
+	}
+
+	/**
+	 * Resolve the projected columns to positions for a version of a table.
+	 *
+	 * Columns that the table does not have resolve to -1.
+	 *
+	 * @param tki The table's info.
+	 * @return The column positions.
+	 */
+	public int[] resolve(TableKeyInfo tki) {
+		if (this.columnNames == null) {
+			return tki.resolveAllColumns(this);
+		}
+		return tki.resolveColumns(this, this.columnNames);
+	}
+
+	/**
+	 * Check if two projections produce the same messages.
+	 *
+	 * @param a A projection, or null for just the key.
+	 * @param b A projection, or null for just the key.
+	 * @return true if both would format a row identically.
+	 */
+	public static boolean sameOutput(ColumnProjection a, ColumnProjection b) {
+		if (a == b) {
+			return true;
+		}
+		if (a == null || b == null) {
+			return false;
+		}
+		if (a.changedOnly != b.changedOnly || a.beforeImage != b.beforeImage) {
+			return false;
+		}
+		if (a.columnNames == null || b.columnNames == null) {
+			return a.columnNames == b.columnNames;
+		}
+		return a.columnNames.equals(b.columnNames);
+	}
+
+	public void setColumnNames(List<String> columnNames) {
+		this.columnNames = columnNames;
+	}
+
+	public List<String> getColumnNames() {
+		return this.columnNames;
+	}
+
+	public void setChangedOnly(boolean changedOnly) {
+		this.changedOnly = changedOnly;
+	}
+
+	public boolean isChangedOnly() {
+		return this.changedOnly;
+	}
+
+	public void setBeforeImage(boolean beforeImage) {
+		this.beforeImage = beforeImage;
+	}
+
+	public boolean includeBeforeImage() {
+		return this.beforeImage;
+	}
+
+	public String toString() {
+		return String.format("<ColumnProjection columns: %s  " +
+				"changedOnly: %s  beforeImage: %s>",
+				this.columnNames == null ? "*" : this.columnNames,
+				this.changedOnly, this.beforeImage);
+	}
+}
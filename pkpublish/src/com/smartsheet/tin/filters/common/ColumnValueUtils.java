@@ -0,0 +1,122 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.common;
+
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Helpers for the values found in OneRowChange ColumnVals.
+ */
+public class ColumnValueUtils {
+
+	/**
+	 * Compare two column values, as they appear in the row images.
+	 *
+	 * Byte arrays are compared by content, and numbers of different classes
+	 * are compared by value (so a Long and an Integer holding the same value
+	 * are equal).  Otherwise, equals() is used.  Nothing is allocated unless
+	 * both values are numbers of different classes.
+	 *
+	 * @param a A column value, or null.
+	 * @param b A column value, or null.
+	 * @return true if the values are the same.
+	 */
+	public static boolean valuesEqual(Object a, Object b) {
+		if (a == b) {
+			return true;
+		}
+		if (a == null || b == null) {
+			return false;
+		}
+		if (a instanceof byte[] && b instanceof byte[]) {
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		}
+		if (a.getClass() == b.getClass()) {
+			return a.equals(b);
+		}
+		if (a instanceof Number && b instanceof Number) {
+			return numbersEqual((Number) a, (Number) b);
+		}
+		return a.equals(b);
+	}
+
+	/**
+	 * Hash a column value, consistently with valuesEqual() for the types
+	 * that appear in keys: byte arrays hash by content, and integral
+	 * numbers hash by value whatever their class.
+	 *
+	 * @param v A column value, or null.
+	 * @return The hash.
+	 */
+	public static long valueHash(Object v) {
+		if (v == null) {
+			return 0;
+		}
+		if (v instanceof byte[]) {
+			return Arrays.hashCode((byte[]) v);
+		}
+		if (v instanceof Number && isIntegral((Number) v)) {
+			long l = ((Number) v).longValue();
+			return l ^ (l >>> 32);
+		}
+		return v.hashCode();
+	}
+
+	private static boolean numbersEqual(Number a, Number b) {
+		if (isIntegral(a) && isIntegral(b)) {
+			return a.longValue() == b.longValue();
+		}
+		return toBigDecimal(a).compareTo(toBigDecimal(b)) == 0;
+	}
+
+	private static boolean isIntegral(Number n) {
+		return (n instanceof Long || n instanceof Integer ||
+				n instanceof Short || n instanceof Byte);
+	}
+
+	private static BigDecimal toBigDecimal(Number n) {
+		if (n instanceof BigDecimal) {
+			return (BigDecimal) n;
+		}
+		return new BigDecimal(n.toString());
+	}
+
+	/**
+	 * Convert a column value to something the JSON mapper can write.
+	 *
+	 * BLOB and TEXT values arrive as java.sql.Blob instances, which are
+	 * turned into their bytes.  Everything else is returned as is.
+	 *
+	 * @param value The column value.
+	 * @return A value suitable for serialization.
+	 */
+	public static Object toJsonValue(Object value) {
+		if (value instanceof Blob) {
+			Blob blob = (Blob) value;
+			try {
+				return blob.getBytes(1, (int) blob.length());
+			} catch (SQLException e) {
+				return "<unreadable blob: " + e.getMessage() + ">";
+			}
+		}
+		return value;
+	}
+}
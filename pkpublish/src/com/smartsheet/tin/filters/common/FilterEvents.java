@@ -0,0 +1,172 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+/**
+ * Java Flight Recorder events for the filter's stages: filtering an event,
+ * matching the rules, table key lookups, encoding row messages, publishing
+ * and reconnecting to the message queue.
+ *
+ * The JFR classes are only touched when the JVM has them, and only while
+ * a recording is running.  Otherwise each begin...() is a volatile read
+ * that returns null, and each end...() is a null check, so the stages pay
+ * next to nothing.
+ *
+ * The events themselves are in JfrFilterEvents, which is in a separate
+ * source tree (src-jfr) built only on JDKs with jdk.jfr, and is loaded by
+ * name.  A jar built without it simply records nothing.
+ *
+ * Usage: Object ev = FilterEvents.beginPublish(); ... publish ...
+ * FilterEvents.endPublish(ev, ...);
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class FilterEvents {
+	private static final String RECORDER_CLASS =
+			"com.smartsheet.tin.filters.common.JfrFilterEvents";
+
+	/**
+	 * What JfrFilterEvents provides, see the matching FilterEvents methods.
+	 */
+	interface Recorder {
+		void watchRecordings();
+		Object beginFilter();
+		void endFilter(Object event, long seqno, int changes);
+		Object beginMatch();
+		void endMatch(Object event, long seqno, int results);
+		Object beginTableKeyLookup();
+		void endTableKeyLookup(Object event, String schema, String table,
+				String outcome);
+		Object beginEncode();
+		void endEncode(Object event, long seqno, String schema,
+				String table, int rows, long bytes);
+		Object beginPublish();
+		void endPublish(Object event, long seqno, String schema,
+				String table, String routing_key, long bytes);
+		Object beginReconnect();
+		void endReconnect(Object event, int channel, int connection,
+				boolean success);
+	}
+
+	// Set by the recorder when recordings start and stop.
+	static volatile boolean recording = false;
+	private static final Recorder RECORDER = loadRecorder();
+
+	/**
+	 * @return The JFR recorder, or null if the JVM has no Flight Recorder
+	 *         or the plugin was built without JfrFilterEvents.
+	 */
+	private static Recorder loadRecorder() {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			Recorder recorder = (Recorder) Class.forName(RECORDER_CLASS)
+					.getDeclaredConstructor().newInstance();
+			recorder.watchRecordings();
+			return recorder;
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the JVM has Flight Recorder (and the plugin was built
+	 *         with JfrFilterEvents), whether or not it is recording.
+	 */
+	public static boolean isAvailable() {
+		return (RECORDER != null);
+	}
+
+	public static Object beginFilter() {
+		return recording ? RECORDER.beginFilter() : null;
+	}
+
+	public static void endFilter(Object event, long seqno, int changes) {
+		if (event != null) {
+			RECORDER.endFilter(event, seqno, changes);
+		}
+	}
+
+	public static Object beginMatch() {
+		return recording ? RECORDER.beginMatch() : null;
+	}
+
+	public static void endMatch(Object event, long seqno, int results) {
+		if (event != null) {
+			RECORDER.endMatch(event, seqno, results);
+		}
+	}
+
+	public static Object beginTableKeyLookup() {
+		return recording ? RECORDER.beginTableKeyLookup() : null;
+	}
+
+	/**
+	 * @param outcome "hit" (cached), "db" (read from the database) or
+	 *            "error".
+	 */
+	public static void endTableKeyLookup(Object event, String schema,
+			String table, String outcome) {
+		if (event != null) {
+			RECORDER.endTableKeyLookup(event, schema, table, outcome);
+		}
+	}
+
+	public static Object beginEncode() {
+		return recording ? RECORDER.beginEncode() : null;
+	}
+
+	public static void endEncode(Object event, long seqno, String schema,
+			String table, int rows, long bytes) {
+		if (event != null) {
+			RECORDER.endEncode(event, seqno, schema, table, rows,
+					bytes);
+		}
+	}
+
+	public static Object beginPublish() {
+		return recording ? RECORDER.beginPublish() : null;
+	}
+
+	/**
+	 * @param schema The row's schema, or null if not a row message.
+	 * @param table The row's table, or null if not a row message.
+	 */
+	public static void endPublish(Object event, long seqno, String schema,
+			String table, String routing_key, long bytes) {
+		if (event != null) {
+			RECORDER.endPublish(event, seqno, schema, table,
+					routing_key, bytes);
+		}
+	}
+
+	public static Object beginReconnect() {
+		return recording ? RECORDER.beginReconnect() : null;
+	}
+
+	public static void endReconnect(Object event, int channel,
+			int connection, boolean success) {
+		if (event != null) {
+			RECORDER.endReconnect(event, channel, connection, success);
+		}
+	}
+}
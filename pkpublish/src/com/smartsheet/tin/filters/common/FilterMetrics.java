@@ -19,55 +19,133 @@ package com.smartsheet.tin.filters.common;
 /**
  * Keep track of statistics about the event stream and the filter's 
  * behavior (errors and "surprises").
+ *
+ * Counters are StripedCounters, so the pipeline lanes and parallel
+ * matching threads can bump them without sharing a lock.  The gauges and
+ * report bookkeeping are synchronized.  The counters and gauges can also
+ * be read over JMX, see registerMBean().
  */
 
-import java.sql.Timestamp;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.log4j.Logger;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class FilterMetrics {
 	private static Logger logger = Logger.getLogger(FilterMetrics.class);
-	/**
-	 * These are the actual metrics collected.
-	 * This POJO will be serialized using jackson.
-	 */
-	public class BareMetrics {
-		public long nullEventCount = 0;
-		public long emptyEventCount = 0;
-		public long publishingErrorCount = 0;
-		public long formattingErrorCount = 0;
-		public long totalEventCount = 0;
-		public long tableLookupErrorCount = 0;
-		public long ruleFileReloadCount = 0;
-		public long ruleFileReloadErrorCount = 0;
-		public long dmlEventCount = 0;
-		public long emptyDataListCount = 0;
-		public long errorCount = 0;
-		public long ddlEventCount = 0;
-		public long ddlParseErrorCount = 0;
-		public long dbConnectErrorCount = 0;
-		public long dbLookupErrorCount = 0;
-		public long dbLoookupNoPrimaryKeyCount = 0;
-
-		public long reportStartTime = 0;
-		public long reportEndTime = 0;
-		public long totalEventsThisReport = 0;
-		public long totalErrorsThisReport = 0;
-	}
-
-	private BareMetrics metrics;
+
+	// All of the counters, by name, in report order.
+	private final Map<String, StripedCounter> counters =
+			new LinkedHashMap<String, StripedCounter>();
+	private final StripedCounter nullEventCount = counter("nullEventCount");
+	private final StripedCounter emptyEventCount = counter("emptyEventCount");
+	private final StripedCounter publishingErrorCount =
+			counter("publishingErrorCount");
+	private final StripedCounter formattingErrorCount =
+			counter("formattingErrorCount");
+	private final StripedCounter totalEventCount = counter("totalEventCount");
+	private final StripedCounter tableLookupErrorCount =
+			counter("tableLookupErrorCount");
+	private final StripedCounter ruleFileReloadCount =
+			counter("ruleFileReloadCount");
+	private final StripedCounter ruleFileReloadErrorCount =
+			counter("ruleFileReloadErrorCount");
+	private final StripedCounter dmlEventCount = counter("dmlEventCount");
+	private final StripedCounter emptyDataListCount =
+			counter("emptyDataListCount");
+	private final StripedCounter errorCount = counter("errorCount");
+	private final StripedCounter ddlEventCount = counter("ddlEventCount");
+	private final StripedCounter ddlParseErrorCount =
+			counter("ddlParseErrorCount");
+	private final StripedCounter dbConnectErrorCount =
+			counter("dbConnectErrorCount");
+	private final StripedCounter dbLookupErrorCount =
+			counter("dbLookupErrorCount");
+	private final StripedCounter dbLoookupNoPrimaryKeyCount =
+			counter("dbLoookupNoPrimaryKeyCount");
+	private final StripedCounter formatCacheHitCount =
+			counter("formatCacheHitCount");
+	private final StripedCounter formatCacheMissCount =
+			counter("formatCacheMissCount");
+	private final StripedCounter spoolActivationCount =
+			counter("spoolActivationCount");
+	private final StripedCounter spooledMessageCount =
+			counter("spooledMessageCount");
+	private final StripedCounter replayedMessageCount =
+			counter("replayedMessageCount");
+	private final StripedCounter spoolCorruptSegmentCount =
+			counter("spoolCorruptSegmentCount");
+	private final StripedCounter coalescedMessageCount =
+			counter("coalescedMessageCount");
+	private final StripedCounter coalesceEmittedCount =
+			counter("coalesceEmittedCount");
+	private final StripedCounter coalesceFlushCount =
+			counter("coalesceFlushCount");
+	private final StripedCounter slowEventCount = counter("slowEventCount");
+	private final StripedCounter tracedEventCount =
+			counter("tracedEventCount");
+	private final StripedCounter lostMessageCount =
+			counter("lostMessageCount");
+
+	// Values set from elsewhere (e.g. the publisher), by name, in report
+	// order.  Guarded by this.
+	private final Map<String, Object> gauges = new LinkedHashMap<String, Object>();
+
 	private ObjectMapper mapper;
+	// Recorded without taking the FilterMetrics lock.
+	private final LatencyHistogram matchLatency = new LatencyHistogram();
+	private final LatencyHistogram lookupLatency = new LatencyHistogram();
+	private final LatencyHistogram formatLatency = new LatencyHistogram();
+	private final LatencyHistogram publishLatency = new LatencyHistogram();
+	// Replication lag: from the event's extraction on the master to when
+	// the filter saw it, published it, and the broker confirmed it.
+	private final LatencyHistogram filterLag = new LatencyHistogram();
+	private final LatencyHistogram publishLag = new LatencyHistogram();
+	private final LatencyHistogram confirmLag = new LatencyHistogram();
+	// Heavy hitters, null when disabled.
+	private volatile TopKSketch tableTopK = null;
+	private volatile TopKSketch routingKeyTopK = null;
+	private int topK = 0;
+	// Distinct primary keys per table, null when disabled.
+	private static final int DISTINCT_KEYS_PRECISION = 10;
+	private static final String OTHER_TABLES = "(other)";
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+	private volatile ConcurrentHashMap<String, TableKeySketches> distinctKeys =
+			null;
+	private int distinctKeysMaxTables = 0;
+	private long distinctKeysDay = 0;
+	private volatile long currentSeqno = -1;
+	private final AtomicLong lastPublishedSeqno = new AtomicLong(-1);
+	// The lowest seqno with a message the broker lost, the last published
+	// seqno stays below it.
+	private final AtomicLong lostSeqno = new AtomicLong(Long.MAX_VALUE);
 	private static long defaultReportFrequency = 10;	// Seconds
 	private static long defaultMinReqportInterval = 1;	// Seconds
-	private long currentEventTS = 0;
-	private long lastReportEventTS = 0;
 	private long reportFrequency;	// In milliseconds
 	private long lastReportTime = 0;
 	private long minReportInterval; // In milliseconds
-	private long reportErrorFrequency;
+	private long reportErrorFrequency = 0;	// 0: no early reports
 	private long lastReportErrorCount = 0;
 	private long lastReportEventCount = 0;
+	private long reportStartTime = 0;
+	private long reportEndTime = 0;
+	private Object publisherStats = null;
+	private Map<String, Long> memory = null;
+	private final AtomicLong largestTransactionMessage = new AtomicLong(0);
+	private ObjectName mbeanName = null;
+	// The last report in Prometheus format, null unless asked for.
+	private volatile String prometheusSnapshot = null;
+	private String prometheusFilterName = null;
 
 
 	public FilterMetrics() {
@@ -81,7 +159,6 @@ public class FilterMetrics {
 	 */
 	public FilterMetrics(long report_frequency, long min_report_interval) {
 		this.mapper = new ObjectMapper();
-		this.metrics = new BareMetrics();
 		if (report_frequency == 0) {
 			this.reportFrequency = FilterMetrics.defaultReportFrequency * 1000;
 		} else {
@@ -92,106 +169,479 @@ public class FilterMetrics {
 		} else {
 			this.minReportInterval = min_report_interval * 1000;
 		}
+		this.lastReportTime = System.currentTimeMillis();
+		this.reportEndTime = this.lastReportTime;
+		this.gauges.put("circuitBreakerState", null);
+		this.gauges.put("circuitBreakerTransitionCount", 0L);
+		this.gauges.put("brokerBlocked", false);
+		this.gauges.put("brokerBlockedCount", 0L);
+		this.gauges.put("brokerBlockedMillis", 0L);
+		this.gauges.put("brokerShutdownCount", 0L);
+		this.gauges.put("blockedBufferedCount", 0L);
+		this.gauges.put("blockedCoalescedCount", 0L);
 		logger.info("FilterMetrics reportFrequency: " + this.reportFrequency + 
 				", minReportInterval: " + this.minReportInterval);
 	}
 
+	private StripedCounter counter(String name) {
+		StripedCounter c = new StripedCounter();
+		this.counters.put(name, c);
+		return c;
+	}
+
 	public void event() {
-		++this.metrics.totalEventCount;
+		this.totalEventCount.increment();
 	}
 
 	public void error() {
-		++this.metrics.errorCount;
+		this.errorCount.increment();
 	}
 
 
 	public void nullEvent() {
-		++this.metrics.nullEventCount;
+		this.nullEventCount.increment();
 		error();
 	}
 
 	public void emptyEvent() {
-		++this.metrics.emptyEventCount;
+		this.emptyEventCount.increment();
 	}
 
 	public void emptyDataList() {
-		++this.metrics.emptyDataListCount;
+		this.emptyDataListCount.increment();
 	}
 
 	public void publishingError() {
-		++this.metrics.publishingErrorCount;
+		this.publishingErrorCount.increment();
 		error();
 	}
 
 	public void formattingError() {
-		++this.metrics.formattingErrorCount;
+		this.formattingErrorCount.increment();
 		error();
 	}
 
 	public void ruleFileReload() {
-		++this.metrics.ruleFileReloadCount;
+		this.ruleFileReloadCount.increment();
 	}
 
 	public void ruleFileReloadError() {
-		++this.metrics.ruleFileReloadErrorCount;
+		this.ruleFileReloadErrorCount.increment();
 		error();
 	}
 
 	public void ddlEvent() {
-		++this.metrics.ddlEventCount;
+		this.ddlEventCount.increment();
 	}
 
 	public void ddlParseError() {
-		++this.metrics.ddlParseErrorCount;
+		this.ddlParseErrorCount.increment();
 		error();
 	}
 
 	public void dmlEvent() {
-		++this.metrics.dmlEventCount;
+		this.dmlEventCount.increment();
 	}
 
 	public void dbConnectError() {
-		++this.metrics.dbConnectErrorCount;
+		this.dbConnectErrorCount.increment();
 		error();
 	}
 
 	public void dbLookupError() {
-		++this.metrics.dbLookupErrorCount;
+		this.dbLookupErrorCount.increment();
 		error();
 	}
 
 	public void dbNoPrimaryKey() {
-		++this.metrics.dbLoookupNoPrimaryKeyCount;
+		this.dbLoookupNoPrimaryKeyCount.increment();
+	}
+
+	public void formatCacheHit() {
+		this.formatCacheHitCount.increment();
+	}
+
+	public void formatCacheHits(long count) {
+		this.formatCacheHitCount.add(count);
+	}
+
+	public void formatCacheMiss() {
+		this.formatCacheMissCount.increment();
+	}
+
+	public void formatCacheMisses(long count) {
+		this.formatCacheMissCount.add(count);
+	}
+
+	public void spoolActivated() {
+		this.spoolActivationCount.increment();
+	}
+
+	public void spooledMessage() {
+		this.spooledMessageCount.increment();
+	}
+
+	public void replayedMessage() {
+		this.replayedMessageCount.increment();
+	}
+
+	public void spoolCorruptSegment() {
+		this.spoolCorruptSegmentCount.increment();
+		error();
+	}
+
+	public void coalescedMessage() {
+		this.coalescedMessageCount.increment();
+	}
+
+	public void coalesceFlush(long emitted) {
+		this.coalesceFlushCount.increment();
+		this.coalesceEmittedCount.add(emitted);
+	}
+
+	public void slowEvent() {
+		this.slowEventCount.increment();
+	}
+
+	public void tracedEvent() {
+		this.tracedEventCount.increment();
 	}
 
 	/**
-	 * Register the timestamp of the event.
-	 * @param event_ts
+	 * Record the message queue circuit breaker's state.
+	 * @param state CLOSED, OPEN or HALF_OPEN.
+	 * @param transitions State changes since the publisher started.
 	 */
-	public void eventTimestamp(Timestamp event_ts) {
-		this.currentEventTS = event_ts.getTime();
+	public synchronized void setCircuitBreaker(String state, long transitions) {
+		this.gauges.put("circuitBreakerState", state);
+		this.gauges.put("circuitBreakerTransitionCount", transitions);
+	}
+
+	/**
+	 * Record the broker's flow control of the publisher.
+	 * @param blocked Is publishing blocked right now.
+	 * @param blocked_count Times publishing has been blocked.
+	 * @param blocked_millis Total time spent blocked.
+	 * @param shutdown_count Connections shut down by the broker.
+	 * @param buffered_count Messages buffered while blocked.
+	 * @param coalesced_count Buffered messages replaced by a newer one.
+	 */
+	public synchronized void setFlowControl(boolean blocked,
+			long blocked_count, long blocked_millis, long shutdown_count,
+			long buffered_count, long coalesced_count) {
+		this.gauges.put("brokerBlocked", blocked);
+		this.gauges.put("brokerBlockedCount", blocked_count);
+		this.gauges.put("brokerBlockedMillis", blocked_millis);
+		this.gauges.put("brokerShutdownCount", shutdown_count);
+		this.gauges.put("blockedBufferedCount", buffered_count);
+		this.gauges.put("blockedCoalescedCount", coalesced_count);
+	}
+
+	/**
+	 * Set the publisher's stats to include in the next report.
+	 * @param stats A Jackson-serializable object.
+	 */
+	public synchronized void setPublisherStats(Object stats) {
+		this.publisherStats = stats;
+	}
+
+	/**
+	 * Set the estimated bytes retained by caches and buffers, by name, to
+	 * include in the next report.
+	 */
+	public synchronized void setMemory(Map<String, Long> memory) {
+		this.memory = memory;
+	}
+
+	/**
+	 * A transaction message (or chunk) was built.
+	 * @param bytes Its estimated size.
+	 */
+	public void transactionMessageBuilt(long bytes) {
+		long m = this.largestTransactionMessage.get();
+		while (bytes > m &&
+				! this.largestTransactionMessage.compareAndSet(m, bytes)) {
+			m = this.largestTransactionMessage.get();
+		}
+	}
+
+	/**
+	 * Time spent matching an event against the rules.
+	 */
+	public LatencyHistogram getMatchLatency() {
+		return this.matchLatency;
+	}
+
+	/**
+	 * Time spent looking up a table's key info.
+	 */
+	public LatencyHistogram getLookupLatency() {
+		return this.lookupLatency;
+	}
+
+	/**
+	 * Time spent formatting a OneRowChange's row messages (including any
+	 * key lookup).
+	 */
+	public LatencyHistogram getFormatLatency() {
+		return this.formatLatency;
+	}
+
+	/**
+	 * Time spent handing a message to the publisher (or spool).
+	 */
+	public LatencyHistogram getPublishLatency() {
+		return this.publishLatency;
+	}
+
+	/**
+	 * Lag from the master extracting an event to its messages being
+	 * confirmed by the broker.  Only recorded with publisher confirms on.
+	 */
+	public LatencyHistogram getConfirmLag() {
+		return this.confirmLag;
+	}
+
+	/**
+	 * The filter got an event: record how far behind the master it is.
+	 * @param seqno The event's seqno.
+	 * @param extracted_ms The event's extraction time.
+	 */
+	public void eventArrived(long seqno, long extracted_ms) {
+		this.currentSeqno = seqno;
+		this.filterLag.record(lagNanos(extracted_ms));
+	}
+
+	/**
+	 * A message was sent to the message queue (not just queued to be
+	 * sent, see PublishListener), or everything up to an event was.
+	 * @param seqno The seqno of the message's event.
+	 * @param extracted_ms The event's extraction time, or 0 to only move
+	 *            the last published seqno.
+	 */
+	public void published(long seqno, long extracted_ms) {
+		if (extracted_ms > 0) {
+			this.publishLag.record(lagNanos(extracted_ms));
+		}
+		seqno = Math.min(seqno, this.lostSeqno.get() - 1);
+		long last = this.lastPublishedSeqno.get();
+		while (seqno > last &&
+				! this.lastPublishedSeqno.compareAndSet(last, seqno)) {
+			last = this.lastPublishedSeqno.get();
+		}
+	}
+
+	/**
+	 * The broker lost one of an event's messages: it nacked it, or the
+	 * channel closed before confirming it.  From now on the last published
+	 * seqno stays below the event's, so seqnoLag keeps growing.
+	 * @param seqno The seqno of the message's event, or -1 for messages
+	 *            that aren't from an event (only counted).
+	 */
+	public void messageLost(long seqno) {
+		this.lostMessageCount.increment();
+		if (seqno < 0) {
+			return;
+		}
+		long lost = this.lostSeqno.get();
+		while (seqno < lost && ! this.lostSeqno.compareAndSet(lost, seqno)) {
+			lost = this.lostSeqno.get();
+		}
+		// Later messages may have been confirmed first.
+		long last = this.lastPublishedSeqno.get();
+		while (last >= seqno &&
+				! this.lastPublishedSeqno.compareAndSet(last, seqno - 1)) {
+			last = this.lastPublishedSeqno.get();
+		}
+	}
+
+	/**
+	 * @return The nanoseconds since extracted_ms, 0 if the clocks disagree.
+	 */
+	public static long lagNanos(long extracted_ms) {
+		return Math.max(0, System.currentTimeMillis() - extracted_ms) *
+				1000000L;
+	}
+
+	/**
+	 * Track the heaviest tables (by rows published) and routing keys (by
+	 * bytes published) in each report.
+	 * @param top_k How many of each to report, 0 to not track them.
+	 */
+	public synchronized void setTopK(int top_k) {
+		this.topK = top_k;
+		if (top_k > 0) {
+			// Tracking more keys than are reported keeps the reported
+			// ones' counts (and which keys they are) accurate.
+			this.tableTopK = new TopKSketch(top_k * 8, TopKSketch.Rank.ROWS);
+			this.routingKeyTopK = new TopKSketch(top_k * 8,
+					TopKSketch.Rank.BYTES);
+		} else {
+			this.tableTopK = null;
+			this.routingKeyTopK = null;
+		}
+	}
+
+	/**
+	 * The distinct keys a table changed this interval, and today.
+	 */
+	private static class TableKeySketches {
+		// Swapped for a new one each report, rather than reset, so the
+		// report doesn't block adds.  An add that read the old one just
+		// before the swap can land after it was estimated: that key is
+		// missing from the interval, but previous is merged into day
+		// again at the next report (merging is idempotent), so the day
+		// still gets it.
+		volatile HyperLogLog interval =
+				new HyperLogLog(DISTINCT_KEYS_PRECISION);
+		HyperLogLog previous = null;
+		HyperLogLog day = new HyperLogLog(DISTINCT_KEYS_PRECISION);
+	}
+
+	/**
+	 * One table's distinct key estimates, for the metrics report.
+	 */
+	public static class DistinctKeys {
+		public long interval;
+		public long today;
+	}
+
+	/**
+	 * Estimate the distinct primary keys changed per table in each report,
+	 * and so far today (UTC).
+	 * @param max_tables Most tables to keep sketches for; tables past that
+	 *            share one, reported as "(other)".  0 to not estimate.
+	 */
+	public synchronized void setDistinctKeysMaxTables(int max_tables) {
+		this.distinctKeysMaxTables = max_tables;
+		if (max_tables > 0) {
+			this.distinctKeys =
+					new ConcurrentHashMap<String, TableKeySketches>();
+			this.distinctKeysDay = System.currentTimeMillis() / DAY_MILLIS;
+		} else {
+			this.distinctKeys = null;
+		}
+	}
+
+	/**
+	 * A row message for a row of the table is being published (rows
+	 * matched by several rules are counted once per message).
+	 * @param table_name The row's "schema.table" name.
+	 * @param key_hash A hash of the row's primary key values.
+	 */
+	public void rowPublished(String table_name, long key_hash) {
+		TopKSketch sketch = this.tableTopK;
+		ConcurrentHashMap<String, TableKeySketches> distinct =
+				this.distinctKeys;
+		if (sketch == null && distinct == null) {
+			return;
+		}
+		String name = table_name;
+		if (sketch != null) {
+			sketch.addRows(name, 1);
+		}
+		if (distinct != null) {
+			TableKeySketches tks = distinct.get(name);
+			if (tks == null && distinct.size() >= this.distinctKeysMaxTables) {
+				name = OTHER_TABLES;
+				tks = distinct.get(name);
+			}
+			// Only allocate (two sketches) for a table not seen before.
+			if (tks == null) {
+				tks = new TableKeySketches();
+				TableKeySketches had = distinct.putIfAbsent(name, tks);
+				if (had != null) {
+					tks = had;
+				}
+			}
+			tks.interval.add(key_hash);
+		}
+	}
+
+	/**
+	 * @return Each table's distinct keys, and start a new interval.
+	 */
+	private Map<String, DistinctKeys> distinctKeysReport() {
+		long day = System.currentTimeMillis() / DAY_MILLIS;
+		boolean new_day = (day != this.distinctKeysDay);
+		this.distinctKeysDay = day;
+		Map<String, DistinctKeys> report = new TreeMap<String, DistinctKeys>();
+		for (Map.Entry<String, TableKeySketches> e :
+			this.distinctKeys.entrySet()) {
+			TableKeySketches tks = e.getValue();
+			if (tks.previous != null) {
+				// Late adds to the last interval.
+				tks.day.merge(tks.previous);
+			}
+			if (new_day) {
+				tks.day.reset();
+			}
+			HyperLogLog interval = tks.interval;
+			tks.interval = new HyperLogLog(DISTINCT_KEYS_PRECISION);
+			tks.previous = interval;
+			DistinctKeys dk = new DistinctKeys();
+			dk.interval = interval.estimate();
+			tks.day.merge(interval);
+			dk.today = tks.day.estimate();
+			report.put(e.getKey(), dk);
+		}
+		return report;
+	}
+
+	/**
+	 * A message was handed to the publisher (or spool).
+	 * @param table_name The row's "schema.table" name, or null if not a
+	 *            row message.
+	 * @param bytes The message's size.
+	 */
+	public void messagePublished(String table_name, String routing_key,
+			long bytes) {
+		TopKSketch sketch = this.routingKeyTopK;
+		if (sketch != null) {
+			sketch.addMessage(routing_key, bytes);
+		}
+		sketch = this.tableTopK;
+		if (sketch != null && table_name != null) {
+			sketch.addMessage(table_name, bytes);
+		}
+	}
+
+	/**
+	 * @param error_frequency Errors since the last report that trigger a
+	 *            report early, 0 to only report every reportFrequency.
+	 */
+	public synchronized void setReportErrorFrequency(long error_frequency) {
+		this.reportErrorFrequency = error_frequency;
+	}
+
+	/**
+	 * @return How often to call shouldReport(), in milliseconds.
+	 */
+	public long getMinReportInterval() {
+		return this.minReportInterval;
 	}
 
 	/**
 	 * Return true if the statistics should be reported.
 	 * Statistics are reported if:
-	 *    - Enough time (measured by event TS) has elapsed (reportFrequency)
+	 *    - Enough wallclock time has elapsed (reportFrequency)
 	 *    - Enough error-type events have occurred (reportErrorFrequency)
-	 *    - Enough wallclock time has elapsed to avoid a flood of reports.
+	 *    - And enough wallclock time has elapsed to avoid a flood of reports.
+	 * This is meant to be polled from a reporting thread, not per event.
 	 * @return
 	 */
-	public boolean shouldReport() {
+	public synchronized boolean shouldReport() {
 		boolean should_report = false;
-		if ((this.currentEventTS - this.lastReportEventTS) > 
-		this.reportFrequency) {
+		long current_time = System.currentTimeMillis();
+		if ((current_time - this.lastReportTime) >= this.reportFrequency) {
 			should_report = true;
-		} else if ((this.metrics.errorCount - this.lastReportErrorCount) > 
-		this.reportErrorFrequency) {
+		} else if (this.reportErrorFrequency > 0 &&
+				(this.errorCount.sum() - this.lastReportErrorCount) >=
+				this.reportErrorFrequency) {
 			should_report = true;
 		}
 
 		if (should_report) {
-			long current_time = System.currentTimeMillis();
 			if ((current_time - this.lastReportTime) < this.minReportInterval) {
 				should_report = false;
 			}
@@ -199,20 +649,64 @@ public class FilterMetrics {
 		return should_report;
 	}
 
-	public String makeReport() {
+	public synchronized String makeReport() {
 		String report = null;
 		try {
-			report = this.toJSON();
+			Map<String, LatencyHistogram.Snapshot> latency =
+					new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+			latency.put("match", this.matchLatency.snapshotAndReset());
+			latency.put("lookup", this.lookupLatency.snapshotAndReset());
+			latency.put("format", this.formatLatency.snapshotAndReset());
+			latency.put("publish", this.publishLatency.snapshotAndReset());
+
+			Map<String, LatencyHistogram.Snapshot> lag =
+					new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+			lag.put("filter", this.filterLag.snapshotAndReset());
+			lag.put("publish", this.publishLag.snapshotAndReset());
+			lag.put("confirm", this.confirmLag.snapshotAndReset());
+
+			// The report covers the time since the previous one.
 			this.lastReportTime = System.currentTimeMillis();
-			this.metrics.totalEventsThisReport = 
-					this.metrics.totalEventCount - this.lastReportEventCount;
-			this.metrics.totalErrorsThisReport =
-					this.metrics.errorCount - this.lastReportErrorCount;
-			this.lastReportEventCount = this.metrics.totalEventCount;
-			this.lastReportErrorCount = this.metrics.errorCount;
-			this.lastReportEventTS = this.currentEventTS;
-			this.metrics.reportStartTime = this.metrics.reportEndTime;
-			this.metrics.reportEndTime = this.lastReportTime;
+			this.reportStartTime = this.reportEndTime;
+			this.reportEndTime = this.lastReportTime;
+
+			Map<String, Object> values = this.snapshot();
+			long total_events = (Long) values.get("totalEventCount");
+			long errors = (Long) values.get("errorCount");
+			values.put("reportStartTime", this.reportStartTime);
+			values.put("reportEndTime", this.reportEndTime);
+			values.put("totalEventsThisReport",
+					total_events - this.lastReportEventCount);
+			values.put("totalErrorsThisReport",
+					errors - this.lastReportErrorCount);
+			values.put("latency", latency);
+			values.put("lag", lag);
+			if (this.topK > 0) {
+				values.put("topTables",
+						this.tableTopK.snapshotAndReset(this.topK));
+				values.put("topRoutingKeys",
+						this.routingKeyTopK.snapshotAndReset(this.topK));
+			}
+			if (this.distinctKeys != null) {
+				values.put("distinctKeys", this.distinctKeysReport());
+			}
+			Map<String, Long> memory = new LinkedHashMap<String, Long>();
+			if (this.memory != null) {
+				memory.putAll(this.memory);
+			}
+			memory.put("largestTransactionMessage",
+					this.largestTransactionMessage.getAndSet(0));
+			values.put("memory", memory);
+			if (this.publisherStats != null) {
+				values.put("publisherStats", this.publisherStats);
+			}
+			this.lastReportEventCount = total_events;
+			this.lastReportErrorCount = errors;
+			report = this.mapper.writeValueAsString(values);
+			if (this.prometheusFilterName != null) {
+				this.prometheusSnapshot = PrometheusFormat.render(values,
+						this.counters.keySet(), this.prometheusFilterName);
+			}
 		} catch (JsonProcessingException e) {
 			logger.warn("Error making report:", e);
 			report = "{\"FilterMetrics\": { \"Error\": \"" + e + "\"} }";
@@ -221,8 +715,106 @@ public class FilterMetrics {
 	}
 
 
-	public String toJSON() throws JsonProcessingException {
-		return this.mapper.writeValueAsString(this.metrics);
+	/**
+	 * @return The current value of every counter and gauge, by name.
+	 */
+	public synchronized Map<String, Object> snapshot() {
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, StripedCounter> e : this.counters.entrySet()) {
+			values.put(e.getKey(), e.getValue().sum());
+		}
+		values.putAll(this.gauges);
+		long current = this.currentSeqno;
+		long published = this.lastPublishedSeqno.get();
+		values.put("currentSeqno", current);
+		values.put("lastPublishedSeqno", published);
+		values.put("seqnoLag", (current < 0 || published < 0) ? 0 :
+			Math.max(0, current - published));
+		return values;
+	}
+
+
+	/**
+	 * @return The current value of a counter or gauge, or null if there is
+	 *         no such metric.
+	 */
+	public synchronized Object getValue(String name) {
+		StripedCounter c = this.counters.get(name);
+		if (c != null) {
+			return c.sum();
+		}
+		return this.snapshot().get(name);
+	}
+
+
+	/**
+	 * Also render each report in the Prometheus text format, see
+	 * getPrometheusSnapshot().
+	 * @param filter_name The filter label's value.
+	 */
+	public synchronized void renderPrometheus(String filter_name) {
+		this.prometheusFilterName = filter_name;
+		// Until the first report, serve the counters and gauges.
+		this.prometheusSnapshot = PrometheusFormat.render(this.snapshot(),
+				this.counters.keySet(), filter_name);
+	}
+
+	/**
+	 * @return The last report in Prometheus text format, rendered when the
+	 *         report was made, so reading it never blocks the reporter.
+	 *         null if renderPrometheus() wasn't called.
+	 */
+	public String getPrometheusSnapshot() {
+		return this.prometheusSnapshot;
+	}
+
+
+	public synchronized String toJSON() throws JsonProcessingException {
+		return this.mapper.writeValueAsString(this.snapshot());
+	}
+
+
+	/**
+	 * Register the counters and gauges as a JMX MBean named
+	 * com.smartsheet.tin.filters:type=FilterMetrics,name=<name>.  If
+	 * another filter's MBean already has the name, it is left alone and
+	 * these metrics aren't registered, since replacing it would hide the
+	 * other filter's metrics.
+	 */
+	public synchronized void registerMBean(String name) {
+		this.unregisterMBean();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName on = new ObjectName(
+					"com.smartsheet.tin.filters:type=FilterMetrics,name=" +
+							ObjectName.quote(name));
+			if (server.isRegistered(on)) {
+				logger.error("Metrics MBean " + on + " is already " +
+						"registered, not registering this filter's metrics. " +
+						"Give each filter its own metricsName.");
+				return;
+			}
+			server.registerMBean(new FilterMetricsMBean(this), on);
+			this.mbeanName = on;
+			logger.info("Registered metrics MBean: " + on);
+		} catch (JMException e) {
+			logger.warn("Unable to register metrics MBean for " + name, e);
+		}
+	}
+
+
+	public synchronized void unregisterMBean() {
+		if (this.mbeanName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					this.mbeanName);
+		} catch (JMException e) {
+			logger.warn("Unable to unregister metrics MBean " +
+					this.mbeanName, e);
+		}
+		this.mbeanName = null;
 	}
 
 }
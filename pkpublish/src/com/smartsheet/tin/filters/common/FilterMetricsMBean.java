@@ -0,0 +1,107 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes a FilterMetrics' counters and gauges as read-only JMX
+ * attributes, one per metric, named as in the metrics report.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class FilterMetricsMBean implements DynamicMBean {
+	private FilterMetrics metrics;
+	private MBeanInfo info;
+
+	public FilterMetricsMBean(FilterMetrics metrics) {
+		this.metrics = metrics;
+		List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Object> e : metrics.snapshot().entrySet()) {
+			// Gauges that haven't been set yet (null) are strings.
+			String type = String.class.getName();
+			if (e.getValue() != null) {
+				type = e.getValue().getClass().getName();
+			}
+			attrs.add(new MBeanAttributeInfo(e.getKey(), type, e.getKey(),
+					true, false, false));
+		}
+		this.info = new MBeanInfo(FilterMetrics.class.getName(),
+				"Tungsten filter metrics",
+				attrs.toArray(new MBeanAttributeInfo[attrs.size()]),
+				null, new MBeanOperationInfo[0], null);
+	}
+
+	@Override
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		Map<String, Object> values = this.metrics.snapshot();
+		if (!values.containsKey(attribute)) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return values.get(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Object> values = this.metrics.snapshot();
+		AttributeList list = new AttributeList();
+		for (String name : attributes) {
+			if (values.containsKey(name)) {
+				list.add(new Attribute(name, values.get(name)));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Read-only: " +
+				attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params,
+			String[] signature) throws MBeanException, ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		return this.info;
+	}
+}
@@ -0,0 +1,121 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import java.util.Arrays;
+
+/**
+ * A HyperLogLog sketch: estimates how many distinct values were added,
+ * in 2^precision bytes however many values there are.  The standard error
+ * is about 1.04 / sqrt(2^precision), e.g. 3% at precision 10.
+ *
+ * Values are added as 64-bit hashes, which are mixed first, so weak hashes
+ * (like RowMessage key hashes) are fine.  Sketches of the same precision
+ * can be merged, giving the estimate for the union.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class HyperLogLog {
+	private int precision;
+	private byte[] registers;
+
+	public HyperLogLog(int precision) {
+		this.precision = Math.max(4, Math.min(16, precision));
+		this.registers = new byte[1 << this.precision];
+	}
+
+	public synchronized void add(long hash) {
+		long h = mix(hash);
+		int idx = (int) (h >>> (64 - this.precision));
+		// Rank of the first 1 bit in the rest, the guard bit caps it.
+		long rest = (h << this.precision) | (1L << (this.precision - 1));
+		byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+		if (rank > this.registers[idx]) {
+			this.registers[idx] = rank;
+		}
+	}
+
+	/**
+	 * @return The estimated number of distinct values added.
+	 */
+	public synchronized long estimate() {
+		int m = this.registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte r : this.registers) {
+			sum += 1.0 / (1L << r);
+			if (r == 0) {
+				++zeros;
+			}
+		}
+		double alpha;
+		if (m == 16) {
+			alpha = 0.673;
+		} else if (m == 32) {
+			alpha = 0.697;
+		} else if (m == 64) {
+			alpha = 0.709;
+		} else {
+			alpha = 0.7213 / (1 + 1.079 / m);
+		}
+		double e = alpha * m * m / sum;
+		if (e <= 2.5 * m && zeros > 0) {
+			// Linear counting is more accurate for small counts.
+			e = m * Math.log((double) m / zeros);
+		}
+		return Math.round(e);
+	}
+
+	/**
+	 * Add everything other has seen to this sketch.
+	 */
+	public void merge(HyperLogLog other) {
+		byte[] theirs;
+		synchronized (other) {
+			theirs = other.registers.clone();
+		}
+		synchronized (this) {
+			if (theirs.length != this.registers.length) {
+				throw new IllegalArgumentException("Can't merge a " +
+						"HyperLogLog of a different precision");
+			}
+			for (int i = 0; i < theirs.length; ++i) {
+				if (theirs[i] > this.registers[i]) {
+					this.registers[i] = theirs[i];
+				}
+			}
+		}
+	}
+
+	public synchronized void reset() {
+		Arrays.fill(this.registers, (byte) 0);
+	}
+
+	/**
+	 * MurmurHash3's 64-bit finalizer.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
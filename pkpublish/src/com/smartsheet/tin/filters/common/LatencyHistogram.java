@@ -0,0 +1,136 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket, log-linear histogram of durations in nanoseconds, in
+ * the style of HdrHistogram.  Values below 32 get a bucket each, above
+ * that each power of two is split into 16 buckets, so a bucket's upper
+ * bound is within about 6% of any value in it.  Recording is a bit scan,
+ * a shift and an atomic increment, safe from any number of threads.
+ *
+ * Snapshots are per interval: snapshotAndReset() reports what was
+ * recorded since the previous snapshot.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class LatencyHistogram {
+	private static final int LINEAR_BUCKETS = 32;
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BITS = 4;
+	private static final int BUCKET_COUNT = (63 - SUB_BITS) * SUB_BUCKETS +
+			LINEAR_BUCKETS;
+
+	/**
+	 * One interval's percentiles, in microseconds, for the metrics report.
+	 */
+	public static class Snapshot {
+		public long count;
+		public double p50Micros;
+		public double p99Micros;
+		public double p999Micros;
+		public double maxMicros;
+	}
+
+	private AtomicLongArray counts;
+	private AtomicLong max;
+
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(BUCKET_COUNT);
+		this.max = new AtomicLong(0);
+	}
+
+	static int bucketFor(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (value < 0) ? 0 : (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return The largest value that goes in the bucket.
+	 */
+	static long bucketUpperBound(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * @param nanos A duration, e.g. the difference of two System.nanoTime()s.
+	 */
+	public void record(long nanos) {
+		this.counts.incrementAndGet(bucketFor(nanos));
+		long m = this.max.get();
+		while (nanos > m && ! this.max.compareAndSet(m, nanos)) {
+			m = this.max.get();
+		}
+	}
+
+	/**
+	 * Record the time since start_nanos.
+	 */
+	public void recordSince(long start_nanos) {
+		this.record(System.nanoTime() - start_nanos);
+	}
+
+	/**
+	 * @return The interval's percentiles, and start a new interval.
+	 */
+	public Snapshot snapshotAndReset() {
+		long[] snap = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			snap[i] = this.counts.getAndSet(i, 0);
+			total += snap[i];
+		}
+		long max_nanos = this.max.getAndSet(0);
+
+		Snapshot s = new Snapshot();
+		s.count = total;
+		s.maxMicros = max_nanos / 1000.0;
+		if (total == 0) {
+			return s;
+		}
+		s.p50Micros = percentile(snap, total, 0.50, max_nanos) / 1000.0;
+		s.p99Micros = percentile(snap, total, 0.99, max_nanos) / 1000.0;
+		s.p999Micros = percentile(snap, total, 0.999, max_nanos) / 1000.0;
+		return s;
+	}
+
+	private static long percentile(long[] snap, long total, double fraction,
+			long max_nanos) {
+		long rank = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < snap.length; ++i) {
+			seen += snap[i];
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(i), max_nanos);
+			}
+		}
+		return max_nanos;
+	}
+}
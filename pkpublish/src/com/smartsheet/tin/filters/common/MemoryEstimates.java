@@ -0,0 +1,86 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Rough sizes of common objects on a 64-bit JVM with compressed oops, for
+ * the memory estimates in the metrics report.  They are meant to be added
+ * up incrementally as objects are kept and dropped, not to walk the heap.
+ * Strings are counted at two bytes per char, so they're on the high side
+ * on JVMs with compact strings.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class MemoryEstimates {
+	public static final long OBJECT_HEADER = 16;
+	public static final long REFERENCE = 8;
+	// A HashMap/LinkedHashMap entry, plus its share of the table.
+	public static final long MAP_ENTRY = 48;
+
+	/**
+	 * @return The bytes retained by a String, 0 for null.
+	 */
+	public static long string(String s) {
+		if (s == null) {
+			return 0;
+		}
+		// String object, plus its char array's header and contents.
+		return 24 + 16 + 2L * s.length();
+	}
+
+	/**
+	 * @return The bytes retained by an array of n references.
+	 */
+	public static long referenceArray(int n) {
+		return OBJECT_HEADER + REFERENCE * n;
+	}
+
+	/**
+	 * @return The bytes retained by a parsed JSON document, as a stand-in
+	 *         for objects compiled from it.
+	 */
+	public static long jsonTree(JsonNode node) {
+		if (node == null) {
+			return 0;
+		}
+		if (node.isObject()) {
+			long size = OBJECT_HEADER + 64;
+			Iterator<Map.Entry<String, JsonNode>> it = node.fields();
+			while (it.hasNext()) {
+				Map.Entry<String, JsonNode> e = it.next();
+				size += MAP_ENTRY + string(e.getKey()) + jsonTree(e.getValue());
+			}
+			return size;
+		} else if (node.isArray()) {
+			long size = OBJECT_HEADER + 24 + referenceArray(node.size());
+			for (JsonNode child : node) {
+				size += jsonTree(child);
+			}
+			return size;
+		} else if (node.isTextual()) {
+			return OBJECT_HEADER + string(node.textValue());
+		}
+		return OBJECT_HEADER + 8;
+	}
+}
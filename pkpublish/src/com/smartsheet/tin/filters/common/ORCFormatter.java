@@ -25,59 +25,105 @@ package com.smartsheet.tin.filters.common;
 
 import com.continuent.tungsten.replicator.ReplicatorException;
 import com.continuent.tungsten.replicator.dbms.OneRowChange;
-import com.continuent.tungsten.replicator.dbms.OneRowChange.ColumnVal;
-import com.continuent.tungsten.replicator.dbms.RowChangeData.ActionType;
 import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.smartsheet.tin.filters.common.TableKeyInfo.KeyPair;
 
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ORCFormatter {
 
-	/**
-	 * This class maps the indexes from an array of key columns to the indexes
-	 * of an array of row values.
-	 * This is a helper to deal with the fact that we can't guarantee that the
-	 * order of rows in a table is always consistent.
-	 * 
-	 * @author scott.wimer@smartsheet.com
-	 *
-	 */
-	private class Position2Index {
-		HashMap<Integer, Integer> pos2idx;
-
-		public Position2Index(OneRowChange orc, boolean useColumns) {
-			this.pos2idx = new HashMap<Integer, Integer>();
-			ArrayList<OneRowChange.ColumnSpec> col_specs;
-			if (useColumns) {
-				col_specs = orc.getColumnSpec();
-			} else {
-				col_specs = orc.getKeySpec();
-			}
-			for (int i = 0; i < col_specs.size() - 1; ++i) {
-				this.pos2idx.put(col_specs.get(i).getIndex(), i);
-			}
-		}
-
-		public int getIndex(int pos) {
-			return this.pos2idx.get(pos);
-		}
-	}
-
 	private static Logger logger = Logger.getLogger(ORCFormatter.class);
+	public static final int DEFAULT_FORMAT_CACHE_MAX_ROWS = 4096;
 	private ObjectMapper mapper;
 	private TableKeyTracker keyTracker;
 	private FilterMetrics metrics;
+	// Rows already formatted for the current event.  Several filters can
+	// match the same OneRowChange, each row only needs encoding once.
+	private ReplDBMSEvent cacheEvent;
+	private IdentityHashMap<OneRowChange, ArrayList<FormattedORC>> formatCache;
+	private int formatCacheMaxRows;
+	private ParallelRowExecutor parallel;
+	private boolean keyHashes;
+	private boolean keyValues;
+
+	/**
+	 * The state for formatting the rows of one OneRowChange in one output
+	 * format (projection), and the rows formatted so far.
+	 */
+	private static class FormattedORC {
+		ReplDBMSEvent event;
+		OneRowChange orc;
+		ColumnProjection projection;
+		TableKeyInfo tki;	// null if the table has no primary key.
+		ORCRowView view;
+		ORCPrimaryKeyInfo msgPojo;
+		String tableName;	// "schema.table", shared by the rows.
+		int[] positions;
+		RowMessage[] rows;	// null if the OneRowChange is too big to cache.
+	}
 
 	public ORCFormatter(TableKeyTracker key_tracker, FilterMetrics metrics) {
 		this.mapper = new ObjectMapper();
 		this.keyTracker = key_tracker;
 		this.metrics = metrics;
+		this.cacheEvent = null;
+		this.formatCache = new IdentityHashMap<OneRowChange,
+				ArrayList<FormattedORC>>();
+		this.formatCacheMaxRows = DEFAULT_FORMAT_CACHE_MAX_ROWS;
+		this.parallel = null;
+		this.keyHashes = false;
+		this.keyValues = false;
+	}
+
+	/**
+	 * Format the rows of large OneRowChanges on a fork/join pool.
+	 * 
+	 * @param parallel The pool, or null to always format on the caller's
+	 *            thread.
+	 */
+	public void setParallelExecutor(ParallelRowExecutor parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Say which primary key facts the RowMessages carry.  Rows without
+	 * them have a key hash of 0 and null key values.
+	 * 
+	 * @param key_hashes Hash each row's primary key, for sharding by key
+	 *            and counting distinct keys.
+	 * @param key_values Keep each row's primary key values (and hash),
+	 *            for coalescing changes to the same row.
+	 */
+	public void setRowKeys(boolean key_hashes, boolean key_values) {
+		this.keyHashes = key_hashes || key_values;
+		this.keyValues = key_values;
+	}
+
+	/**
+	 * Set the largest OneRowChange (in rows) whose formatted rows are
+	 * cached for the rest of the event.  Bigger ones are formatted each
+	 * time they are asked for, so chunked publishing stays bounded.
+	 * 
+	 * @param max_rows The row limit, 0 disables the cache.
+	 */
+	public void setFormatCacheMaxRows(int max_rows) {
+		this.formatCacheMaxRows = max_rows;
+	}
+
+	/**
+	 * Drop the rows formatted for the current event.
+	 * 
+	 * The cache is also dropped whenever a different event is formatted,
+	 * this just lets go of the memory sooner.
+	 */
+	public void clearFormatCache() {
+		this.cacheEvent = null;
+		this.formatCache.clear();
 	}
 
 	/**
@@ -90,6 +136,16 @@ public class ORCFormatter {
 		return orc.getSchemaName() + "." + orc.getTableName();
 	}
 
+	/**
+	 * Return the number of rows carried by a OneRowChange.
+	 * 
+	 * @param orc The OneRowChange.
+	 * @return The number of row images (key images for DELETEs).
+	 */
+	public int getRowCount(OneRowChange orc) {
+		return ORCRowView.countRows(orc);
+	}
+
 	/**
 	 * Create an array of JSON strings for each row in a OneRowChange.
 	 * 
@@ -99,67 +155,343 @@ public class ORCFormatter {
 	 */
 	public ArrayList<String> makeJSONStringsFromORC(OneRowChange orc,
 			ReplDBMSEvent event) {
-		ArrayList<String> messages = new ArrayList<String>();
+		return this.makeJSONStringsFromORC(orc, event, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create JSON strings for a range of the rows in a OneRowChange.
+	 * 
+	 * This lets callers bound how many row messages are held in memory at
+	 * once when a single OneRowChange carries a very large number of rows.
+	 * 
+	 * @param orc The OneRowChange
+	 * @param event The DB event/transaction.
+	 * @param first_row Index of the first row to format.
+	 * @param max_rows The maximum number of rows to format.
+	 * @return List of JSON-formatted Strings, possibly empty.
+	 */
+	public ArrayList<String> makeJSONStringsFromORC(OneRowChange orc,
+			ReplDBMSEvent event, int first_row, int max_rows) {
+		return this.makeJSONStringsFromORC(orc, event, null, null, first_row,
+				max_rows);
+	}
+
+	/**
+	 * Create JSON strings for a range of the rows in a OneRowChange,
+	 * including the values of a projected set of columns.
+	 * 
+	 * Rows that the selector rejects are skipped, so fewer than max_rows
+	 * messages may be returned.
+	 * 
+	 * @param orc The OneRowChange
+	 * @param event The DB event/transaction.
+	 * @param projection The columns to include, or null for just the key.
+	 * @param selector Chooses the rows to format, or null for all rows.
+	 * @param first_row Index of the first row to format.
+	 * @param max_rows The maximum number of rows to format.
+	 * @return List of JSON-formatted Strings, possibly empty.
+	 */
+	public ArrayList<String> makeJSONStringsFromORC(OneRowChange orc,
+			ReplDBMSEvent event, ColumnProjection projection,
+			RowSelector selector, int first_row, int max_rows) {
+		ArrayList<RowMessage> row_messages = this.makeRowMessagesFromORC(orc,
+				event, projection, selector, first_row, max_rows);
+		ArrayList<String> messages = new ArrayList<String>(row_messages.size());
+		for (RowMessage row_message : row_messages) {
+			messages.add(row_message.getJson());
+		}
+		return messages;
+	}
+
+	/**
+	 * Like makeJSONStringsFromORC(), but each row's JSON comes with the
+	 * row's table and, as setRowKeys() asked, its primary key hash and
+	 * values, for callers that need to keep the messages for a key
+	 * together.
+	 * 
+	 * @param orc The OneRowChange
+	 * @param event The DB event/transaction.
+	 * @param projection The columns to include, or null for just the key.
+	 * @param selector Chooses the rows to format, or null for all rows.
+	 * @param first_row Index of the first row to format.
+	 * @param max_rows The maximum number of rows to format.
+	 * @return List of RowMessages, possibly empty.
+	 */
+	public ArrayList<RowMessage> makeRowMessagesFromORC(OneRowChange orc,
+			ReplDBMSEvent event, ColumnProjection projection,
+			RowSelector selector, int first_row, int max_rows) {
+		long start = System.nanoTime();
+		Object jfr = FilterEvents.beginEncode();
+		ArrayList<RowMessage> messages = null;
+		try {
+			messages = this.makeRowMessages(orc, event, projection, selector,
+					first_row, max_rows);
+			return messages;
+		} finally {
+			this.metrics.getFormatLatency().recordSince(start);
+			if (jfr != null) {
+				long bytes = 0;
+				int rows = 0;
+				if (messages != null) {
+					rows = messages.size();
+					for (RowMessage m : messages) {
+						bytes += m.getJson().length();
+					}
+				}
+				FilterEvents.endEncode(jfr, event.getSeqno(),
+						orc.getSchemaName(), orc.getTableName(), rows, bytes);
+			}
+		}
+	}
 
-		TableKeyInfo tki = keyTracker.lookupTableKey(orc);
-		if (tki == null) {
+	private ArrayList<RowMessage> makeRowMessages(OneRowChange orc,
+			ReplDBMSEvent event, ColumnProjection projection,
+			RowSelector selector, int first_row, int max_rows) {
+		ArrayList<RowMessage> messages = new ArrayList<RowMessage>();
+
+		FormattedORC fo = this.getFormattedORC(orc, event, projection);
+		if (fo.tki == null) {
 			// Skip tables that have no primary key.
 			return messages;
 		}
 
-		ORCPrimaryKeyInfo msg_pojo = new ORCPrimaryKeyInfo(
+		int end_row = fo.view.getRowCount();
+		if (max_rows < end_row - first_row) {
+			end_row = first_row + max_rows;
+		}
+		if (this.parallel != null && 
+				this.parallel.shouldSplit(end_row - first_row)) {
+			return this.formatRowsInParallel(fo, selector, first_row, end_row);
+		}
+		for (int row = first_row; row < end_row; ++row) {
+			if (selector != null && ! selector.selectRow(fo.view, fo.tki, row)) {
+				continue;
+			}
+			messages.add(this.formatRow(fo, row));
+		}
+		return messages;
+	}
+
+	/**
+	 * Find the first row, at or after from_row, that makeRowMessagesFromORC()
+	 * would make a message for.
+	 * 
+	 * @param orc The OneRowChange
+	 * @param event The DB event/transaction.
+	 * @param projection The columns to include, or null for just the key.
+	 * @param selector Chooses the rows to format, or null for all rows.
+	 * @param from_row Index of the first row to look at.
+	 * @return The row's index, or -1 if there are no more such rows (or the
+	 *         table has no primary key).
+	 */
+	public int nextSelectedRow(OneRowChange orc, ReplDBMSEvent event,
+			ColumnProjection projection, RowSelector selector, int from_row) {
+		FormattedORC fo = this.getFormattedORC(orc, event, projection);
+		if (fo.tki == null) {
+			return -1;
+		}
+		int row_count = fo.view.getRowCount();
+		for (int row = from_row; row < row_count; ++row) {
+			if (selector == null || selector.selectRow(fo.view, fo.tki, row)) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find (or set up) the formatting state for a OneRowChange in the
+	 * current event.
+	 */
+	private FormattedORC getFormattedORC(OneRowChange orc,
+			ReplDBMSEvent event, ColumnProjection projection) {
+		if (event != this.cacheEvent) {
+			this.clearFormatCache();
+			this.cacheEvent = event;
+		}
+
+		ArrayList<FormattedORC> formats = this.formatCache.get(orc);
+		if (formats == null) {
+			formats = new ArrayList<FormattedORC>(2);
+			this.formatCache.put(orc, formats);
+		}
+		for (FormattedORC fo : formats) {
+			if (ColumnProjection.sameOutput(fo.projection, projection)) {
+				return fo;
+			}
+		}
+
+		FormattedORC fo = new FormattedORC();
+		fo.event = event;
+		fo.orc = orc;
+		fo.projection = projection;
+		fo.tki = keyTracker.lookupTableKey(orc);
+		if (fo.tki != null) {
+			fo.msgPojo = newMessagePojo(event, orc);
+			fo.tableName = orc.getSchemaName() + "." + orc.getTableName();
+
+			// NOTE: for DELETE events, the values are in the keys array, the
+			// row view takes care of that.
+			fo.view = new ORCRowView(orc);
+			if (projection != null) {
+				fo.positions = projection.resolve(fo.tki);
+			}
+			int row_count = fo.view.getRowCount();
+			if (row_count <= this.formatCacheMaxRows) {
+				fo.rows = new RowMessage[row_count];
+			}
+		}
+		formats.add(fo);
+		return fo;
+	}
+
+	/**
+	 * Format rows [first_row, end_row) across the pool.  Each slice gets
+	 * its own message POJO, and the results are collected back in row
+	 * order, so the messages come out the same as a sequential run.
+	 */
+	private ArrayList<RowMessage> formatRowsInParallel(final FormattedORC fo,
+			final RowSelector selector, final int first_row, int end_row) {
+		final RowMessage[] formatted = new RowMessage[end_row - first_row];
+		final AtomicLong encoded = new AtomicLong(0);
+		this.parallel.forEachRange(formatted.length,
+				new ParallelRowExecutor.RangeBody() {
+			@Override
+			public void run(int lo, int hi) {
+				ORCPrimaryKeyInfo msg_pojo = newMessagePojo(fo.event, fo.orc);
+				long slice_encoded = 0;
+				for (int i = lo; i < hi; ++i) {
+					int row = first_row + i;
+					if (selector != null &&
+							! selector.selectRow(fo.view, fo.tki, row)) {
+						continue;
+					}
+					if (fo.rows != null && fo.rows[row] != null) {
+						formatted[i] = fo.rows[row];
+						continue;
+					}
+					formatted[i] = makeRowMessage(fo, msg_pojo, row);
+					if (fo.rows != null) {
+						fo.rows[row] = formatted[i];
+					}
+					++slice_encoded;
+				}
+				encoded.addAndGet(slice_encoded);
+			}
+		});
+
+		ArrayList<RowMessage> messages =
+				new ArrayList<RowMessage>(formatted.length);
+		for (RowMessage entry : formatted) {
+			if (entry != null) {
+				messages.add(entry);
+			}
+		}
+		this.metrics.formatCacheMisses(encoded.get());
+		this.metrics.formatCacheHits(messages.size() - encoded.get());
+		return messages;
+	}
+
+	private static ORCPrimaryKeyInfo newMessagePojo(ReplDBMSEvent event,
+			OneRowChange orc) {
+		return new ORCPrimaryKeyInfo(
 				event.getSourceId(), event.getShardId(),
 				orc.getSchemaName(), orc.getTableName(),
 				orc.getAction().toString(), event.getEventId(),
 				event.getExtractedTstamp().getTime());
+	}
+
+	private RowMessage formatRow(FormattedORC fo, int row) {
+		if (fo.rows != null && fo.rows[row] != null) {
+			this.metrics.formatCacheHit();
+			return fo.rows[row];
+		}
+		this.metrics.formatCacheMiss();
+		RowMessage entry = makeRowMessage(fo, fo.msgPojo, row);
+		if (fo.rows != null) {
+			fo.rows[row] = entry;
+		}
+		return entry;
+	}
+
+	private RowMessage makeRowMessage(FormattedORC fo,
+			ORCPrimaryKeyInfo msg_pojo, int row) {
+		String json = makeRowEntry(msg_pojo, fo.tki, fo.view, row,
+				fo.projection, fo.positions);
+		long key_hash = this.keyHashes ? keyHash(fo.tki, fo.view, row) : 0;
+		Object[] key_values = this.keyValues ?
+				keyValues(fo.tki, fo.view, row) : null;
+		return new RowMessage(json, fo.orc.getSchemaName(),
+				fo.orc.getTableName(), fo.tableName, msg_pojo.changeType,
+				key_hash, key_values, msg_pojo.eventTimestamp);
+	}
 
-		if (orc.getAction() != ActionType.DELETE) {
-			ArrayList<ArrayList<OneRowChange.ColumnVal>> columns_values =
-					orc.getColumnValues();
-			Position2Index pos2idx = new Position2Index(orc, true);
-			for (ArrayList<OneRowChange.ColumnVal> row_vals : columns_values) {
-				messages.add(makeRowEntry(msg_pojo, tki, pos2idx, row_vals));
+	/**
+	 * Hash a row's primary key values.  Equal keys (in the same table)
+	 * always hash the same, whichever image they are read from.
+	 */
+	private static long keyHash(TableKeyInfo tki, ORCRowView view, int row) {
+		long hash = 17;
+		for (TableKeyInfo.KeyPair kp : tki.getKeys()) {
+			int idx = kp.getIndex();
+			if (view.hasValue(idx)) {
+				hash = 31 * hash +
+						ColumnValueUtils.valueHash(view.getValue(row, idx));
 			}
-		} else {
-			// NOTE: for DELETE events, the values are in the keys array.
-			ArrayList<ArrayList<OneRowChange.ColumnVal>> keys_values = orc
-					.getKeyValues();
-			Position2Index pos2idx = new Position2Index(orc, false);
-			for (ArrayList<OneRowChange.ColumnVal> row_vals : keys_values) {
-				messages.add(makeRowEntry(msg_pojo, tki, pos2idx, row_vals));
-				// rowMeter.mark();
+		}
+		return hash;
+	}
+
+	/**
+	 * Get a row's primary key values, in key order, for telling rows with
+	 * equal key hashes apart.
+	 */
+	private static Object[] keyValues(TableKeyInfo tki, ORCRowView view,
+			int row) {
+		ArrayList<TableKeyInfo.KeyPair> keys = tki.getKeys();
+		Object[] values = new Object[keys.size()];
+		for (int i = 0; i < values.length; ++i) {
+			int idx = keys.get(i).getIndex();
+			if (view.hasValue(idx)) {
+				values[i] = view.getValue(row, idx);
 			}
 		}
-		return messages;
+		return values;
 	}
 
 	/**
 	 * Create the JSON entry for a row from a OneRowChange.
-	 * Whether the row_vals are ColumnVals or KeyVals depends on whether the
-	 * OneRowChange was for an INSERT/UPDATE (Column values) or a DELETE (Key
-	 * values).
+	 * The key values come from the after (column) image for INSERTs and
+	 * UPDATEs, and from the before (key) image for DELETEs.
 	 * 
 	 * @param msg_pojo The partially filled out object to add the key to.
 	 * @param tki Specifies which columns are keys.
-	 * @param pos2idx Mapping between key columns and the indexes of row_vals.
-	 * @param row_vals These can be the Column or Key values.
+	 * @param view The row images of the OneRowChange.
+	 * @param row The index of the row to make the entry for.
+	 * @param projection The columns to include, or null.
+	 * @param positions The projection resolved against tki, or null.
 	 * @return The JSON string representation of the msg_pojo.
 	 */
 	private String makeRowEntry(ORCPrimaryKeyInfo msg_pojo,
-			TableKeyInfo tki, Position2Index pos2idx,
-			ArrayList<ColumnVal> row_vals) {
+			TableKeyInfo tki, ORCRowView view, int row,
+			ColumnProjection projection, int[] positions) {
 		try {
 			// Discard the key values for any previous row.
 			msg_pojo.resetKey();
 
 			for (TableKeyInfo.KeyPair kp : tki.getKeys()) {
 				int idx = kp.getIndex();
-				logger.debug(String.format(
-						"Key column '%s' at idx: %d pos2idx.get(%d)=%d",
-						kp.getColumnName(), idx, idx, pos2idx.getIndex(idx)));
+				if (logger.isDebugEnabled()) {
+					logger.debug(String.format(
+							"Key column '%s' at idx: %d has value: %s",
+							kp.getColumnName(), idx, view.hasValue(idx)));
+				}
 				msg_pojo.addKey(kp.getColumnName(), kp.getColumnType(),
-						kp.getColumnTypeDesc(),
-						row_vals.get(pos2idx.getIndex(idx)).getValue());
+						kp.getColumnTypeDesc(), view.getValue(row, idx));
+			}
+			if (projection != null) {
+				addProjectedColumns(msg_pojo, tki, view, row, projection,
+						positions);
 			}
 			try {
 				return this.mapper.writeValueAsString(msg_pojo);
@@ -175,6 +507,41 @@ public class ORCFormatter {
 
 	}
 
+	/**
+	 * Add the projected column values of a row to msg_pojo.
+	 * 
+	 * For UPDATEs, the before image is compared against the after image
+	 * when only changed columns are wanted.  If a column is missing from
+	 * the before image (e.g. a minimal row image) it is treated as changed.
+	 */
+	private void addProjectedColumns(ORCPrimaryKeyInfo msg_pojo,
+			TableKeyInfo tki, ORCRowView view, int row,
+			ColumnProjection projection, int[] positions) {
+		msg_pojo.resetColumns(true);
+		boolean is_update = view.isUpdate();
+		for (int pos : positions) {
+			if (pos < 0 || ! view.hasValue(pos)) {
+				continue;
+			}
+			Object value = view.getValue(row, pos);
+			boolean have_before = is_update && view.hasBeforeValue(pos);
+			Object before_value = null;
+			if (have_before) {
+				before_value = view.getBeforeValue(row, pos);
+				if (projection.isChangedOnly() &&
+						ColumnValueUtils.valuesEqual(before_value, value)) {
+					continue;
+				}
+			}
+			String name = tki.getColumnInfo(pos).getColumnName();
+			msg_pojo.addColumn(name, ColumnValueUtils.toJsonValue(value));
+			if (have_before && projection.includeBeforeImage()) {
+				msg_pojo.addBeforeColumn(name,
+						ColumnValueUtils.toJsonValue(before_value));
+			}
+		}
+	}
+
 	public TableKeyTracker getKeyTracker() {
 		return this.keyTracker;
 	}
@@ -185,6 +552,7 @@ public class ORCFormatter {
 
 
 	public void release() {
+		this.clearFormatCache();
 		if (this.keyTracker != null) {
 			this.keyTracker.release();
 			this.keyTracker = null;
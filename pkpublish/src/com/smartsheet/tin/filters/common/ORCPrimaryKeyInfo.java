@@ -21,7 +21,10 @@
 package com.smartsheet.tin.filters.common;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 /**
  * @author scott.wimer@smartsheet.com
@@ -55,6 +58,13 @@ public class ORCPrimaryKeyInfo {
 	public String eventID;
 	public long eventTimestamp;
 	public ArrayList<KeyInfo> primaryKey;
+
+	// Projected column values (after image), and their before image.
+	// These are only present if the RowFilter asks for them.
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public LinkedHashMap<String, Object> columns;
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public LinkedHashMap<String, Object> before;
 	
 	public ORCPrimaryKeyInfo(String sourceID, String shardID,
 			String schema, String table, String changeType,
@@ -67,6 +77,8 @@ public class ORCPrimaryKeyInfo {
 		this.eventID = eventID;
 		this.eventTimestamp = eventTimestamp;
 		this.primaryKey = new ArrayList<KeyInfo>();
+		this.columns = null;
+		this.before = null;
 	}
 	
 	/**
@@ -92,6 +104,45 @@ public class ORCPrimaryKeyInfo {
 		this.primaryKey.clear();
 	}
 	
+	/**
+	 * Add a projected column's value.
+	 * 
+	 * @param columnName
+	 * @param value
+	 */
+	@JsonIgnore
+	public void addColumn(String columnName, Object value) {
+		if (this.columns == null) {
+			this.columns = new LinkedHashMap<String, Object>();
+		}
+		this.columns.put(columnName, value);
+	}
+
+	/**
+	 * Add a projected column's before image value.
+	 * 
+	 * @param columnName
+	 * @param value
+	 */
+	@JsonIgnore
+	public void addBeforeColumn(String columnName, Object value) {
+		if (this.before == null) {
+			this.before = new LinkedHashMap<String, Object>();
+		}
+		this.before.put(columnName, value);
+	}
+
+	/**
+	 * Clear the projected column values.
+	 * 
+	 * @param withColumns Keep an (empty) columns entry in the output.
+	 */
+	@JsonIgnore
+	public void resetColumns(boolean withColumns) {
+		this.columns = withColumns ? new LinkedHashMap<String, Object>() : null;
+		this.before = null;
+	}
+
 	/**
 	 * This is a fallback, it produces a very basic JSON string.
 	 * Notably absent is any listing of the primary key -- too much work.
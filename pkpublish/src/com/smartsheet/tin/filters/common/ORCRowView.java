@@ -0,0 +1,229 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+/**
+ * Positional access to the row images of a OneRowChange.
+ */
+package com.smartsheet.tin.filters.common;
+
+import java.util.ArrayList;
+
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.dbms.OneRowChange.ColumnSpec;
+import com.continuent.tungsten.replicator.dbms.OneRowChange.ColumnVal;
+import com.continuent.tungsten.replicator.dbms.RowChangeData.ActionType;
+
+/**
+ * A OneRowChange carries up to two images of each row: the key image (the
+ * "before" image, used to find the row for UPDATEs and DELETEs) and the
+ * column image (the "after" image, for INSERTs and UPDATEs).  Each image
+ * has its own ColumnSpec list, and we can't count on the values being in
+ * table order, so this maps a column's position in the table to its index
+ * in each image.
+ *
+ * The maps are built once per OneRowChange; looking up a value for a row
+ * after that is a couple of array lookups and doesn't allocate.  A view
+ * can be reset() to another OneRowChange, reusing its maps, so a thread
+ * that looks at many OneRowChanges can keep one view.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class ORCRowView {
+	private OneRowChange orc;
+	private ActionType action;
+	// The maps may be longer than the OneRowChange needs, after a reset().
+	private int[] columnPos2Idx;
+	private int columnPositions;
+	private int[] keyPos2Idx;
+	private int keyPositions;
+
+	public ORCRowView(OneRowChange orc) {
+		this.columnPos2Idx = new int[0];
+		this.keyPos2Idx = new int[0];
+		this.reset(orc);
+	}
+
+	/**
+	 * Make this a view of another OneRowChange.  The maps are only
+	 * reallocated if the table has more columns than any seen before.
+	 */
+	public void reset(OneRowChange orc) {
+		this.orc = orc;
+		this.action = orc.getAction();
+		ArrayList<ColumnSpec> specs = orc.getColumnSpec();
+		this.columnPositions = positionCount(specs);
+		if (this.columnPos2Idx.length < this.columnPositions) {
+			this.columnPos2Idx = new int[this.columnPositions];
+		}
+		fillPos2Idx(this.columnPos2Idx, this.columnPositions, specs);
+		specs = orc.getKeySpec();
+		this.keyPositions = positionCount(specs);
+		if (this.keyPos2Idx.length < this.keyPositions) {
+			this.keyPos2Idx = new int[this.keyPositions];
+		}
+		fillPos2Idx(this.keyPos2Idx, this.keyPositions, specs);
+	}
+
+	/**
+	 * Drop the reference to the OneRowChange, so a view kept for reuse
+	 * doesn't keep its rows alive.
+	 */
+	public void release() {
+		this.orc = null;
+	}
+
+	private static int positionCount(ArrayList<ColumnSpec> col_specs) {
+		if (col_specs == null) {
+			return 0;
+		}
+		int max_pos = 0;
+		for (int i = 0; i < col_specs.size(); ++i) {
+			max_pos = Math.max(max_pos, col_specs.get(i).getIndex());
+		}
+		return max_pos + 1;
+	}
+
+	private static void fillPos2Idx(int[] pos2idx, int positions,
+			ArrayList<ColumnSpec> col_specs) {
+		for (int i = 0; i < positions; ++i) {
+			pos2idx[i] = -1;
+		}
+		if (col_specs == null) {
+			return;
+		}
+		for (int i = 0; i < col_specs.size(); ++i) {
+			pos2idx[col_specs.get(i).getIndex()] = i;
+		}
+	}
+
+	private static int lookup(int[] pos2idx, int positions, int position) {
+		if (position < 0 || position >= positions) {
+			return -1;
+		}
+		return pos2idx[position];
+	}
+
+	public OneRowChange getOrc() {
+		return this.orc;
+	}
+
+	public ActionType getAction() {
+		return this.action;
+	}
+
+	public boolean isUpdate() {
+		return this.action == ActionType.UPDATE;
+	}
+
+	/**
+	 * @return The number of rows, counting the image getValue() reads.
+	 */
+	public int getRowCount() {
+		return countRows(this.orc);
+	}
+
+	/**
+	 * @return The number of rows in orc, without building a view.
+	 */
+	public static int countRows(OneRowChange orc) {
+		if (orc.getAction() != ActionType.DELETE) {
+			return orc.getColumnValues().size();
+		}
+		return orc.getKeyValues().size();
+	}
+
+	/**
+	 * @return true if the after (column) image has a value for position.
+	 */
+	public boolean hasAfterValue(int position) {
+		return lookup(this.columnPos2Idx, this.columnPositions,
+				position) >= 0;
+	}
+
+	/**
+	 * @return true if the before (key) image has a value for position.
+	 */
+	public boolean hasBeforeValue(int position) {
+		return lookup(this.keyPos2Idx, this.keyPositions, position) >= 0 &&
+				this.orc.getKeyValues() != null &&
+				! this.orc.getKeyValues().isEmpty();
+	}
+
+	/**
+	 * @return true if getValue() has a value for position.
+	 */
+	public boolean hasValue(int position) {
+		if (this.action != ActionType.DELETE) {
+			return hasAfterValue(position);
+		}
+		return hasBeforeValue(position);
+	}
+
+	/**
+	 * Get a column's value from the after (column) image of a row.
+	 *
+	 * @param row The row index.
+	 * @param position The column's position in the table.
+	 * @return The value, which may be null (SQL NULL).
+	 * @throws IllegalArgumentException if the image has no such column.
+	 */
+	public Object getAfterValue(int row, int position) {
+		return getImageValue(this.orc.getColumnValues(), this.columnPos2Idx,
+				this.columnPositions, row, position);
+	}
+
+	/**
+	 * Get a column's value from the before (key) image of a row.
+	 *
+	 * @param row The row index.
+	 * @param position The column's position in the table.
+	 * @return The value, which may be null (SQL NULL).
+	 * @throws IllegalArgumentException if the image has no such column.
+	 */
+	public Object getBeforeValue(int row, int position) {
+		return getImageValue(this.orc.getKeyValues(), this.keyPos2Idx,
+				this.keyPositions, row, position);
+	}
+
+	/**
+	 * Get a column's value from the row's current image.  That's the
+	 * after image for INSERTs and UPDATEs, and the before image for
+	 * DELETEs (where it is the only image).
+	 *
+	 * @param row The row index.
+	 * @param position The column's position in the table.
+	 * @return The value, which may be null (SQL NULL).
+	 * @throws IllegalArgumentException if the image has no such column.
+	 */
+	public Object getValue(int row, int position) {
+		if (this.action != ActionType.DELETE) {
+			return getAfterValue(row, position);
+		}
+		return getBeforeValue(row, position);
+	}
+
+	private static Object getImageValue(
+			ArrayList<ArrayList<ColumnVal>> image, int[] pos2idx,
+			int positions, int row, int position) {
+		int idx = lookup(pos2idx, positions, position);
+		if (idx < 0) {
+			throw new IllegalArgumentException(
+					"No value in row image for column position: " + position);
+		}
+		return image.get(row).get(idx).getValue();
+	}
+}
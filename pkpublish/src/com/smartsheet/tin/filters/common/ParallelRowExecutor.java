@@ -0,0 +1,124 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+/**
+ * Split the per-row work of large transactions across a fork/join pool.
+ */
+package com.smartsheet.tin.filters.common;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Work is only split when a transaction (or OneRowChange) has at least
+ * rowThreshold rows; smaller ones are cheaper to do on the calling thread.
+ *
+ * Callers hand forEachRange() a body that fills in a slot per index, and
+ * then read the slots back in index order.  That keeps the results (and
+ * so the published messages) in the same order as a sequential run.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class ParallelRowExecutor {
+	private static Logger logger = Logger.getLogger(ParallelRowExecutor.class);
+	// Don't hand a worker fewer than this many indexes.
+	private static final int MIN_SLICE = 64;
+	private ForkJoinPool pool;
+	private int parallelism;
+	private int rowThreshold;
+
+	/**
+	 * The work done for a slice, [lo, hi), of the indexes.
+	 */
+	public interface RangeBody {
+		public void run(int lo, int hi);
+	}
+
+	/**
+	 * @param parallelism Number of worker threads, 0 for one per core.
+	 * @param row_threshold Only split work with at least this many rows.
+	 */
+	public ParallelRowExecutor(int parallelism, int row_threshold) {
+		if (parallelism <= 0) {
+			parallelism = Runtime.getRuntime().availableProcessors();
+		}
+		this.parallelism = parallelism;
+		this.rowThreshold = row_threshold;
+		this.pool = new ForkJoinPool(parallelism);
+		logger.info("ParallelRowExecutor parallelism: " + parallelism +
+				", rowThreshold: " + row_threshold);
+	}
+
+	/**
+	 * @param rows The number of rows the work covers.
+	 * @return true if the work is big enough to split.
+	 */
+	public boolean shouldSplit(int rows) {
+		return (this.pool != null && rows >= this.rowThreshold);
+	}
+
+	/**
+	 * Run body over [0, count) split into slices across the pool, and wait
+	 * for all of them.  A RuntimeException from any slice is rethrown.
+	 *
+	 * @param count The number of indexes.
+	 * @param body The work for each slice.
+	 */
+	public void forEachRange(int count, RangeBody body) {
+		int slice = Math.max(MIN_SLICE, count / (this.parallelism * 4));
+		this.pool.invoke(new RangeAction(body, 0, count, slice));
+	}
+
+	private static class RangeAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private RangeBody body;
+		private int lo;
+		private int hi;
+		private int slice;
+
+		RangeAction(RangeBody body, int lo, int hi, int slice) {
+			this.body = body;
+			this.lo = lo;
+			this.hi = hi;
+			this.slice = slice;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.hi - this.lo <= this.slice) {
+				this.body.run(this.lo, this.hi);
+				return;
+			}
+			int mid = (this.lo + this.hi) >>> 1;
+			invokeAll(new RangeAction(this.body, this.lo, mid, this.slice),
+					new RangeAction(this.body, mid, this.hi, this.slice));
+		}
+	}
+
+	public int getRowThreshold() {
+		return this.rowThreshold;
+	}
+
+	public void release() {
+		if (this.pool != null) {
+			this.pool.shutdown();
+			this.pool = null;
+		}
+	}
+}
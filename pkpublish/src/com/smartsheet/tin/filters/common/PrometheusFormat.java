@@ -0,0 +1,140 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renders a FilterMetrics report in the Prometheus text exposition format.
+ *
+ * Counters become pkpublish_<name>_total (less any "Count"), numeric and boolean gauges
+ * pkpublish_<name>, and string gauges pkpublish_<name>{value="..."} 1.
+ * The latency and lag histograms are the last report interval's
+ * percentiles, as gauges: pkpublish_latency_seconds{stage, quantile} and
+ * pkpublish_lag_seconds{stage, quantile}, with the interval's counts in
+ * pkpublish_latency_interval_count and pkpublish_lag_interval_count.
+ * Every sample has a filter label.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class PrometheusFormat {
+	private static final String PREFIX = "pkpublish_";
+
+	/**
+	 * @param values A report's values, as built by FilterMetrics.
+	 * @param counters The names of the values that are counters.
+	 * @param filter The filter label's value.
+	 */
+	public static String render(Map<String, Object> values,
+			Set<String> counters, String filter) {
+		StringBuilder sb = new StringBuilder(8192);
+		String filter_label = "filter=\"" + escape(filter) + "\"";
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			Object value = e.getValue();
+			String name = PREFIX + snakeCase(e.getKey());
+			if (counters.contains(e.getKey())) {
+				if (name.endsWith("_count")) {
+					name = name.substring(0, name.length() - 6);
+				}
+				name = name + "_total";
+				sb.append("# TYPE ").append(name).append(" counter\n");
+				sample(sb, name, filter_label, ((Number) value).doubleValue());
+			} else if (value instanceof Number) {
+				sb.append("# TYPE ").append(name).append(" gauge\n");
+				sample(sb, name, filter_label, ((Number) value).doubleValue());
+			} else if (value instanceof Boolean) {
+				sb.append("# TYPE ").append(name).append(" gauge\n");
+				sample(sb, name, filter_label,
+						((Boolean) value).booleanValue() ? 1 : 0);
+			} else if (value instanceof String) {
+				sb.append("# TYPE ").append(name).append(" gauge\n");
+				sample(sb, name, filter_label + ",value=\"" +
+						escape((String) value) + "\"", 1);
+			} else if (value instanceof Map &&
+					("latency".equals(e.getKey()) || "lag".equals(e.getKey()))) {
+				@SuppressWarnings("unchecked")
+				Map<String, LatencyHistogram.Snapshot> stages =
+						(Map<String, LatencyHistogram.Snapshot>) value;
+				histograms(sb, PREFIX + e.getKey(), filter_label, stages);
+			}
+			// Anything else (top-K lists, publisher stats) is JSON only.
+		}
+		return sb.toString();
+	}
+
+	private static void histograms(StringBuilder sb, String name,
+			String filter_label, Map<String, LatencyHistogram.Snapshot> stages) {
+		sb.append("# TYPE ").append(name).append("_seconds gauge\n");
+		for (Map.Entry<String, LatencyHistogram.Snapshot> e :
+			stages.entrySet()) {
+			String labels = filter_label + ",stage=\"" + e.getKey() + "\"";
+			LatencyHistogram.Snapshot s = e.getValue();
+			sample(sb, name + "_seconds", labels + ",quantile=\"0.5\"",
+					s.p50Micros / 1e6);
+			sample(sb, name + "_seconds", labels + ",quantile=\"0.99\"",
+					s.p99Micros / 1e6);
+			sample(sb, name + "_seconds", labels + ",quantile=\"0.999\"",
+					s.p999Micros / 1e6);
+			sample(sb, name + "_seconds", labels + ",quantile=\"1\"",
+					s.maxMicros / 1e6);
+		}
+		sb.append("# TYPE ").append(name).append("_interval_count gauge\n");
+		for (Map.Entry<String, LatencyHistogram.Snapshot> e :
+			stages.entrySet()) {
+			sample(sb, name + "_interval_count", filter_label + ",stage=\"" +
+					e.getKey() + "\"", e.getValue().count);
+		}
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels,
+			double value) {
+		sb.append(name).append('{').append(labels).append("} ");
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			sb.append((long) value);
+		} else {
+			sb.append(value);
+		}
+		sb.append('\n');
+	}
+
+	/**
+	 * totalEventCount -> total_event_count
+	 */
+	static String snakeCase(String name) {
+		StringBuilder sb = new StringBuilder(name.length() + 8);
+		for (int i = 0; i < name.length(); ++i) {
+			char c = name.charAt(i);
+			if (Character.isUpperCase(c)) {
+				if (i > 0) {
+					sb.append('_');
+				}
+				sb.append(Character.toLowerCase(c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,138 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.common;
+
+/**
+ * The formatted JSON for one row of a OneRowChange, along with the facts
+ * about the row that publishing needs without re-parsing the JSON.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class RowMessage {
+	private String json;
+	private String schema;
+	private String table;
+	private String tableName;
+	private String changeType;
+	private long keyHash;
+	private Object[] keyValues;
+	private long eventTimestamp;
+
+	public RowMessage(String json, String schema, String table,
+			String changeType, long keyHash, Object[] keyValues,
+			long eventTimestamp) {
+		this(json, schema, table, null, changeType, keyHash, keyValues,
+				eventTimestamp);
+	}
+
+	/**
+	 * @param tableName The table's "schema.table" name, so rows of the
+	 *            same table can share one, or null to build it when asked.
+	 */
+	public RowMessage(String json, String schema, String table,
+			String tableName, String changeType, long keyHash,
+			Object[] keyValues, long eventTimestamp) {
+		this.json = json;
+		this.schema = schema;
+		this.table = table;
+		this.tableName = tableName;
+		this.changeType = changeType;
+		this.keyHash = keyHash;
+		this.keyValues = keyValues;
+		this.eventTimestamp = eventTimestamp;
+	}
+
+	public String getJson() {
+		return this.json;
+	}
+
+	public String getSchema() {
+		return this.schema;
+	}
+
+	public String getTable() {
+		return this.table;
+	}
+
+	/**
+	 * @return The table's name qualified by its schema: "schema.table".
+	 */
+	public String getTableName() {
+		if (this.tableName == null) {
+			this.tableName = this.schema + "." + this.table;
+		}
+		return this.tableName;
+	}
+
+	public String getChangeType() {
+		return this.changeType;
+	}
+
+	/**
+	 * @return A hash of the row's primary key values, 0 if the formatter
+	 *         wasn't asked for key hashes.
+	 */
+	public long getKeyHash() {
+		return this.keyHash;
+	}
+
+	/**
+	 * @return The row's primary key values, in key order (null where the
+	 *         row image had no value for a key column), or null if the
+	 *         formatter wasn't asked for key values.
+	 */
+	public Object[] getKeyValues() {
+		return this.keyValues;
+	}
+
+	/**
+	 * Check whether another row message is for the same row: the same
+	 * table and equal primary key values.  Equal key hashes don't mean
+	 * equal keys, so the hash is only a quick way to rule rows out.
+	 *
+	 * @return true if both are for the same row.
+	 */
+	public boolean sameRow(RowMessage other) {
+		if (this.keyHash != other.keyHash || this.keyValues == null ||
+				other.keyValues == null ||
+				this.keyValues.length != other.keyValues.length ||
+				! this.table.equals(other.table) ||
+				! this.schema.equals(other.schema)) {
+			return false;
+		}
+		for (int i = 0; i < this.keyValues.length; ++i) {
+			if (! ColumnValueUtils.valuesEqual(this.keyValues[i],
+					other.keyValues[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The extraction time of the row's event, in milliseconds.
+	 */
+	public long getEventTimestamp() {
+		return this.eventTimestamp;
+	}
+
+	public String toString() {
+		return String.format("<RowMessage %s.%s %s keyHash: %d>",
+				this.schema, this.table, this.changeType, this.keyHash);
+	}
+}
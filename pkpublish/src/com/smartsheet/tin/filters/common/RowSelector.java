@@ -0,0 +1,35 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.common;
+
+/**
+ * Selects which of the rows of a matched OneRowChange get messages.
+ *
+ * Filters that match on column values match a OneRowChange when any of
+ * its rows match, but only the rows that matched should be published.
+ */
+public interface RowSelector {
+
+	/**
+	 * @param view The row images of the OneRowChange.
+	 * @param tki The info for the OneRowChange's table.
+	 * @param row The index of the row.
+	 * @return true if a message should be made for the row.
+	 */
+	public boolean selectRow(ORCRowView view, TableKeyInfo tki, int row);
+}
@@ -0,0 +1,63 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on one
+ * memory location, in the style of Java 8's LongAdder.  Each thread adds
+ * to one of several cells, picked by its thread ID; the cells are padded
+ * a cache line apart.  sum() adds the cells up, so it is the cheap side
+ * to read only for reports.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class StripedCounter {
+	private static final int STRIPES = 16;
+	// Longs per cache line, so cells don't share a line.
+	private static final int PAD = 8;
+
+	private AtomicLongArray cells;
+
+	public StripedCounter() {
+		this.cells = new AtomicLongArray(STRIPES * PAD);
+	}
+
+	private static int cellFor(Thread t) {
+		long id = t.getId() * 0x9E3779B97F4A7C15L;
+		return (int) (id >>> 60) * PAD;
+	}
+
+	public void add(long delta) {
+		this.cells.addAndGet(cellFor(Thread.currentThread()), delta);
+	}
+
+	public void increment() {
+		this.add(1);
+	}
+
+	public long sum() {
+		long total = 0;
+		for (int i = 0; i < STRIPES; ++i) {
+			total += this.cells.get(i * PAD);
+		}
+		return total;
+	}
+}
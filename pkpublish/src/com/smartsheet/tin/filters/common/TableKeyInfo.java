@@ -21,6 +21,9 @@
 package com.smartsheet.tin.filters.common;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.continuent.tungsten.replicator.database.Column;
 
@@ -53,24 +56,48 @@ public class TableKeyInfo {
 	}
 
 	private ArrayList<KeyPair> keys;
+	private ArrayList<KeyPair> columns;
+	private KeyPair[] columnsByPosition;
+
+	// Column names resolved to positions, keyed by whoever asked for them
+	// (a projection, a predicate, ...).  Since a new TableKeyInfo is built
+	// whenever the table changes, each owner resolves its column names once
+	// per version of the table.  The owners are parts of the rules, so the
+	// maps are cleared when the rules are reloaded (see
+	// clearResolvedColumns()), or they would keep every old rule alive.
+	private ConcurrentHashMap<Object, int[]> resolvedColumns;
+	private ConcurrentHashMap<Object, long[]> resolvedColumnMasks;
+	private volatile long estimatedBytes = 0;
 
 	public TableKeyInfo() {
 		this.keys = new ArrayList<KeyPair>();
+		this.columns = new ArrayList<KeyPair>();
+		this.columnsByPosition = new KeyPair[0];
+		this.resolvedColumns = new ConcurrentHashMap<Object, int[]>();
+		this.resolvedColumnMasks = new ConcurrentHashMap<Object, long[]>();
 	}
 
-	public void addKey(Column col) {
+	private KeyPair makeKeyPair(Column col) {
 		KeyPair kp = new KeyPair();
 		kp.columnName = col.getName();
 		kp.index = col.getPosition();
 		kp.columnType = col.getType();
 		kp.columnTypeDesc = col.getTypeDescription();
-		this.keys.add(kp);
+		return kp;
+	}
+
+	public void addKey(Column col) {
+		this.keys.add(makeKeyPair(col));
 	}
 
 	public ArrayList<KeyPair> getKeys() {
 		return this.keys;
 	}
 
+	public boolean hasPrimaryKey() {
+		return ! this.keys.isEmpty();
+	}
+
 	public KeyPair getColumnKeyInfo(int col_index) {
 		for (KeyPair kp : this.keys) {
 			if (kp.getIndex() == col_index) {
@@ -79,4 +106,152 @@ public class TableKeyInfo {
 		}
 		return null;
 	}
+
+	/**
+	 * Add one of the table's columns (key or not).
+	 * 
+	 * @param col The column, its position is the column's index in rows.
+	 */
+	public void addColumn(Column col) {
+		KeyPair kp = makeKeyPair(col);
+		this.columns.add(kp);
+		if (kp.index >= this.columnsByPosition.length) {
+			this.columnsByPosition = Arrays.copyOf(this.columnsByPosition,
+					kp.index + 1);
+		}
+		this.columnsByPosition[kp.index] = kp;
+	}
+
+	public ArrayList<KeyPair> getColumns() {
+		return this.columns;
+	}
+
+	/**
+	 * @param position The column's position (index) in the table.
+	 * @return The column's info, or null if there is no such column.
+	 */
+	public KeyPair getColumnInfo(int position) {
+		if (position < 0 || position >= this.columnsByPosition.length) {
+			return null;
+		}
+		return this.columnsByPosition[position];
+	}
+
+	/**
+	 * Find a column's position by name, ignoring case.
+	 * 
+	 * @param name The column name.
+	 * @return The column's position, or -1 if there is no such column.
+	 */
+	public int findColumnPosition(String name) {
+		for (KeyPair kp : this.columns) {
+			if (kp.getColumnName().equalsIgnoreCase(name)) {
+				return kp.getIndex();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Resolve a list of column names to column positions, once per owner.
+	 * 
+	 * Names that are not columns of this table resolve to -1.  The result
+	 * is cached against owner, so later calls are a single map lookup.
+	 * 
+	 * @param owner The object the names belong to, compared by identity.
+	 * @param names The column names to resolve.
+	 * @return The positions, in the same order as names.
+	 */
+	public int[] resolveColumns(Object owner, List<String> names) {
+		int[] positions = this.resolvedColumns.get(owner);
+		if (positions == null) {
+			positions = new int[names.size()];
+			for (int i = 0; i < positions.length; ++i) {
+				positions[i] = findColumnPosition(names.get(i));
+			}
+			this.resolvedColumns.put(owner, positions);
+		}
+		return positions;
+	}
+
+	/**
+	 * Resolve a list of column names to a bitmask of column positions, once
+	 * per owner.
+	 * 
+	 * Bit (position % 64) of word (position / 64) is set for each named
+	 * column.  Names that are not columns of this table are left out.
+	 * 
+	 * @param owner The object the names belong to, compared by identity.
+	 * @param names The column names to resolve.
+	 * @return The bitmask of positions.
+	 */
+	public long[] resolveColumnMask(Object owner, List<String> names) {
+		long[] mask = this.resolvedColumnMasks.get(owner);
+		if (mask == null) {
+			mask = new long[this.columnsByPosition.length / 64 + 1];
+			for (String name : names) {
+				int pos = findColumnPosition(name);
+				if (pos >= 0) {
+					mask[pos / 64] |= (1L << (pos % 64));
+				}
+			}
+			this.resolvedColumnMasks.put(owner, mask);
+		}
+		return mask;
+	}
+
+	/**
+	 * Forget the resolved columns of all owners.  Owners still in use
+	 * just resolve their columns again.
+	 */
+	public void clearResolvedColumns() {
+		this.resolvedColumns.clear();
+		this.resolvedColumnMasks.clear();
+	}
+
+	/**
+	 * Resolve the positions of all of the table's columns, once per owner.
+	 * 
+	 * @param owner The object the positions are for, compared by identity.
+	 * @return The positions of all of the table's columns, in table order.
+	 */
+	public int[] resolveAllColumns(Object owner) {
+		int[] positions = this.resolvedColumns.get(owner);
+		if (positions == null) {
+			positions = new int[this.columns.size()];
+			for (int i = 0; i < positions.length; ++i) {
+				positions[i] = this.columns.get(i).getIndex();
+			}
+			this.resolvedColumns.put(owner, positions);
+		}
+		return positions;
+	}
+
+	/**
+	 * @return The estimated bytes the TableKeyInfo retains (not counting
+	 *         resolved column positions, which are small).  Computed once,
+	 *         after the keys and columns are added, so the key cache can
+	 *         add and subtract the same amount.
+	 */
+	public long estimateBytes() {
+		long size = this.estimatedBytes;
+		if (size == 0) {
+			size = MemoryEstimates.OBJECT_HEADER + 64 +
+					MemoryEstimates.referenceArray(this.columnsByPosition.length);
+			for (KeyPair kp : this.columns) {
+				size += MemoryEstimates.OBJECT_HEADER + 24 +
+						MemoryEstimates.REFERENCE +
+						MemoryEstimates.string(kp.columnName) +
+						MemoryEstimates.string(kp.columnTypeDesc);
+			}
+			for (KeyPair kp : this.keys) {
+				size += MemoryEstimates.OBJECT_HEADER + 24 +
+						MemoryEstimates.REFERENCE +
+						MemoryEstimates.string(kp.columnName) +
+						MemoryEstimates.string(kp.columnTypeDesc);
+			}
+			this.estimatedBytes = size;
+		}
+		return size;
+	}
 }
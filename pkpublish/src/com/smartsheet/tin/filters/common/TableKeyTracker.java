@@ -23,6 +23,7 @@ package com.smartsheet.tin.filters.common;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.continuent.tungsten.replicator.database.Column;
 import com.continuent.tungsten.replicator.database.Database;
@@ -38,9 +39,32 @@ import com.continuent.tungsten.replicator.dbms.StatementData;
 import org.apache.log4j.Logger;
 
 public class TableKeyTracker {
+	/**
+	 * Lookups made by one thread, see getThreadLookupCounts().
+	 */
+	public static class LookupCounts {
+		public long lookups;
+		public long dbLookups;
+	}
+
 	private Logger logger = Logger.getLogger(TableKeyTracker.class);
 
 	private HashMap<String, HashMap<String, TableKeyInfo>> keyCache;
+	// Lookups that went to the database, guarded by this.
+	private long dbLookupCount = 0;
+	// Estimated bytes retained by keyCache, kept up to date as tables are
+	// added and removed.  Guarded by this.
+	private long keyCacheBytes = 0;
+	// Per-thread lookup counts, only kept when asked for (see
+	// setCountThreadLookups()).
+	private volatile boolean countThreadLookups = false;
+	private final ThreadLocal<LookupCounts> threadLookups =
+			new ThreadLocal<LookupCounts>() {
+		@Override
+		protected LookupCounts initialValue() {
+			return new LookupCounts();
+		}
+	};
 	private Database dbConn;
 	private long lastConnectionTime;
 	private long reconnectTimeoutSeconds;
@@ -91,7 +115,7 @@ public class TableKeyTracker {
 	 * @param sdata
 	 *            The DBMSData that is a StatementData instance.
 	 */
-	public void maybeUpdateFromStatement(StatementData sdata) {
+	public synchronized void maybeUpdateFromStatement(StatementData sdata) {
 		String query = sdata.getQuery();
 		if (query == null) {
 			logger.info("Query was null, trying harder.");
@@ -107,7 +131,7 @@ public class TableKeyTracker {
 			SqlOperation sqlOp = sqlMatcher.match(query);
 			if (sqlOp == null) {
 				logger.warn("Couldn't understand DDL, resetting keyCache.");
-				this.keyCache.clear();
+				this.clearKeyCache();
 				this.metrics.ddlParseError();
 				return;
 			}
@@ -116,12 +140,17 @@ public class TableKeyTracker {
 				String dbName = sqlOp.getSchema();
 				if (dbName == null) {
 					logger.warn("DROP with no schema, resetting keyCache.");
-					this.keyCache.clear();
+					this.clearKeyCache();
 					this.metrics.ddlParseError();
 					return;
 				}
 				if (sqlOp.getObjectType() == SqlOperation.SCHEMA) {
-					this.keyCache.remove(dbName.toUpperCase());
+					HashMap<String, TableKeyInfo> removed =
+							this.keyCache.remove(dbName.toUpperCase());
+					if (removed != null) {
+						this.keyCacheBytes -= schemaBytes(dbName.toUpperCase(),
+								removed);
+					}
 					logger.debug("Removed schema entry from key cache.");
 				} else if (sqlOp.getObjectType() == SqlOperation.TABLE) {
 					String defaultDB = sdata.getDefaultSchema();
@@ -151,38 +180,158 @@ public class TableKeyTracker {
 			String table_name) {
 		if (schema != null) {
 			if (this.keyCache.containsKey(schema.toUpperCase())) {
-				this.keyCache.get(schema.toUpperCase()).remove(
+				this.uncacheTable(this.keyCache.get(schema.toUpperCase()),
 						table_name.toUpperCase());
 				logger.debug("Removed table's entry from key cache.");
 			}
 		} else if (default_schema != null) {
 			if (this.keyCache.containsKey(default_schema.toUpperCase())) {
-				this.keyCache.get(default_schema.toUpperCase()).remove(
+				this.uncacheTable(
+						this.keyCache.get(default_schema.toUpperCase()),
 						table_name.toUpperCase());
 				logger.debug("Removed table's entry from key cache.");
 			}
 		}
 	}
 
+	private void clearKeyCache() {
+		this.keyCache.clear();
+		this.keyCacheBytes = 0;
+	}
+
+	private void cacheTable(HashMap<String, TableKeyInfo> dbCache,
+			String table_name, TableKeyInfo tki) {
+		this.uncacheTable(dbCache, table_name);
+		dbCache.put(table_name, tki);
+		this.keyCacheBytes += tableBytes(table_name, tki);
+	}
+
+	private void uncacheTable(HashMap<String, TableKeyInfo> dbCache,
+			String table_name) {
+		TableKeyInfo old = dbCache.remove(table_name);
+		if (old != null) {
+			this.keyCacheBytes -= tableBytes(table_name, old);
+		}
+	}
+
+	private static long tableBytes(String table_name, TableKeyInfo tki) {
+		return MemoryEstimates.MAP_ENTRY + MemoryEstimates.string(table_name) +
+				tki.estimateBytes();
+	}
+
+	private static long schemaBytes(String schema_name,
+			HashMap<String, TableKeyInfo> dbCache) {
+		long size = MemoryEstimates.MAP_ENTRY +
+				MemoryEstimates.string(schema_name) + 64;
+		for (Map.Entry<String, TableKeyInfo> e : dbCache.entrySet()) {
+			size += tableBytes(e.getKey(), e.getValue());
+		}
+		return size;
+	}
+
+	/**
+	 * Forget the columns each cached table resolved for the rules, after
+	 * the rules are replaced, so the old rules can be collected.
+	 */
+	public synchronized void clearResolvedColumns() {
+		for (HashMap<String, TableKeyInfo> dbCache : this.keyCache.values()) {
+			for (TableKeyInfo tki : dbCache.values()) {
+				tki.clearResolvedColumns();
+			}
+		}
+	}
+
+	/**
+	 * @return The estimated bytes retained by the key cache.
+	 */
+	public synchronized long getKeyCacheBytes() {
+		return this.keyCacheBytes;
+	}
+
 	/**
 	 * Look up the primary key column(s) for the table in a OneRowChange.
 	 * 
-	 * @return The TableKeyInfo for the table.
+	 * @return The TableKeyInfo for the table, or null if the table has no
+	 *         primary key (or could not be looked up).
 	 */
 	public TableKeyInfo lookupTableKey(OneRowChange orc) {
+		long start = System.nanoTime();
+		TableKeyInfo tki = this.lookupTableInfo(orc);
+		this.metrics.getLookupLatency().recordSince(start);
+		if (tki == null || ! tki.hasPrimaryKey()) {
+			return null;
+		}
+		return tki;
+	}
+
+	/**
+	 * Keep per-thread lookup counts, for the slow event log.  Off by
+	 * default, so lookups don't touch a ThreadLocal.
+	 */
+	public void setCountThreadLookups(boolean countThreadLookups) {
+		this.countThreadLookups = countThreadLookups;
+	}
+
+	/**
+	 * @return The running lookup counts of the calling thread.  Callers
+	 *         take the difference across the work they want to measure.
+	 *         Lookups made for it on other threads (see ParallelRowExecutor)
+	 *         aren't included.
+	 */
+	public LookupCounts getThreadLookupCounts() {
+		return this.threadLookups.get();
+	}
+
+	/**
+	 * Look up the columns, and primary key column(s), for the table in a
+	 * OneRowChange.  Unlike lookupTableKey(), this returns the table's info
+	 * even when it has no primary key.
+	 * 
+	 * This is synchronized, since large transactions are matched and
+	 * formatted on several threads (see ParallelRowExecutor).
+	 * 
+	 * @return The TableKeyInfo for the table, or null if it could not be
+	 *         looked up.
+	 */
+	public synchronized TableKeyInfo lookupTableInfo(OneRowChange orc) {
+		Object jfr = FilterEvents.beginTableKeyLookup();
+		long db_lookups = this.dbLookupCount;
+		TableKeyInfo tki = this.findTableInfo(orc);
+		if (this.countThreadLookups) {
+			LookupCounts counts = this.threadLookups.get();
+			++counts.lookups;
+			counts.dbLookups += this.dbLookupCount - db_lookups;
+		}
+		if (jfr != null) {
+			String outcome = "hit";
+			if (tki == null) {
+				outcome = "error";
+			} else if (this.dbLookupCount != db_lookups) {
+				outcome = "db";
+			}
+			FilterEvents.endTableKeyLookup(jfr, orc.getSchemaName(),
+					orc.getTableName(), outcome);
+		}
+		return tki;
+	}
+
+	private TableKeyInfo findTableInfo(OneRowChange orc) {
 		String schema_name = orc.getSchemaName().toUpperCase();
 		String table_name = orc.getTableName().toUpperCase();
 
 		if (! this.keyCache.containsKey(schema_name)) {
 			this.keyCache.put(schema_name, 
 					new HashMap<String, TableKeyInfo>());
+			this.keyCacheBytes += MemoryEstimates.MAP_ENTRY +
+					MemoryEstimates.string(schema_name) + 64;
 		}
 		HashMap<String, TableKeyInfo> dbCache = this.keyCache.get(schema_name);
 
 		if (!dbCache.containsKey(table_name) || orc.getTableId() == -1) {
 			// This table has not yet been cached, or the cache is out of date.
-			dbCache.remove(table_name);
+			this.uncacheTable(dbCache, table_name);
 			boolean has_pk = true;
+			++this.dbLookupCount;
 
 			this.reconnectIfNeeded();
 			Table orc_table;
@@ -198,7 +347,7 @@ public class TableKeyTracker {
 				return null;
 			}
 			if (orc_table == null) {
-				dbCache.remove(table_name);
+				this.uncacheTable(dbCache, table_name);
 				logger.error("Unable to lookup table '" + table_name +
 						"' in schema '" + schema_name + "'.");
 				this.metrics.dbLookupError();
@@ -218,15 +367,16 @@ public class TableKeyTracker {
 				has_pk = false;
 			}
 
+			TableKeyInfo tki = new TableKeyInfo();
 			if (has_pk) {
-				TableKeyInfo tki = new TableKeyInfo();
 				for (Column col : keys) {
 					tki.addKey(col);
 				}
-				dbCache.put(table_name, tki);
-			} else {
-				dbCache.put(table_name, null);
 			}
+			for (Column col : orc_table.getAllColumns()) {
+				tki.addColumn(col);
+			}
+			this.cacheTable(dbCache, table_name, tki);
 
 			logger.info("Added TableKeyInfo for '" + schema_name + "."
 					+ table_name + "'.");
@@ -269,7 +419,7 @@ public class TableKeyTracker {
 		}
 	}
 
-	public void release() {
+	public synchronized void release() {
 		try {
 			if (this.dbConn != null) {
 				this.dbConn.close();
@@ -280,7 +430,7 @@ public class TableKeyTracker {
 		}
 
 		if (this.keyCache != null) {
-			this.keyCache.clear();
+			this.clearKeyCache();
 			this.keyCache = null;
 		}
 	}
@@ -0,0 +1,207 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows, messages and bytes for the heaviest keys (e.g. tables or routing
+ * keys), using the Space-Saving algorithm so memory stays fixed however
+ * many keys there are.
+ *
+ * At most capacity keys are tracked.  A new key replaces the key with the
+ * lowest rank, taking over its rank as the key's error, so every key whose
+ * true rank is above rank/capacity of the total is tracked.  Keys are
+ * ranked by one measure, picked when the sketch is made; the other
+ * measures are only counted for keys already tracked.  The tracked keys
+ * are kept in a min-heap on rank.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class TopKSketch {
+	public enum Rank {
+		ROWS, MESSAGES, BYTES
+	}
+
+	/**
+	 * One key's counts, for the metrics report.
+	 */
+	public static class Entry {
+		public String key;
+		public long rows;
+		public long messages;
+		public long bytes;
+		// How much of the rank may have belonged to keys it replaced.
+		public long error;
+		private long rank;
+		private int heapIndex;
+	}
+
+	private Rank rankBy;
+	private int capacity;
+	private Map<String, Entry> entries;
+	private Entry[] heap;
+	private int size;
+
+	public TopKSketch(int capacity, Rank rankBy) {
+		this.capacity = Math.max(1, capacity);
+		this.rankBy = rankBy;
+		this.entries = new HashMap<String, Entry>(this.capacity * 2);
+		this.heap = new Entry[this.capacity];
+		this.size = 0;
+	}
+
+	/**
+	 * Count rows for a key.
+	 */
+	public synchronized void addRows(String key, long rows) {
+		Entry e = this.find(key, (this.rankBy == Rank.ROWS) ? rows : 0);
+		if (e != null) {
+			e.rows += rows;
+		}
+	}
+
+	/**
+	 * Count a message of the given size for a key.
+	 */
+	public synchronized void addMessage(String key, long bytes) {
+		long weight = 0;
+		if (this.rankBy == Rank.MESSAGES) {
+			weight = 1;
+		} else if (this.rankBy == Rank.BYTES) {
+			weight = bytes;
+		}
+		Entry e = this.find(key, weight);
+		if (e != null) {
+			e.messages++;
+			e.bytes += bytes;
+		}
+	}
+
+	/**
+	 * Find the key's entry and add weight to its rank, replacing the
+	 * lowest ranked key if it isn't tracked.
+	 *
+	 * @return The entry, or null if the key isn't tracked and weight is 0.
+	 */
+	private Entry find(String key, long weight) {
+		Entry e = this.entries.get(key);
+		if (e != null) {
+			if (weight > 0) {
+				e.rank += weight;
+				this.siftDown(e.heapIndex);
+			}
+			return e;
+		}
+		if (weight <= 0) {
+			return null;
+		}
+		if (this.size < this.capacity) {
+			e = new Entry();
+			e.heapIndex = this.size;
+			this.heap[this.size++] = e;
+		} else {
+			// Replace the minimum; it keeps its place at the heap's root
+			// until its rank grows.
+			e = this.heap[0];
+			this.entries.remove(e.key);
+			e.error = e.rank;
+			e.rows = 0;
+			e.messages = 0;
+			e.bytes = 0;
+		}
+		e.key = key;
+		e.rank += weight;
+		this.entries.put(key, e);
+		this.siftUp(e.heapIndex);
+		this.siftDown(e.heapIndex);
+		return e;
+	}
+
+	private void siftUp(int i) {
+		Entry e = this.heap[i];
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (this.heap[parent].rank <= e.rank) {
+				break;
+			}
+			this.place(this.heap[parent], i);
+			i = parent;
+		}
+		this.place(e, i);
+	}
+
+	private void siftDown(int i) {
+		Entry e = this.heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= this.size) {
+				break;
+			}
+			if (child + 1 < this.size &&
+					this.heap[child + 1].rank < this.heap[child].rank) {
+				++child;
+			}
+			if (e.rank <= this.heap[child].rank) {
+				break;
+			}
+			this.place(this.heap[child], i);
+			i = child;
+		}
+		this.place(e, i);
+	}
+
+	private void place(Entry e, int i) {
+		this.heap[i] = e;
+		e.heapIndex = i;
+	}
+
+	/**
+	 * @return Copies of the top count keys, highest rank first, and start
+	 *         counting again from nothing.
+	 */
+	public synchronized List<Entry> snapshotAndReset(int count) {
+		Entry[] sorted = Arrays.copyOf(this.heap, this.size);
+		Arrays.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return (a.rank < b.rank) ? 1 : ((a.rank > b.rank) ? -1 : 0);
+			}
+		});
+		List<Entry> top = new ArrayList<Entry>();
+		for (int i = 0; i < Math.min(count, sorted.length); ++i) {
+			Entry copy = new Entry();
+			copy.key = sorted[i].key;
+			copy.rows = sorted[i].rows;
+			copy.messages = sorted[i].messages;
+			copy.bytes = sorted[i].bytes;
+			copy.error = sorted[i].error;
+			top.add(copy);
+		}
+		this.entries.clear();
+		Arrays.fill(this.heap, null);
+		this.size = 0;
+		return top;
+	}
+}
@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 public class TransactionInfo {
 	public String name;
@@ -34,12 +35,20 @@ public class TransactionInfo {
 	public String message;
 	public ArrayList<String> rows;
 
+	// Only set when the transaction's message is split into chunks.
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public Integer chunkIndex;
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public Boolean lastChunk;
+
 	public TransactionInfo(String name, String eventId, long eventTimestamp) {
 		this.name = name;
 		this.eventId = eventId;
 		this.eventTimestamp = eventTimestamp;
 		this.message = "";
 		this.rows = new ArrayList<String>();
+		this.chunkIndex = null;
+		this.lastChunk = null;
 	}
 
 
@@ -0,0 +1,315 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.smartsheet.tin.filters.common.ColumnValueUtils;
+import com.smartsheet.tin.filters.common.MemoryEstimates;
+import com.smartsheet.tin.filters.common.RowMessage;
+import com.smartsheet.tin.filters.pkpublish.MQPublishWrapper.MQError;
+
+/**
+ * Holds messages while RabbitMQ has blocked the publisher (memory or disk
+ * alarm), so the replicator keeps going instead of hanging in
+ * basicPublish().
+ *
+ * The buffer is active from the moment the connection is blocked until
+ * everything buffered has been published.  While it is active, every
+ * message is buffered, so messages stay in order.  A drain thread
+ * publishes the buffer, oldest first, once the connection is unblocked.
+ *
+ * With coalescing, a row message replaces a buffered message for the same
+ * routing key and row (table and primary key), keeping the older one's
+ * place in line, so only the latest change to a hot row is published.
+ * Other messages are never coalesced.
+ *
+ * When maxBytes of messages are buffered, publishers wait for the drain
+ * (i.e. the publisher is paused, just as RabbitMQ would have it).
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class BlockedBuffer {
+	private static Logger logger = Logger.getLogger(BlockedBuffer.class);
+
+	private MQPublishWrapper mq;
+	private boolean coalesce;
+	private long maxBytes;
+
+	// All guarded by this.
+	private LinkedHashMap<Object, PublishMessage> buffer;
+	private long bufferedBytes;
+	private long uniqueKey;
+	private boolean blocked;
+	private boolean active;
+	private long bufferedCount;
+	private long coalescedCount;
+	private Thread drainThread;
+	private boolean running;
+
+	public BlockedBuffer(MQPublishWrapper mq, boolean coalesce, long maxBytes) {
+		this.mq = mq;
+		this.coalesce = coalesce;
+		this.maxBytes = Math.max(1, maxBytes);
+		this.buffer = new LinkedHashMap<Object, PublishMessage>();
+		this.bufferedBytes = 0;
+		this.uniqueKey = 0;
+		this.blocked = false;
+		this.active = false;
+		this.running = true;
+	}
+
+
+	/**
+	 * Buffer a message if the buffer is active.
+	 *
+	 * @return false if the message should be published directly.
+	 * @throws InterruptedException while waiting for room.
+	 */
+	public synchronized boolean offer(PublishMessage msg)
+			throws InterruptedException {
+		if (! this.active) {
+			return false;
+		}
+		while (this.bufferedBytes >= this.maxBytes && this.active) {
+			this.wait(1000);
+		}
+		if (! this.active) {
+			return false;
+		}
+
+		Object key = this.keyFor(msg);
+		PublishMessage old = this.buffer.put(key, msg);
+		if (old != null) {
+			this.bufferedBytes -= old.getBody().length();
+			++this.coalescedCount;
+		}
+		this.bufferedBytes += msg.getBody().length();
+		++this.bufferedCount;
+		return true;
+	}
+
+
+	private Object keyFor(PublishMessage msg) {
+		RowMessage row = msg.getRow();
+		if (this.coalesce && row != null) {
+			return new RowKey(msg.getRoutingKey(), row);
+		}
+		return Long.valueOf(++this.uniqueKey);
+	}
+
+
+	/**
+	 * The coalescing key of a row message: its routing key, table and
+	 * primary key values.  It doesn't hold on to the message, since the
+	 * map keeps the first key when a later message replaces the value.
+	 */
+	private static final class RowKey {
+		private final String routingKey;
+		private final String schema;
+		private final String table;
+		private final long keyHash;
+		private final Object[] keyValues;
+
+		RowKey(String routingKey, RowMessage row) {
+			this.routingKey = routingKey;
+			this.schema = row.getSchema();
+			this.table = row.getTable();
+			this.keyHash = row.getKeyHash();
+			this.keyValues = row.getKeyValues();
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (this.keyHash ^ (this.keyHash >>> 32)) * 31 +
+					this.routingKey.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (! (o instanceof RowKey)) {
+				return false;
+			}
+			RowKey other = (RowKey) o;
+			if (this.keyHash != other.keyHash || this.keyValues == null ||
+					other.keyValues == null ||
+					this.keyValues.length != other.keyValues.length ||
+					! this.table.equals(other.table) ||
+					! this.schema.equals(other.schema) ||
+					! this.routingKey.equals(other.routingKey)) {
+				return false;
+			}
+			for (int i = 0; i < this.keyValues.length; ++i) {
+				if (! ColumnValueUtils.valuesEqual(this.keyValues[i],
+						other.keyValues[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+
+	/**
+	 * The connection was blocked, start buffering.
+	 */
+	public synchronized void blocked() {
+		this.blocked = true;
+		this.active = true;
+		if (this.drainThread == null) {
+			this.drainThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drainLoop();
+				}
+			}, "pkpublish-blocked-drain");
+			this.drainThread.setDaemon(true);
+			this.drainThread.start();
+		}
+	}
+
+
+	/**
+	 * The connection was unblocked, publish what was buffered.
+	 */
+	public synchronized void unblocked() {
+		this.blocked = false;
+		this.notifyAll();
+	}
+
+
+	private void drainLoop() {
+		while (true) {
+			PublishMessage msg;
+			synchronized (this) {
+				try {
+					while (this.running && (this.blocked || ! this.active)) {
+						this.wait(1000);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (! this.running) {
+					return;
+				}
+				Iterator<Map.Entry<Object, PublishMessage>> it =
+						this.buffer.entrySet().iterator();
+				if (! it.hasNext()) {
+					// Drained, go back to publishing directly.
+					this.active = false;
+					this.notifyAll();
+					continue;
+				}
+				msg = it.next().getValue();
+			}
+
+			try {
+				this.mq.publishDirect(msg);
+			} catch (MQError e) {
+				logger.warn("Unable to publish buffered message, will retry: " +
+						e.getMessage());
+				try {
+					this.mq.awaitAvailable(1000);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				continue;
+			}
+
+			synchronized (this) {
+				// Coalescing may have replaced it meanwhile, only drop it if
+				// it's still the one at the head.
+				Iterator<Map.Entry<Object, PublishMessage>> it =
+						this.buffer.entrySet().iterator();
+				if (it.hasNext()) {
+					Map.Entry<Object, PublishMessage> head = it.next();
+					if (head.getValue() == msg) {
+						it.remove();
+						this.bufferedBytes -= msg.getBody().length();
+						this.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+
+	public synchronized boolean isActive() {
+		return this.active;
+	}
+
+	public synchronized int getBufferedMessages() {
+		return this.buffer.size();
+	}
+
+	/**
+	 * @return The estimated bytes the buffered messages retain: two bytes
+	 *         per body char, plus a fixed amount per message for its
+	 *         routing key, key and entry.
+	 */
+	public synchronized long getRetainedBytes() {
+		return 2 * this.bufferedBytes + this.buffer.size() *
+				(MemoryEstimates.MAP_ENTRY + 200);
+	}
+
+	public synchronized long getBufferedCount() {
+		return this.bufferedCount;
+	}
+
+	public synchronized long getCoalescedCount() {
+		return this.coalescedCount;
+	}
+
+
+	/**
+	 * Give the drain up to waitMillis to finish (if the connection isn't
+	 * blocked), then stop the drain thread.  Anything still buffered is
+	 * logged and lost.
+	 */
+	public void release(long waitMillis) {
+		Thread t;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + waitMillis;
+			long remaining = waitMillis;
+			try {
+				while (this.active && ! this.blocked && remaining > 0) {
+					this.wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				logger.warn("Interrupted waiting for the blocked buffer to drain");
+			}
+			this.running = false;
+			this.notifyAll();
+			t = this.drainThread;
+			if (! this.buffer.isEmpty()) {
+				logger.error(String.format("Released with %d messages still " +
+						"buffered for a blocked message queue",
+						this.buffer.size()));
+			}
+		}
+		if (t != null) {
+			t.interrupt();
+		}
+	}
+}
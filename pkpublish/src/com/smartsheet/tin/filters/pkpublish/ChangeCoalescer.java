@@ -0,0 +1,368 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.RowMessage;
+
+/**
+ * Collapses repeated changes to the same row within a window, so a hot
+ * row updated dozens of times a second produces one message per window.
+ *
+ * Messages are held for a window of windowMillis and/or windowEvents
+ * events.  Within the window, a row message for the same routing key and
+ * row (schema, table and primary key hash) replaces the held one, but
+ * keeps its place in line.  At the end of the window the held messages
+ * are emitted in order.  Messages that aren't row messages are held in
+ * order too, but are never replaced.
+ *
+ * Emitted row messages get two more fields: "seqno", of the event the
+ * latest change came from, and "coalescedCount", the number of earlier
+ * changes it replaced.
+ *
+ * The map from row to held message is open addressing over primitive
+ * long hashes, so adding a message allocates nothing but the message.
+ * Equal hashes are checked against the row's routing key, table and
+ * primary key values before replacing.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class ChangeCoalescer {
+	private static Logger logger = Logger.getLogger(ChangeCoalescer.class);
+
+	/**
+	 * Where the coalesced messages go.
+	 */
+	public interface Emitter {
+		public void emit(PublishMessage msg, long seqno)
+				throws MessageSinkException, SpoolException;
+	}
+
+	private Emitter emitter;
+	private FilterMetrics metrics;
+	private long windowMillis;
+	private int windowEvents;
+	private int maxEntries;
+
+	// The held messages, in arrival order.
+	private PublishMessage[] messages;
+	private long[] seqnos;
+	private long[] hashes;
+	private int[] suppressed;
+	private int[] entrySlots;
+	private int count;
+	// Estimated bytes of the held messages.
+	private long heldBytes;
+
+	// Open addressing table: entry index + 1, or 0 for an empty slot.
+	private int[] table;
+	private int mask;
+
+	private long windowStart;
+	private int eventsInWindow;
+	private Exception failure;
+	private ScheduledExecutorService timer;
+
+	/**
+	 * @param windowMillis Longest a message is held, 0 for no time limit.
+	 * @param windowEvents Events per window, 0 for no event limit.
+	 * @param maxEntries Messages held before the window is cut short.
+	 */
+	public ChangeCoalescer(long windowMillis, int windowEvents,
+			int maxEntries, Emitter emitter, FilterMetrics metrics) {
+		this.windowMillis = windowMillis;
+		this.windowEvents = windowEvents;
+		this.maxEntries = Math.max(1, maxEntries);
+		this.emitter = emitter;
+		this.metrics = metrics;
+		this.messages = new PublishMessage[this.maxEntries];
+		this.seqnos = new long[this.maxEntries];
+		this.hashes = new long[this.maxEntries];
+		this.suppressed = new int[this.maxEntries];
+		this.entrySlots = new int[this.maxEntries];
+		int size = Integer.highestOneBit(this.maxEntries * 2 - 1) << 1;
+		this.table = new int[size];
+		this.mask = size - 1;
+		this.count = 0;
+		this.windowStart = System.currentTimeMillis();
+		this.eventsInWindow = 0;
+		this.failure = null;
+	}
+
+
+	/**
+	 * With a time window, flush on a timer, so the last messages before
+	 * the replicator goes idle aren't held indefinitely.
+	 */
+	public void start() {
+		if (this.windowMillis <= 0) {
+			return;
+		}
+		this.timer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "pkpublish-coalesce-flush");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flushIfDue();
+			}
+		}, this.windowMillis, this.windowMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Hold a message, replacing the held message for the same row.
+	 *
+	 * @throws MessageSinkException, SpoolException if emitting a full
+	 *         window failed, here or on the timer.
+	 */
+	public synchronized void add(PublishMessage msg, long seqno)
+			throws MessageSinkException, SpoolException {
+		this.throwIfFailed();
+		RowMessage row = msg.getRow();
+		if (row != null) {
+			long hash = rowHash(msg, row);
+			int slot = (int) (mix(hash) & this.mask);
+			int e;
+			while ((e = this.table[slot] - 1) >= 0) {
+				if (this.hashes[e] == hash && sameRow(this.messages[e], msg)) {
+					this.heldBytes += msg.estimateBytes() -
+							this.messages[e].estimateBytes();
+					this.messages[e] = msg;
+					this.seqnos[e] = seqno;
+					++this.suppressed[e];
+					this.metrics.coalescedMessage();
+					return;
+				}
+				slot = (slot + 1) & this.mask;
+			}
+			if (this.count == this.maxEntries) {
+				this.flush();
+				this.add(msg, seqno);
+				return;
+			}
+			this.table[slot] = this.count + 1;
+			this.entrySlots[this.count] = slot;
+			this.hashes[this.count] = hash;
+		} else {
+			if (this.count == this.maxEntries) {
+				this.flush();
+			}
+			this.entrySlots[this.count] = -1;
+		}
+		this.messages[this.count] = msg;
+		this.seqnos[this.count] = seqno;
+		this.suppressed[this.count] = 0;
+		this.heldBytes += msg.estimateBytes();
+		++this.count;
+	}
+
+
+	/**
+	 * An event has been published, end the window if it is due.
+	 */
+	public synchronized void eventDone()
+			throws MessageSinkException, SpoolException {
+		++this.eventsInWindow;
+		if (this.isDue()) {
+			this.flush();
+		}
+		this.throwIfFailed();
+	}
+
+
+	private boolean isDue() {
+		return (this.windowEvents > 0 &&
+				this.eventsInWindow >= this.windowEvents) ||
+				(this.windowMillis > 0 && System.currentTimeMillis() -
+						this.windowStart >= this.windowMillis);
+	}
+
+
+	private synchronized void flushIfDue() {
+		if (this.failure != null || ! this.isDue()) {
+			return;
+		}
+		try {
+			this.flush();
+		} catch (Exception e) {
+			logger.error("Unable to emit coalesced messages:", e);
+			this.failure = e;
+		}
+	}
+
+
+	/**
+	 * Emit everything held, and start a new window.
+	 */
+	public synchronized void flush()
+			throws MessageSinkException, SpoolException {
+		int emitted = 0;
+		try {
+			for (; emitted < this.count; ++emitted) {
+				PublishMessage msg = this.messages[emitted];
+				if (this.entrySlots[emitted] >= 0) {
+					msg = annotate(msg, this.seqnos[emitted],
+							this.suppressed[emitted]);
+				}
+				this.emitter.emit(msg, this.seqnos[emitted]);
+			}
+		} finally {
+			this.compact(emitted);
+			this.windowStart = System.currentTimeMillis();
+			this.eventsInWindow = 0;
+			if (emitted > 0) {
+				this.metrics.coalesceFlush(emitted);
+			}
+		}
+	}
+
+
+	/**
+	 * Drop the first n entries (emitted), keeping the rest in order.
+	 */
+	private void compact(int n) {
+		for (int i = 0; i < n; ++i) {
+			this.heldBytes -= this.messages[i].estimateBytes();
+		}
+		for (int i = 0; i < this.count; ++i) {
+			if (this.entrySlots[i] >= 0) {
+				this.table[this.entrySlots[i]] = 0;
+			}
+		}
+		int kept = 0;
+		for (int i = n; i < this.count; ++i, ++kept) {
+			this.messages[kept] = this.messages[i];
+			this.seqnos[kept] = this.seqnos[i];
+			this.hashes[kept] = this.hashes[i];
+			this.suppressed[kept] = this.suppressed[i];
+			this.entrySlots[kept] = this.entrySlots[i];
+			if (this.entrySlots[kept] >= 0) {
+				// Only after a failed emit: put the row back in the table.
+				int slot = (int) (mix(this.hashes[kept]) & this.mask);
+				while (this.table[slot] != 0) {
+					slot = (slot + 1) & this.mask;
+				}
+				this.table[slot] = kept + 1;
+				this.entrySlots[kept] = slot;
+			}
+		}
+		for (int i = kept; i < this.count; ++i) {
+			this.messages[i] = null;
+		}
+		this.count = kept;
+	}
+
+
+	/**
+	 * @return The estimated bytes of the messages held in this window.
+	 */
+	public synchronized long getHeldBytes() {
+		return this.heldBytes;
+	}
+
+
+	private void throwIfFailed() throws MessageSinkException, SpoolException {
+		Exception e = this.failure;
+		if (e == null) {
+			return;
+		}
+		this.failure = null;
+		if (e instanceof SpoolException) {
+			throw (SpoolException) e;
+		} else if (e instanceof MessageSinkException) {
+			throw (MessageSinkException) e;
+		}
+		throw new MessageSinkException("Coalesced flush failed", e);
+	}
+
+
+	private static long rowHash(PublishMessage msg, RowMessage row) {
+		long h = msg.getRoutingKey().hashCode();
+		h = h * 31 + row.getSchema().hashCode();
+		h = h * 31 + row.getTable().hashCode();
+		return h * 0x9E3779B97F4A7C15L ^ row.getKeyHash();
+	}
+
+
+	private static long mix(long h) {
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		return h ^ (h >>> 33);
+	}
+
+
+	private static boolean sameRow(PublishMessage a, PublishMessage b) {
+		return a.getRow().sameRow(b.getRow()) &&
+				a.getRoutingKey().equals(b.getRoutingKey());
+	}
+
+
+	/**
+	 * Add "seqno" and "coalescedCount" to a row message's JSON object.
+	 */
+	private static PublishMessage annotate(PublishMessage msg, long seqno,
+			int coalesced) {
+		RowMessage row = msg.getRow();
+		String json = row.getJson();
+		int close = json.lastIndexOf('}');
+		if (close < 0) {
+			return msg;
+		}
+		String extra = String.format("\"seqno\":%d,\"coalescedCount\":%d",
+				seqno, coalesced);
+		boolean empty = json.substring(json.indexOf('{') + 1, close)
+				.trim().isEmpty();
+		String annotated = json.substring(0, close) + (empty ? "" : ",") +
+				extra + json.substring(close);
+		return new PublishMessage(msg.getRoutingKey(), new RowMessage(
+				annotated, row.getSchema(), row.getTable(),
+				row.getTableName(), row.getChangeType(), row.getKeyHash(), row.getKeyValues(),
+				row.getEventTimestamp()));
+	}
+
+
+	/**
+	 * Stop the timer and emit what is held.
+	 */
+	public void release() {
+		if (this.timer != null) {
+			this.timer.shutdownNow();
+			this.timer = null;
+		}
+		try {
+			this.flush();
+		} catch (Exception e) {
+			logger.error("Unable to emit coalesced messages on release:", e);
+		}
+	}
+}
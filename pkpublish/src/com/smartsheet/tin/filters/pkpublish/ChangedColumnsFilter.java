@@ -0,0 +1,125 @@
+/**
+ * Copyright 2014-2015 Smartsheet.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+/**
+ * Match UPDATE rows by which of a set of columns changed.
+ */
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.smartsheet.tin.filters.common.ColumnValueUtils;
+import com.smartsheet.tin.filters.common.JsonFilterException;
+import com.smartsheet.tin.filters.common.ORCRowView;
+import com.smartsheet.tin.filters.common.TableKeyInfo;
+
+import static com.smartsheet.tin.filters.common.JsonFilterTools.confirmNodeType;
+
+/**
+ * Used by RowPatterns for the "changed_columns" (an UPDATE matches if any
+ * of the columns changed) and "unchanged_columns" (an UPDATE matches if
+ * any of the columns did not change) options.  Other change types always
+ * pass.
+ *
+ * A column changed if it is in the after image and either isn't in the
+ * before image or has a different value there.  With a minimal row image,
+ * only the changed columns are in the after image, so this still works.
+ *
+ * The column names are resolved to a bitmask of positions once per
+ * version of the table, so checking a row only compares the before and
+ * after values of the named columns.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class ChangedColumnsFilter {
+	private static Logger logger = Logger.getLogger(ChangedColumnsFilter.class);
+	private List<String> columns;
+	private boolean wantChanged;
+
+	public ChangedColumnsFilter(List<String> columns, boolean wantChanged) {
+		this.columns = columns;
+		this.wantChanged = wantChanged;
+	}
+
+
+	public static ChangedColumnsFilter newFromJson(JsonNode node,
+			boolean wantChanged) throws JsonFilterException {
+		String node_name = wantChanged ? "changed_columns" : "unchanged_columns";
+		confirmNodeType(node, JsonNodeType.ARRAY, node_name, logger);
+		List<String> columns = new ArrayList<String>();
+		for (JsonNode name_jn : node) {
+			confirmNodeType(name_jn, JsonNodeType.STRING, node_name, logger);
+			columns.add(name_jn.asText());
+		}
+		return new ChangedColumnsFilter(columns, wantChanged);
+	}
+
+
+	/**
+	 * Check one row of a OneRowChange.
+	 *
+	 * @param view The row images of the OneRowChange.
+	 * @param tki The info for the OneRowChange's table.
+	 * @param row The index of the row.
+	 * @return true if the row passes (always, for non-UPDATEs).
+	 */
+	public boolean test(ORCRowView view, TableKeyInfo tki, int row) {
+		if (! view.isUpdate()) {
+			return true;
+		}
+		long[] mask = tki.resolveColumnMask(this, this.columns);
+		for (int word = 0; word < mask.length; ++word) {
+			long bits = mask[word];
+			while (bits != 0) {
+				int pos = word * 64 + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				if (columnChanged(view, row, pos) == this.wantChanged) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+
+	private static boolean columnChanged(ORCRowView view, int row, int pos) {
+		if (! view.hasAfterValue(pos)) {
+			return false;
+		}
+		if (! view.hasBeforeValue(pos)) {
+			return true;
+		}
+		return ! ColumnValueUtils.valuesEqual(view.getBeforeValue(row, pos),
+				view.getAfterValue(row, pos));
+	}
+
+
+	public List<String> getColumns() {
+		return this.columns;
+	}
+
+
+	public String toString() {
+		return String.format("<ChangedColumnsFilter %s: %s>",
+				this.wantChanged ? "changed" : "unchanged", this.columns);
+	}
+}
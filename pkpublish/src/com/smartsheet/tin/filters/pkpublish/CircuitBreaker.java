@@ -0,0 +1,230 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tracks whether the message queue looks healthy.
+ *
+ * CLOSED: publishing normally.  After failureThreshold failures in a row,
+ * the breaker opens.
+ * OPEN: publishes fail at once, without touching the broker, while a
+ * background task reconnects with exponential backoff.  When it succeeds,
+ * the breaker goes half open.
+ * HALF_OPEN: one publish at a time is let through as a probe.  If it
+ * succeeds, the breaker closes, if it fails, the breaker opens again.
+ * Other publishers can wait for the probe's outcome with awaitRequest().
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class CircuitBreaker {
+	private static Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private int failureThreshold;
+	private long baseBackoffMillis;
+	private long maxBackoffMillis;
+	private Random random;
+
+	private State state;
+	private int consecutiveFailures;
+	private int reconnectAttempts;
+	private boolean probeInFlight;
+	private long transitionCount;
+
+	/**
+	 * @param failureThreshold Failures in a row that open the breaker.
+	 * @param baseBackoffMillis Delay before the first reconnect attempt.
+	 * @param maxBackoffMillis Longest delay between reconnect attempts.
+	 */
+	public CircuitBreaker(int failureThreshold, long baseBackoffMillis,
+			long maxBackoffMillis) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.baseBackoffMillis = Math.max(1, baseBackoffMillis);
+		this.maxBackoffMillis = Math.max(this.baseBackoffMillis,
+				maxBackoffMillis);
+		this.random = new Random();
+		this.state = State.CLOSED;
+		this.consecutiveFailures = 0;
+		this.reconnectAttempts = 0;
+		this.probeInFlight = false;
+		this.transitionCount = 0;
+	}
+
+
+	/**
+	 * @return true if a publish may go to the broker now.  In HALF_OPEN,
+	 *         the caller that gets true is the probe, and must report the
+	 *         outcome with recordSuccess() or recordFailure().
+	 */
+	public synchronized boolean allowRequest() {
+		switch (this.state) {
+		case CLOSED:
+			return true;
+		case HALF_OPEN:
+			if (this.probeInFlight) {
+				return false;
+			}
+			this.probeInFlight = true;
+			return true;
+		default:
+			return false;
+		}
+	}
+
+
+	/**
+	 * Like allowRequest(), but in HALF_OPEN, waits (up to the timeout) for
+	 * the probe in flight to finish instead of refusing at once.  Returns
+	 * false at once while OPEN.
+	 */
+	public synchronized boolean awaitRequest(long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (this.state == State.HALF_OPEN && this.probeInFlight &&
+				remaining > 0) {
+			this.wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return this.allowRequest();
+	}
+
+
+	public synchronized void recordSuccess() {
+		this.consecutiveFailures = 0;
+		this.probeInFlight = false;
+		if (this.state != State.CLOSED) {
+			this.reconnectAttempts = 0;
+			this.transition(State.CLOSED);
+		}
+	}
+
+
+	/**
+	 * @return true if this failure opened the breaker.
+	 */
+	public synchronized boolean recordFailure() {
+		this.probeInFlight = false;
+		++this.consecutiveFailures;
+		if (this.state == State.HALF_OPEN ||
+				(this.state == State.CLOSED &&
+				this.consecutiveFailures >= this.failureThreshold)) {
+			this.transition(State.OPEN);
+			return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Force the breaker open, e.g. when the broker shut the connection.
+	 *
+	 * @return true if the breaker wasn't already open.
+	 */
+	public synchronized boolean trip() {
+		this.probeInFlight = false;
+		if (this.state == State.OPEN) {
+			return false;
+		}
+		this.transition(State.OPEN);
+		return true;
+	}
+
+
+	/**
+	 * The background reconnect succeeded, let a probe through.
+	 */
+	public synchronized void reconnected() {
+		if (this.state == State.OPEN) {
+			this.transition(State.HALF_OPEN);
+		}
+	}
+
+
+	/**
+	 * @return How long to wait before the next reconnect attempt:
+	 *         base * 2^attempts, capped at max, with the upper half
+	 *         jittered so many replicators don't reconnect in lockstep.
+	 */
+	public synchronized long nextBackoffMillis() {
+		return this.backoffMillis(this.reconnectAttempts++,
+				this.maxBackoffMillis);
+	}
+
+
+	/**
+	 * @return How long a publisher waits before retrying, the same backoff
+	 *         as reconnecting but capped at capMillis, and without counting
+	 *         as a reconnect attempt.
+	 */
+	public synchronized long retryBackoffMillis(int attempt, long capMillis) {
+		return this.backoffMillis(attempt,
+				Math.min(capMillis, this.maxBackoffMillis));
+	}
+
+
+	private long backoffMillis(int attempts, long max) {
+		long delay = this.baseBackoffMillis;
+		for (int i = 0; i < attempts && delay < max; ++i) {
+			delay *= 2;
+		}
+		delay = Math.max(0, Math.min(delay, max));
+		long half = delay / 2;
+		return half + (long) (this.random.nextDouble() * (delay - half));
+	}
+
+
+	/**
+	 * Wait until the breaker isn't open, or the timeout passes.
+	 */
+	public synchronized void awaitNotOpen(long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (this.state == State.OPEN && remaining > 0) {
+			this.wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+	}
+
+
+	private void transition(State next) {
+		logger.info(String.format("Message queue circuit breaker: %s -> %s",
+				this.state, next));
+		this.state = next;
+		++this.transitionCount;
+		this.notifyAll();
+	}
+
+
+	public synchronized State getState() {
+		return this.state;
+	}
+
+
+	public synchronized long getTransitionCount() {
+		return this.transitionCount;
+	}
+}
@@ -0,0 +1,746 @@
+/**
+ * Copyright 2014-2015 Smartsheet.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+/**
+ * A test of a single column's value in a row, used by RowPatterns.
+ */
+package com.smartsheet.tin.filters.pkpublish;
+
+import static com.smartsheet.tin.filters.common.JsonFilterTools.confirmNodeType;
+import static com.smartsheet.tin.filters.common.JsonFilterTools.fetchChildString;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.smartsheet.tin.filters.common.ColumnValueUtils;
+import com.smartsheet.tin.filters.common.JsonFilterException;
+import com.smartsheet.tin.filters.common.ORCRowView;
+
+/**
+ * Column predicates are compiled from the rule JSON when the rules are
+ * loaded.  The type of the literal(s) in the rule picks a predicate class
+ * specialized for longs, doubles, or strings, so that testing a row only
+ * does primitive compares (or String/byte[] compares) on the value that is
+ * already in the row image.  Testing a row allocates nothing.
+ *
+ * The column is bound to a position by the owning RowPattern, once per
+ * version of the table.  A column that isn't in the row image never
+ * satisfies a predicate.
+ *
+ * JSON forms, one operator per predicate:
+ *
+ *   {"column": "status", "equals": 3}
+ *   {"column": "status", "in": [1, 2, 3]}
+ *   {"column": "amount", "range": {"min": 10, "max": 100}}
+ *   {"column": "deleted_at", "is_null": true}
+ *   {"column": "status", "changed": {"from": 1, "to": 2}}
+ *
+ * Range bounds are inclusive and either may be left out.  "changed" only
+ * matches UPDATEs whose before and after values differ; "from" and "to"
+ * are optional.
+ *
+ * String literals compared with timestamps, dates, times and numbers are
+ * parsed as those types (see TypedLiteral), so "2015-06-01" or "1.5"
+ * compare by value rather than by how the value would print.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public abstract class ColumnPredicate {
+	private static Logger logger = Logger.getLogger(ColumnPredicate.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	protected String column;
+
+	protected ColumnPredicate(String column) {
+		this.column = column;
+	}
+
+	public String getColumn() {
+		return this.column;
+	}
+
+	/**
+	 * Test the predicate against one row of a OneRowChange.
+	 *
+	 * @param view The row images of the OneRowChange.
+	 * @param row The index of the row.
+	 * @param position The column's position, as bound for this table.
+	 * @return true if the row satisfies the predicate.
+	 */
+	public abstract boolean test(ORCRowView view, int row, int position);
+
+
+	public static ColumnPredicate newFromJson(JsonNode node)
+			throws JsonFilterException {
+		confirmNodeType(node, JsonNodeType.OBJECT, "column_predicate", logger);
+		String column = fetchChildString(node, "column", true);
+
+		ColumnPredicate pred = null;
+		int op_count = 0;
+		if (node.has("equals")) {
+			pred = compileEquals(column, node.get("equals"));
+			op_count++;
+		}
+		if (node.has("in")) {
+			pred = compileIn(column, node.get("in"));
+			op_count++;
+		}
+		if (node.has("range")) {
+			pred = compileRange(column, node.get("range"));
+			op_count++;
+		}
+		if (node.has("is_null")) {
+			pred = new IsNull(column, node.get("is_null").asBoolean(true));
+			op_count++;
+		}
+		if (node.has("changed")) {
+			pred = compileChanged(column, node.get("changed"));
+			op_count++;
+		}
+		if (op_count != 1) {
+			String err = String.format("column_predicate for column '%s' " +
+					"must have exactly one of: 'equals', 'in', 'range', " +
+					"'is_null', or 'changed', it has: %d", column, op_count);
+			logger.error(err);
+			throw new JsonFilterException(err);
+		}
+		return pred;
+	}
+
+
+	private static ValuePredicate compileEquals(String column, JsonNode lit)
+			throws JsonFilterException {
+		if (lit.isNull()) {
+			return new IsNull(column, true);
+		} else if (lit.isIntegralNumber() || lit.isBoolean()) {
+			return new LongEquals(column, literalAsLong(lit));
+		} else if (lit.isNumber()) {
+			return new DoubleEquals(column, lit.asDouble());
+		} else if (lit.isTextual()) {
+			return new StringEquals(column, lit.asText());
+		}
+		throw literalError(column, "equals", lit);
+	}
+
+
+	private static ValuePredicate compileIn(String column, JsonNode list)
+			throws JsonFilterException {
+		confirmNodeType(list, JsonNodeType.ARRAY, "in", logger);
+		boolean all_integral = true;
+		boolean all_numbers = true;
+		boolean all_text = true;
+		for (JsonNode lit : list) {
+			all_integral &= (lit.isIntegralNumber() || lit.isBoolean());
+			all_numbers &= (lit.isNumber() || lit.isBoolean());
+			all_text &= lit.isTextual();
+		}
+
+		int i = 0;
+		if (all_integral) {
+			long[] values = new long[list.size()];
+			for (JsonNode lit : list) {
+				values[i++] = literalAsLong(lit);
+			}
+			return new LongIn(column, values);
+		} else if (all_numbers) {
+			double[] values = new double[list.size()];
+			for (JsonNode lit : list) {
+				values[i++] = lit.asDouble();
+			}
+			return new DoubleIn(column, values);
+		} else if (all_text) {
+			String[] values = new String[list.size()];
+			for (JsonNode lit : list) {
+				values[i++] = lit.asText();
+			}
+			return new StringIn(column, values);
+		}
+		throw literalError(column, "in", list);
+	}
+
+
+	private static ValuePredicate compileRange(String column, JsonNode range)
+			throws JsonFilterException {
+		confirmNodeType(range, JsonNodeType.OBJECT, "range", logger);
+		JsonNode min = range.get("min");
+		JsonNode max = range.get("max");
+		if (min == null && max == null) {
+			throw literalError(column, "range", range);
+		}
+
+		boolean integral = (min == null || min.isIntegralNumber()) &&
+				(max == null || max.isIntegralNumber());
+		boolean numbers = (min == null || min.isNumber()) &&
+				(max == null || max.isNumber());
+		boolean text = (min == null || min.isTextual()) &&
+				(max == null || max.isTextual());
+		if (integral) {
+			return new LongRange(column,
+					min == null ? Long.MIN_VALUE : min.asLong(),
+					max == null ? Long.MAX_VALUE : max.asLong());
+		} else if (numbers) {
+			return new DoubleRange(column,
+					min == null ? Double.NEGATIVE_INFINITY : min.asDouble(),
+					max == null ? Double.POSITIVE_INFINITY : max.asDouble());
+		} else if (text) {
+			return new StringRange(column,
+					min == null ? null : min.asText(),
+					max == null ? null : max.asText());
+		}
+		throw literalError(column, "range", range);
+	}
+
+
+	private static ColumnPredicate compileChanged(String column, JsonNode node)
+			throws JsonFilterException {
+		if (node.isBoolean() && node.asBoolean()) {
+			return new Changed(column, null, null);
+		}
+		confirmNodeType(node, JsonNodeType.OBJECT, "changed", logger);
+		ValuePredicate from = null;
+		ValuePredicate to = null;
+		if (node.has("from")) {
+			from = compileEquals(column, node.get("from"));
+		}
+		if (node.has("to")) {
+			to = compileEquals(column, node.get("to"));
+		}
+		return new Changed(column, from, to);
+	}
+
+
+	private static long literalAsLong(JsonNode lit) {
+		if (lit.isBoolean()) {
+			return lit.asBoolean() ? 1 : 0;
+		}
+		return lit.asLong();
+	}
+
+
+	private static JsonFilterException literalError(String column, String op,
+			JsonNode lit) {
+		String err = String.format("column_predicate for column '%s' has " +
+				"an unusable '%s' value: %s", column, op, lit);
+		logger.error(err);
+		return new JsonFilterException(err);
+	}
+
+
+	private static boolean isIntegral(Object value) {
+		return (value instanceof Long || value instanceof Integer ||
+				value instanceof Short || value instanceof Byte);
+	}
+
+
+	/**
+	 * Compare a column value with a long literal.  DECIMAL and unsigned
+	 * BIGINT values arrive as BigDecimals and BigIntegers, and are compared
+	 * exactly; as doubles, distinct values above 2^53 would compare equal.
+	 * Only Floats and Doubles are compared as doubles.
+	 *
+	 * @param literal_decimal The literal as a BigDecimal, made once when
+	 *        the predicate is compiled.
+	 * @return Negative, 0 or positive as the value is less than, equal to
+	 *         or greater than the literal, or TypedLiteral.UNCOMPARABLE if
+	 *         the value isn't a number (or is NaN).
+	 */
+	private static int compareWithLong(Object value, long literal,
+			BigDecimal literal_decimal) {
+		if (isIntegral(value)) {
+			long v = ((Number) value).longValue();
+			return (v < literal) ? -1 : ((v > literal) ? 1 : 0);
+		} else if (value instanceof BigDecimal) {
+			return ((BigDecimal) value).compareTo(literal_decimal);
+		} else if (value instanceof BigInteger) {
+			BigInteger v = (BigInteger) value;
+			if (v.bitLength() < 64) {
+				long lv = v.longValue();
+				return (lv < literal) ? -1 : ((lv > literal) ? 1 : 0);
+			}
+			// Outside the range of a long, so past the literal.
+			return v.signum();
+		} else if (value instanceof Number) {
+			double v = ((Number) value).doubleValue();
+			if (Double.isNaN(v)) {
+				return TypedLiteral.UNCOMPARABLE;
+			}
+			return (v < literal) ? -1 : ((v > literal) ? 1 : 0);
+		}
+		return TypedLiteral.UNCOMPARABLE;
+	}
+
+
+	/**
+	 * Compare two byte arrays as unsigned bytes.
+	 */
+	private static int compareBytes(byte[] a, byte[] b) {
+		int len = Math.min(a.length, b.length);
+		for (int i = 0; i < len; ++i) {
+			int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+
+
+	/**
+	 * A predicate on the value in the row's current image (the after image
+	 * for INSERTs and UPDATEs, the before image for DELETEs).
+	 */
+	abstract static class ValuePredicate extends ColumnPredicate {
+		protected ValuePredicate(String column) {
+			super(column);
+		}
+
+		@Override
+		public boolean test(ORCRowView view, int row, int position) {
+			if (! view.hasValue(position)) {
+				return false;
+			}
+			return testValue(view.getValue(row, position));
+		}
+
+		abstract boolean testValue(Object value);
+	}
+
+
+	static class IsNull extends ValuePredicate {
+		private boolean wantNull;
+
+		IsNull(String column, boolean wantNull) {
+			super(column);
+			this.wantNull = wantNull;
+		}
+
+		@Override
+		boolean testValue(Object value) {
+			return (value == null) == this.wantNull;
+		}
+	}
+
+
+	static class LongEquals extends ValuePredicate {
+		private long expected;
+		private BigDecimal expectedDecimal;
+
+		LongEquals(String column, long expected) {
+			super(column);
+			this.expected = expected;
+			this.expectedDecimal = BigDecimal.valueOf(expected);
+		}
+
+		@Override
+		boolean testValue(Object value) {
+			return compareWithLong(value, this.expected,
+					this.expectedDecimal) == 0;
+		}
+	}
+
+
+	static class DoubleEquals extends ValuePredicate {
+		private double expected;
+
+		DoubleEquals(String column, double expected) {
+			super(column);
+			this.expected = expected;
+		}
+
+		@Override
+		boolean testValue(Object value) {
+			if (value instanceof Number) {
+				return ((Number) value).doubleValue() == this.expected;
+			}
+			return false;
+		}
+	}
+
+
+	static class StringEquals extends ValuePredicate {
+		private String expected;
+		private byte[] expectedBytes;
+		private TypedLiteral expectedTyped;
+
+		StringEquals(String column, String expected) {
+			super(column);
+			this.expected = expected;
+			this.expectedBytes = expected.getBytes(UTF8);
+			this.expectedTyped = new TypedLiteral(expected);
+		}
+
+		@Override
+		boolean testValue(Object value) {
+			if (value instanceof String) {
+				return this.expected.equals(value);
+			} else if (value instanceof byte[]) {
+				return Arrays.equals(this.expectedBytes, (byte[]) value);
+			} else if (value == null) {
+				return false;
+			}
+			return this.expectedTyped.compareWith(value) == 0;
+		}
+	}
+
+
+	static class LongIn extends ValuePredicate {
+		private long[] sorted;
+		// The same values, for exact compares with DECIMAL values.
+		private BigDecimal[] sortedDecimals;
+
+		LongIn(String column, long[] values) {
+			super(column);
+			this.sorted = values.clone();
+			Arrays.sort(this.sorted);
+			this.sortedDecimals = new BigDecimal[this.sorted.length];
+			for (int i = 0; i < this.sorted.length; ++i) {
+				this.sortedDecimals[i] = BigDecimal.valueOf(this.sorted[i]);
+			}
+		}
+
+		@Override
+		boolean testValue(Object value) {
+			if (isIntegral(value)) {
+				return Arrays.binarySearch(this.sorted,
+						((Number) value).longValue()) >= 0;
+			} else if (value instanceof BigDecimal) {
+				// compareTo() ignores the scale, so 3.00 is found as 3.
+				return Arrays.binarySearch(this.sortedDecimals, value) >= 0;
+			} else if (value instanceof BigInteger) {
+				BigInteger v = (BigInteger) value;
+				return v.bitLength() < 64 &&
+						Arrays.binarySearch(this.sorted, v.longValue()) >= 0;
+			} else if (value instanceof Number) {
+				double d = ((Number) value).doubleValue();
+				return d == (long) d &&
+						Arrays.binarySearch(this.sorted, (long) d) >= 0;
+			}
+			return false;
+		}
+	}
+
+
+	static class DoubleIn extends ValuePredicate {
+		private double[] sorted;
+
+		DoubleIn(String column, double[] values) {
+			super(column);
+			this.sorted = values.clone();
+			Arrays.sort(this.sorted);
+		}
+
+		@Override
+		boolean testValue(Object value) {
+			if (value instanceof Number) {
+				return Arrays.binarySearch(this.sorted,
+						((Number) value).doubleValue()) >= 0;
+			}
+			return false;
+		}
+	}
+
+
+	static class StringIn extends ValuePredicate {
+		private HashSet<String> values;
+		private byte[][] valuesBytes;
+		private TypedLiteral[] valuesTyped;
+
+		StringIn(String column, String[] values) {
+			super(column);
+			this.values = new HashSet<String>(Arrays.asList(values));
+			this.valuesBytes = new byte[this.values.size()][];
+			this.valuesTyped = new TypedLiteral[this.values.size()];
+			int i = 0;
+			Iterator<String> it = this.values.iterator();
+			while (it.hasNext()) {
+				String v = it.next();
+				this.valuesBytes[i] = v.getBytes(UTF8);
+				this.valuesTyped[i++] = new TypedLiteral(v);
+			}
+		}
+
+		@Override
+		boolean testValue(Object value) {
+			if (value instanceof String) {
+				return this.values.contains(value);
+			} else if (value instanceof byte[]) {
+				byte[] bytes = (byte[]) value;
+				for (byte[] candidate : this.valuesBytes) {
+					if (Arrays.equals(candidate, bytes)) {
+						return true;
+					}
+				}
+				return false;
+			} else if (value == null) {
+				return false;
+			}
+			for (TypedLiteral candidate : this.valuesTyped) {
+				if (candidate.compareWith(value) == 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+
+	static class LongRange extends ValuePredicate {
+		private long min;
+		private long max;
+		private BigDecimal minDecimal;
+		private BigDecimal maxDecimal;
+
+		LongRange(String column, long min, long max) {
+			super(column);
+			this.min = min;
+			this.max = max;
+			this.minDecimal = BigDecimal.valueOf(min);
+			this.maxDecimal = BigDecimal.valueOf(max);
+		}
+
+		@Override
+		boolean testValue(Object value) {
+			int cmp_min = compareWithLong(value, this.min, this.minDecimal);
+			if (cmp_min == TypedLiteral.UNCOMPARABLE || cmp_min < 0) {
+				return false;
+			}
+			return compareWithLong(value, this.max, this.maxDecimal) <= 0;
+		}
+	}
+
+
+	static class DoubleRange extends ValuePredicate {
+		private double min;
+		private double max;
+
+		DoubleRange(String column, double min, double max) {
+			super(column);
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		boolean testValue(Object value) {
+			if (value instanceof Number) {
+				double v = ((Number) value).doubleValue();
+				return v >= this.min && v <= this.max;
+			}
+			return false;
+		}
+	}
+
+
+	static class StringRange extends ValuePredicate {
+		private String min;		// null for no lower bound.
+		private String max;		// null for no upper bound.
+		private byte[] minBytes;
+		private byte[] maxBytes;
+		private TypedLiteral minTyped;
+		private TypedLiteral maxTyped;
+
+		StringRange(String column, String min, String max) {
+			super(column);
+			this.min = min;
+			this.max = max;
+			this.minBytes = min == null ? null : min.getBytes(UTF8);
+			this.maxBytes = max == null ? null : max.getBytes(UTF8);
+			this.minTyped = min == null ? null : new TypedLiteral(min);
+			this.maxTyped = max == null ? null : new TypedLiteral(max);
+		}
+
+		@Override
+		boolean testValue(Object value) {
+			if (value instanceof byte[]) {
+				byte[] v = (byte[]) value;
+				return (this.minBytes == null ||
+						compareBytes(v, this.minBytes) >= 0) &&
+						(this.maxBytes == null ||
+						compareBytes(v, this.maxBytes) <= 0);
+			} else if (value == null) {
+				return false;
+			} else if (value instanceof String) {
+				String v = (String) value;
+				return (this.min == null || v.compareTo(this.min) >= 0) &&
+						(this.max == null || v.compareTo(this.max) <= 0);
+			}
+			if (this.minTyped != null) {
+				int cmp = this.minTyped.compareWith(value);
+				if (cmp == TypedLiteral.UNCOMPARABLE || cmp < 0) {
+					return false;
+				}
+			}
+			if (this.maxTyped != null) {
+				int cmp = this.maxTyped.compareWith(value);
+				if (cmp == TypedLiteral.UNCOMPARABLE || cmp > 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+
+	/**
+	 * A string literal, parsed as the type of the (non-string) column
+	 * values it is compared with.  Timestamps, dates, times and numbers
+	 * arrive in the row images as those types, and comparing them with the
+	 * parsed literal doesn't format every value as a string.  A column's
+	 * values are all of one type, so the literal is only parsed again when
+	 * the type changes (e.g. the same predicate on different tables).
+	 *
+	 * Types with no parser here (rare in row images) fall back to
+	 * comparing the value's toString(), which allocates.
+	 */
+	static final class TypedLiteral {
+		static final int UNCOMPARABLE = Integer.MIN_VALUE;
+		// Stands in for a literal that doesn't parse as the type.
+		private static final Object UNPARSEABLE = new Object();
+
+		private final String text;
+		// Replaced as a whole, so racing threads see a consistent pair.
+		private volatile Parsed parsed;
+
+		private static final class Parsed {
+			final Class<?> type;
+			final Object value;	// UNPARSEABLE, or null if there is no parser.
+
+			Parsed(Class<?> type, Object value) {
+				this.type = type;
+				this.value = value;
+			}
+		}
+
+		TypedLiteral(String text) {
+			this.text = text;
+			this.parsed = null;
+		}
+
+		/**
+		 * @param value A non-null column value, not a String or byte[].
+		 * @return Negative, 0 or positive as the value is less than, equal
+		 *         to or greater than the literal, or UNCOMPARABLE if the
+		 *         literal isn't a value of the value's type.
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		int compareWith(Object value) {
+			Parsed p = this.parsed;
+			if (p == null || p.type != value.getClass()) {
+				p = new Parsed(value.getClass(), parse(value.getClass(),
+						this.text));
+				this.parsed = p;
+			}
+			if (p.value == UNPARSEABLE) {
+				return UNCOMPARABLE;
+			} else if (p.value == null) {
+				int cmp = value.toString().compareTo(this.text);
+				return (cmp == UNCOMPARABLE) ? -1 : cmp;
+			}
+			int cmp = ((Comparable) value).compareTo(p.value);
+			return (cmp == UNCOMPARABLE) ? -1 : cmp;
+		}
+
+		/**
+		 * @return The text as a value of type, UNPARSEABLE if it isn't
+		 *         one, or null if there's no parser for the type.
+		 */
+		static Object parse(Class<?> type, String text) {
+			try {
+				if (type == Timestamp.class) {
+					try {
+						return Timestamp.valueOf(text);
+					} catch (IllegalArgumentException e) {
+						// A date alone is its midnight.
+						return new Timestamp(
+								java.sql.Date.valueOf(text).getTime());
+					}
+				} else if (type == java.sql.Date.class) {
+					return java.sql.Date.valueOf(text);
+				} else if (type == Time.class) {
+					return Time.valueOf(text);
+				} else if (type == BigDecimal.class) {
+					return new BigDecimal(text);
+				} else if (type == Long.class) {
+					return Long.valueOf(text);
+				} else if (type == Integer.class) {
+					return Integer.valueOf(text);
+				} else if (type == Short.class) {
+					return Short.valueOf(text);
+				} else if (type == Byte.class) {
+					return Byte.valueOf(text);
+				} else if (type == Double.class) {
+					return Double.valueOf(text);
+				} else if (type == Float.class) {
+					return Float.valueOf(text);
+				} else if (type == BigInteger.class) {
+					return new BigInteger(text);
+				}
+			} catch (IllegalArgumentException e) {
+				// Includes NumberFormatException.
+				return UNPARSEABLE;
+			}
+			return null;
+		}
+	}
+
+
+	/**
+	 * Matches UPDATE rows where the column's value changed, optionally
+	 * from and/or to given values.  If the before image doesn't have the
+	 * column (a minimal row image), the column is assumed to have changed,
+	 * but a "from" value can't be satisfied.
+	 */
+	static class Changed extends ColumnPredicate {
+		private ValuePredicate from;
+		private ValuePredicate to;
+
+		Changed(String column, ValuePredicate from, ValuePredicate to) {
+			super(column);
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public boolean test(ORCRowView view, int row, int position) {
+			if (! view.isUpdate() || ! view.hasAfterValue(position)) {
+				return false;
+			}
+			Object after = view.getAfterValue(row, position);
+			if (view.hasBeforeValue(position)) {
+				Object before = view.getBeforeValue(row, position);
+				if (ColumnValueUtils.valuesEqual(before, after)) {
+					return false;
+				}
+				if (this.from != null && ! this.from.testValue(before)) {
+					return false;
+				}
+			} else if (this.from != null) {
+				return false;
+			}
+			return this.to == null || this.to.testValue(after);
+		}
+	}
+}
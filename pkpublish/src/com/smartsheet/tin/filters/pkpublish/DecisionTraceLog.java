@@ -0,0 +1,224 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.continuent.tungsten.replicator.dbms.DBMSData;
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.dbms.RowChangeData;
+import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.ORCRowView;
+import com.smartsheet.tin.filters.common.Pair;
+
+/**
+ * Writes the rule decisions for one in every sampleRate events to a local
+ * file, one JSON object per line: the event's OneRowChanges, which
+ * RowFilters matched which of them, and whether each TransactionFilter
+ * matched (and if not, which of its rules wasn't met).
+ *
+ * The trace is built from the match results after the fact, so events that
+ * aren't sampled cost one counter increment.  Once the file reaches
+ * rollBytes it is renamed with a ".1" suffix (replacing the previous one)
+ * and a new file is started.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class DecisionTraceLog {
+	private static Logger logger = Logger.getLogger(DecisionTraceLog.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File file;
+	private File rolledFile;
+	private long sampleRate;
+	private long rollBytes;
+	private FilterMetrics metrics;
+	private ObjectMapper mapper;
+	private final AtomicLong eventCount = new AtomicLong();
+
+	// Guarded by this.
+	private OutputStream out;
+	private long fileBytes;
+
+	/**
+	 * @param path The trace file.
+	 * @param sampleRate Trace one in this many events.
+	 * @param rollBytes Start a new file once the current one is this big.
+	 */
+	public DecisionTraceLog(String path, long sampleRate, long rollBytes,
+			FilterMetrics metrics) {
+		this.file = new File(path);
+		this.rolledFile = new File(path + ".1");
+		this.sampleRate = Math.max(1, sampleRate);
+		this.rollBytes = rollBytes;
+		this.metrics = metrics;
+		this.mapper = new ObjectMapper();
+		this.out = null;
+		this.fileBytes = 0;
+	}
+
+
+	/**
+	 * @return true if the current event should be traced.
+	 */
+	public boolean shouldSample() {
+		return (this.eventCount.incrementAndGet() % this.sampleRate == 0);
+	}
+
+
+	/**
+	 * Write the trace of an event's match results.  Errors are logged, the
+	 * trace is only a diagnostic.
+	 */
+	public void record(ReplDBMSEvent event,
+			List<TransactionMatchResultAccumulator> results) {
+		ObjectNode trace = this.mapper.createObjectNode();
+		trace.put("seqno", event.getSeqno());
+		trace.put("eventId", event.getEventId());
+		trace.put("time", System.currentTimeMillis());
+
+		// Number the OneRowChanges, so the matches can refer to them.
+		Map<OneRowChange, Integer> orc_indexes =
+				new IdentityHashMap<OneRowChange, Integer>();
+		ArrayNode orcs_jn = trace.putArray("oneRowChanges");
+		for (DBMSData edata : event.getData()) {
+			if (! (edata instanceof RowChangeData)) {
+				continue;
+			}
+			for (OneRowChange orc : ((RowChangeData) edata).getRowChanges()) {
+				ObjectNode orc_jn = orcs_jn.addObject();
+				orc_jn.put("index", orc_indexes.size());
+				orc_jn.put("schema", orc.getSchemaName());
+				orc_jn.put("table", orc.getTableName());
+				orc_jn.put("action", String.valueOf(orc.getAction()));
+				orc_jn.put("rows", ORCRowView.countRows(orc));
+				orc_indexes.put(orc, orc_indexes.size());
+			}
+		}
+
+		ArrayNode tfilters_jn = trace.putArray("transactionFilters");
+		for (TransactionMatchResultAccumulator result : results) {
+			TransactionFilter tf = result.getTransactionFilter();
+			ObjectNode tf_jn = tfilters_jn.addObject();
+			tf_jn.put("name", tf.getName());
+			tf_jn.put("filterMatchRule", matchRule(tf.mustMatchAllFilters(),
+					tf.mustMatchAnyFilters(), tf.mustMatchNoFilters()));
+			tf_jn.put("rowMatchRule", matchRule(tf.mustMatchAllRows(),
+					tf.mustMatchAnyRows(), tf.mustMatchNoRows()));
+			String reason = result.mismatchReason();
+			tf_jn.put("matched", reason == null);
+			if (reason != null) {
+				tf_jn.put("reason", reason);
+			}
+
+			ArrayNode rfilters_jn = tf_jn.putArray("rowFilters");
+			List<RowFilter> row_filters = tf.getRowFilters();
+			for (int i = 0; i < row_filters.size(); ++i) {
+				RowFilter rf = row_filters.get(i);
+				ObjectNode rf_jn = rfilters_jn.addObject();
+				rf_jn.put("index", i);
+				rf_jn.put("name", rf.getName());
+				Boolean matched = result.rowFilterMatched(rf);
+				rf_jn.put("matched", matched != null && matched);
+				ArrayNode matched_jn = rf_jn.putArray("matchedOneRowChanges");
+				for (Pair<OneRowChange, RowFilter> orc_rf :
+					result.getMatchedOrcsAndFilters()) {
+					if (orc_rf.second == rf) {
+						matched_jn.add(orc_indexes.get(orc_rf.first));
+					}
+				}
+			}
+		}
+
+		try {
+			byte[] line = (this.mapper.writeValueAsString(trace) + "\n")
+					.getBytes(UTF8);
+			this.write(line);
+			this.metrics.tracedEvent();
+		} catch (IOException e) {
+			logger.warn("Unable to write decision trace to " + this.file +
+					", error: " + e.toString());
+		}
+	}
+
+
+	private synchronized void write(byte[] line) throws IOException {
+		if (this.out != null && this.fileBytes >= this.rollBytes) {
+			this.out.close();
+			this.out = null;
+			if (this.rolledFile.exists() && ! this.rolledFile.delete()) {
+				logger.warn("Unable to remove old decision trace: " +
+						this.rolledFile);
+			}
+			if (! this.file.renameTo(this.rolledFile)) {
+				logger.warn("Unable to roll decision trace: " + this.file);
+			}
+		}
+		if (this.out == null) {
+			File dir = this.file.getAbsoluteFile().getParentFile();
+			if (dir != null && ! dir.isDirectory() && ! dir.mkdirs()) {
+				throw new IOException("Unable to create directory: " + dir);
+			}
+			this.out = new FileOutputStream(this.file, true);
+			this.fileBytes = this.file.length();
+		}
+		this.out.write(line);
+		this.out.flush();
+		this.fileBytes += line.length;
+	}
+
+
+	public synchronized void release() {
+		if (this.out != null) {
+			try {
+				this.out.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close decision trace: " +
+						e.toString());
+			}
+			this.out = null;
+		}
+	}
+
+
+	private static String matchRule(boolean all, boolean any, boolean none) {
+		if (all) {
+			return "ALL";
+		} else if (any) {
+			return "ANY";
+		} else if (none) {
+			return "NONE";
+		}
+		return "";
+	}
+}
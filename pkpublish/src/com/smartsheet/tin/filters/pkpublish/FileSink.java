@@ -0,0 +1,342 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes messages to rolling files in a local directory, for offline
+ * pipelines.  Messages are gathered into a batch buffer and written with
+ * one FileChannel write per batch.
+ *
+ * Formats:
+ *   ndjson  one {"routingKey": ..., "message": ...} object per line, with
+ *           the message as a JSON string.
+ *   binary  int routing key length, routing key, int message length,
+ *           message, all UTF-8.
+ *
+ * A new file is started once the current one reaches rollBytes.  The
+ * batch is written when it fills, when flushIntervalMillis has passed
+ * since the last write (checked when publishing), and on release().
+ * Messages count as published (see setPublishListener()) once they are
+ * in the batch.  If a write fails, the unwritten part of the batch is kept
+ * and the sink is unavailable until a later write (the next publish, or
+ * awaitAvailable()) succeeds.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class FileSink implements MessageSink {
+	private static Logger logger = Logger.getLogger(FileSink.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String FILE_PREFIX = "pkpublish-";
+
+	public enum Format {
+		NDJSON(".ndjson"), BINARY(".bin");
+
+		private String extension;
+
+		Format(String extension) {
+			this.extension = extension;
+		}
+
+		public static Format parse(String format) throws MessageSinkException {
+			for (Format f : Format.values()) {
+				if (f.name().equalsIgnoreCase(format)) {
+					return f;
+				}
+			}
+			String err = String.format("Unknown file sink format: '%s', " +
+					"valid values are: ['ndjson', 'binary']", format);
+			logger.error(err);
+			throw new MessageSinkException(err);
+		}
+	}
+
+	/**
+	 * Counters for the metrics report.
+	 */
+	public static class Stats {
+		public String sink = "file";
+		public String format;
+		public String file;
+		public long fileCount;
+		public long publishCount;
+		public long bytesWritten;
+		public long batchCount;
+	}
+
+	private File directory;
+	private Format format;
+	private long rollBytes;
+	private long flushIntervalMillis;
+	private ByteBuffer batch;
+	private JsonFactory jsonFactory;
+	private ByteArrayOutputStream scratch;
+
+	private boolean connected;
+	private volatile boolean writeFailed;
+	private FileChannel channel;
+	private File currentFile;
+	private long currentFileBytes;
+	private long lastFlushTime;
+	private long fileCount;
+	private long publishCount;
+	private long bytesWritten;
+	private long batchCount;
+	private volatile PublishListener publishListener;
+
+	public FileSink(String directory, Format format, long rollBytes,
+			int batchBytes, long flushIntervalMillis) {
+		this.directory = new File(directory);
+		this.format = format;
+		this.rollBytes = rollBytes;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.batch = ByteBuffer.allocateDirect(Math.max(4096, batchBytes));
+		this.jsonFactory = new JsonFactory();
+		this.scratch = new ByteArrayOutputStream();
+		this.connected = false;
+		this.writeFailed = false;
+		this.channel = null;
+		this.currentFile = null;
+		this.currentFileBytes = 0;
+		this.lastFlushTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized void connect() throws MessageSinkException {
+		if (! this.directory.isDirectory() && ! this.directory.mkdirs()) {
+			throw new MessageSinkException("Unable to create file sink " +
+					"directory: " + this.directory);
+		}
+		this.openNextFile();
+		this.connected = true;
+		logger.info(String.format("FileSink writing %s to %s, rolling at " +
+				"%d bytes", this.format, this.directory, this.rollBytes));
+	}
+
+	@Override
+	public synchronized void publishMessage(String routingKey, String msg)
+			throws MessageSinkException {
+		if (! this.connected) {
+			throw new MessageSinkException(".publishMessage() called before " +
+					".connect() or after .release()");
+		}
+		byte[] record;
+		try {
+			record = this.encode(routingKey, msg);
+		} catch (IOException e) {
+			throw new MessageSinkException("Unable to encode message for " +
+					"routing key: " + routingKey, e);
+		}
+		if (record.length > this.batch.remaining()) {
+			this.flushBatch();
+		}
+		if (record.length > this.batch.remaining()) {
+			// Bigger than the whole batch buffer, write it on its own.
+			this.write(ByteBuffer.wrap(record));
+		} else {
+			this.batch.put(record);
+		}
+		++this.publishCount;
+		if (System.currentTimeMillis() - this.lastFlushTime >=
+				this.flushIntervalMillis) {
+			try {
+				this.flushBatch();
+			} catch (MessageSinkException e) {
+				// The message is in the batch, it goes out with the next
+				// write that succeeds.
+			}
+		}
+	}
+
+	@Override
+	public void publishMessage(PublishMessage msg)
+			throws MessageSinkException {
+		this.publishMessage(msg.getRoutingKey(), msg.getBody());
+		PublishListener listener = this.publishListener;
+		if (listener != null) {
+			listener.published(msg);
+		}
+	}
+
+	@Override
+	public void setPublishListener(PublishListener listener) {
+		this.publishListener = listener;
+	}
+
+	private byte[] encode(String routingKey, String msg) throws IOException {
+		this.scratch.reset();
+		if (this.format == Format.NDJSON) {
+			JsonGenerator gen = this.jsonFactory.createGenerator(this.scratch);
+			gen.writeStartObject();
+			gen.writeStringField("routingKey", routingKey);
+			gen.writeStringField("message", msg);
+			gen.writeEndObject();
+			gen.close();
+			this.scratch.write('\n');
+		} else {
+			byte[] rk_bytes = routingKey.getBytes(UTF8);
+			byte[] msg_bytes = msg.getBytes(UTF8);
+			ByteBuffer lens = ByteBuffer.allocate(4);
+			this.scratch.write(lens.putInt(0, rk_bytes.length).array());
+			this.scratch.write(rk_bytes);
+			this.scratch.write(lens.putInt(0, msg_bytes.length).array());
+			this.scratch.write(msg_bytes);
+		}
+		return this.scratch.toByteArray();
+	}
+
+	private void flushBatch() throws MessageSinkException {
+		this.lastFlushTime = System.currentTimeMillis();
+		if (this.batch.position() == 0) {
+			return;
+		}
+		this.batch.flip();
+		try {
+			this.write(this.batch);
+			++this.batchCount;
+		} finally {
+			// Keep whatever wasn't written for the next try.
+			this.batch.compact();
+		}
+	}
+
+	private void write(ByteBuffer buf) throws MessageSinkException {
+		this.writeFailed = true;
+		// A failed roll leaves no file open.
+		if (this.channel == null || this.currentFileBytes >= this.rollBytes) {
+			this.openNextFile();
+		}
+		try {
+			while (buf.hasRemaining()) {
+				int n = this.channel.write(buf);
+				this.currentFileBytes += n;
+				this.bytesWritten += n;
+			}
+		} catch (IOException e) {
+			String err = "Unable to write to file sink: " + this.currentFile;
+			logger.error(err, e);
+			throw new MessageSinkException(err, e);
+		}
+		this.writeFailed = false;
+	}
+
+	private void openNextFile() throws MessageSinkException {
+		this.closeFile();
+		File f = new File(this.directory, String.format("%s%d-%06d%s",
+				FILE_PREFIX, System.currentTimeMillis(), this.fileCount,
+				this.format.extension));
+		try {
+			this.channel = FileChannel.open(f.toPath(),
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			String err = "Unable to create file sink file: " + f;
+			logger.error(err, e);
+			throw new MessageSinkException(err, e);
+		}
+		this.currentFile = f;
+		this.currentFileBytes = 0;
+		++this.fileCount;
+	}
+
+	private void closeFile() {
+		if (this.channel == null) {
+			return;
+		}
+		try {
+			this.channel.force(false);
+			this.channel.close();
+		} catch (IOException e) {
+			logger.warn("Unable to close file sink file: " + this.currentFile,
+					e);
+		}
+		this.channel = null;
+	}
+
+	/**
+	 * @return false after a failed write, until a write succeeds.
+	 */
+	@Override
+	public boolean isAvailable() {
+		return ! this.writeFailed;
+	}
+
+	/**
+	 * After a failed write, try writing the batch again, and wait out the
+	 * timeout if that fails too.
+	 */
+	@Override
+	public synchronized void awaitAvailable(long timeoutMillis)
+			throws InterruptedException {
+		if (! this.writeFailed || ! this.connected) {
+			return;
+		}
+		try {
+			if (this.batch.position() == 0) {
+				// Nothing held back, e.g. a failed oversized message, but
+				// the file may still need opening.
+				this.write(ByteBuffer.allocate(0));
+			} else {
+				this.flushBatch();
+			}
+		} catch (MessageSinkException e) {
+			if (timeoutMillis > 0) {
+				this.wait(timeoutMillis);
+			}
+		}
+	}
+
+	@Override
+	public synchronized Object getStats() {
+		Stats stats = new Stats();
+		stats.format = this.format.name().toLowerCase();
+		stats.file = (this.currentFile == null) ? null :
+			this.currentFile.getName();
+		stats.fileCount = this.fileCount;
+		stats.publishCount = this.publishCount;
+		stats.bytesWritten = this.bytesWritten;
+		stats.batchCount = this.batchCount;
+		return stats;
+	}
+
+	@Override
+	public synchronized void release() {
+		if (this.connected) {
+			try {
+				this.flushBatch();
+			} catch (MessageSinkException e) {
+				logger.warn("Unable to flush file sink on release, " +
+						this.batch.position() + " bytes lost:", e);
+			}
+		}
+		this.connected = false;
+		this.closeFile();
+	}
+}
@@ -0,0 +1,300 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An in-process stand-in for a RabbitMQ exchange, for integration tests.
+ * Messages are routed to named queues by their bindings, with the
+ * exchange type's rules:
+ *   direct  the routing key equals the binding key.
+ *   topic   the binding key is a pattern of '.' separated words, where '*'
+ *           matches one word and '#' matches zero or more.
+ *   fanout  every queue gets every message.
+ * Messages that match no binding are dropped, as RabbitMQ would, and
+ * counted.
+ *
+ * Tests find the sink by its exchange name with forName(), read the
+ * queues with poll(), and can make the "broker" fail with
+ * setAvailable(false) to exercise the spool and reconnect paths.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class LoopbackAMQPSink implements MessageSink {
+	private static Logger logger = Logger.getLogger(LoopbackAMQPSink.class);
+	private static ConcurrentHashMap<String, LoopbackAMQPSink> registry =
+			new ConcurrentHashMap<String, LoopbackAMQPSink>();
+
+	/**
+	 * Counters for the metrics report.
+	 */
+	public static class Stats {
+		public String sink = "loopback";
+		public String exchange;
+		public long publishCount;
+		public long unroutableCount;
+		public long droppedCount;
+		public long rejectedCount;
+		public Map<String, Integer> queueDepths;
+	}
+
+	private static class Binding {
+		String queue;
+		String key;
+		Pattern topicPattern;
+
+		Binding(String queue, String key) {
+			this.queue = queue;
+			this.key = key;
+			this.topicPattern = compileTopic(key);
+		}
+	}
+
+	private String exchangeName;
+	private String exchangeType;
+	private int queueCapacity;
+	private List<Binding> bindings;
+	private Map<String, LinkedBlockingQueue<String[]>> queues;
+	private volatile boolean available;
+	private long publishCount;
+	private long unroutableCount;
+	private long droppedCount;
+	private long rejectedCount;
+	private volatile PublishListener publishListener;
+
+	/**
+	 * @param exchangeName Name the sink is registered under.
+	 * @param exchangeType "direct", "topic" or "fanout".
+	 * @param bindings "queue:key" pairs, separated by ','.
+	 * @param queueCapacity Messages each queue holds before dropping.
+	 * @throws MessageSinkException if the type or bindings aren't valid.
+	 */
+	public LoopbackAMQPSink(String exchangeName, String exchangeType,
+			String bindings, int queueCapacity) throws MessageSinkException {
+		this.exchangeName = exchangeName;
+		this.exchangeType = (exchangeType == null) ? "direct" :
+			exchangeType.toLowerCase();
+		if (! this.exchangeType.equals("direct") &&
+				! this.exchangeType.equals("topic") &&
+				! this.exchangeType.equals("fanout")) {
+			String err = String.format("Unknown loopback exchange type: " +
+					"'%s', valid values are: ['direct', 'topic', 'fanout']",
+					exchangeType);
+			logger.error(err);
+			throw new MessageSinkException(err);
+		}
+		this.queueCapacity = Math.max(1, queueCapacity);
+		this.bindings = new ArrayList<Binding>();
+		this.queues = new LinkedHashMap<String, LinkedBlockingQueue<String[]>>();
+		for (String spec : bindings.split(",")) {
+			spec = spec.trim();
+			if (spec.isEmpty()) {
+				continue;
+			}
+			int colon = spec.indexOf(':');
+			if (colon <= 0) {
+				String err = "Loopback binding must be 'queue:key', got: '" +
+						spec + "'";
+				logger.error(err);
+				throw new MessageSinkException(err);
+			}
+			this.bind(spec.substring(0, colon), spec.substring(colon + 1));
+		}
+		this.available = true;
+	}
+
+	/**
+	 * @return The sink registered for the exchange, or null.
+	 */
+	public static LoopbackAMQPSink forName(String exchangeName) {
+		return registry.get(exchangeName);
+	}
+
+	/**
+	 * Bind a queue (creating it if needed) to the exchange.
+	 */
+	public synchronized void bind(String queue, String key) {
+		if (! this.queues.containsKey(queue)) {
+			this.queues.put(queue,
+					new LinkedBlockingQueue<String[]>(this.queueCapacity));
+		}
+		this.bindings.add(new Binding(queue, key));
+	}
+
+	/**
+	 * Convert an AMQP topic binding key to a regex.
+	 */
+	private static Pattern compileTopic(String key) {
+		if (key.equals("#")) {
+			return Pattern.compile(".*");
+		}
+		StringBuilder sb = new StringBuilder("^");
+		String[] words = key.split("\\.", -1);
+		for (int i = 0; i < words.length; ++i) {
+			String word = words[i];
+			if (word.equals("#")) {
+				// Zero or more words, and the '.'s that go with them.
+				sb.append(i == 0 ? "(?:[^.]*\\.)*" : "(?:\\.[^.]*)*");
+				continue;
+			}
+			// A leading '#' already ate the '.'.
+			if (i > 1 || (i == 1 && ! words[0].equals("#"))) {
+				sb.append("\\.");
+			}
+			sb.append(word.equals("*") ? "[^.]*" : Pattern.quote(word));
+		}
+		sb.append("$");
+		return Pattern.compile(sb.toString());
+	}
+
+	private boolean routes(Binding binding, String routingKey) {
+		if (this.exchangeType.equals("fanout")) {
+			return true;
+		} else if (this.exchangeType.equals("topic")) {
+			return binding.topicPattern.matcher(routingKey).matches();
+		}
+		return binding.key.equals(routingKey);
+	}
+
+	@Override
+	public void connect() {
+		registry.put(this.exchangeName, this);
+		logger.info(String.format("LoopbackAMQPSink registered exchange " +
+				"'%s' (%s) with %d queues", this.exchangeName,
+				this.exchangeType, this.queues.size()));
+	}
+
+	@Override
+	public synchronized void publishMessage(String routingKey, String msg)
+			throws MessageSinkException {
+		if (! this.available) {
+			++this.rejectedCount;
+			throw new MessageSinkException("Loopback exchange '" +
+					this.exchangeName + "' is unavailable");
+		}
+		++this.publishCount;
+		String[] delivery = new String[] { routingKey, msg };
+		boolean routed = false;
+		List<String> delivered = new ArrayList<String>();
+		for (Binding binding : this.bindings) {
+			// A queue gets one copy, however many of its bindings match.
+			if (delivered.contains(binding.queue) ||
+					! this.routes(binding, routingKey)) {
+				continue;
+			}
+			delivered.add(binding.queue);
+			routed = true;
+			if (! this.queues.get(binding.queue).offer(delivery)) {
+				++this.droppedCount;
+			}
+		}
+		if (! routed) {
+			++this.unroutableCount;
+		}
+	}
+
+	@Override
+	public void publishMessage(PublishMessage msg)
+			throws MessageSinkException {
+		this.publishMessage(msg.getRoutingKey(), msg.getBody());
+		PublishListener listener = this.publishListener;
+		if (listener != null) {
+			listener.published(msg);
+		}
+	}
+
+	@Override
+	public void setPublishListener(PublishListener listener) {
+		this.publishListener = listener;
+	}
+
+	/**
+	 * Take the next [routingKey, body] from a queue.
+	 *
+	 * @return The message, or null if none arrived within the timeout.
+	 */
+	public String[] poll(String queue, long timeoutMillis)
+			throws InterruptedException {
+		LinkedBlockingQueue<String[]> q;
+		synchronized (this) {
+			q = this.queues.get(queue);
+		}
+		if (q == null) {
+			return null;
+		}
+		return q.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Make publishing fail (false) or succeed again (true).
+	 */
+	public void setAvailable(boolean available) {
+		synchronized (this) {
+			this.available = available;
+			this.notifyAll();
+		}
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return this.available;
+	}
+
+	@Override
+	public synchronized void awaitAvailable(long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (! this.available && remaining > 0) {
+			this.wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+	}
+
+	@Override
+	public synchronized Object getStats() {
+		Stats stats = new Stats();
+		stats.exchange = this.exchangeName;
+		stats.publishCount = this.publishCount;
+		stats.unroutableCount = this.unroutableCount;
+		stats.droppedCount = this.droppedCount;
+		stats.rejectedCount = this.rejectedCount;
+		stats.queueDepths = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, LinkedBlockingQueue<String[]>> e :
+			this.queues.entrySet()) {
+			stats.queueDepths.put(e.getKey(), e.getValue().size());
+		}
+		return stats;
+	}
+
+	@Override
+	public void release() {
+		registry.remove(this.exchangeName, this);
+	}
+}
@@ -18,26 +18,68 @@
 /**
  * Wrapper around RabbitMQ.
  * Simplify publishing to the message queue.
- * Assumes a single Connection, with a single Channel, publishing to a single
- * Exchange.
+ * Publishes to a single Exchange over a pool of Channels, spread over one
+ * or more Connections.  Several threads can publish at once.
  */
 package com.smartsheet.tin.filters.pkpublish;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
+import com.rabbitmq.client.BlockedListener;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.smartsheet.tin.filters.common.FilterEvents;
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.LatencyHistogram;
+import com.smartsheet.tin.filters.common.RowMessage;
 
 /**
+ * Each message goes to the channel picked by a hash of its routing key,
+ * or, when shardByPrimaryKey is set, of its row's table and primary key.
+ * All messages with the same key use the same channel, so they stay in
+ * order, while different keys spread the load over the channels.
+ * 
+ * Each channel is locked, retried and reconnected on its own, so a
+ * failing channel doesn't hold up publishing on the others.  A channel
+ * whose Connection has died reopens the Connection for all of the
+ * channels that share it.
+ * 
+ * Failed publishes are retried after a short backoff, at most the
+ * recovery interval.  Failures feed a CircuitBreaker; once it opens,
+ * publishes fail at once (so PKPublish can spool or stop) and a background
+ * thread reconnects with exponential backoff and jitter.  While the
+ * breaker is half open, publishes wait for the probe's outcome.
+ * 
+ * When RabbitMQ blocks the connections (memory or disk alarm), the time
+ * spent blocked is recorded, and blockedPolicy says what publishing does:
+ * BLOCK waits in basicPublish() as before, BUFFER and COALESCE hold the
+ * messages in a BlockedBuffer until the alarm clears, and SPOOL makes the
+ * wrapper unavailable, so PKPublish's spool takes the messages.
+ * 
  * @author scottw
  *
  */
-public class MQPublishWrapper {
+public class MQPublishWrapper implements MessageSink {
 	private static Logger logger = Logger.getLogger(MQPublishWrapper.class);
 
-	public class MQError extends Exception {
+	public class MQError extends MessageSinkException {
 		/**
 		 * 
 		 */
@@ -48,6 +90,10 @@ public class MQPublishWrapper {
 		}
 	}
 
+	public enum BlockedPolicy {
+		BLOCK, BUFFER, COALESCE, SPOOL
+	}
+
 	public class MQConfig {
 		private ConnectionFactory mqFactory;
 		protected int recoveryInterval;
@@ -58,6 +104,15 @@ public class MQPublishWrapper {
 		protected boolean isReady;
 		protected int closeTimeout = 10;
 		protected boolean haveHost;
+		protected int channelCount;
+		protected int connectionCount;
+		protected boolean shardByPrimaryKey;
+		protected int breakerFailureThreshold;
+		protected long maxBackoff;
+		protected BlockedPolicy blockedPolicy;
+		protected long blockedBufferBytes;
+		protected boolean laneChannels;
+		protected boolean publisherConfirms;
 
 		public MQConfig() {
 			this.mqFactory = new ConnectionFactory();
@@ -66,6 +121,15 @@ public class MQPublishWrapper {
 			this.exchangeType = "direct";
 			this.exchangeIsDurable = false;
 			this.isReady = false;
+			this.channelCount = 1;
+			this.connectionCount = 1;
+			this.shardByPrimaryKey = false;
+			this.breakerFailureThreshold = 5;
+			this.maxBackoff = 30000;
+			this.blockedPolicy = BlockedPolicy.BLOCK;
+			this.blockedBufferBytes = 64L * 1024 * 1024;
+			this.laneChannels = false;
+			this.publisherConfirms = false;
 		}
 
 		public void setHost(String host) {
@@ -117,26 +181,284 @@ public class MQPublishWrapper {
 			this.retryLimit = retryLimit;
 		}
 
+		public void setChannelCount(int channelCount) {
+			this.channelCount = Math.max(1, channelCount);
+		}
+
+		public void setConnectionCount(int connectionCount) {
+			this.connectionCount = Math.max(1, connectionCount);
+		}
+
+		/**
+		 * @param breakerFailureThreshold Failed publishes in a row that
+		 *            open the circuit breaker.
+		 */
+		public void setBreakerFailureThreshold(int breakerFailureThreshold) {
+			this.breakerFailureThreshold = Math.max(1, breakerFailureThreshold);
+		}
+
+		/**
+		 * @param maxBackoff Longest wait between background reconnect
+		 *            attempts, in milliseconds.  The first wait is the
+		 *            recovery interval.
+		 */
+		public void setMaxBackoff(long maxBackoff) {
+			this.maxBackoff = maxBackoff;
+		}
+
+		/**
+		 * @param blockedPolicy "block" (the default), "buffer", "coalesce"
+		 *            or "spool".
+		 */
+		public void setBlockedPolicy(String blockedPolicy) throws MQError {
+			for (BlockedPolicy p : BlockedPolicy.values()) {
+				if (p.name().equalsIgnoreCase(blockedPolicy)) {
+					this.blockedPolicy = p;
+					return;
+				}
+			}
+			String err = String.format("Unknown blockedPolicy: '%s', valid " +
+					"values are: ['block', 'buffer', 'coalesce', 'spool']",
+					blockedPolicy);
+			logger.error(err);
+			throw new MQError(err);
+		}
+
+		/**
+		 * @param blockedBufferBytes Most message bytes BUFFER and COALESCE
+		 *            hold before pausing the publisher.
+		 */
+		public void setBlockedBufferBytes(long blockedBufferBytes) {
+			this.blockedBufferBytes = blockedBufferBytes;
+		}
+
+		/**
+		 * @param laneChannels Give transaction and metrics messages a
+		 *            channel each, apart from the data channels.
+		 */
+		public void setLaneChannels(boolean laneChannels) {
+			this.laneChannels = laneChannels;
+		}
+
+		/**
+		 * @param publisherConfirms Put the channels in confirm mode, to
+		 *            track how long the broker takes to confirm messages.
+		 */
+		public void setPublisherConfirms(boolean publisherConfirms) {
+			this.publisherConfirms = publisherConfirms;
+		}
+
+		/**
+		 * @param shardBy "routing_key" (the default) or "primary_key".
+		 */
+		public void setShardBy(String shardBy) throws MQError {
+			if (shardBy == null || shardBy.equalsIgnoreCase("routing_key")) {
+				this.shardByPrimaryKey = false;
+			} else if (shardBy.equalsIgnoreCase("primary_key")) {
+				this.shardByPrimaryKey = true;
+			} else {
+				String err = String.format("Unknown shardBy: '%s', valid " +
+						"values are: ['routing_key', 'primary_key']", shardBy);
+				logger.error(err);
+				throw new MQError(err);
+			}
+		}
+
 		public String toString() {
 			return String.format("<MQConfig host: '%s', port: %d, " +
-					"vhost: '%s', exchange: '%s', exchangeType: '%s'>",
+					"vhost: '%s', exchange: '%s', exchangeType: '%s', " +
+					"channels: %d, connections: %d>",
 					this.mqFactory.getHost(), this.mqFactory.getPort(),
 					this.mqFactory.getVirtualHost(), this.exchangeName,
-					this.exchangeType);
+					this.exchangeType, this.channelCount,
+					this.connectionCount);
 		}
 
 
 	}
 
+	/**
+	 * One channel of the pool.  Publishing and reopening the channel are
+	 * synchronized on the slot.  basicPublish() can hold that lock for as
+	 * long as the broker blocks the connection, so the stats and the
+	 * reconnect check read the fields below without it.
+	 */
+	private class ChannelSlot {
+		final int index;
+		final int connectionIndex;
+		volatile Channel channel;
+		volatile boolean ready;
+		AtomicLong publishCount = new AtomicLong(0);
+		AtomicLong failureCount = new AtomicLong(0);
+		AtomicLong reconnectCount = new AtomicLong(0);
+		// With publisherConfirms, each unconfirmed message by delivery tag.
+		// Replaced when the channel is reopened, the acks come in on the
+		// Connection's thread.
+		volatile ConcurrentSkipListMap<Long, PublishMessage> unconfirmed;
+		AtomicLong confirmedCount = new AtomicLong(0);
+		AtomicLong nackedCount = new AtomicLong(0);
+		AtomicLong orphanedCount = new AtomicLong(0);
+
+		ChannelSlot(int index, int connectionIndex) {
+			this.index = index;
+			this.connectionIndex = connectionIndex;
+			this.channel = null;
+			this.ready = false;
+		}
+	}
+
+	/**
+	 * A snapshot of the flow control counters, for the metrics report.
+	 */
+	public static class FlowControlStats {
+		public boolean blocked;
+		public long blockedCount;
+		public long blockedMillis;
+		public long shutdownCount;
+		public long bufferedCount;
+		public long coalescedCount;
+	}
+
+	/**
+	 * A snapshot of a channel's counters, for the metrics report.
+	 */
+	public static class ChannelStats {
+		public int channel;
+		public int connection;
+		public boolean ready;
+		public long publishCount;
+		public long failureCount;
+		public long reconnectCount;
+		public long confirmedCount;
+		public long nackedCount;
+		public long orphanedCount;
+		public long unconfirmedCount;
+	}
+
+	/**
+	 * Records the confirm lag of the messages the broker acks on one
+	 * channel, and fails the ones it nacks.
+	 */
+	private class SlotConfirmListener implements ConfirmListener {
+		private ChannelSlot slot;
+		private ConcurrentSkipListMap<Long, PublishMessage> unconfirmed;
+
+		SlotConfirmListener(ChannelSlot slot,
+				ConcurrentSkipListMap<Long, PublishMessage> unconfirmed) {
+			this.slot = slot;
+			this.unconfirmed = unconfirmed;
+		}
+
+		@Override
+		public void handleAck(long deliveryTag, boolean multiple) {
+			this.slot.confirmedCount.addAndGet(
+					this.confirm(deliveryTag, multiple, true));
+		}
+
+		@Override
+		public void handleNack(long deliveryTag, boolean multiple) {
+			long count = failMessages(this.pending(deliveryTag, multiple));
+			if (count == 0) {
+				return;
+			}
+			this.slot.nackedCount.addAndGet(count);
+			logger.warn("Message queue nacked " + count + " message(s) on " +
+					"channel " + this.slot.index);
+			publishFailed();
+		}
+
+		private ConcurrentNavigableMap<Long, PublishMessage> pending(
+				long deliveryTag, boolean multiple) {
+			if (multiple) {
+				return this.unconfirmed.headMap(deliveryTag, true);
+			}
+			return this.unconfirmed.subMap(deliveryTag, true, deliveryTag,
+					true);
+		}
+
+		private long confirm(long deliveryTag, boolean multiple,
+				boolean record) {
+			ConcurrentNavigableMap<Long, PublishMessage> done =
+					this.pending(deliveryTag, multiple);
+			long count = 0;
+			LatencyHistogram lag = confirmLag;
+			PublishListener listener = publishListener;
+			// Polled, so a message closeSlot() is failing isn't also acked.
+			Map.Entry<Long, PublishMessage> e;
+			while ((e = done.pollFirstEntry()) != null) {
+				PublishMessage msg = e.getValue();
+				// Only event messages, the metrics report is timestamped
+				// when it is made.
+				if (record && msg.getSeqno() >= 0) {
+					if (lag != null && msg.getEventTimestamp() > 0) {
+						lag.record(FilterMetrics.lagNanos(
+								msg.getEventTimestamp()));
+					}
+					if (listener != null) {
+						listener.published(msg);
+					}
+				}
+				++count;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Tell the publish listener the broker will never deliver these
+	 * messages, and take them out of the map.
+	 *
+	 * @return How many there were.
+	 */
+	private long failMessages(ConcurrentNavigableMap<Long, PublishMessage> lost) {
+		long count = 0;
+		PublishListener listener = this.publishListener;
+		Map.Entry<Long, PublishMessage> e;
+		while ((e = lost.pollFirstEntry()) != null) {
+			if (listener != null) {
+				listener.failed(e.getValue());
+			}
+			++count;
+		}
+		return count;
+	}
+
 	protected MQConfig config;
 
-	private Connection mqConnection;
-	private Channel mqChannel;
-	private boolean mqReady;
+	// Guarded by connectionLock.
+	private Connection[] mqConnections;
+	private Object connectionLock;
+	private ChannelSlot[] slots;
+	// Data messages use the first dataSlotCount slots, with laneChannels
+	// the TRANSACTION and METRICS lanes get the next two.
+	private int dataSlotCount;
+	private CircuitBreaker breaker;
+	private ScheduledExecutorService reconnectExecutor;
+	private AtomicBoolean reconnectScheduled;
+	private BlockedBuffer blockedBuffer;
+	private volatile LatencyHistogram confirmLag;
+	private volatile PublishListener publishListener;
+	// Set by releaseMQ(), so a failing publish doesn't reopen a Connection.
+	private volatile boolean released;
+
+	// Flow control, guarded by blockLock.
+	private Object blockLock;
+	private boolean[] blockedConnections;
+	private int blockedConnectionCount;
+	private long blockedSince;
+	private long blockedCount;
+	private long blockedMillis;
+	private long shutdownCount;
 
 
 	public MQPublishWrapper() {
 		this.config = new MQConfig();
+		this.connectionLock = new Object();
+		this.mqConnections = new Connection[0];
+		this.slots = new ChannelSlot[0];
+		this.reconnectScheduled = new AtomicBoolean(false);
+		this.blockLock = new Object();
+		this.blockedConnections = new boolean[0];
 	}
 
 	/**
@@ -147,6 +469,38 @@ public class MQPublishWrapper {
 		if (! this.config.haveHost) {
 			logger.warn("Using 'localhost' as the message queue server");
 		}
+		int connections = Math.min(this.config.connectionCount,
+				this.config.channelCount);
+		synchronized (this.connectionLock) {
+			this.mqConnections = new Connection[connections];
+		}
+		synchronized (this.blockLock) {
+			this.blockedConnections = new boolean[connections];
+		}
+		if (this.config.blockedPolicy == BlockedPolicy.BUFFER ||
+				this.config.blockedPolicy == BlockedPolicy.COALESCE) {
+			this.blockedBuffer = new BlockedBuffer(this,
+					this.config.blockedPolicy == BlockedPolicy.COALESCE,
+					this.config.blockedBufferBytes);
+		}
+		this.dataSlotCount = this.config.channelCount;
+		this.slots = new ChannelSlot[this.dataSlotCount +
+		                             (this.config.laneChannels ? 2 : 0)];
+		for (int i = 0; i < this.slots.length; ++i) {
+			this.slots[i] = new ChannelSlot(i, i % connections);
+		}
+		this.breaker = new CircuitBreaker(this.config.breakerFailureThreshold,
+				Math.max(100, this.config.recoveryInterval),
+				this.config.maxBackoff);
+		this.reconnectExecutor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "pkpublish-mq-reconnect");
+						t.setDaemon(true);
+						return t;
+					}
+				});
 		this.config.isReady = true;
 	}
 
@@ -159,7 +513,7 @@ public class MQPublishWrapper {
 	 * @param durable
 	 * @throws MQError
 	 */
-	public void connect(String exchangeName, String exchangeType,
+	public synchronized void connect(String exchangeName, String exchangeType,
 			boolean durable) throws MQError {
 		if (! this.config.isReady) {
 			logger.error("Do not prepare before config complete.");
@@ -176,7 +530,19 @@ public class MQPublishWrapper {
 			} catch (MQError e) {
 				logger.warn("Try [" + i + "] preparing message queue failed.");
 			}
+			if (i < this.config.retryLimit) {
+				try {
+					Thread.sleep(this.breaker.nextBackoffMillis());
+				} catch (InterruptedException e) {
+					logger.warn("Sleep interrupted:", e);
+					break;
+				}
+			}
 		}
+		// Keep trying in the background, in case the caller carries on
+		// (e.g. spooling) without the message queue.
+		this.breaker.trip();
+		this.scheduleReconnect();
 		throw new MQError(
 				String.format("Failed to connect to message queue: %s",
 						this.config.toString()));
@@ -186,93 +552,667 @@ public class MQPublishWrapper {
 	 * Connect using already configured exchange info.
 	 * @throws MQError
 	 */
+	@Override
 	public void connect() throws MQError {
 		this.connect(this.config.exchangeName, this.config.exchangeType,
 				this.config.exchangeIsDurable);
 	}
 
 	/**
-	 * Reconnect to a message queue, in the event of a lost connection.
+	 * Reconnect every channel that isn't ready.
 	 * This method should only be used with a configured MQPublishWrapper.
+	 * Healthy channels are skipped without taking their lock, which a
+	 * publish blocked by the broker may be holding.
 	 * 
-	 * Swallows all errors except being called before the config is ready.
-	 * @throws MQError 
+	 * @throws MQError if any channel couldn't be reconnected.
 	 */
-	public void reconnect() throws MQError {
+	public synchronized void reconnect() throws MQError {
 		if (! this.config.isReady) {
 			logger.error("Do not prepare before config complete.");
 			throw new MQError("prepareMQ() before markConfigComplete().");
 		}
-		try {
-			if (! this.mqReady) {
-				this.releaseMQ();
+		for (ChannelSlot slot : this.slots) {
+			if (! this.needsReconnect(slot)) {
+				continue;
+			}
+			synchronized (slot) {
+				if (this.needsReconnect(slot)) {
+					this.reconnectSlot(slot);
+				}
 			}
-			this.mqConnection = this.config.mqFactory.newConnection();
-			this.mqChannel = this.mqConnection.createChannel();
-			this.mqChannel.exchangeDeclare(this.config.exchangeName,
+		}
+	}
+
+	/**
+	 * @return true if the slot's channel isn't ready, or died with its
+	 *         connection.
+	 */
+	private boolean needsReconnect(ChannelSlot slot) {
+		Channel channel = slot.channel;
+		return ! slot.ready || channel == null || ! channel.isOpen();
+	}
+
+	/**
+	 * Reopen one channel (and its Connection, if that died too).
+	 * The caller must hold the slot's lock.
+	 * 
+	 * Swallows all errors, and throws MQError if the channel couldn't be
+	 * opened.  It doesn't sleep: publishOnChannel() backs off between its
+	 * tries, and the background reconnect is scheduled with a backoff.
+	 */
+	private void reconnectSlot(ChannelSlot slot) throws MQError {
+		Object jfr = FilterEvents.beginReconnect();
+		boolean connected = false;
+		this.closeSlot(slot);
+		try {
+			Connection conn = this.getConnection(slot.connectionIndex);
+			slot.channel = conn.createChannel();
+			slot.channel.exchangeDeclare(this.config.exchangeName,
 					this.config.exchangeType,
 					this.config.exchangeIsDurable);
-			this.mqReady = true;
-			logger.debug("Message queue connected: " + this.config.toString());
+			if (this.config.publisherConfirms) {
+				slot.channel.confirmSelect();
+				slot.unconfirmed =
+						new ConcurrentSkipListMap<Long, PublishMessage>();
+				slot.channel.addConfirmListener(new SlotConfirmListener(slot,
+						slot.unconfirmed));
+			}
+			slot.ready = true;
+			slot.reconnectCount.incrementAndGet();
+			connected = true;
+			logger.debug("Message queue channel " + slot.index +
+					" connected: " + this.config.toString());
 			return;
 		} catch (IOException e) {
-			logger.warn("Error connecting to message queue:", e);
+			logger.warn("Error connecting channel " + slot.index +
+					" to message queue:", e);
+		} finally {
+			FilterEvents.endReconnect(jfr, slot.index, slot.connectionIndex,
+					connected);
+		}
+		throw new MQError("Unable to connect to message queue at: " + this.config.toString());
+	}
+
+	/**
+	 * Reconnect in the background after the backoff delay, unless a
+	 * reconnect is already scheduled.  Once every channel is reconnected,
+	 * the breaker goes half open.
+	 */
+	private void scheduleReconnect() {
+		if (! this.reconnectScheduled.compareAndSet(false, true)) {
+			return;
 		}
+		long delay = this.breaker.nextBackoffMillis();
+		logger.info("Reconnecting to message queue in " + delay + "ms");
 		try {
-			// NOTE: Sleeping here results in an extra sleep.
-			// Sleeping here simplifies the callers, so it's worth it.
-			Thread.sleep(this.config.recoveryInterval);
-		} catch (InterruptedException e) {
-			logger.warn("Sleep interrupted:", e);
+			this.reconnectExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					reconnectScheduled.set(false);
+					try {
+						reconnect();
+						logger.info("Reconnected to MQ: " + config.toString());
+						breaker.reconnected();
+					} catch (MQError e) {
+						scheduleReconnect();
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Released, don't reconnect.
+			this.reconnectScheduled.set(false);
 		}
-		throw new MQError("Unable to connect to message queue at: " + this.config.toString());
 	}
 
-	public void releaseMQ() {
-		if (this.mqChannel != null) {
-			try {
-				this.mqChannel.close();
-			} catch (IOException e) {
-				logger.warn("Channel.close() failed in .releaseMQ:", e);
+	/**
+	 * A publish failed, open the breaker (and start reconnecting) if that
+	 * was one failure too many.
+	 */
+	private void publishFailed() {
+		if (this.breaker.recordFailure()) {
+			this.scheduleReconnect();
+		}
+	}
+
+	/**
+	 * @return true if the circuit breaker is closed, and, with the SPOOL
+	 *         blocked policy, the broker isn't blocking publishing.
+	 */
+	@Override
+	public boolean isAvailable() {
+		if (this.config.blockedPolicy == BlockedPolicy.SPOOL &&
+				this.isBlocked()) {
+			return false;
+		}
+		return this.getCircuitState() == CircuitBreaker.State.CLOSED;
+	}
+
+	/**
+	 * Wait until the circuit breaker isn't open, or the timeout passes.
+	 * For callers that retry publishing, so they don't spin while the
+	 * broker is down.
+	 */
+	@Override
+	public void awaitAvailable(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		if (this.breaker != null) {
+			this.breaker.awaitNotOpen(timeoutMillis);
+		}
+		if (this.config.blockedPolicy == BlockedPolicy.SPOOL) {
+			synchronized (this.blockLock) {
+				long remaining = deadline - System.currentTimeMillis();
+				while (this.blockedConnectionCount > 0 && remaining > 0) {
+					this.blockLock.wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
 			}
 		}
+	}
+
+	public CircuitBreaker.State getCircuitState() {
+		return (this.breaker == null) ? CircuitBreaker.State.CLOSED :
+			this.breaker.getState();
+	}
 
-		if (this.mqConnection != null && this.mqConnection.isOpen()) {
+	public long getCircuitTransitionCount() {
+		return (this.breaker == null) ? 0 : this.breaker.getTransitionCount();
+	}
+
+	/**
+	 * Get an open Connection, opening a new one if it was never opened or
+	 * has been closed.
+	 */
+	private Connection getConnection(int index) throws IOException {
+		if (this.released) {
+			throw new IOException("Message queue connections released");
+		}
+		synchronized (this.connectionLock) {
+			Connection conn = this.mqConnections[index];
+			if (conn == null || ! conn.isOpen()) {
+				if (conn != null) {
+					this.connectionUnblocked(index);
+				}
+				conn = this.config.mqFactory.newConnection();
+				this.addConnectionListeners(conn, index);
+				this.mqConnections[index] = conn;
+				logger.info("Opened message queue connection " + index);
+			}
+			return conn;
+		}
+	}
+
+	private void addConnectionListeners(final Connection conn,
+			final int index) {
+		conn.addBlockedListener(new BlockedListener() {
+			@Override
+			public void handleBlocked(String reason) {
+				logger.warn("Message queue connection " + index +
+						" blocked by the broker: " + reason);
+				connectionBlocked(index);
+			}
+
+			@Override
+			public void handleUnblocked() {
+				logger.info("Message queue connection " + index +
+						" unblocked");
+				connectionUnblocked(index);
+			}
+		});
+		conn.addShutdownListener(new ShutdownListener() {
+			@Override
+			public void shutdownCompleted(ShutdownSignalException cause) {
+				connectionUnblocked(index);
+				if (cause.isInitiatedByApplication()) {
+					return;
+				}
+				logger.warn("Message queue connection " + index +
+						" shut down by the broker: " + cause.getMessage());
+				synchronized (blockLock) {
+					++shutdownCount;
+				}
+				// Don't wait for publishes to fail before reconnecting.
+				if (breaker.trip()) {
+					scheduleReconnect();
+				}
+			}
+		});
+	}
+
+	/**
+	 * The broker blocked a connection.  Publishing counts as blocked while
+	 * any connection is.
+	 */
+	private void connectionBlocked(int index) {
+		boolean first = false;
+		synchronized (this.blockLock) {
+			if (this.blockedConnections[index]) {
+				return;
+			}
+			this.blockedConnections[index] = true;
+			if (this.blockedConnectionCount++ == 0) {
+				this.blockedSince = System.currentTimeMillis();
+				++this.blockedCount;
+				first = true;
+			}
+		}
+		if (first && this.blockedBuffer != null) {
+			this.blockedBuffer.blocked();
+		}
+	}
+
+	private void connectionUnblocked(int index) {
+		boolean last = false;
+		synchronized (this.blockLock) {
+			if (index >= this.blockedConnections.length ||
+					! this.blockedConnections[index]) {
+				return;
+			}
+			this.blockedConnections[index] = false;
+			if (--this.blockedConnectionCount == 0) {
+				this.blockedMillis += System.currentTimeMillis() -
+						this.blockedSince;
+				last = true;
+				this.blockLock.notifyAll();
+			}
+		}
+		if (last && this.blockedBuffer != null) {
+			this.blockedBuffer.unblocked();
+		}
+	}
+
+	/**
+	 * @return true while the broker has blocked publishing.
+	 */
+	public boolean isBlocked() {
+		synchronized (this.blockLock) {
+			return this.blockedConnectionCount > 0;
+		}
+	}
+
+	/**
+	 * @return The estimated bytes held by the blocked buffer, 0 without one.
+	 */
+	public long getBlockedBufferBytes() {
+		BlockedBuffer bb = this.blockedBuffer;
+		return (bb == null) ? 0 : bb.getRetainedBytes();
+	}
+
+	public FlowControlStats getFlowControlStats() {
+		FlowControlStats stats = new FlowControlStats();
+		synchronized (this.blockLock) {
+			stats.blocked = this.blockedConnectionCount > 0;
+			stats.blockedCount = this.blockedCount;
+			stats.blockedMillis = this.blockedMillis;
+			if (stats.blocked) {
+				stats.blockedMillis += System.currentTimeMillis() -
+						this.blockedSince;
+			}
+			stats.shutdownCount = this.shutdownCount;
+		}
+		if (this.blockedBuffer != null) {
+			stats.bufferedCount = this.blockedBuffer.getBufferedCount();
+			stats.coalescedCount = this.blockedBuffer.getCoalescedCount();
+		}
+		return stats;
+	}
+
+	private void closeSlot(ChannelSlot slot) {
+		ConcurrentSkipListMap<Long, PublishMessage> unconfirmed =
+				slot.unconfirmed;
+		slot.unconfirmed = null;
+		if (slot.channel != null) {
 			try {
-				this.mqConnection.close(this.config.closeTimeout);
+				if (slot.channel.isOpen()) {
+					slot.channel.close();
+				}
 			} catch (IOException e) {
-				logger.warn("Connection.close failed in .releaseMQ:", e);
+				logger.warn("Channel.close() failed for channel " +
+						slot.index + ":", e);
+			} catch (com.rabbitmq.client.ShutdownSignalException e) {
+				// Do nothing, it's already closed.
+			}
+			slot.channel = null;
+		}
+		slot.ready = false;
+		// Confirms for a closed channel never come, so whatever is still
+		// unconfirmed is lost.
+		if (unconfirmed != null) {
+			long count = this.failMessages(unconfirmed);
+			if (count > 0) {
+				slot.orphanedCount.addAndGet(count);
+				logger.warn(count + " message(s) on channel " + slot.index +
+						" were never confirmed before it closed");
+				this.publishFailed();
+			}
+		}
+	}
+
+	@Override
+	public void release() {
+		this.releaseMQ();
+	}
+
+	public synchronized void releaseMQ() {
+		if (this.blockedBuffer != null) {
+			this.blockedBuffer.release(this.config.closeTimeout * 1000L);
+		}
+		this.released = true;
+		if (this.reconnectExecutor != null) {
+			this.reconnectExecutor.shutdownNow();
+		}
+		// Connections first: that fails any publish the broker is
+		// blocking, so its slot's lock is free for closeSlot().
+		synchronized (this.connectionLock) {
+			for (int i = 0; i < this.mqConnections.length; ++i) {
+				Connection conn = this.mqConnections[i];
+				if (conn != null && conn.isOpen()) {
+					try {
+						conn.close(this.config.closeTimeout);
+					} catch (IOException e) {
+						logger.warn("Connection.close failed in .releaseMQ:", e);
+					}
+				}
+				this.mqConnections[i] = null;
+			}
+		}
+
+		for (ChannelSlot slot : this.slots) {
+			synchronized (slot) {
+				this.closeSlot(slot);
 			}
 		}
-		this.mqReady = false;
 	}
 
+	/**
+	 * Publish a message on the channel for its routing key.
+	 */
+	@Override
 	public void publishMessage(String routingKey, String msg) throws MQError {
-		for (int i = 0; i < this.config.retryLimit + 1; ++i) {
+		if (this.blockedBuffer != null) {
+			this.publishMessage(new PublishMessage(routingKey, msg, 0));
+			return;
+		}
+		this.publishToSlot(this.pickSlot(routingKey.hashCode()),
+				new PublishMessage(routingKey, msg, 0));
+	}
+
+	/**
+	 * Publish a message on the channel for its shard key: the row's table
+	 * and primary key with shardByPrimaryKey, otherwise the routing key.
+	 */
+	@Override
+	public void publishMessage(PublishMessage msg) throws MQError {
+		if (this.blockedBuffer != null) {
 			try {
-				if (! this.mqReady) {
-					logger.warn(".publishMessage() called before ready.");
-					this.reconnect();
+				if (this.blockedBuffer.offer(msg)) {
+					return;
 				}
-				this.mqChannel.basicPublish(this.config.exchangeName,
-						routingKey, null, msg.getBytes());
-				logger.debug(String.format(
-						"Message published to Exchange: '%s', " +
-								"routingKey: '%s' msg: '%s'",
-								this.config.exchangeName, routingKey, msg));
-				return;
-			} catch (IOException e) {
-				logger.warn("Temporary failure publishing message.", e);
+			} catch (InterruptedException e) {
+				throw new MQError("Interrupted waiting for room in the " +
+						"blocked buffer");
 			}
-			catch (com.rabbitmq.client.AlreadyClosedException e) {
-				String err = "Message queue close when publishing:" +
-						e.toString();
-				logger.error(err, e);
-				throw new MQError(err);
+		}
+		this.publishDirect(msg);
+	}
+
+	/**
+	 * Publish, skipping the blocked buffer.
+	 */
+	void publishDirect(PublishMessage msg) throws MQError {
+		long shard_key;
+		RowMessage row = msg.getRow();
+		if (this.config.shardByPrimaryKey && row != null) {
+			shard_key = 31L * (31L * row.getSchema().hashCode() +
+					row.getTable().hashCode()) + row.getKeyHash();
+		} else {
+			shard_key = msg.getRoutingKey().hashCode();
+		}
+		ChannelSlot slot;
+		if (this.slots.length > this.dataSlotCount &&
+				msg.getLane() != PublishMessage.Lane.DATA) {
+			slot = this.slots[this.dataSlotCount + msg.getLane().ordinal() - 1];
+		} else {
+			slot = this.pickSlot(shard_key);
+		}
+		this.publishToSlot(slot, msg);
+	}
+
+	private ChannelSlot pickSlot(long shard_key) {
+		ChannelSlot[] slots = this.slots;
+		int count = Math.min(this.dataSlotCount, slots.length);
+		if (count == 0) {
+			return null;
+		} else if (count == 1) {
+			return slots[0];
+		}
+		// Mix the bits, hashCode()s often differ only in the low bits.
+		long h = shard_key * 0x9E3779B97F4A7C15L;
+		int idx = (int) ((h >>> 33) % count);
+		return slots[idx];
+	}
+
+	private void publishToSlot(ChannelSlot slot, PublishMessage pmsg)
+			throws MQError {
+		if (slot == null) {
+			throw new MQError(".publishMessage() called before markConfigComplete().");
+		}
+		if (this.config.blockedPolicy == BlockedPolicy.SPOOL &&
+				this.isBlocked()) {
+			throw new MQError("Message queue is blocked by the broker, " +
+					"not publishing to: " + this.config.toString());
+		}
+		boolean allowed;
+		try {
+			allowed = this.breaker.awaitRequest(this.probeWaitMillis());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MQError("Interrupted waiting for the message queue " +
+					"circuit breaker's probe");
+		}
+		if (! allowed) {
+			throw new MQError("Message queue circuit breaker is " +
+					this.breaker.getState() + ", not publishing to: " +
+					this.config.toString());
+		}
+		// The breaker hears the outcome however the publish ends, so a
+		// half open breaker's probe is never left in flight.
+		boolean published = false;
+		try {
+			this.publishOnChannel(slot, pmsg);
+			published = true;
+		} finally {
+			if (published) {
+				this.breaker.recordSuccess();
+			} else {
+				this.publishFailed();
 			}
 		}
+		PublishListener listener = this.publishListener;
+		if (! this.config.publisherConfirms && listener != null) {
+			listener.published(pmsg);
+		}
+	}
+
+	/**
+	 * @return How long a publish waits for the half open breaker's probe:
+	 *         long enough for the probe to use all of its retries.
+	 */
+	private long probeWaitMillis() {
+		return Math.max(1000L,
+				(this.config.retryLimit + 1L) * this.config.recoveryInterval);
+	}
+
+	/**
+	 * Publish on the slot's channel, retrying (and reopening the channel)
+	 * on temporary failures.  Holds the slot's lock while backing off
+	 * between tries, so later messages for the channel stay behind this
+	 * one.
+	 */
+	private void publishOnChannel(ChannelSlot slot, PublishMessage pmsg)
+			throws MQError {
+		String routingKey = pmsg.getRoutingKey();
+		String msg = pmsg.getBody();
+		synchronized (slot) {
+			for (int i = 0; i < this.config.retryLimit + 1; ++i) {
+				ConcurrentSkipListMap<Long, PublishMessage> unconfirmed = null;
+				long tag = 0;
+				try {
+					if (! slot.ready) {
+						logger.warn(".publishMessage() called before channel " +
+								slot.index + " ready.");
+						this.reconnectSlot(slot);
+					}
+					unconfirmed = slot.unconfirmed;
+					if (unconfirmed != null) {
+						tag = slot.channel.getNextPublishSeqNo();
+						unconfirmed.put(tag, pmsg);
+					}
+					slot.channel.basicPublish(this.config.exchangeName,
+							routingKey, null, msg.getBytes());
+					slot.publishCount.incrementAndGet();
+					if (logger.isDebugEnabled()) {
+						logger.debug(String.format(
+								"Message published to Exchange: '%s', " +
+										"routingKey: '%s' channel: %d msg: '%s'",
+										this.config.exchangeName, routingKey,
+										slot.index, msg));
+					}
+					return;
+				} catch (IOException e) {
+					forget(unconfirmed, tag);
+					// Reopen the channel on the next try.
+					logger.warn("Temporary failure publishing message on " +
+							"channel " + slot.index + ".", e);
+					slot.ready = false;
+				} catch (MQError e) {
+					if (i < this.config.retryLimit) {
+						// The channel couldn't be reopened, try again.
+						logger.warn("Try [" + i + "] reopening channel " +
+								slot.index + " failed.");
+						if (this.retryPause(i)) {
+							continue;
+						}
+					}
+					slot.failureCount.incrementAndGet();
+					throw e;
+				} catch (com.rabbitmq.client.AlreadyClosedException e) {
+					forget(unconfirmed, tag);
+					slot.failureCount.incrementAndGet();
+					slot.ready = false;
+					String err = "Message queue close when publishing:" +
+							e.toString();
+					logger.error(err, e);
+					throw new MQError(err);
+				}
+				if (i < this.config.retryLimit && ! this.retryPause(i)) {
+					break;
+				}
+			}
+			slot.failureCount.incrementAndGet();
+		}
 		throw new MQError(String.format("Failed to publish message to " +
 				"Exchange: '%s', routingKey: '%s', msg: '%s'",
 				this.config.exchangeName, routingKey, msg));
 	}
+
+	/**
+	 * basicPublish() failed, so the message won't be confirmed: stop
+	 * tracking it, it is retried or reported as a failed publish.
+	 */
+	private static void forget(
+			ConcurrentSkipListMap<Long, PublishMessage> unconfirmed, long tag) {
+		if (unconfirmed != null) {
+			unconfirmed.remove(tag);
+		}
+	}
+
+	/**
+	 * Back off before a publisher's next try.
+	 *
+	 * @return false if interrupted, so the caller gives up.
+	 */
+	private boolean retryPause(int attempt) {
+		long pause = this.breaker.retryBackoffMillis(attempt,
+				this.config.recoveryInterval);
+		if (pause <= 0) {
+			return true;
+		}
+		try {
+			Thread.sleep(pause);
+			return true;
+		} catch (InterruptedException e) {
+			logger.warn("Sleep interrupted:", e);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	@Override
+	public Object getStats() {
+		return this.getChannelStats();
+	}
+
+	/**
+	 * @param confirmLag Where to record the time from a message's event
+	 *            being extracted to the broker confirming it.
+	 */
+	public void setConfirmLag(LatencyHistogram confirmLag) {
+		this.confirmLag = confirmLag;
+	}
+
+	/**
+	 * Messages count as published once basicPublish() returns, or, with
+	 * publisherConfirms, once the broker acks them.  Buffered messages
+	 * count when the blocked buffer's drain sends them.
+	 */
+	@Override
+	public void setPublishListener(PublishListener listener) {
+		this.publishListener = listener;
+	}
+
+	/**
+	 * @return true if messages handed to the wrapper haven't all been
+	 *         sent yet: the blocked buffer is holding some, or (with
+	 *         publisherConfirms) some aren't confirmed.
+	 */
+	public boolean hasPendingMessages() {
+		BlockedBuffer bb = this.blockedBuffer;
+		if (bb != null && bb.isActive()) {
+			return true;
+		}
+		for (ChannelSlot slot : this.slots) {
+			ConcurrentSkipListMap<Long, PublishMessage> unconfirmed =
+					slot.unconfirmed;
+			if (unconfirmed != null && ! unconfirmed.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return A snapshot of each channel's counters.
+	 */
+	public List<ChannelStats> getChannelStats() {
+		List<ChannelStats> stats = new ArrayList<ChannelStats>();
+		// No slot locks, a publish blocked by the broker holds its slot's.
+		for (ChannelSlot slot : this.slots) {
+			ChannelStats cs = new ChannelStats();
+			cs.channel = slot.index;
+			cs.connection = slot.connectionIndex;
+			cs.ready = slot.ready;
+			cs.publishCount = slot.publishCount.get();
+			cs.failureCount = slot.failureCount.get();
+			cs.reconnectCount = slot.reconnectCount.get();
+			cs.confirmedCount = slot.confirmedCount.get();
+			cs.nackedCount = slot.nackedCount.get();
+			cs.orphanedCount = slot.orphanedCount.get();
+			ConcurrentSkipListMap<Long, PublishMessage> unconfirmed =
+					slot.unconfirmed;
+			cs.unconfirmedCount = (unconfirmed == null) ? 0 :
+				unconfirmed.size();
+			stats.add(cs);
+		}
+		return stats;
+	}
 }
@@ -0,0 +1,151 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.smartsheet.tin.filters.common.MemoryEstimates;
+
+/**
+ * Keeps the most recent messages in a fixed size ring, overwriting the
+ * oldest.  For benchmarking the filter without a message queue: publishing
+ * costs two array stores.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class MemoryRingSink implements MessageSink {
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	/**
+	 * Counters for the metrics report.
+	 */
+	public static class Stats {
+		public String sink = "memory";
+		public int capacity;
+		public long publishCount;
+		public long publishBytes;
+	}
+
+	private String[] routingKeys;
+	private String[] bodies;
+	private int mask;
+	private long publishCount;
+	private long publishBytes;
+	// Estimated bytes of the kept messages.
+	private long retainedBytes;
+	private volatile PublishListener publishListener;
+
+	/**
+	 * @param capacity Messages kept, rounded up to a power of two.
+	 */
+	public MemoryRingSink(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.routingKeys = new String[size];
+		this.bodies = new String[size];
+		this.mask = size - 1;
+		this.publishCount = 0;
+		this.publishBytes = 0;
+		this.retainedBytes = 0;
+	}
+
+	@Override
+	public void connect() {
+	}
+
+	@Override
+	public synchronized void publishMessage(String routingKey, String msg) {
+		int idx = (int) (this.publishCount & this.mask);
+		this.retainedBytes += MemoryEstimates.string(routingKey) +
+				MemoryEstimates.string(msg) -
+				MemoryEstimates.string(this.routingKeys[idx]) -
+				MemoryEstimates.string(this.bodies[idx]);
+		this.routingKeys[idx] = routingKey;
+		this.bodies[idx] = msg;
+		++this.publishCount;
+		this.publishBytes += msg.length();
+	}
+
+	@Override
+	public void publishMessage(PublishMessage msg) {
+		this.publishMessage(msg.getRoutingKey(), msg.getBody());
+		PublishListener listener = this.publishListener;
+		if (listener != null) {
+			listener.published(msg);
+		}
+	}
+
+	@Override
+	public void setPublishListener(PublishListener listener) {
+		this.publishListener = listener;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	public void awaitAvailable(long timeoutMillis) {
+	}
+
+	/**
+	 * @return The messages still in the ring, oldest first, as
+	 *         [routingKey, body] pairs.
+	 */
+	public synchronized List<String[]> getRecentMessages() {
+		List<String[]> recent = new ArrayList<String[]>();
+		long start = Math.max(0, this.publishCount - this.bodies.length);
+		for (long i = start; i < this.publishCount; ++i) {
+			int idx = (int) (i & this.mask);
+			recent.add(new String[] { this.routingKeys[idx], this.bodies[idx] });
+		}
+		return recent;
+	}
+
+	public synchronized long getPublishCount() {
+		return this.publishCount;
+	}
+
+	/**
+	 * @return The estimated bytes the ring and its messages retain.
+	 */
+	public synchronized long getRetainedBytes() {
+		return this.retainedBytes +
+				2 * MemoryEstimates.referenceArray(this.bodies.length);
+	}
+
+	@Override
+	public synchronized Object getStats() {
+		Stats stats = new Stats();
+		stats.capacity = this.bodies.length;
+		stats.publishCount = this.publishCount;
+		stats.publishBytes = this.publishBytes;
+		return stats;
+	}
+
+	@Override
+	public synchronized void release() {
+		for (int i = 0; i < this.bodies.length; ++i) {
+			this.routingKeys[i] = null;
+			this.bodies[i] = null;
+		}
+		this.retainedBytes = 0;
+	}
+}
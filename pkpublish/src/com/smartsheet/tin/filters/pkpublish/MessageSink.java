@@ -0,0 +1,72 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+/**
+ * Where PKPublish sends its messages.  MQPublishWrapper (RabbitMQ) is the
+ * real one; MemoryRingSink, FileSink and LoopbackAMQPSink stand in for it
+ * in benchmarks, offline pipelines and integration tests.  The sink is
+ * picked with PKPublish's sinkType property.
+ *
+ * Implementations must allow several threads to publish at once.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public interface MessageSink {
+	/**
+	 * Open the sink.  Called once, from PKPublish.prepare().
+	 */
+	public void connect() throws MessageSinkException;
+
+	public void publishMessage(String routingKey, String msg)
+			throws MessageSinkException;
+
+	public void publishMessage(PublishMessage msg)
+			throws MessageSinkException;
+
+	/**
+	 * @return false while publishing is known to fail, e.g. while the
+	 *         broker is down.
+	 */
+	public boolean isAvailable();
+
+	/**
+	 * Wait until the sink is available, or the timeout passes.
+	 */
+	public void awaitAvailable(long timeoutMillis) throws InterruptedException;
+
+	/**
+	 * @return The sink's counters for the metrics report, a
+	 *         Jackson-serializable object.
+	 */
+	public Object getStats();
+
+	/**
+	 * Have the sink tell listener about each PublishMessage once it has
+	 * actually been sent (published to the broker, or confirmed with
+	 * publisher confirms), not when it is queued.  Sinks that queue pass
+	 * the listener on to the sink they send through.
+	 */
+	public void setPublishListener(PublishListener listener);
+
+	/**
+	 * Flush and close the sink.
+	 */
+	public void release();
+}
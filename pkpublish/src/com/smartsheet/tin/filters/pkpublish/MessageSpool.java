@@ -0,0 +1,757 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+/**
+ * Local write-ahead spool for messages that couldn't be published.
+ */
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.RowMessage;
+
+/**
+ * While the broker is reachable, messages are published directly.  When a
+ * publish fails, the spool takes over: that message, and every message
+ * after it, is appended to the spool until a background thread has
+ * replayed all of them to the broker, in order.  Then publishing goes back
+ * to direct.  So replication keeps going through a broker outage, as long
+ * as the spool has room.
+ *
+ * The spool is a series of fixed size, memory-mapped segment files in
+ * spoolDirectory.  Each record is:
+ *
+ *   int length    of the rest of the record, after the crc
+ *   int crc       CRC32 of the rest of the record
+ *   long seqno    of the event the message is from
+ *   long ts       extraction time of the message's event, in milliseconds
+ *   byte lane     the message's PublishMessage.Lane ordinal
+ *   byte flags    ROW_MESSAGE if the message is for a row
+ *   int rk_len    length of the routing key
+ *   byte[]        routing key, UTF-8
+ * and for row messages (so replay shards them just like direct publishes):
+ *   int, byte[]   schema, UTF-8
+ *   int, byte[]   table, UTF-8
+ *   int, byte[]   change type, UTF-8
+ *   long          primary key hash
+ * and then:
+ *   byte[]        message body, UTF-8
+ *
+ * A length of -1 marks the end of a segment's records.  The position the
+ * replay has reached (segment, offset and seqno) is written to a
+ * checkpoint file every CHECKPOINT_EVERY records and when the spool
+ * empties.  After a restart, replay resumes from the checkpoint, so
+ * messages replayed after the last checkpoint may be published twice.
+ *
+ * A record that fails its CRC can't be skipped on its own (its length
+ * can't be trusted), so the rest of its segment is quarantined: the
+ * segment file is kept as spool-N.seg.corrupt, counted in
+ * spoolCorruptSegmentCount, and replay carries on with the next segment.
+ *
+ * The spool holds at most maxSegments segments.  When it is full, the
+ * append fails and the error stops replication, as if there were no
+ * spool.
+ *
+ * fsync policy: ALWAYS forces each record to disk, INTERVAL forces at most
+ * once per fsyncIntervalMillis, NEVER leaves it to the OS (records survive
+ * a crash of the replicator, but not of the host).
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class MessageSpool {
+	private static Logger logger = Logger.getLogger(MessageSpool.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_PREFIX = "spool-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CHECKPOINT_FILE = "spool.checkpoint";
+	private static final int RECORD_HEADER_BYTES = 8;
+	private static final int END_OF_SEGMENT = -1;
+	private static final int CHECKPOINT_EVERY = 256;
+	private static final String CORRUPT_SUFFIX = ".corrupt";
+	private static final int ROW_MESSAGE = 1;
+	private static final PublishMessage.Lane[] LANES =
+			PublishMessage.Lane.values();
+
+	public enum FsyncPolicy {
+		ALWAYS, INTERVAL, NEVER;
+
+		public static FsyncPolicy parse(String policy) throws SpoolException {
+			for (FsyncPolicy p : FsyncPolicy.values()) {
+				if (p.name().equalsIgnoreCase(policy)) {
+					return p;
+				}
+			}
+			String err = String.format("Unknown spool fsync policy: '%s', " +
+					"valid values are: ['always', 'interval', 'never']",
+					policy);
+			logger.error(err);
+			throw new SpoolException(err);
+		}
+	}
+
+	private File directory;
+	private int segmentBytes;
+	private int maxSegments;
+	private FsyncPolicy fsyncPolicy;
+	private long fsyncIntervalMillis;
+	private MessageSink sink;
+	private FilterMetrics metrics;
+
+	// The write lock guards switching to spooling, appends, and the
+	// segments.  Direct publishes only read the spooling flag: switching
+	// back to direct happens under the write lock once nothing is left to
+	// replay, so no append can land after it.
+	private ReentrantReadWriteLock modeLock;
+	private volatile boolean spooling;
+	private TreeMap<Long, MappedByteBuffer> segments;
+	private long writeSegmentId;
+	private MappedByteBuffer writeBuffer;
+	private long lastForceTime;
+
+	// Owned by the replay thread.
+	private long readSegmentId;
+	private int readOffset;
+	private long lastReplayedSeqno;
+	private int sinceCheckpoint;
+
+	private Thread replayThread;
+	private volatile boolean running;
+	private Object replaySignal;
+
+	public MessageSpool(String directory, int segmentBytes, long maxBytes,
+			FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+			MessageSink sink, FilterMetrics metrics) {
+		this.directory = new File(directory);
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = (int) Math.max(1, maxBytes / segmentBytes);
+		this.fsyncPolicy = fsyncPolicy;
+		this.fsyncIntervalMillis = fsyncIntervalMillis;
+		this.sink = sink;
+		this.metrics = metrics;
+		this.modeLock = new ReentrantReadWriteLock();
+		this.spooling = false;
+		this.segments = new TreeMap<Long, MappedByteBuffer>();
+		this.writeSegmentId = 0;
+		this.writeBuffer = null;
+		this.lastForceTime = 0;
+		this.readSegmentId = 1;
+		this.readOffset = 0;
+		this.lastReplayedSeqno = -1;
+		this.sinceCheckpoint = 0;
+		this.running = false;
+		this.replaySignal = new Object();
+	}
+
+
+	/**
+	 * Recover any messages left in the spool directory, and start the
+	 * replay thread.  If messages were recovered, publishing starts out
+	 * spooled, so they go out before any new messages.
+	 *
+	 * @throws SpoolException if the directory can't be used.
+	 */
+	public void open() throws SpoolException {
+		if (! this.directory.isDirectory() && ! this.directory.mkdirs()) {
+			throw new SpoolException("Unable to create spool directory: " +
+					this.directory);
+		}
+		try {
+			this.recover();
+		} catch (IOException e) {
+			throw new SpoolException("Unable to recover spool in " +
+					this.directory, e);
+		}
+
+		this.running = true;
+		this.replayThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				replayLoop();
+			}
+		}, "pkpublish-spool-replay");
+		this.replayThread.setDaemon(true);
+		this.replayThread.start();
+		logger.info(String.format("MessageSpool opened in %s, %d segments of " +
+				"%d bytes, fsync: %s, spooling: %s", this.directory,
+				this.maxSegments, this.segmentBytes, this.fsyncPolicy,
+				this.spooling));
+	}
+
+
+	/**
+	 * Publish a message, or spool it if the broker can't take it (or
+	 * earlier messages are still spooled).
+	 *
+	 * @param msg The message.
+	 * @param seqno The seqno of the message's event.
+	 * @throws SpoolException if the message couldn't be spooled.
+	 */
+	public void publish(PublishMessage msg, long seqno) throws SpoolException {
+		msg.setSeqno(seqno);
+		// No lock is held while publishing, the broker may be slow.
+		if (! this.spooling) {
+			try {
+				this.sink.publishMessage(msg);
+				return;
+			} catch (MessageSinkException e) {
+				logger.warn("Publish failed, spooling messages: " +
+						e.getMessage());
+			}
+		}
+
+		this.modeLock.writeLock().lock();
+		try {
+			if (! this.spooling) {
+				this.spooling = true;
+				this.metrics.spoolActivated();
+			}
+			this.append(seqno, msg);
+		} finally {
+			this.modeLock.writeLock().unlock();
+		}
+		synchronized (this.replaySignal) {
+			this.replaySignal.notifyAll();
+		}
+	}
+
+
+	/**
+	 * @return The bytes of segment files mapped into memory (outside the
+	 *         heap, in the page cache).
+	 */
+	public long getMappedBytes() {
+		this.modeLock.readLock().lock();
+		try {
+			long size = 0;
+			for (MappedByteBuffer buf : this.segments.values()) {
+				size += buf.capacity();
+			}
+			return size;
+		} finally {
+			this.modeLock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @return true if messages are being spooled rather than published.
+	 */
+	public boolean isSpooling() {
+		return this.spooling;
+	}
+
+
+	/**
+	 * Append a record.  The caller must hold the write lock.
+	 */
+	private void append(long seqno, PublishMessage msg)
+			throws SpoolException {
+		RowMessage row = msg.getRow();
+		byte[] rk_bytes = msg.getRoutingKey().getBytes(UTF8);
+		byte[] body_bytes = msg.getBody().getBytes(UTF8);
+		byte[] schema_bytes = null;
+		byte[] table_bytes = null;
+		byte[] change_bytes = null;
+		int payload_len = 8 + 8 + 1 + 1 + 4 + rk_bytes.length +
+				body_bytes.length;
+		if (row != null) {
+			schema_bytes = row.getSchema().getBytes(UTF8);
+			table_bytes = row.getTable().getBytes(UTF8);
+			change_bytes = String.valueOf(row.getChangeType()).getBytes(UTF8);
+			payload_len += 4 + schema_bytes.length + 4 + table_bytes.length +
+					4 + change_bytes.length + 8;
+		}
+		int record_len = RECORD_HEADER_BYTES + payload_len;
+		// Always leave room for an end of segment marker.
+		if (record_len + 4 > this.segmentBytes) {
+			throw new SpoolException(String.format("Message of %d bytes is " +
+					"too large for spool segments of %d bytes", record_len,
+					this.segmentBytes));
+		}
+		if (this.writeBuffer == null ||
+				this.writeBuffer.remaining() < record_len + 4) {
+			this.rollSegment();
+		}
+
+		ByteBuffer payload = ByteBuffer.allocate(payload_len);
+		payload.putLong(seqno);
+		payload.putLong(msg.getEventTimestamp());
+		payload.put((byte) msg.getLane().ordinal());
+		payload.put((byte) (row != null ? ROW_MESSAGE : 0));
+		putBytes(payload, rk_bytes);
+		if (row != null) {
+			putBytes(payload, schema_bytes);
+			putBytes(payload, table_bytes);
+			putBytes(payload, change_bytes);
+			payload.putLong(row.getKeyHash());
+		}
+		payload.put(body_bytes);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, payload_len);
+
+		this.writeBuffer.putInt(payload_len);
+		this.writeBuffer.putInt((int) crc.getValue());
+		this.writeBuffer.put(payload.array());
+		this.metrics.spooledMessage();
+
+		long now = System.currentTimeMillis();
+		if (this.fsyncPolicy == FsyncPolicy.ALWAYS ||
+				(this.fsyncPolicy == FsyncPolicy.INTERVAL &&
+				now - this.lastForceTime >= this.fsyncIntervalMillis)) {
+			this.writeBuffer.force();
+			this.lastForceTime = now;
+		}
+	}
+
+
+	private static void putBytes(ByteBuffer buf, byte[] bytes) {
+		buf.putInt(bytes.length);
+		buf.put(bytes);
+	}
+
+
+	private static String getString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+
+	/**
+	 * Rebuild a message from the rest of a record.
+	 */
+	private static PublishMessage readMessage(ByteBuffer view, int end) {
+		long event_ts = view.getLong();
+		PublishMessage.Lane lane = LANES[view.get()];
+		int flags = view.get();
+		String routing_key = getString(view);
+		RowMessage row = null;
+		String schema = null;
+		String table = null;
+		String change_type = null;
+		long key_hash = 0;
+		if ((flags & ROW_MESSAGE) != 0) {
+			schema = getString(view);
+			table = getString(view);
+			change_type = getString(view);
+			key_hash = view.getLong();
+		}
+		byte[] body_bytes = new byte[end - view.position()];
+		view.get(body_bytes);
+		String body = new String(body_bytes, UTF8);
+		if (schema != null) {
+			// The key values aren't kept, so replayed rows aren't coalesced.
+			row = new RowMessage(body, schema, table, change_type, key_hash,
+					null, event_ts);
+			return new PublishMessage(routing_key, row);
+		}
+		return new PublishMessage(routing_key, body, event_ts, lane);
+	}
+
+
+	/**
+	 * Close off the current segment and start a new one.  The caller must
+	 * hold the write lock.
+	 */
+	private void rollSegment() throws SpoolException {
+		if (this.writeBuffer != null) {
+			if (this.writeBuffer.remaining() >= 4) {
+				this.writeBuffer.putInt(END_OF_SEGMENT);
+			}
+			this.writeBuffer.force();
+		}
+		if (this.segments.size() >= this.maxSegments) {
+			throw new SpoolException(String.format("Spool in %s is full " +
+					"(%d segments)", this.directory, this.segments.size()));
+		}
+		long id = this.writeSegmentId + 1;
+		try {
+			this.writeBuffer = this.mapSegment(id, this.segmentBytes);
+		} catch (IOException e) {
+			throw new SpoolException("Unable to create spool segment " + id,
+					e);
+		}
+		this.writeSegmentId = id;
+		this.segments.put(id, this.writeBuffer);
+	}
+
+
+	private File segmentFile(long id) {
+		return new File(this.directory,
+				String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+
+	private MappedByteBuffer mapSegment(long id, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(this.segmentFile(id), "rw");
+		try {
+			FileChannel fc = raf.getChannel();
+			// The mapping stays valid after the channel is closed.
+			return fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	private void deleteSegment(long id) {
+		this.segments.remove(id);
+		// NOTE: The file's pages stay mapped until the buffer is collected.
+		if (! this.segmentFile(id).delete()) {
+			logger.warn("Unable to delete spool segment " + id);
+		}
+	}
+
+
+	/**
+	 * Rebuild the spool's state from the segment files and checkpoint.
+	 */
+	private void recover() throws IOException {
+		long ckpt_segment = 0;
+		int ckpt_offset = 0;
+		File ckpt_file = new File(this.directory, CHECKPOINT_FILE);
+		if (ckpt_file.exists()) {
+			String[] parts = new String(Files.readAllBytes(ckpt_file.toPath()),
+					UTF8).trim().split("\\s+");
+			if (parts.length == 3) {
+				ckpt_segment = Long.parseLong(parts[0]);
+				ckpt_offset = Integer.parseInt(parts[1]);
+				this.lastReplayedSeqno = Long.parseLong(parts[2]);
+			} else {
+				logger.warn("Ignoring malformed spool checkpoint file");
+			}
+		}
+
+		File[] files = this.directory.listFiles();
+		for (File f : files == null ? new File[0] : files) {
+			String name = f.getName();
+			if (! name.startsWith(SEGMENT_PREFIX) ||
+					! name.endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+			if (id < ckpt_segment) {
+				// Already replayed.
+				f.delete();
+				continue;
+			}
+			this.segments.put(id, this.mapSegment(id, f.length()));
+		}
+
+		if (this.segments.isEmpty()) {
+			this.writeSegmentId = Math.max(0, ckpt_segment - 1);
+			this.readSegmentId = this.writeSegmentId + 1;
+			this.readOffset = 0;
+			return;
+		}
+
+		this.readSegmentId = this.segments.firstKey();
+		this.readOffset = (this.readSegmentId == ckpt_segment) ? ckpt_offset : 0;
+		this.writeSegmentId = this.segments.lastKey();
+		this.writeBuffer = this.segments.get(this.writeSegmentId);
+		int start = (this.readSegmentId == this.writeSegmentId) ?
+				this.readOffset : 0;
+		this.writeBuffer.position(findEndOfRecords(this.writeBuffer, start));
+
+		this.spooling = ! (this.readSegmentId == this.writeSegmentId &&
+				this.readOffset == this.writeBuffer.position());
+		if (this.spooling) {
+			logger.info(String.format("Recovered spooled messages after seqno " +
+					"%d, replaying them before new messages",
+					this.lastReplayedSeqno));
+		}
+	}
+
+
+	/**
+	 * @return The offset just past the last intact record in buf.
+	 */
+	private static int findEndOfRecords(ByteBuffer buf, int start) {
+		ByteBuffer view = buf.duplicate();
+		view.position(start);
+		while (view.remaining() >= RECORD_HEADER_BYTES) {
+			int pos = view.position();
+			int len = view.getInt();
+			int crc = view.getInt();
+			if (len <= 0 || len > view.remaining() ||
+					crcOf(view, view.position(), len) != crc) {
+				return pos;
+			}
+			view.position(view.position() + len);
+		}
+		return view.position();
+	}
+
+
+	private static int crcOf(ByteBuffer buf, int offset, int len) {
+		byte[] bytes = new byte[len];
+		ByteBuffer view = buf.duplicate();
+		view.position(offset);
+		view.get(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, len);
+		return (int) crc.getValue();
+	}
+
+
+	private void replayLoop() {
+		while (this.running) {
+			try {
+				if (! this.spooling) {
+					synchronized (this.replaySignal) {
+						this.replaySignal.wait(1000);
+					}
+					continue;
+				}
+				this.replayNext();
+			} catch (InterruptedException e) {
+				break;
+			} catch (Throwable e) {
+				logger.error("Spool replay error:", e);
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Replay one record, move to the next segment, or, if the replay has
+	 * caught up, switch back to direct publishing.
+	 */
+	private void replayNext() throws InterruptedException, SpoolException {
+		MappedByteBuffer buf;
+		boolean in_write_segment;
+		int write_offset;
+		this.modeLock.writeLock().lock();
+		try {
+			in_write_segment = (this.readSegmentId == this.writeSegmentId);
+			write_offset = (this.writeBuffer == null) ? 0 :
+				this.writeBuffer.position();
+			if (this.writeBuffer == null || (in_write_segment &&
+					this.readOffset >= write_offset)) {
+				this.caughtUp();
+				return;
+			}
+			buf = this.segments.get(this.readSegmentId);
+			if (buf == null) {
+				// Shouldn't happen, skip ahead to the oldest segment.
+				logger.error("Spool segment " + this.readSegmentId +
+						" missing, skipping ahead");
+				this.readSegmentId = this.segments.ceilingKey(
+						this.readSegmentId);
+				this.readOffset = 0;
+				return;
+			}
+		} finally {
+			this.modeLock.writeLock().unlock();
+		}
+
+		ByteBuffer view = buf.duplicate();
+		view.position(this.readOffset);
+		int len = view.remaining() >= RECORD_HEADER_BYTES ? view.getInt() : 0;
+		if (! in_write_segment &&
+				(len == END_OF_SEGMENT || len == 0)) {
+			this.nextSegment();
+			return;
+		}
+		int crc = view.getInt();
+		int payload_start = view.position();
+		if (len <= 0 || len > view.remaining() ||
+				crcOf(view, payload_start, len) != crc) {
+			this.quarantineSegment();
+			return;
+		}
+		long seqno = view.getLong();
+		PublishMessage msg = readMessage(view, payload_start + len);
+		msg.setSeqno(seqno);
+		while (this.running) {
+			try {
+				this.sink.publishMessage(msg);
+				break;
+			} catch (MessageSinkException e) {
+				// Publishing fails fast while the broker is down, so wait
+				// for the sink to come back.
+				logger.debug("Spool replay publish failed: " + e.getMessage());
+				this.sink.awaitAvailable(1000);
+			}
+		}
+		if (! this.running) {
+			return;
+		}
+
+		this.readOffset = view.position();
+		this.lastReplayedSeqno = seqno;
+		this.metrics.replayedMessage();
+		if (++this.sinceCheckpoint >= CHECKPOINT_EVERY) {
+			this.writeCheckpoint();
+		}
+	}
+
+
+	/**
+	 * The record at the read offset is corrupt.  Keep a copy of its
+	 * segment for inspection, and carry on with the next segment.  If it
+	 * is the segment being written, appends move on to a new segment.
+	 */
+	private void quarantineSegment() {
+		this.modeLock.writeLock().lock();
+		try {
+			long id = this.readSegmentId;
+			logger.error(String.format("Corrupt spool record in segment %d " +
+					"at offset %d, quarantining the rest of the segment",
+					id, this.readOffset));
+			this.metrics.spoolCorruptSegment();
+			File quarantine = new File(this.directory,
+					this.segmentFile(id).getName() + CORRUPT_SUFFIX);
+			try {
+				Files.copy(this.segmentFile(id).toPath(), quarantine.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				logger.error("Unable to quarantine spool segment " + id, e);
+			}
+			if (id == this.writeSegmentId) {
+				// Nothing after it to replay, the next replayNext() will
+				// find the spool caught up.
+				this.writeBuffer = null;
+				this.readSegmentId = id + 1;
+				this.readOffset = 0;
+				this.writeCheckpoint();
+				this.deleteSegment(id);
+			} else {
+				this.nextSegment();
+			}
+		} finally {
+			this.modeLock.writeLock().unlock();
+		}
+	}
+
+
+	private void nextSegment() {
+		this.modeLock.writeLock().lock();
+		try {
+			long done = this.readSegmentId;
+			Long next = this.segments.higherKey(done);
+			this.readSegmentId = (next == null) ? done + 1 : next;
+			this.readOffset = 0;
+			this.writeCheckpoint();
+			this.deleteSegment(done);
+		} finally {
+			this.modeLock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Everything spooled has been published.  The caller must hold the
+	 * write lock, so no appends can sneak in before the switch back to
+	 * direct publishing.
+	 */
+	private void caughtUp() {
+		for (Long id : this.segments.keySet().toArray(new Long[0])) {
+			this.deleteSegment(id);
+		}
+		this.writeBuffer = null;
+		this.readSegmentId = this.writeSegmentId + 1;
+		this.readOffset = 0;
+		this.spooling = false;
+		this.writeCheckpoint();
+		logger.info("Spool drained through seqno " + this.lastReplayedSeqno +
+				", publishing directly again");
+	}
+
+
+	private void writeCheckpoint() {
+		this.sinceCheckpoint = 0;
+		File tmp = new File(this.directory, CHECKPOINT_FILE + ".tmp");
+		String line = String.format("%d %d %d\n", this.readSegmentId,
+				this.readOffset, this.lastReplayedSeqno);
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(line.getBytes(UTF8));
+				if (this.fsyncPolicy != FsyncPolicy.NEVER) {
+					out.getFD().sync();
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(),
+					new File(this.directory, CHECKPOINT_FILE).toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Unable to write spool checkpoint:", e);
+		}
+	}
+
+
+	/**
+	 * @return The seqno of the last message replayed from the spool.
+	 */
+	public long getLastReplayedSeqno() {
+		return this.lastReplayedSeqno;
+	}
+
+
+	/**
+	 * Stop the replay thread and flush the spool.  Anything not yet
+	 * replayed is left on disk for the next open().
+	 */
+	public void close() {
+		this.running = false;
+		if (this.replayThread != null) {
+			this.replayThread.interrupt();
+			try {
+				this.replayThread.join(10000);
+			} catch (InterruptedException e) {
+				logger.warn("Interrupted waiting for spool replay to stop");
+			}
+			this.replayThread = null;
+		}
+		this.modeLock.writeLock().lock();
+		try {
+			for (Map.Entry<Long, MappedByteBuffer> e : this.segments.entrySet()) {
+				e.getValue().force();
+			}
+			this.writeCheckpoint();
+		} finally {
+			this.modeLock.writeLock().unlock();
+		}
+		logger.info("MessageSpool closed, spooling: " + this.spooling);
+	}
+}
@@ -0,0 +1,118 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the filter's metrics in Prometheus text format on
+ * http://localhost:<port>/metrics.
+ *
+ * Scrapes get the text FilterMetrics rendered with its last report, so a
+ * scrape only reads a volatile field and never waits on the replicator
+ * or the reporter.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class MetricsHttpServer {
+	private static Logger logger = Logger.getLogger(MetricsHttpServer.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CONTENT_TYPE =
+			"text/plain; version=0.0.4; charset=utf-8";
+
+	private FilterMetrics metrics;
+	private int port;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public MetricsHttpServer(FilterMetrics metrics, int port) {
+		this.metrics = metrics;
+		this.port = port;
+	}
+
+	/**
+	 * Bind to the loopback address and start serving.
+	 */
+	public void start() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), this.port), 0);
+		this.server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pkpublish-metrics-http");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.server.setExecutor(this.executor);
+		this.server.start();
+		logger.info("Serving metrics on http://" +
+				this.server.getAddress().getHostString() + ":" +
+				this.server.getAddress().getPort() + "/metrics");
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		try {
+			if (! "GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			String text = this.metrics.getPrometheusSnapshot();
+			byte[] body = (text == null ? "" : text).getBytes(UTF8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	public void stop() {
+		if (this.server != null) {
+			this.server.stop(0);
+			this.server = null;
+		}
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+			this.executor = null;
+		}
+	}
+}
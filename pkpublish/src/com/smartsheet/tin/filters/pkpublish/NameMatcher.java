@@ -0,0 +1,161 @@
+/**
+ * Copyright 2014-2015 Smartsheet.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+/**
+ * Match schema or table names against a compiled set of names and patterns.
+ */
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Logger;
+
+import static com.smartsheet.tin.filters.common.StringUtils.joinList;
+
+/**
+ * Each name spec is one of:
+ *
+ *   "*"               matches any name
+ *   "/regex/"         an anchored regular expression
+ *   "tenant_*"        a glob, '*' and '?' are wild cards
+ *   "videostore"      an exact name
+ *
+ * All comparisons ignore case.  Exact names go into a hash set.  Globs and
+ * regexes are combined into a single alternation Pattern, so a name is
+ * checked against all of them in one pass.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class NameMatcher {
+	private static Logger logger = Logger.getLogger(NameMatcher.class);
+	private List<String> specs;
+	private boolean matchAny;
+	private HashSet<String> exactNames;
+	private Pattern combinedPattern;
+
+	public NameMatcher() {
+		this.specs = new ArrayList<String>();
+		this.matchAny = false;
+		this.exactNames = new HashSet<String>();
+		this.combinedPattern = null;
+	}
+
+
+	/**
+	 * Compile a list of name specs.
+	 *
+	 * @param specs The specs, see the class comment.
+	 * @return The compiled matcher.
+	 * @throws RowPatternException if a regex is invalid.
+	 */
+	public static NameMatcher compile(List<String> specs)
+			throws RowPatternException {
+		NameMatcher nm = new NameMatcher();
+		List<String> alternatives = new ArrayList<String>();
+		for (String spec : specs) {
+			nm.specs.add(spec);
+			if (spec.equals("*")) {
+				nm.matchAny = true;
+			} else if (spec.length() > 1 && spec.startsWith("/") &&
+					spec.endsWith("/")) {
+				alternatives.add(spec.substring(1, spec.length() - 1));
+			} else if (isGlob(spec)) {
+				alternatives.add(globToRegex(spec));
+			} else {
+				nm.exactNames.add(spec.toLowerCase());
+			}
+		}
+
+		if (! alternatives.isEmpty()) {
+			StringBuilder sb = new StringBuilder();
+			for (String alt : alternatives) {
+				if (sb.length() > 0) {
+					sb.append('|');
+				}
+				sb.append("(?:").append(alt).append(')');
+			}
+			try {
+				nm.combinedPattern = Pattern.compile(sb.toString(),
+						Pattern.CASE_INSENSITIVE);
+			} catch (PatternSyntaxException e) {
+				String err = String.format("Invalid name pattern in %s: %s",
+						specs, e.getMessage());
+				logger.error(err);
+				throw new RowPatternException(err);
+			}
+		}
+		return nm;
+	}
+
+
+	private static boolean isGlob(String spec) {
+		return (spec.indexOf('*') >= 0 || spec.indexOf('?') >= 0);
+	}
+
+
+	private static String globToRegex(String glob) {
+		StringBuilder sb = new StringBuilder();
+		int literal_start = 0;
+		for (int i = 0; i < glob.length(); ++i) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (i > literal_start) {
+					sb.append(Pattern.quote(glob.substring(literal_start, i)));
+				}
+				sb.append(c == '*' ? ".*" : ".");
+				literal_start = i + 1;
+			}
+		}
+		if (literal_start < glob.length()) {
+			sb.append(Pattern.quote(glob.substring(literal_start)));
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * @param name The schema or table name.
+	 * @return true if name matches any of the specs.
+	 */
+	public boolean matches(String name) {
+		if (this.matchAny) {
+			return true;
+		}
+		if (name == null) {
+			return false;
+		}
+		if (this.exactNames.contains(name.toLowerCase())) {
+			return true;
+		}
+		return (this.combinedPattern != null &&
+				this.combinedPattern.matcher(name).matches());
+	}
+
+
+	public boolean matchesAny() {
+		return this.matchAny;
+	}
+
+
+	public String toString() {
+		return joinList(this.specs, ",");
+	}
+}
@@ -26,7 +26,13 @@ package com.smartsheet.tin.filters.pkpublish;
 import java.io.IOException;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -38,10 +44,12 @@ import com.continuent.tungsten.replicator.event.DBMSEmptyEvent;
 import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
 import com.continuent.tungsten.replicator.filter.Filter;
 import com.continuent.tungsten.replicator.plugin.PluginContext;
+import com.smartsheet.tin.filters.common.FilterEvents;
 import com.smartsheet.tin.filters.common.FilterMetrics;
 import com.smartsheet.tin.filters.common.JsonFilterException;
 import com.smartsheet.tin.filters.common.ORCFormatter;
-import com.smartsheet.tin.filters.common.Pair;
+import com.smartsheet.tin.filters.common.ParallelRowExecutor;
+import com.smartsheet.tin.filters.common.RowMessage;
 import com.smartsheet.tin.filters.common.TableKeyTracker;
 import com.smartsheet.tin.filters.common.TableKeyTrackerException;
 import com.smartsheet.tin.filters.pkpublish.MQPublishWrapper.MQError;
@@ -59,6 +67,17 @@ public class PKPublish implements Filter {
 	private static Logger logger = Logger.getLogger(PKPublish.class);
 	private FilterMetrics metrics = new FilterMetrics();
 	private String metricsRoutingKey = "pkpublish.stats";
+	private String metricsName = "pkpublish";
+	private int metricsTopK = 0;
+	private int metricsDistinctKeysMaxTables = 0;
+	private int metricsHttpPort = 0;
+	private MetricsHttpServer metricsHttpServer;
+	private long slowEventThresholdMs = 0;
+	private SlowEventLog slowEvents;
+	private long decisionTraceSampleRate = 0;
+	private String decisionTraceFile;
+	private long decisionTraceRollBytes = 64L * 1024 * 1024;
+	private DecisionTraceLog decisionTrace;
 	private PKPublishFilterRules rules;
 	private String ruleFile;
 	private long nextRuleFileLoadCheckTime;
@@ -69,8 +88,44 @@ public class PKPublish implements Filter {
 	private String dbPassword;
 
 	private Integer statusMessageInterval;
+	private int statusMessageMinInterval = 1;
+	private long statusMessageErrorBurst = 100;
+	private ScheduledExecutorService reporter;
+	private int transactionMessageMaxRows;
+	private int transactionMessageMaxBytes;
+	private int formatCacheMaxRows;
+	private int parallelRowThreshold;
+	private int parallelism;
+	private ParallelRowExecutor parallelExecutor;
+	private int pipelineLanes;
+	private String pipelinePartitionBy;
+	private int pipelineMaxInFlight;
+	private PublishPipeline pipeline;
+	private String spoolDirectory;
+	private int spoolSegmentBytes = 64 * 1024 * 1024;
+	private long spoolMaxBytes = 1024L * 1024 * 1024;
+	private String spoolFsyncPolicy = "interval";
+	private long spoolFsyncIntervalMs = 1000;
+	private MessageSpool spool;
+	private long coalesceWindowMs;
+	private int coalesceWindowEvents;
+	private int coalesceMaxKeys = 65536;
+	private ChangeCoalescer coalescer;
 
 	private MQPublishWrapper mq;
+	private MessageSink sink;
+	private String sinkType = "rabbitmq";
+	private int sinkMemoryCapacity = MemoryRingSink.DEFAULT_CAPACITY;
+	private String sinkFileDirectory;
+	private String sinkFileFormat = "ndjson";
+	private long sinkFileRollBytes = 256L * 1024 * 1024;
+	private int sinkFileBatchBytes = 1024 * 1024;
+	private long sinkFileFlushIntervalMs = 1000;
+	private String sinkLoopbackBindings = "all:#";
+	private boolean priorityLanes;
+	private int priorityQueueCapacity = 10000;
+	private String priorityWeights = "1,4,16";
+	private int sinkLoopbackQueueCapacity = 65536;
 
 	private TableKeyTracker tableKeyTracker;
 	private ORCFormatter orcFormatter;
@@ -79,6 +134,16 @@ public class PKPublish implements Filter {
 		this.mq = new MQPublishWrapper();
 		this.ruleFileCheckInterval = 30;
 		this.statusMessageInterval = 5;
+		this.transactionMessageMaxRows = 0;
+		this.transactionMessageMaxBytes = 0;
+		this.formatCacheMaxRows = ORCFormatter.DEFAULT_FORMAT_CACHE_MAX_ROWS;
+		this.parallelRowThreshold = 0;
+		this.parallelism = 0;
+		this.parallelExecutor = null;
+		this.pipelineLanes = 0;
+		this.pipelinePartitionBy = "shard";
+		this.pipelineMaxInFlight = 0;
+		this.pipeline = null;
 		this.rules = new PKPublishFilterRules();
 		this.orcFormatter = null;
 		this.tableKeyTracker = null;
@@ -159,10 +224,463 @@ public class PKPublish implements Filter {
 		this.mq.config.retryLimit = messageQueueConnectRetryLimit;
 	}
 
+	/**
+	 * @param messageQueueChannelCount
+	 *            Number of channels to publish on, default 1.
+	 */
+	public void setMessageQueueChannelCount(int messageQueueChannelCount) {
+		this.mq.config.setChannelCount(messageQueueChannelCount);
+	}
+
+	/**
+	 * @param messageQueueConnectionCount
+	 *            Number of connections the channels are spread over,
+	 *            default 1.
+	 */
+	public void setMessageQueueConnectionCount(
+			int messageQueueConnectionCount) {
+		this.mq.config.setConnectionCount(messageQueueConnectionCount);
+	}
+
+	/**
+	 * @param messageQueueShardBy
+	 *            "routing_key" (the default) or "primary_key", what picks the
+	 *            channel a message is published on.
+	 */
+	public void setMessageQueueShardBy(String messageQueueShardBy)
+			throws ReplicatorException {
+		try {
+			this.mq.config.setShardBy(messageQueueShardBy);
+		} catch (MQError e) {
+			throw new ReplicatorException(e.getMessage());
+		}
+	}
+
+	/**
+	 * @param messageQueueBreakerFailureThreshold
+	 *            Failed publishes in a row that open the circuit breaker,
+	 *            default 5.  While it is open, publishes fail (or spool) at
+	 *            once while reconnecting happens in the background.
+	 */
+	public void setMessageQueueBreakerFailureThreshold(
+			int messageQueueBreakerFailureThreshold) {
+		this.mq.config.setBreakerFailureThreshold(
+				messageQueueBreakerFailureThreshold);
+	}
+
+	/**
+	 * @param messageQueueMaxBackoff
+	 *            Longest wait between background reconnect attempts, in
+	 *            milliseconds, default 30000.
+	 */
+	public void setMessageQueueMaxBackoff(long messageQueueMaxBackoff) {
+		this.mq.config.setMaxBackoff(messageQueueMaxBackoff);
+	}
+
+	/**
+	 * @param messageQueuePublisherConfirms
+	 *            true to have the broker confirm each message, and report
+	 *            the lag to the confirm, default false.
+	 */
+	public void setMessageQueuePublisherConfirms(
+			boolean messageQueuePublisherConfirms) {
+		this.mq.config.setPublisherConfirms(messageQueuePublisherConfirms);
+	}
+
+	/**
+	 * Hold messages for this long, publishing only the latest change to
+	 * each row in that time.
+	 * 
+	 * @param coalesceWindowMs
+	 *            Window length, 0 (the default) for no time window.
+	 */
+	public void setCoalesceWindowMs(long coalesceWindowMs) {
+		this.coalesceWindowMs = coalesceWindowMs;
+	}
+
+	/**
+	 * @param coalesceWindowEvents
+	 *            Window length in events, 0 (the default) for no event
+	 *            window.  Coalescing is on if either window is set.
+	 */
+	public void setCoalesceWindowEvents(int coalesceWindowEvents) {
+		this.coalesceWindowEvents = coalesceWindowEvents;
+	}
+
+	/**
+	 * @param coalesceMaxKeys
+	 *            Messages held before the window is cut short, default
+	 *            65536.
+	 */
+	public void setCoalesceMaxKeys(int coalesceMaxKeys) {
+		this.coalesceMaxKeys = coalesceMaxKeys;
+	}
+
+	/**
+	 * @param messageQueueBlockedPolicy
+	 *            What publishing does while the broker blocks it (memory or
+	 *            disk alarm): "block" (the default) waits, "buffer" holds
+	 *            messages in memory, "coalesce" holds only the latest
+	 *            message per row, "spool" sends them to the spool.
+	 */
+	public void setMessageQueueBlockedPolicy(String messageQueueBlockedPolicy)
+			throws ReplicatorException {
+		try {
+			this.mq.config.setBlockedPolicy(messageQueueBlockedPolicy);
+		} catch (MQError e) {
+			throw new ReplicatorException(e.getMessage());
+		}
+	}
+
+	/**
+	 * @param messageQueueBlockedBufferBytes
+	 *            Most message bytes "buffer" and "coalesce" hold before
+	 *            publishing waits, default 64MB.
+	 */
+	public void setMessageQueueBlockedBufferBytes(
+			long messageQueueBlockedBufferBytes) {
+		this.mq.config.setBlockedBufferBytes(messageQueueBlockedBufferBytes);
+	}
+
+	/**
+	 * Publish data (row), transaction and metrics messages from separate
+	 * queues, with weighted draining, and on separate channels with
+	 * RabbitMQ.
+	 * 
+	 * @param priorityLanes
+	 *            true to use priority lanes, default false.
+	 */
+	public void setPriorityLanes(boolean priorityLanes) {
+		this.priorityLanes = priorityLanes;
+	}
+
+	/**
+	 * @param priorityQueueCapacity
+	 *            Messages each lane queues before publishing waits, default
+	 *            10000.
+	 */
+	public void setPriorityQueueCapacity(int priorityQueueCapacity) {
+		this.priorityQueueCapacity = priorityQueueCapacity;
+	}
+
+	/**
+	 * @param priorityWeights
+	 *            Messages drained per round from the data, transaction and
+	 *            metrics lanes, default "1,4,16".
+	 */
+	public void setPriorityWeights(String priorityWeights) {
+		this.priorityWeights = priorityWeights;
+	}
+
+	/**
+	 * @param sinkType
+	 *            Where messages go: "rabbitmq" (the default), "memory" (a
+	 *            ring of recent messages, for benchmarks), "file" (rolling
+	 *            local files) or "loopback" (an in-process exchange, for
+	 *            integration tests).
+	 */
+	public void setSinkType(String sinkType) {
+		this.sinkType = sinkType;
+	}
+
+	/**
+	 * @param sinkMemoryCapacity
+	 *            Messages the memory sink keeps, default 65536.
+	 */
+	public void setSinkMemoryCapacity(int sinkMemoryCapacity) {
+		this.sinkMemoryCapacity = sinkMemoryCapacity;
+	}
+
+	/**
+	 * @param sinkFileDirectory
+	 *            Directory the file sink writes to, required for it.
+	 */
+	public void setSinkFileDirectory(String sinkFileDirectory) {
+		this.sinkFileDirectory = sinkFileDirectory;
+	}
+
+	/**
+	 * @param sinkFileFormat
+	 *            "ndjson" (the default) or "binary".
+	 */
+	public void setSinkFileFormat(String sinkFileFormat) {
+		this.sinkFileFormat = sinkFileFormat;
+	}
+
+	/**
+	 * @param sinkFileRollBytes
+	 *            Start a new file once the current one is this big, default
+	 *            256MB.
+	 */
+	public void setSinkFileRollBytes(long sinkFileRollBytes) {
+		this.sinkFileRollBytes = sinkFileRollBytes;
+	}
+
+	/**
+	 * @param sinkFileBatchBytes
+	 *            Size of the file sink's write buffer, default 1MB.
+	 */
+	public void setSinkFileBatchBytes(int sinkFileBatchBytes) {
+		this.sinkFileBatchBytes = sinkFileBatchBytes;
+	}
+
+	/**
+	 * @param sinkFileFlushIntervalMs
+	 *            Write the buffer at least this often while publishing,
+	 *            default 1000.
+	 */
+	public void setSinkFileFlushIntervalMs(long sinkFileFlushIntervalMs) {
+		this.sinkFileFlushIntervalMs = sinkFileFlushIntervalMs;
+	}
+
+	/**
+	 * @param sinkLoopbackBindings
+	 *            The loopback exchange's "queue:key" bindings, separated by
+	 *            ',', default "all:#".
+	 */
+	public void setSinkLoopbackBindings(String sinkLoopbackBindings) {
+		this.sinkLoopbackBindings = sinkLoopbackBindings;
+	}
+
+	/**
+	 * @param sinkLoopbackQueueCapacity
+	 *            Messages each loopback queue holds, default 65536.
+	 */
+	public void setSinkLoopbackQueueCapacity(int sinkLoopbackQueueCapacity) {
+		this.sinkLoopbackQueueCapacity = sinkLoopbackQueueCapacity;
+	}
+
 	public void setStatusMessageInterval(Integer interval) {
 		this.statusMessageInterval = interval;
 	}
 
+	/**
+	 * @param statusMessageMinInterval
+	 *            Least time between metrics reports, in seconds, default 1.
+	 *            Also how often the error burst trigger is checked.
+	 */
+	public void setStatusMessageMinInterval(int statusMessageMinInterval) {
+		this.statusMessageMinInterval = statusMessageMinInterval;
+	}
+
+	/**
+	 * @param statusMessageErrorBurst
+	 *            Errors since the last metrics report that trigger a report
+	 *            before statusMessageInterval is up, default 100.  0 turns
+	 *            it off.
+	 */
+	public void setStatusMessageErrorBurst(long statusMessageErrorBurst) {
+		this.statusMessageErrorBurst = statusMessageErrorBurst;
+	}
+
+	/**
+	 * @param metricsName
+	 *            Name of the filter's metrics MBean, default "pkpublish".
+	 *            Give each pkpublish filter in a replicator its own name.
+	 */
+	public void setMetricsName(String metricsName) {
+		this.metricsName = metricsName;
+	}
+
+	/**
+	 * @param metricsTopK
+	 *            How many of the busiest tables and routing keys each
+	 *            metrics report lists, default 0 (off).
+	 */
+	public void setMetricsTopK(int metricsTopK) {
+		this.metricsTopK = metricsTopK;
+	}
+
+	/**
+	 * @param metricsDistinctKeysMaxTables
+	 *            Estimate the distinct primary keys changed per table, for
+	 *            up to this many tables.  Default 0, off.
+	 */
+	public void setMetricsDistinctKeysMaxTables(
+			int metricsDistinctKeysMaxTables) {
+		this.metricsDistinctKeysMaxTables = metricsDistinctKeysMaxTables;
+	}
+
+	/**
+	 * @param metricsHttpPort
+	 *            Serve the metrics in Prometheus format on this localhost
+	 *            port, at /metrics.  Default 0, no endpoint.
+	 */
+	public void setMetricsHttpPort(int metricsHttpPort) {
+		this.metricsHttpPort = metricsHttpPort;
+	}
+
+	/**
+	 * @param slowEventThresholdMs
+	 *            Log a breakdown (rows, filters evaluated, table lookups,
+	 *            messages, bytes, and where the time went) of events that
+	 *            take at least this many milliseconds to match and publish.
+	 *            Default 0, off.
+	 */
+	public void setSlowEventThresholdMs(long slowEventThresholdMs) {
+		this.slowEventThresholdMs = slowEventThresholdMs;
+	}
+
+	/**
+	 * @param decisionTraceSampleRate
+	 *            Write the rule decisions for one in this many events to
+	 *            decisionTraceFile.  Default 0, off.
+	 */
+	public void setDecisionTraceSampleRate(long decisionTraceSampleRate) {
+		this.decisionTraceSampleRate = decisionTraceSampleRate;
+	}
+
+	/**
+	 * @param decisionTraceFile
+	 *            The file for the decision trace, needed when
+	 *            decisionTraceSampleRate is set.
+	 */
+	public void setDecisionTraceFile(String decisionTraceFile) {
+		this.decisionTraceFile = decisionTraceFile;
+	}
+
+	/**
+	 * @param decisionTraceRollBytes
+	 *            Start a new decision trace file once the current one is
+	 *            this big, keeping one old file.  Default 64MB.
+	 */
+	public void setDecisionTraceRollBytes(long decisionTraceRollBytes) {
+		this.decisionTraceRollBytes = decisionTraceRollBytes;
+	}
+
+	/**
+	 * Split TransactionFilter messages into chunks of at most this many rows.
+	 * 
+	 * @param transactionMessageMaxRows
+	 *            Rows per chunk, 0 (the default) for no limit.
+	 */
+	public void setTransactionMessageMaxRows(int transactionMessageMaxRows) {
+		this.transactionMessageMaxRows = transactionMessageMaxRows;
+	}
+
+	/**
+	 * Split TransactionFilter messages into chunks of roughly this many bytes
+	 * of row messages.
+	 * 
+	 * @param transactionMessageMaxBytes
+	 *            Bytes per chunk, 0 (the default) for no limit.
+	 */
+	public void setTransactionMessageMaxBytes(int transactionMessageMaxBytes) {
+		this.transactionMessageMaxBytes = transactionMessageMaxBytes;
+	}
+
+	/**
+	 * Cache the formatted rows of OneRowChanges with up to this many rows
+	 * for the rest of the event, so rows matched by several filters are
+	 * only encoded once.
+	 * 
+	 * @param formatCacheMaxRows
+	 *            Row limit, 0 disables the cache.
+	 */
+	public void setFormatCacheMaxRows(int formatCacheMaxRows) {
+		this.formatCacheMaxRows = formatCacheMaxRows;
+	}
+
+	/**
+	 * Match and format transactions (and row changes) with at least this
+	 * many rows across a pool of threads.  Messages are published in the
+	 * same order either way.
+	 * 
+	 * @param parallelRowThreshold
+	 *            Row threshold, 0 (the default) disables parallel mode.
+	 */
+	public void setParallelRowThreshold(int parallelRowThreshold) {
+		this.parallelRowThreshold = parallelRowThreshold;
+	}
+
+	/**
+	 * @param parallelism
+	 *            Threads in the parallel pool, 0 (the default) for one per
+	 *            core.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Match, format and publish events on this many worker lanes.  Events
+	 * with the same shard ID (or schema) always use the same lane, so they
+	 * stay in order.
+	 * 
+	 * @param pipelineLanes
+	 *            Number of lanes, 0 (the default) to do everything on the
+	 *            replicator's thread.
+	 */
+	public void setPipelineLanes(int pipelineLanes) {
+		this.pipelineLanes = pipelineLanes;
+	}
+
+	/**
+	 * @param pipelinePartitionBy
+	 *            "shard" (the default) to pick lanes by the event's shard ID,
+	 *            or "schema" to pick them by its first schema.
+	 */
+	public void setPipelinePartitionBy(String pipelinePartitionBy) {
+		this.pipelinePartitionBy = pipelinePartitionBy;
+	}
+
+	/**
+	 * @param pipelineMaxInFlight
+	 *            How many events may be handed back to the replicator before
+	 *            all of the lanes have published them.  Required (> 0) with
+	 *            pipelineLanes: with 0 the lanes can never overlap.  Events
+	 *            in flight are lost if the replicator crashes.
+	 */
+	public void setPipelineMaxInFlight(int pipelineMaxInFlight) {
+		this.pipelineMaxInFlight = pipelineMaxInFlight;
+	}
+
+	/**
+	 * Spool messages to files in this directory while the message queue is
+	 * unavailable, and replay them, in order, when it comes back.
+	 * 
+	 * @param spoolDirectory
+	 *            Spool directory, unset (the default) disables the spool.
+	 */
+	public void setSpoolDirectory(String spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/**
+	 * @param spoolSegmentBytes
+	 *            Size of each spool segment file, 64MB by default.  No
+	 *            message may be larger than this.
+	 */
+	public void setSpoolSegmentBytes(int spoolSegmentBytes) {
+		this.spoolSegmentBytes = spoolSegmentBytes;
+	}
+
+	/**
+	 * @param spoolMaxBytes
+	 *            Most disk the spool may use, 1GB by default.  When the spool
+	 *            is full, replication stops.
+	 */
+	public void setSpoolMaxBytes(long spoolMaxBytes) {
+		this.spoolMaxBytes = spoolMaxBytes;
+	}
+
+	/**
+	 * @param spoolFsyncPolicy
+	 *            "always", "interval" (the default) or "never".
+	 */
+	public void setSpoolFsyncPolicy(String spoolFsyncPolicy) {
+		this.spoolFsyncPolicy = spoolFsyncPolicy;
+	}
+
+	/**
+	 * @param spoolFsyncIntervalMs
+	 *            With the "interval" policy, how often spooled messages are
+	 *            forced to disk.
+	 */
+	public void setSpoolFsyncIntervalMs(long spoolFsyncIntervalMs) {
+		this.spoolFsyncIntervalMs = spoolFsyncIntervalMs;
+	}
+
 	public void setDbUrl(String dbUrl) {
 		this.dbUrl = dbUrl;
 	}
@@ -184,11 +702,22 @@ public class PKPublish implements Filter {
 	public void configure(PluginContext context) throws ReplicatorException,
 	InterruptedException {
 		boolean ok = true;
-		if (! this.mq.config.haveHost) {
+		if (this.usesMQ() && ! this.mq.config.haveHost) {
 			logger.error("Must specify messageQueueServerName");
 			ok = false;
 		}
+		this.mq.config.setLaneChannels(this.priorityLanes);
 		this.mq.markConfigComplete();
+		try {
+			this.sink = this.usesMQ() ? this.mq : this.makeSink();
+			if (this.priorityLanes) {
+				this.sink = new PriorityPublisher(this.sink,
+						this.priorityQueueCapacity,
+						PriorityPublisher.parseWeights(this.priorityWeights));
+			}
+		} catch (MessageSinkException e) {
+			ok = false;
+		}
 
 		if (this.dbUrl == null || this.dbUrl.isEmpty()) {
 			logger.error("Must specify dbUrl");
@@ -205,16 +734,170 @@ public class PKPublish implements Filter {
 			ok = false;
 		}
 
+		MessageSpool.FsyncPolicy fsync_policy = null;
+		if (this.spoolDirectory != null) {
+			try {
+				fsync_policy = MessageSpool.FsyncPolicy.parse(
+						this.spoolFsyncPolicy);
+			} catch (SpoolException e) {
+				ok = false;
+			}
+			if (this.spoolSegmentBytes <= 0) {
+				logger.error("spoolSegmentBytes must be positive");
+				ok = false;
+			}
+		} else if (this.mq.config.blockedPolicy ==
+				MQPublishWrapper.BlockedPolicy.SPOOL) {
+			logger.error("messageQueueBlockedPolicy 'spool' needs " +
+					"spoolDirectory");
+			ok = false;
+		}
+
+		if (this.pipelineLanes > 0 && this.pipelineMaxInFlight <= 0) {
+			// The filter API can't defer the ack, so with no events in
+			// flight submit() waits for each event's own lane and no two
+			// lanes ever run at once: pure overhead.
+			logger.error("pipelineLanes needs pipelineMaxInFlight > 0; " +
+					"with 0, each event is published before the next is " +
+					"submitted, so the lanes never overlap");
+			ok = false;
+		}
+
+		if (this.decisionTraceSampleRate > 0 &&
+				this.decisionTraceFile == null) {
+			logger.error("decisionTraceSampleRate needs decisionTraceFile");
+			ok = false;
+		}
+
 		if (! ok) {
 			throw new ReplicatorException(
 					"PKPublish not properly configured.");
 		}
 		
-		this.metrics = new FilterMetrics(this.statusMessageInterval, 0);
+		this.metrics = new FilterMetrics(this.statusMessageInterval,
+				this.statusMessageMinInterval);
+		this.metrics.setReportErrorFrequency(this.statusMessageErrorBurst);
+		this.metrics.setTopK(this.metricsTopK);
+		this.metrics.setDistinctKeysMaxTables(
+				this.metricsDistinctKeysMaxTables);
+		this.mq.setConfirmLag(this.metrics.getConfirmLag());
+		this.sink.setPublishListener(new PublishListener() {
+			@Override
+			public void published(PublishMessage msg) {
+				if (msg.getSeqno() >= 0) {
+					metrics.published(msg.getSeqno(), msg.getEventTimestamp());
+				}
+			}
+
+			@Override
+			public void failed(PublishMessage msg) {
+				metrics.messageLost(msg.getSeqno());
+			}
+		});
+		if (this.spoolDirectory != null) {
+			this.spool = new MessageSpool(this.spoolDirectory,
+					this.spoolSegmentBytes, this.spoolMaxBytes, fsync_policy,
+					this.spoolFsyncIntervalMs, this.sink, this.metrics);
+		}
+		if (this.coalesceWindowMs > 0 || this.coalesceWindowEvents > 0) {
+			this.coalescer = new ChangeCoalescer(this.coalesceWindowMs,
+					this.coalesceWindowEvents, this.coalesceMaxKeys,
+					new ChangeCoalescer.Emitter() {
+				@Override
+				public void emit(PublishMessage msg, long seqno)
+						throws MessageSinkException, SpoolException {
+					publishNow(msg, seqno);
+				}
+			}, this.metrics);
+		}
 		this.tableKeyTracker = new TableKeyTracker(this.dbUrl, this.dbUser,
 				this.dbPassword, this.metrics);
 		this.orcFormatter = new ORCFormatter(this.tableKeyTracker,
 				this.metrics);
+		this.orcFormatter.setFormatCacheMaxRows(this.formatCacheMaxRows);
+		this.orcFormatter.setRowKeys(this.needsKeyHashes(),
+				this.needsKeyValues());
+		if (this.slowEventThresholdMs > 0) {
+			this.slowEvents = new SlowEventLog(this.slowEventThresholdMs,
+					this.tableKeyTracker, this.metrics);
+		}
+		if (this.decisionTraceSampleRate > 0) {
+			this.decisionTrace = new DecisionTraceLog(this.decisionTraceFile,
+					this.decisionTraceSampleRate, this.decisionTraceRollBytes,
+					this.metrics);
+		}
+		if (this.parallelRowThreshold > 0) {
+			this.parallelExecutor = new ParallelRowExecutor(this.parallelism,
+					this.parallelRowThreshold);
+			this.orcFormatter.setParallelExecutor(this.parallelExecutor);
+		}
+
+		if (this.pipelineLanes > 0) {
+			// Each lane gets its own formatter, they cache per-event state.
+			ORCFormatter[] lane_formatters = new ORCFormatter[this.pipelineLanes];
+			for (int i = 0; i < this.pipelineLanes; ++i) {
+				lane_formatters[i] = new ORCFormatter(this.tableKeyTracker,
+						this.metrics);
+				lane_formatters[i].setFormatCacheMaxRows(this.formatCacheMaxRows);
+				lane_formatters[i].setParallelExecutor(this.parallelExecutor);
+				lane_formatters[i].setRowKeys(this.needsKeyHashes(),
+						this.needsKeyValues());
+			}
+			try {
+				this.pipeline = new PublishPipeline(lane_formatters,
+						this.pipelinePartitionBy, this.pipelineMaxInFlight,
+						new PublishPipeline.EventProcessor() {
+					@Override
+					public void process(ReplDBMSEvent event,
+							PKPublishFilterRules rules, ORCFormatter formatter)
+									throws ReplicatorException {
+						SlowEventLog.Stats slow = null;
+						if (slowEvents != null) {
+							slow = slowEvents.begin();
+						}
+						publishEvent(event, rules, formatter);
+						if (slow != null) {
+							slowEvents.finish(slow, event, rules);
+						}
+					}
+				});
+			} catch (PKPublishException e) {
+				throw new ReplicatorException(
+						"PKPublish pipeline not properly configured.", e);
+			}
+		}
+	}
+
+	private boolean usesMQ() {
+		return (this.sinkType == null ||
+				this.sinkType.equalsIgnoreCase("rabbitmq"));
+	}
+
+	/**
+	 * Build the stand-in sink named by sinkType.
+	 */
+	private MessageSink makeSink() throws MessageSinkException {
+		if (this.sinkType.equalsIgnoreCase("memory")) {
+			return new MemoryRingSink(this.sinkMemoryCapacity);
+		} else if (this.sinkType.equalsIgnoreCase("file")) {
+			if (this.sinkFileDirectory == null) {
+				logger.error("Must specify sinkFileDirectory");
+				throw new MessageSinkException("No sinkFileDirectory");
+			}
+			return new FileSink(this.sinkFileDirectory,
+					FileSink.Format.parse(this.sinkFileFormat),
+					this.sinkFileRollBytes, this.sinkFileBatchBytes,
+					this.sinkFileFlushIntervalMs);
+		} else if (this.sinkType.equalsIgnoreCase("loopback")) {
+			return new LoopbackAMQPSink(this.mq.config.exchangeName,
+					this.mq.config.exchangeType, this.sinkLoopbackBindings,
+					this.sinkLoopbackQueueCapacity);
+		}
+		String err = String.format("Unknown sinkType: '%s', valid values " +
+				"are: ['rabbitmq', 'memory', 'file', 'loopback']",
+				this.sinkType);
+		logger.error(err);
+		throw new MessageSinkException(err);
 	}
 
 	/**
@@ -237,23 +920,121 @@ public class PKPublish implements Filter {
 
 		// Next, connect to the message queue.
 		try {
-			this.mq.connect();
-		} catch (MQError e) {
-			logger.error("Unable to connect to message queue, giving up:", e);
-			throw new ReplicatorException(
-					"Unable to connect to message queue");
+			this.sink.connect();
+		} catch (MessageSinkException e) {
+			if (this.spool == null) {
+				logger.error("Unable to connect to message queue, giving up:", e);
+				throw new ReplicatorException(
+						"Unable to connect to message queue");
+			}
+			// The spool's replay reconnects once the broker is back.
+			logger.warn("Unable to connect to message queue, spooling " +
+					"messages until it is available:", e);
 		}
+
+		if (this.spool != null) {
+			try {
+				this.spool.open();
+			} catch (SpoolException e) {
+				logger.error("Unable to open message spool:", e);
+				throw new ReplicatorException("Unable to open message spool",
+						e);
+			}
+		}
+
+		if (this.coalescer != null) {
+			this.coalescer.start();
+		}
+
+		if (this.pipeline != null) {
+			this.pipeline.start();
+		}
+
+		this.metrics.registerMBean(this.metricsName);
+		if (this.metricsHttpPort > 0) {
+			this.metrics.renderPrometheus(this.metricsName);
+			this.metricsHttpServer = new MetricsHttpServer(this.metrics,
+					this.metricsHttpPort);
+			try {
+				this.metricsHttpServer.start();
+			} catch (IOException e) {
+				logger.error("Unable to serve metrics on port " +
+						this.metricsHttpPort + ":", e);
+				throw new ReplicatorException("Unable to serve metrics on " +
+						"port " + this.metricsHttpPort, e);
+			}
+		}
+		this.startReporter();
+	}
+
+	/**
+	 * Report the metrics from a background thread, so reports keep coming
+	 * while the stream is idle, and events don't pay for them.
+	 */
+	private void startReporter() {
+		this.reporter = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "pkpublish-metrics-report");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		long tick = this.metrics.getMinReportInterval();
+		this.reporter.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					maybeReportMetrics();
+				} catch (Throwable e) {
+					/* We refuse to fail just because we couldn't report our metrics. */
+					logger.error("Unable to report metrics:", e);
+					metrics.publishingError();
+				}
+			}
+		}, tick, tick, TimeUnit.MILLISECONDS);
 	}
 
 	@Override
 	public void release(PluginContext context) throws ReplicatorException,
 	InterruptedException {
+		if (this.reporter != null) {
+			// Let a report in progress finish, it may be publishing.
+			this.reporter.shutdown();
+			this.reporter.awaitTermination(10, TimeUnit.SECONDS);
+			this.reporter = null;
+		}
+		if (this.metricsHttpServer != null) {
+			this.metricsHttpServer.stop();
+			this.metricsHttpServer = null;
+		}
+		if (this.pipeline != null) {
+			// Publish whatever the lanes still have before disconnecting.
+			this.pipeline.release();
+			this.pipeline = null;
+		}
+		if (this.coalescer != null) {
+			this.coalescer.release();
+			this.coalescer = null;
+		}
+		if (this.spool != null) {
+			// Unreplayed messages stay on disk for the next start.
+			this.spool.close();
+			this.spool = null;
+		}
+		if (this.decisionTrace != null) {
+			this.decisionTrace.release();
+			this.decisionTrace = null;
+		}
 		try {
-			this.mq.releaseMQ();
+			this.sink.release();
 		} catch (Throwable e) {
 			logger.warn("PKPublish shutdown was not clean:", e);
 		} finally {
+			this.metrics.unregisterMBean();
 			this.mq = null;
+			this.sink = null;
 			this.rules = null;
 			if (this.orcFormatter != null) {
 				this.orcFormatter.release();
@@ -264,6 +1045,11 @@ public class PKPublish implements Filter {
 				this.tableKeyTracker.release();
 				this.tableKeyTracker = null;
 			}
+
+			if (this.parallelExecutor != null) {
+				this.parallelExecutor.release();
+				this.parallelExecutor = null;
+			}
 			logger.info("PKPublish shutdown");
 		}
 	}
@@ -281,15 +1067,28 @@ public class PKPublish implements Filter {
 			return event;
 		}
 
+		Object jfr = FilterEvents.beginFilter();
+		SlowEventLog.Stats slow = null;
+		if (this.slowEvents != null && this.pipeline == null) {
+			// Pipeline lanes time their own events.
+			slow = this.slowEvents.begin();
+		}
 		this.maybeReloadRulesFile(event);
-		this.metrics.eventTimestamp(event.getExtractedTstamp());
+		this.metrics.eventArrived(event.getSeqno(),
+				event.getExtractedTstamp().getTime());
 
 		/* Update the primary key tracker and the DML/DDL counters. */
+		boolean drained = false;
 		for (DBMSData edata : event.getData()) {
 			if (edata instanceof RowChangeData) {
 				this.metrics.dmlEvent();
 			} else if (edata instanceof StatementData) {
 				this.metrics.ddlEvent();
+				if (this.pipeline != null && ! drained) {
+					// Let the lanes finish with the old table info first.
+					this.pipeline.drain();
+					drained = true;
+				}
 				StatementData sdata = (StatementData) edata;
 				this.tableKeyTracker.maybeUpdateFromStatement(sdata);
 			} else {
@@ -298,30 +1097,113 @@ public class PKPublish implements Filter {
 			}
 		}
 
+		if (this.pipeline != null) {
+			this.pipeline.submit(event, this.rules);
+		} else {
+			this.publishEvent(event, this.rules, this.orcFormatter);
+		}
+
+		if (slow != null) {
+			this.slowEvents.finish(slow, event, this.rules);
+		}
+		FilterEvents.endFilter(jfr, event.getSeqno(), event.getData().size());
+		return event;
+	}
+
+
+	/**
+	 * Match an event against the rules and publish the resulting messages.
+	 * This runs on the replicator's thread, or on a pipeline lane.
+	 */
+	private void publishEvent(ReplDBMSEvent event, PKPublishFilterRules rules,
+			ORCFormatter formatter) throws ReplicatorException {
 		// Have each of the filter rules try to match this transaction.
-		List<TransactionMatchResultAccumulator> results = this.rules.apply(event);
+		long start = System.nanoTime();
+		Object jfr = FilterEvents.beginMatch();
+		List<TransactionMatchResultAccumulator> results = rules.apply(event,
+				this.tableKeyTracker);
+		this.metrics.getMatchLatency().recordSince(start);
+		FilterEvents.endMatch(jfr, event.getSeqno(), results.size());
+		if (this.slowEvents != null) {
+			this.slowEvents.current().matched(System.nanoTime() - start);
+		}
+		if (this.decisionTrace != null && this.decisionTrace.shouldSample()) {
+			this.decisionTrace.record(event, results);
+		}
 
 		// Publish any messages from the filter results.
 		// If there are errors, we throw a ReplicatorException.
 		// This way, the replicator will stop and we can restart it
 		// without losing events.
 		// FIXME:  Whether or not publishing errors are fatal should be configurable.
-		for (TransactionMatchResultAccumulator result : results) {
-			logger.debug("Publishing results for result: " + result.toString());
-			publishResultRowFilterMessages(result, event);
-			if (result.matched()) {
-				publishResultTransactionFilterMessage(result, event);
+		try {
+			for (TransactionMatchResultAccumulator result : results) {
+				logger.debug("Publishing results for result: " + result.toString());
+				publishResultRowFilterMessages(result, event, formatter);
+				if (result.matched()) {
+					publishResultTransactionFilterMessage(result, event,
+							formatter);
+				}
+			}
+			if (this.coalescer != null) {
+				this.coalescer.eventDone();
+			} else if (! this.messagesPending()) {
+				// Everything so far has been sent, so this event counts as
+				// published even if it had no messages.
+				this.metrics.published(event.getSeqno(), 0);
 			}
+		} catch (MessageSinkException e) {
+			this.metrics.error();
+			String err = "Unable to publish coalesced messages, event id: " +
+					event.getEventId() + " error: " + e.toString();
+			logger.error(err, e);
+			throw new ReplicatorException(err, e);
+		} catch (SpoolException e) {
+			this.metrics.error();
+			String err = "Unable to spool coalesced messages, event id: " +
+					event.getEventId() + " error: " + e.toString();
+			logger.error(err, e);
+			throw new ReplicatorException(err, e);
+		} finally {
+			formatter.clearFormatCache();
 		}
+	}
 
-		try {
-			this.maybeReportMetrics();
-		} catch (Throwable e) {
-			/* We refuse to fail just because we couldn't report our metrics. */
-			logger.error("Unable to report metrics:", e);
-			this.metrics.publishingError();
+
+	/**
+	 * @return true if something uses the rows' primary key hashes:
+	 *         sharding by primary key or counting distinct keys.
+	 */
+	private boolean needsKeyHashes() {
+		return this.metricsDistinctKeysMaxTables > 0 ||
+				(this.usesMQ() && this.mq.config.shardByPrimaryKey);
+	}
+
+
+	/**
+	 * @return true if something compares rows by their primary key
+	 *         values: the coalescer or the "coalesce" blocked policy.
+	 */
+	private boolean needsKeyValues() {
+		return this.coalescer != null || (this.usesMQ() &&
+				this.mq.config.blockedPolicy ==
+				MQPublishWrapper.BlockedPolicy.COALESCE);
+	}
+
+
+	/**
+	 * @return true if messages handed to the sink (or spool) may not all
+	 *         have been sent yet.
+	 */
+	private boolean messagesPending() {
+		if (this.spool != null && this.spool.isSpooling()) {
+			return true;
 		}
-		return event;
+		if (this.sink instanceof PriorityPublisher &&
+				((PriorityPublisher) this.sink).getQueuedMessages() > 0) {
+			return true;
+		}
+		return this.usesMQ() && this.mq.hasPendingMessages();
 	}
 
 
@@ -345,62 +1227,180 @@ public class PKPublish implements Filter {
 
 
 	private void publishResultTransactionFilterMessage(
-			TransactionMatchResultAccumulator result, ReplDBMSEvent event)
-					throws ReplicatorException {
+			TransactionMatchResultAccumulator result, ReplDBMSEvent event,
+			ORCFormatter formatter) throws ReplicatorException {
 		try {
-			Pair<String, String> rk_msg = 
-					result.getTransactionFilterMessageToPublish(this.orcFormatter);
-			if (rk_msg != null) {
-				this.mq.publishMessage(rk_msg.first, rk_msg.second);
+			// Chunks are built as they are published, so a huge transaction
+			// never has to be held in memory as a single message.
+			for (PublishMessage msg :
+				result.getTransactionFilterMessagesToPublish(formatter,
+						this.transactionMessageMaxRows,
+						this.transactionMessageMaxBytes))
+			{
+				this.publish(msg, event.getSeqno());
 			}
 		} catch (PKPublishException e) {
 			this.metrics.error();
 			String err = "Failed to create TransactionFilter message for event id: " +
 					event.getEventId() + " error: " + e.toString();
 			logger.error(err, e);
-		} catch (MQError e) {
+		} catch (MessageSinkException e) {
 			this.metrics.error();
 			String err = "Unable to publish TransactionFilter message, event id: " +
 					event.getEventId() + " error: " + e.toString();
 			logger.error(err, e);
 			throw new ReplicatorException(err + e.toString());
+		} catch (SpoolException e) {
+			this.metrics.error();
+			String err = "Unable to spool TransactionFilter message, event id: " +
+					event.getEventId() + " error: " + e.toString();
+			logger.error(err, e);
+			throw new ReplicatorException(err, e);
 		}
 	}
 
 
 	private void publishResultRowFilterMessages(TransactionMatchResultAccumulator result,
-			ReplDBMSEvent event) throws ReplicatorException {
+			ReplDBMSEvent event, ORCFormatter formatter)
+					throws ReplicatorException {
 		try {
-			for (Pair<String, String> rk_msg :
-				result.getRowFilterMessagesToPublish(this.orcFormatter))
+			for (PublishMessage msg :
+				result.getRowFilterMessagesToPublish(formatter))
 			{
-				this.mq.publishMessage(rk_msg.first, rk_msg.second);
+				this.publish(msg, event.getSeqno());
 			}
 		} catch (PKPublishException e) {
 			this.metrics.error();
 			String err = "Failed to create RowFilter message for event id: " +
 					event.getEventId() + " error: " + e.toString();
 			logger.error(err, e);
-		} catch (MQError e) {
+		} catch (MessageSinkException e) {
 			this.metrics.error();
 			String err = "Unable to publish RowFilter message, event id: " +
 					event.getEventId() + " error: " + e.toString();
 			logger.error(err, e);
 			throw new ReplicatorException(err + e.toString());
+		} catch (SpoolException e) {
+			this.metrics.error();
+			String err = "Unable to spool RowFilter message, event id: " +
+					event.getEventId() + " error: " + e.toString();
+			logger.error(err, e);
+			throw new ReplicatorException(err, e);
+		}
+	}
+
+
+	/**
+	 * Publish a message, through the coalescer if there is one.
+	 */
+	private void publish(PublishMessage msg, long seqno)
+			throws MessageSinkException, SpoolException {
+		RowMessage row = msg.getRow();
+		if (msg.getLane() == PublishMessage.Lane.TRANSACTION) {
+			this.metrics.transactionMessageBuilt(msg.estimateBytes());
+		}
+		if (row != null) {
+			this.metrics.rowPublished(row.getTableName(), row.getKeyHash());
+		}
+		if (this.coalescer != null) {
+			this.coalescer.add(msg, seqno);
+		} else {
+			this.publishNow(msg, seqno);
 		}
 	}
 
 
-	private void maybeReportMetrics() throws MQError {
+	/**
+	 * Publish a message, through the spool if there is one.
+	 */
+	private void publishNow(PublishMessage msg, long seqno)
+			throws MessageSinkException, SpoolException {
+		long start = System.nanoTime();
+		Object jfr = FilterEvents.beginPublish();
+		RowMessage row = msg.getRow();
+		String schema = (row == null) ? null : row.getSchema();
+		String table = (row == null) ? null : row.getTable();
+		this.metrics.messagePublished(
+				(row == null) ? null : row.getTableName(),
+				msg.getRoutingKey(), msg.getBody().length());
+		// The sink tells the metrics when it is actually sent.
+		msg.setSeqno(seqno);
+		if (this.spool != null) {
+			this.spool.publish(msg, seqno);
+		} else {
+			this.sink.publishMessage(msg);
+		}
+		this.metrics.getPublishLatency().recordSince(start);
+		if (this.slowEvents != null) {
+			this.slowEvents.current().published(System.nanoTime() - start,
+					msg.getBody().length());
+		}
+		FilterEvents.endPublish(jfr, seqno, schema, table, msg.getRoutingKey(),
+				msg.getBody().length());
+	}
+
+
+	private void maybeReportMetrics() throws MessageSinkException {
 		if (! this.metrics.shouldReport()) {
 			return;
 		}
+		this.metrics.setPublisherStats(this.sink.getStats());
+		this.metrics.setMemory(this.estimateMemory());
+		if (this.usesMQ()) {
+			this.metrics.setCircuitBreaker(this.mq.getCircuitState().name(),
+					this.mq.getCircuitTransitionCount());
+			MQPublishWrapper.FlowControlStats fc =
+					this.mq.getFlowControlStats();
+			this.metrics.setFlowControl(fc.blocked, fc.blockedCount,
+					fc.blockedMillis, fc.shutdownCount, fc.bufferedCount,
+					fc.coalescedCount);
+		}
 		String report = this.metrics.makeReport();
-		this.mq.publishMessage(this.metricsRoutingKey, report);
+		if ((this.spool == null || ! this.spool.isSpooling()) &&
+				this.sink.isAvailable()) {
+			// While the broker is down, only log the report.
+			this.sink.publishMessage(new PublishMessage(this.metricsRoutingKey,
+					report, System.currentTimeMillis(),
+					PublishMessage.Lane.METRICS));
+		}
 		logger.info(report);	// This should probably go to a custom logger.
 	}
 
 
+	/**
+	 * @return The estimated bytes retained by the caches and buffers, from
+	 *         counts they keep as entries come and go.
+	 */
+	private Map<String, Long> estimateMemory() {
+		Map<String, Long> memory = new LinkedHashMap<String, Long>();
+		memory.put("tableKeyCache", this.tableKeyTracker.getKeyCacheBytes());
+		PKPublishFilterRules current_rules = this.rules;
+		if (current_rules != null) {
+			memory.put("filterRules", current_rules.getEstimatedBytes());
+		}
+		if (this.coalescer != null) {
+			memory.put("coalescer", this.coalescer.getHeldBytes());
+		}
+		MessageSink base = this.sink;
+		if (base instanceof PriorityPublisher) {
+			memory.put("priorityLanes",
+					((PriorityPublisher) base).getQueuedBytes());
+			base = ((PriorityPublisher) base).getSink();
+		}
+		if (base instanceof MemoryRingSink) {
+			memory.put("memorySink",
+					((MemoryRingSink) base).getRetainedBytes());
+		}
+		if (this.usesMQ()) {
+			memory.put("blockedBuffer", this.mq.getBlockedBufferBytes());
+		}
+		if (this.spool != null) {
+			memory.put("spoolMapped", this.spool.getMappedBytes());
+		}
+		return memory;
+	}
+
+
 	/**
 	 * Check if the rule file was changed periodically and reload if it was. We
 	 * use the timestamps in the event stream as our "clock". This will be just
@@ -445,8 +1445,10 @@ public class PKPublish implements Filter {
 				this.metrics.ruleFileReload();
 				PKPublishFilterRules new_rules = new PKPublishFilterRules();
 				new_rules.loadRulesFromFile(this.ruleFile);
+				new_rules.setParallelExecutor(this.parallelExecutor);
 				ruleFileLastModified = fh.lastModified();
 				this.rules = new_rules;
+				this.tableKeyTracker.clearResolvedColumns();
 			}
 		} catch (IOException e) {
 			this.metrics.ruleFileReloadError();
@@ -33,6 +33,9 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
 import com.smartsheet.tin.filters.common.JsonFilterException;
+import com.smartsheet.tin.filters.common.MemoryEstimates;
+import com.smartsheet.tin.filters.common.ParallelRowExecutor;
+import com.smartsheet.tin.filters.common.TableKeyTracker;
 
 import static com.smartsheet.tin.filters.common.JsonFilterTools.fetchChildByName;
 import static com.smartsheet.tin.filters.common.JsonFilterTools.confirmNodeType;
@@ -48,9 +51,32 @@ import org.apache.log4j.Logger;
 public class PKPublishFilterRules {
 	private static Logger logger = Logger.getLogger(PKPublishFilterRules.class);
 	private List<TransactionFilter> transaction_filters;
+	private ParallelRowExecutor parallel;
+	private long estimatedBytes;
 
 	public PKPublishFilterRules() {
 		this.transaction_filters = new ArrayList<TransactionFilter>();
+		this.parallel = null;
+		this.estimatedBytes = 0;
+	}
+
+
+	/**
+	 * @return The estimated bytes the loaded rules retain, sized from the
+	 *         parsed rule documents when they were loaded.
+	 */
+	public long getEstimatedBytes() {
+		return this.estimatedBytes;
+	}
+
+
+	/**
+	 * Match large transactions across a fork/join pool.
+	 * 
+	 * @param parallel The pool, or null to match on the caller's thread.
+	 */
+	public void setParallelExecutor(ParallelRowExecutor parallel) {
+		this.parallel = parallel;
 	}
 
 
@@ -69,6 +95,7 @@ public class PKPublishFilterRules {
 			JsonNode rules_jn = new ObjectMapper().readTree(rules_json);
 			confirmNodeType(rules_jn, JsonNodeType.OBJECT, "TransactionRules",
 					logger);
+			this.estimatedBytes += MemoryEstimates.jsonTree(rules_jn);
 			JsonNode transaction_filters_jn = fetchChildByName(rules_jn,
 					"transaction_filters", "array");
 
@@ -111,18 +138,33 @@ public class PKPublishFilterRules {
 	 * appropriately.
 	 * 
 	 * @param event The Event to apply the filters to.
+	 * @param key_tracker Source of table column info for column predicates.
 	 * @return A list of TransactionMatchResult objects.
 	 */
-	public List<TransactionMatchResultAccumulator>  apply(ReplDBMSEvent event) {
+	public List<TransactionMatchResultAccumulator>  apply(ReplDBMSEvent event,
+			TableKeyTracker key_tracker) {
 		List<TransactionMatchResultAccumulator> results = 
 				new ArrayList<TransactionMatchResultAccumulator>();
 		for (TransactionFilter tf : this.transaction_filters) {
-			results.add(tf.match(event));
+			results.add(tf.match(event, key_tracker, this.parallel));
 		}
 		return results;
 	}
 
 
+	/**
+	 * @return How many RowFilters the rules have in all, which is how many
+	 *         compares each OneRowChange gets.
+	 */
+	public int getRowFilterCount() {
+		int count = 0;
+		for (TransactionFilter tf : this.transaction_filters) {
+			count += tf.getRowFilters().size();
+		}
+		return count;
+	}
+
+
 	/**
 	 * Read the specified file into a String.
 	 * 
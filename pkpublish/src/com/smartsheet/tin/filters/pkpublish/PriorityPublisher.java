@@ -0,0 +1,328 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.smartsheet.tin.filters.pkpublish.PublishMessage.Lane;
+
+/**
+ * Publishes through another sink from one bounded queue per lane (data,
+ * transaction and metrics), so a flood of row messages doesn't hold up
+ * the transaction messages and the metrics report.
+ *
+ * A single drain thread takes messages with weighted round robin: each
+ * round, up to weight messages from each lane, metrics first, then
+ * transaction, then data.  Messages stay in order within a lane; across
+ * lanes, a transaction message may be published before row messages that
+ * were queued ahead of it.
+ *
+ * A full queue makes publishers wait.  While the sink under it is
+ * unavailable, new messages are refused (so the spool can take them),
+ * and the drain thread retries the message at the head of its lane until
+ * the sink comes back.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class PriorityPublisher implements MessageSink {
+	private static Logger logger = Logger.getLogger(PriorityPublisher.class);
+	// Drain order, highest priority first.
+	private static final Lane[] DRAIN_ORDER = new Lane[] {
+		Lane.METRICS, Lane.TRANSACTION, Lane.DATA };
+
+	/**
+	 * Counters for the metrics report.
+	 */
+	public static class Stats {
+		public Object sink;
+		public LaneStats[] lanes;
+	}
+
+	public static class LaneStats {
+		public String lane;
+		public int weight;
+		public int depth;
+		public long publishCount;
+	}
+
+	private MessageSink sink;
+	private ArrayBlockingQueue<PublishMessage>[] queues;
+	private int[] weights;
+	private int[] credits;
+	private long[] publishCounts;
+	private Semaphore queued;
+	private AtomicLong queuedBytes;
+	private Thread drainThread;
+	private volatile boolean running;
+
+	/**
+	 * @param sink Where the messages go.
+	 * @param capacity Messages each lane's queue holds.
+	 * @param weights Messages per round for DATA, TRANSACTION and METRICS.
+	 */
+	@SuppressWarnings("unchecked")
+	public PriorityPublisher(MessageSink sink, int capacity, int[] weights) {
+		Lane[] lanes = Lane.values();
+		this.sink = sink;
+		this.queues = new ArrayBlockingQueue[lanes.length];
+		this.weights = new int[lanes.length];
+		this.credits = new int[lanes.length];
+		this.publishCounts = new long[lanes.length];
+		for (int i = 0; i < lanes.length; ++i) {
+			this.queues[i] = new ArrayBlockingQueue<PublishMessage>(
+					Math.max(1, capacity));
+			this.weights[i] = Math.max(1, (i < weights.length) ? weights[i] : 1);
+		}
+		this.queued = new Semaphore(0);
+		this.queuedBytes = new AtomicLong(0);
+		this.running = false;
+	}
+
+	/**
+	 * Parse "data,transaction,metrics" weights, e.g. "1,4,16".
+	 */
+	public static int[] parseWeights(String weights)
+			throws MessageSinkException {
+		String[] parts = weights.split(",");
+		if (parts.length != Lane.values().length) {
+			String err = "priorityWeights must be three numbers " +
+					"(data,transaction,metrics), got: '" + weights + "'";
+			logger.error(err);
+			throw new MessageSinkException(err);
+		}
+		int[] result = new int[parts.length];
+		try {
+			for (int i = 0; i < parts.length; ++i) {
+				result[i] = Integer.parseInt(parts[i].trim());
+			}
+		} catch (NumberFormatException e) {
+			String err = "Bad priorityWeights: '" + weights + "'";
+			logger.error(err);
+			throw new MessageSinkException(err, e);
+		}
+		return result;
+	}
+
+	@Override
+	public void connect() throws MessageSinkException {
+		this.sink.connect();
+		this.running = true;
+		this.drainThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "pkpublish-priority-drain");
+		this.drainThread.setDaemon(true);
+		this.drainThread.start();
+	}
+
+	@Override
+	public void publishMessage(String routingKey, String msg)
+			throws MessageSinkException {
+		this.publishMessage(new PublishMessage(routingKey, msg, 0));
+	}
+
+	@Override
+	public void publishMessage(PublishMessage msg)
+			throws MessageSinkException {
+		if (! this.sink.isAvailable()) {
+			throw new MessageSinkException("Priority publisher's sink is " +
+					"unavailable");
+		}
+		// Counted before the drain thread can see the message (and
+		// subtract it), so the total never goes negative.
+		long bytes = msg.estimateBytes();
+		this.queuedBytes.addAndGet(bytes);
+		try {
+			this.queues[msg.getLane().ordinal()].put(msg);
+		} catch (InterruptedException e) {
+			this.queuedBytes.addAndGet(-bytes);
+			throw new MessageSinkException("Interrupted waiting for room in " +
+					"the " + msg.getLane() + " lane");
+		}
+		this.queued.release();
+	}
+
+	private void drainLoop() {
+		while (this.running) {
+			try {
+				if (! this.queued.tryAcquire(1000, TimeUnit.MILLISECONDS)) {
+					continue;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			int lane = this.nextLane();
+			PublishMessage msg = this.queues[lane].peek();
+			while (this.running) {
+				try {
+					this.sink.publishMessage(msg);
+					break;
+				} catch (MessageSinkException e) {
+					logger.warn("Unable to publish " + msg.getLane() +
+							" message, will retry: " + e.getMessage());
+					try {
+						this.sink.awaitAvailable(1000);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+			if (! this.running) {
+				return;
+			}
+			synchronized (this) {
+				this.queues[lane].poll();
+				this.queuedBytes.addAndGet(-msg.estimateBytes());
+				--this.credits[lane];
+				++this.publishCounts[lane];
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Weighted round robin: the highest priority non-empty lane with
+	 * credit left.  When no lane has credit, a new round starts.  Only
+	 * called with a message queued.
+	 */
+	private synchronized int nextLane() {
+		for (int round = 0; round < 2; ++round) {
+			for (Lane l : DRAIN_ORDER) {
+				int i = l.ordinal();
+				if (this.credits[i] > 0 && ! this.queues[i].isEmpty()) {
+					return i;
+				}
+			}
+			for (int i = 0; i < this.credits.length; ++i) {
+				this.credits[i] = this.weights[i];
+			}
+		}
+		// Can't get here, a permit means a queued message.
+		return Lane.DATA.ordinal();
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return this.sink.isAvailable();
+	}
+
+	/**
+	 * Messages count as published when the drain thread sends them.
+	 */
+	@Override
+	public void setPublishListener(PublishListener listener) {
+		this.sink.setPublishListener(listener);
+	}
+
+	/**
+	 * @return The messages in the lanes, including the one being sent.
+	 */
+	public int getQueuedMessages() {
+		int count = 0;
+		for (ArrayBlockingQueue<PublishMessage> q : this.queues) {
+			count += q.size();
+		}
+		return count;
+	}
+
+	@Override
+	public void awaitAvailable(long timeoutMillis)
+			throws InterruptedException {
+		this.sink.awaitAvailable(timeoutMillis);
+	}
+
+	@Override
+	public synchronized Object getStats() {
+		Stats stats = new Stats();
+		stats.sink = this.sink.getStats();
+		Lane[] lanes = Lane.values();
+		stats.lanes = new LaneStats[lanes.length];
+		for (int i = 0; i < lanes.length; ++i) {
+			LaneStats ls = new LaneStats();
+			ls.lane = lanes[i].name().toLowerCase();
+			ls.weight = this.weights[i];
+			ls.depth = this.queues[i].size();
+			ls.publishCount = this.publishCounts[i];
+			stats.lanes[i] = ls;
+		}
+		return stats;
+	}
+
+	/**
+	 * @return The sink the lanes drain to.
+	 */
+	public MessageSink getSink() {
+		return this.sink;
+	}
+
+	/**
+	 * @return The estimated bytes of the messages in the lanes.
+	 */
+	public long getQueuedBytes() {
+		return this.queuedBytes.get();
+	}
+
+	/**
+	 * Give the lanes up to waitMillis to drain, then release the sink.
+	 */
+	public void release(long waitMillis) {
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + waitMillis;
+			long remaining = waitMillis;
+			try {
+				while (this.queued() > 0 && remaining > 0 &&
+						this.sink.isAvailable()) {
+					this.wait(Math.min(remaining, 100));
+					remaining = deadline - System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				logger.warn("Interrupted waiting for the lanes to drain");
+			}
+			if (this.queued() > 0) {
+				logger.error(String.format("Released with %d messages still " +
+						"queued", this.queued()));
+			}
+			this.running = false;
+		}
+		if (this.drainThread != null) {
+			this.drainThread.interrupt();
+		}
+		this.sink.release();
+	}
+
+	@Override
+	public void release() {
+		this.release(10000);
+	}
+
+	private int queued() {
+		int n = 0;
+		for (ArrayBlockingQueue<PublishMessage> q : this.queues) {
+			n += q.size();
+		}
+		return n;
+	}
+}
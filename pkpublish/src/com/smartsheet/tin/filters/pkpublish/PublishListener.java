@@ -0,0 +1,41 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+/**
+ * Told when a message has actually left for its destination, rather than
+ * been queued to go later.  See MessageSink.setPublishListener().
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public interface PublishListener {
+	/**
+	 * Called on whichever thread sent the message (a publisher, a drain
+	 * thread, or the connection's thread for publisher confirms), so it
+	 * must be quick and thread safe.
+	 */
+	public void published(PublishMessage msg);
+
+	/**
+	 * The message was handed to the broker but will never be delivered:
+	 * the broker nacked it, or its channel closed before confirming it.
+	 * Only sinks with publisher confirms call this.
+	 */
+	public void failed(PublishMessage msg);
+}
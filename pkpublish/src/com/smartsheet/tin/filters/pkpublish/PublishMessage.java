@@ -0,0 +1,135 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import com.smartsheet.tin.filters.common.MemoryEstimates;
+import com.smartsheet.tin.filters.common.RowMessage;
+
+/**
+ * A message to publish: its routing key and body, plus (for RowFilter row
+ * messages) the row it came from.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class PublishMessage {
+	/**
+	 * The priority lane a message is published on.
+	 */
+	public enum Lane {
+		DATA, TRANSACTION, METRICS
+	}
+
+	private String routingKey;
+	private String body;
+	private RowMessage row;
+	private long eventTimestamp;
+	private Lane lane;
+	private long seqno;
+
+	public PublishMessage(String routingKey, String body,
+			long eventTimestamp) {
+		this(routingKey, body, eventTimestamp, Lane.DATA);
+	}
+
+	public PublishMessage(String routingKey, String body,
+			long eventTimestamp, Lane lane) {
+		this.routingKey = routingKey;
+		this.body = body;
+		this.row = null;
+		this.eventTimestamp = eventTimestamp;
+		this.lane = lane;
+		this.seqno = -1;
+	}
+
+	public PublishMessage(String routingKey, RowMessage row) {
+		this.routingKey = routingKey;
+		this.body = row.getJson();
+		this.row = row;
+		this.eventTimestamp = row.getEventTimestamp();
+		this.lane = Lane.DATA;
+		this.seqno = -1;
+	}
+
+	public String getRoutingKey() {
+		return this.routingKey;
+	}
+
+	public String getBody() {
+		return this.body;
+	}
+
+	/**
+	 * @return The row the message is for, or null if it isn't a row
+	 *         message (e.g. a transaction message or a fixed message).
+	 */
+	public RowMessage getRow() {
+		return this.row;
+	}
+
+	public boolean isRowMessage() {
+		return (this.row != null);
+	}
+
+	/**
+	 * @return The extraction time of the message's event, in milliseconds.
+	 */
+	public long getEventTimestamp() {
+		return this.eventTimestamp;
+	}
+
+	public Lane getLane() {
+		return this.lane;
+	}
+
+	/**
+	 * @return The seqno of the message's event, or -1 for messages that
+	 *         aren't from an event (e.g. the metrics report).
+	 */
+	public long getSeqno() {
+		return this.seqno;
+	}
+
+	public void setSeqno(long seqno) {
+		this.seqno = seqno;
+	}
+
+	/**
+	 * @return The estimated bytes the message retains.  A row message's
+	 *         body is its row's JSON, so it is only counted once.
+	 */
+	public long estimateBytes() {
+		long size = MemoryEstimates.OBJECT_HEADER + 48 +
+				MemoryEstimates.string(this.routingKey) +
+				MemoryEstimates.string(this.body);
+		if (this.row != null) {
+			size += MemoryEstimates.OBJECT_HEADER + 64;
+			Object[] key_values = this.row.getKeyValues();
+			if (key_values != null) {
+				// The values themselves are mostly boxed numbers.
+				size += MemoryEstimates.referenceArray(key_values.length) +
+						24L * key_values.length;
+			}
+		}
+		return size;
+	}
+
+	public String toString() {
+		return String.format("<PublishMessage routingKey: '%s' row: %s>",
+				this.routingKey, this.row);
+	}
+}
@@ -0,0 +1,326 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+/**
+ * Spread the matching, formatting and publishing of events across worker
+ * lanes, partitioned by shard or schema.
+ */
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import com.continuent.tungsten.replicator.ReplicatorException;
+import com.continuent.tungsten.replicator.dbms.DBMSData;
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.dbms.RowChangeData;
+import com.continuent.tungsten.replicator.dbms.StatementData;
+import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
+import com.smartsheet.tin.filters.common.ORCFormatter;
+
+/**
+ * Each lane has its own thread, queue and ORCFormatter.  Events with the
+ * same shard ID (or schema) always go to the same lane, so they are
+ * published in order.  Events in different lanes may be published in any
+ * order relative to each other.
+ *
+ * Every submitted event gets a ticket, in submission order.  The low
+ * watermark is the highest ticket for which it and all earlier tickets
+ * have been processed, across all lanes.  submit() does not return until
+ * the low watermark is within maxInFlight of the new ticket.  Since
+ * PKPublish hands the event back to the replicator when submit() returns,
+ * the replicator never gets more than maxInFlight events ahead of what
+ * has been published.  The filter API can't defer the ack, so lanes only
+ * overlap by letting events go unpublished: with maxInFlight of 0, submit()
+ * waits for each event's own lane, and no two lanes ever run at once.
+ * PKPublish refuses that setting.
+ *
+ * Tickets, not seqnos, are used so fragmented transactions (several
+ * events with one seqno) are tracked correctly.
+ *
+ * If a lane fails to process an event, the failure is rethrown by the next
+ * call to submit() or drain(), and the lane skips the rest of its events.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class PublishPipeline {
+	private static Logger logger = Logger.getLogger(PublishPipeline.class);
+
+	/**
+	 * Does the per-event work in a lane.
+	 */
+	public interface EventProcessor {
+		public void process(ReplDBMSEvent event, PKPublishFilterRules rules,
+				ORCFormatter formatter) throws ReplicatorException;
+	}
+
+	private static class Task {
+		long ticket;
+		ReplDBMSEvent event;
+		PKPublishFilterRules rules;
+
+		Task(long ticket, ReplDBMSEvent event, PKPublishFilterRules rules) {
+			this.ticket = ticket;
+			this.event = event;
+			this.rules = rules;
+		}
+	}
+
+	private class Lane implements Runnable {
+		int index;
+		ORCFormatter formatter;
+		LinkedBlockingQueue<Task> queue;
+		// Tickets submitted to this lane and not yet processed, oldest
+		// first.  Guarded by the PublishPipeline's monitor.
+		ArrayDeque<Long> pending;
+		Thread thread;
+
+		Lane(int index, ORCFormatter formatter) {
+			this.index = index;
+			this.formatter = formatter;
+			this.queue = new LinkedBlockingQueue<Task>();
+			this.pending = new ArrayDeque<Long>();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Task task;
+				try {
+					task = this.queue.take();
+				} catch (InterruptedException e) {
+					logger.debug("Lane " + this.index + " interrupted, exiting");
+					return;
+				}
+				if (! hasFailed()) {
+					try {
+						processor.process(task.event, task.rules,
+								this.formatter);
+					} catch (Throwable e) {
+						logger.error("Lane " + this.index + " failed on event " +
+								"id: " + task.event.getEventId(), e);
+						setFailure(e);
+					}
+				}
+				taskDone(this, task);
+			}
+		}
+	}
+
+	private Lane[] lanes;
+	private boolean partitionBySchema;
+	private int maxInFlight;
+	private EventProcessor processor;
+	private long lastTicket;
+	private Throwable failure;
+
+	/**
+	 * @param formatters One ORCFormatter per lane, the number of lanes.
+	 * @param partition_by "shard" or "schema".
+	 * @param max_in_flight How many events may be unpublished when
+	 *            submit() returns.
+	 * @param processor Does the work for each event.
+	 * @throws PKPublishException if partition_by isn't valid.
+	 */
+	public PublishPipeline(ORCFormatter[] formatters, String partition_by,
+			int max_in_flight, EventProcessor processor)
+					throws PKPublishException {
+		if (partition_by == null || partition_by.equalsIgnoreCase("shard")) {
+			this.partitionBySchema = false;
+		} else if (partition_by.equalsIgnoreCase("schema")) {
+			this.partitionBySchema = true;
+		} else {
+			String err = String.format("Unknown pipeline partitioning: '%s', " +
+					"valid values are: ['shard', 'schema']", partition_by);
+			logger.error(err);
+			throw new PKPublishException(err);
+		}
+		this.maxInFlight = Math.max(0, max_in_flight);
+		this.processor = processor;
+		this.lastTicket = 0;
+		this.failure = null;
+		this.lanes = new Lane[formatters.length];
+		for (int i = 0; i < formatters.length; ++i) {
+			this.lanes[i] = new Lane(i, formatters[i]);
+		}
+	}
+
+
+	public void start() {
+		for (Lane lane : this.lanes) {
+			lane.thread = new Thread(lane, "pkpublish-lane-" + lane.index);
+			lane.thread.setDaemon(true);
+			lane.thread.start();
+		}
+		logger.info(String.format("PublishPipeline started %d lanes, " +
+				"partitioned by %s, maxInFlight: %d", this.lanes.length,
+				this.partitionBySchema ? "schema" : "shard", this.maxInFlight));
+	}
+
+
+	/**
+	 * Queue an event on its lane, then wait until no more than maxInFlight
+	 * events are unpublished.
+	 *
+	 * @param event The event.
+	 * @param rules The rules in force when the event was seen.
+	 * @throws ReplicatorException if a lane has failed.
+	 * @throws InterruptedException
+	 */
+	public void submit(ReplDBMSEvent event, PKPublishFilterRules rules)
+			throws ReplicatorException, InterruptedException {
+		this.throwIfFailed();
+		Lane lane = this.lanes[this.pickLane(event)];
+		long ticket;
+		synchronized (this) {
+			ticket = ++this.lastTicket;
+			lane.pending.addLast(ticket);
+		}
+		lane.queue.put(new Task(ticket, event, rules));
+		this.awaitLowWatermark(ticket - this.maxInFlight);
+		this.throwIfFailed();
+	}
+
+
+	/**
+	 * Wait until every submitted event has been processed.  Used before
+	 * DDL (so table info changes don't race earlier events) and when
+	 * shutting down.
+	 *
+	 * @throws ReplicatorException if a lane has failed.
+	 * @throws InterruptedException
+	 */
+	public void drain() throws ReplicatorException, InterruptedException {
+		long ticket;
+		synchronized (this) {
+			ticket = this.lastTicket;
+		}
+		this.awaitLowWatermark(ticket);
+		this.throwIfFailed();
+	}
+
+
+	/**
+	 * @return The highest ticket that, with all earlier tickets, has been
+	 *         processed.
+	 */
+	public synchronized long getLowWatermark() {
+		long low = this.lastTicket;
+		for (Lane lane : this.lanes) {
+			Long oldest = lane.pending.peekFirst();
+			if (oldest != null && oldest - 1 < low) {
+				low = oldest - 1;
+			}
+		}
+		return low;
+	}
+
+
+	private synchronized void awaitLowWatermark(long ticket)
+			throws InterruptedException {
+		while (this.getLowWatermark() < ticket && this.failure == null) {
+			this.wait();
+		}
+	}
+
+
+	private synchronized void taskDone(Lane lane, Task task) {
+		lane.pending.pollFirst();
+		this.notifyAll();
+	}
+
+
+	private synchronized void setFailure(Throwable e) {
+		if (this.failure == null) {
+			this.failure = e;
+		}
+		this.notifyAll();
+	}
+
+
+	private synchronized boolean hasFailed() {
+		return this.failure != null;
+	}
+
+
+	private synchronized void throwIfFailed() throws ReplicatorException {
+		if (this.failure != null) {
+			throw new ReplicatorException("PKPublish pipeline lane failed: " +
+					this.failure.toString(), this.failure);
+		}
+	}
+
+
+	private int pickLane(ReplDBMSEvent event) {
+		String key = null;
+		if (this.partitionBySchema) {
+			key = getEventSchema(event);
+		}
+		if (key == null) {
+			key = event.getShardId();
+		}
+		if (key == null) {
+			return 0;
+		}
+		return (key.hashCode() & Integer.MAX_VALUE) % this.lanes.length;
+	}
+
+
+	/**
+	 * The schema of the first row change (or statement) in the event.
+	 * Transactions that span schemas are kept in order with the other
+	 * events of their first schema only.
+	 */
+	private static String getEventSchema(ReplDBMSEvent event) {
+		for (DBMSData edata : event.getData()) {
+			if (edata instanceof RowChangeData) {
+				List<OneRowChange> orcs = ((RowChangeData) edata).getRowChanges();
+				if (! orcs.isEmpty()) {
+					return orcs.get(0).getSchemaName().toLowerCase();
+				}
+			} else if (edata instanceof StatementData) {
+				String schema = ((StatementData) edata).getDefaultSchema();
+				if (schema != null) {
+					return schema.toLowerCase();
+				}
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Wait for the submitted events to finish, then stop the lanes.
+	 */
+	public void release() {
+		try {
+			this.drain();
+		} catch (Exception e) {
+			logger.warn("PublishPipeline did not drain cleanly:", e);
+		}
+		for (Lane lane : this.lanes) {
+			if (lane.thread != null) {
+				lane.thread.interrupt();
+			}
+			lane.formatter.clearFormatCache();
+		}
+		logger.info("PublishPipeline released");
+	}
+}
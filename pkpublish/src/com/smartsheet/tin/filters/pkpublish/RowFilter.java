@@ -27,9 +27,13 @@ import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.smartsheet.tin.filters.common.ColumnProjection;
 import com.smartsheet.tin.filters.common.JsonFilterChildNotFound;
 import com.smartsheet.tin.filters.common.JsonFilterException;
 import com.smartsheet.tin.filters.common.ORCFormatter;
+import com.smartsheet.tin.filters.common.RowMessage;
+import com.smartsheet.tin.filters.common.RowSelector;
+import com.smartsheet.tin.filters.common.TableKeyTracker;
 
 import static com.smartsheet.tin.filters.common.JsonFilterTools.fetchChildByName;
 import static com.smartsheet.tin.filters.common.JsonFilterTools.fetchChildString;
@@ -48,6 +52,8 @@ public class RowFilter {
 	private boolean publish;
 	private String routing_key;
 	private String msg;
+	// Column values to include in row messages, beyond the primary key.
+	private ColumnProjection payload;
 
 	public RowFilter() {
 		this.name = "";
@@ -57,6 +63,7 @@ public class RowFilter {
 		this.publish = false;
 		this.routing_key = null;
 		this.msg = null;
+		this.payload = null;
 	}
 
 	public static RowFilter newFromJson(JsonNode node) 
@@ -74,6 +81,16 @@ public class RowFilter {
 			throw new JsonFilterException(e);
 		}
 
+		JsonNode payload_jn = null;
+		try {
+			payload_jn = fetchChildByName(node, "payload", "object");
+		} catch (JsonFilterChildNotFound e) {
+			// Do nothing, only the primary key is published.
+		}
+		if (payload_jn != null) {
+			rf.setPayload(ColumnProjection.newFromJson(payload_jn));
+		}
+
 		// FIXME:  Handle actions without the excess of coupling here now.
 		// We really need a way to have the actions support an efficient
 		// visitor pattern.
@@ -175,7 +192,108 @@ public class RowFilter {
 			msgs.add(this.getMessage());
 			return msgs;
 		}
-		return orc_formatter.makeJSONStringsFromORC(orc, event);
+		return orc_formatter.makeJSONStringsFromORC(orc, event, this.payload,
+				this.getRowSelector(), 0, Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Get the messages to publish for a matched OneRowChange, with their
+	 * routing key.  Unlike getMessagesForMatch(), row messages keep the
+	 * row's table and primary key hash, so they can be routed by key.
+	 * 
+	 * @param orc The OneRowChange that the messages are for.
+	 * @param event The transaction the OneRowChange is in.
+	 * @param orc_formatter The formatter to build the messages.
+	 * @return List of messages to publish.
+	 */
+	public List<PublishMessage> getPublishMessagesForMatch(OneRowChange orc,
+			ReplDBMSEvent event, ORCFormatter orc_formatter) {
+		String routing_key = this.getRoutingKeyForMatch(orc, orc_formatter);
+		ArrayList<PublishMessage> msgs = new ArrayList<PublishMessage>();
+		if (this.hasMessage()) {
+			msgs.add(new PublishMessage(routing_key, this.getMessage(),
+					event.getExtractedTstamp().getTime()));
+			return msgs;
+		}
+		for (RowMessage row : orc_formatter.makeRowMessagesFromORC(orc, event,
+				this.payload, this.getRowSelector(), 0, Integer.MAX_VALUE)) {
+			msgs.add(new PublishMessage(routing_key, row));
+		}
+		return msgs;
+	}
+
+
+	/**
+	 * Get the messages for a range of the rows in a OneRowChange.
+	 *
+	 * A RowFilter with a fixed message counts as having a single row.
+	 *
+	 * @param orc The OneRowChange that the messages are for.
+	 * @param event The transaction the OneRowChange is in.
+	 * @param orc_formatter The formatter to build the messages.
+	 * @param first_row Index of the first row to build a message for.
+	 * @param max_rows The maximum number of rows to build messages for.
+	 * @return List of messages as strings.
+	 */
+	public List<String> getMessagesForMatch(OneRowChange orc,
+			ReplDBMSEvent event, ORCFormatter orc_formatter, int first_row,
+			int max_rows) {
+		if (this.hasMessage()) {
+			ArrayList<String> msgs = new ArrayList<String>();
+			if (first_row == 0 && max_rows > 0) {
+				msgs.add(this.getMessage());
+			}
+			return msgs;
+		}
+		return orc_formatter.makeJSONStringsFromORC(orc, event, this.payload,
+				this.getRowSelector(), first_row, max_rows);
+	}
+
+
+	/**
+	 * Find the next row, at or after from_row, that getMessagesForMatch()
+	 * will make a message for.
+	 *
+	 * @param orc The OneRowChange that the messages are for.
+	 * @param event The transaction the OneRowChange is in.
+	 * @param orc_formatter The formatter to build the messages.
+	 * @param from_row Index of the first row to look at.
+	 * @return The row's index, or -1 if no more rows will get messages.
+	 */
+	public int nextRowForMatch(OneRowChange orc, ReplDBMSEvent event,
+			ORCFormatter orc_formatter, int from_row) {
+		if (this.hasMessage()) {
+			return (from_row == 0) ? 0 : -1;
+		}
+		return orc_formatter.nextSelectedRow(orc, event, this.payload,
+				this.getRowSelector(), from_row);
+	}
+
+
+	/**
+	 * Get the number of rows getMessagesForMatch() will walk for an orc.
+	 *
+	 * @param orc The OneRowChange that the messages are for.
+	 * @param orc_formatter The formatter to build the messages.
+	 * @return The number of rows.
+	 */
+	public int getRowCountForMatch(OneRowChange orc,
+			ORCFormatter orc_formatter) {
+		if (this.hasMessage()) {
+			return 1;
+		}
+		return orc_formatter.getRowCount(orc);
+	}
+
+
+	public void setPayload(ColumnProjection payload) {
+		this.payload = payload;
+	}
+
+
+	public ColumnProjection getPayload() {
+		return this.payload;
 	}
 
 
@@ -202,10 +320,33 @@ public class RowFilter {
 	/**
 	 * Check if this RowFilter matches a OneRowChange instance.
 	 * @param orc The OneRowChange instance to check for a match.
+	 * @param key_tracker Source of table column info for column predicates.
 	 * @return true on match, false otherwise.
 	 */
-	public boolean match(OneRowChange orc) {
-		return this.pattern.match(orc);
+	public boolean match(OneRowChange orc, TableKeyTracker key_tracker) {
+		return this.pattern.match(orc, key_tracker);
+	}
+
+
+	/**
+	 * Check if some of a OneRowChange's rows, [first_row, end_row), match.
+	 * See RowPattern.match().
+	 */
+	public boolean match(OneRowChange orc, TableKeyTracker key_tracker,
+			int first_row, int end_row) {
+		return this.pattern.match(orc, key_tracker, first_row, end_row);
+	}
+
+
+	/**
+	 * @return The selector for which rows of a matched OneRowChange get
+	 *         messages, or null if they all do.
+	 */
+	private RowSelector getRowSelector() {
+		if (this.pattern != null && this.pattern.hasRowPredicates()) {
+			return this.pattern;
+		}
+		return null;
 	}
 
 	public String getName() {
@@ -19,24 +19,43 @@ package com.smartsheet.tin.filters.pkpublish;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.smartsheet.tin.filters.common.JsonFilterChildNotFound;
 import com.smartsheet.tin.filters.common.JsonFilterException;
+import com.smartsheet.tin.filters.common.ORCRowView;
+import com.smartsheet.tin.filters.common.RowSelector;
+import com.smartsheet.tin.filters.common.TableKeyInfo;
+import com.smartsheet.tin.filters.common.TableKeyTracker;
 
 import static com.smartsheet.tin.filters.common.JsonFilterTools.fetchChildByName;
-import static com.smartsheet.tin.filters.common.JsonFilterTools.fetchChildString;
+import static com.smartsheet.tin.filters.common.JsonFilterTools.confirmNodeType;
 
 import com.continuent.tungsten.replicator.dbms.OneRowChange;
 import com.continuent.tungsten.replicator.dbms.RowChangeData.ActionType;
 
-public class RowPattern {
+public class RowPattern implements RowSelector {
 	private static Logger logger = Logger.getLogger(RowPattern.class);
+	// Bound on the number of memoized (schema, table) results.
+	private static final int MAX_NAME_MATCHES = 65536;
+	// One view per matching thread, reset to each OneRowChange.
+	private static final ThreadLocal<ORCRowView> matchViews =
+			new ThreadLocal<ORCRowView>();
 	protected String schema;
 	protected String table;
+	protected NameMatcher schemaMatcher;
+	protected NameMatcher tableMatcher;
+	// schema name -> table name -> did both match.  Keyed by the strings
+	// as they appear in the events, so no case folding on the hot path.
+	protected ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>
+		nameMatches;
+	protected AtomicInteger nameMatchCount;
 	protected List<String> changeTypes;
 	protected boolean matchInsert;
 	protected boolean matchUpdate;
@@ -44,10 +63,22 @@ public class RowPattern {
 	protected boolean anyChange;
 	protected boolean anySchema;
 	protected boolean anyTable;
+	// Tests on column values, all of which a row must pass.  The columns
+	// are bound to positions once per version of a table.
+	protected ColumnPredicate[] columnPredicates;
+	protected List<String> predicateColumns;
+	// For UPDATEs, which columns must (or must not) have changed.
+	protected ChangedColumnsFilter changedColumns;
+	protected ChangedColumnsFilter unchangedColumns;
 
 	public RowPattern() {
 		this.schema = "";
 		this.table = "";
+		this.schemaMatcher = new NameMatcher();
+		this.tableMatcher = new NameMatcher();
+		this.nameMatches = new ConcurrentHashMap<String,
+				ConcurrentHashMap<String, Boolean>>();
+		this.nameMatchCount = new AtomicInteger(0);
 		this.changeTypes = new ArrayList<String>();
 		this.matchInsert = false;
 		this.matchUpdate = false;
@@ -55,6 +86,10 @@ public class RowPattern {
 		this.anyChange = false;
 		this.anySchema = false;
 		this.anyTable = false;
+		this.columnPredicates = new ColumnPredicate[0];
+		this.predicateColumns = new ArrayList<String>();
+		this.changedColumns = null;
+		this.unchangedColumns = null;
 	}
 
 
@@ -70,21 +105,199 @@ public class RowPattern {
 
 		RowPattern rp = new RowPattern();
 
-		rp.setSchema(fetchChildString(node, "schema", true));
-		rp.setTable(fetchChildString(node,  "table", true));
+		rp.setSchemas(fetchNameSpecs(node, "schema"));
+		rp.setTables(fetchNameSpecs(node, "table"));
 
 		JsonNode change_types = fetchChildByName(node, "change_types", "array");
 		for (JsonNode ctype : change_types) {
 			rp.addChangeType(ctype.asText());
 		}
+
+		JsonNode predicates_jn = null;
+		try {
+			predicates_jn = fetchChildByName(node, "column_predicates",
+					"array");
+		} catch (JsonFilterChildNotFound e) {
+			// Do nothing, the pattern doesn't look at column values.
+		}
+		if (predicates_jn != null) {
+			for (JsonNode predicate_jn : predicates_jn) {
+				rp.addColumnPredicate(ColumnPredicate.newFromJson(
+						predicate_jn));
+			}
+		}
+
+		if (node.has("changed_columns")) {
+			rp.setChangedColumns(ChangedColumnsFilter.newFromJson(
+					node.get("changed_columns"), true));
+		}
+		if (node.has("unchanged_columns")) {
+			rp.setUnchangedColumns(ChangedColumnsFilter.newFromJson(
+					node.get("unchanged_columns"), false));
+		}
 		return rp;
 	}
 
 
-	public boolean match(OneRowChange orc) {
-		return (this.matchChangeType(orc) &&
-				this.matchSchema(orc) &&
-				this.matchTable(orc));
+	/**
+	 * A "schema" or "table" may be a single name spec or an array of them.
+	 */
+	private static List<String> fetchNameSpecs(JsonNode node, String node_name)
+			throws JsonFilterException {
+		JsonNode specs_jn = fetchChildByName(node, node_name, null);
+		List<String> specs = new ArrayList<String>();
+		if (specs_jn.isArray()) {
+			for (JsonNode spec_jn : specs_jn) {
+				confirmNodeType(spec_jn, JsonNodeType.STRING, node_name, logger);
+				specs.add(spec_jn.asText());
+			}
+		} else {
+			confirmNodeType(specs_jn, JsonNodeType.STRING, node_name, logger);
+			specs.add(specs_jn.asText());
+		}
+		if (specs.isEmpty()) {
+			String err = String.format("'%s' must not be an empty list",
+					node_name);
+			logger.error(err);
+			throw new JsonFilterException(err);
+		}
+		return specs;
+	}
+
+
+	/**
+	 * Check if this pattern matches a OneRowChange.
+	 * 
+	 * If the pattern has column predicates, the OneRowChange matches when
+	 * any of its rows pass all of them; selectRow() then picks out which
+	 * rows those were.
+	 * 
+	 * @param orc The OneRowChange to match.
+	 * @param key_tracker Source of the table's columns, only used if the
+	 *            pattern has column predicates.
+	 * @return true on match.
+	 */
+	public boolean match(OneRowChange orc, TableKeyTracker key_tracker) {
+		return this.match(orc, key_tracker, 0, Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Like match(orc, key_tracker), but only rows [first_row, end_row) are
+	 * tested against the column predicates, so the rows of one large
+	 * OneRowChange can be matched in slices.  The OneRowChange matches if
+	 * any slice does.
+	 * 
+	 * @param first_row The first row to test.
+	 * @param end_row One past the last row to test; past the end is fine.
+	 * @return true on match.
+	 */
+	public boolean match(OneRowChange orc, TableKeyTracker key_tracker,
+			int first_row, int end_row) {
+		if (! (this.matchChangeType(orc) &&
+				this.matchNames(orc.getSchemaName(), orc.getTableName()))) {
+			return false;
+		}
+		if (! this.hasRowPredicates()) {
+			return true;
+		}
+
+		TableKeyInfo tki = key_tracker.lookupTableInfo(orc);
+		if (tki == null) {
+			return false;
+		}
+		ORCRowView view = matchViews.get();
+		if (view == null) {
+			view = new ORCRowView(orc);
+			matchViews.set(view);
+		} else {
+			view.reset(orc);
+		}
+		try {
+			int row_count = Math.min(end_row, view.getRowCount());
+			for (int row = first_row; row < row_count; ++row) {
+				if (this.selectRow(view, tki, row)) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			view.release();
+		}
+	}
+
+
+	/**
+	 * @return true if the pattern tests individual rows' column values.
+	 */
+	public boolean hasRowPredicates() {
+		return (this.columnPredicates.length > 0 ||
+				this.changedColumns != null ||
+				this.unchangedColumns != null);
+	}
+
+
+	/**
+	 * Check one row of a OneRowChange against the column predicates and
+	 * the changed/unchanged column filters.
+	 */
+	@Override
+	public boolean selectRow(ORCRowView view, TableKeyInfo tki, int row) {
+		if (this.changedColumns != null &&
+				! this.changedColumns.test(view, tki, row)) {
+			return false;
+		}
+		if (this.unchangedColumns != null &&
+				! this.unchangedColumns.test(view, tki, row)) {
+			return false;
+		}
+		if (this.columnPredicates.length == 0) {
+			return true;
+		}
+		int[] positions = tki.resolveColumns(this, this.predicateColumns);
+		for (int i = 0; i < this.columnPredicates.length; ++i) {
+			if (positions[i] < 0 ||
+					! this.columnPredicates[i].test(view, row, positions[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Only match UPDATEs where at least one of the columns changed.
+	 * 
+	 * @param changedColumns The filter, or null for none.
+	 */
+	public void setChangedColumns(ChangedColumnsFilter changedColumns) {
+		this.changedColumns = changedColumns;
+	}
+
+
+	/**
+	 * Only match UPDATEs where at least one of the columns did not change.
+	 * 
+	 * @param unchangedColumns The filter, or null for none.
+	 */
+	public void setUnchangedColumns(ChangedColumnsFilter unchangedColumns) {
+		this.unchangedColumns = unchangedColumns;
+	}
+
+
+	/**
+	 * Add a test on a column's value.
+	 * 
+	 * @param predicate The compiled predicate.
+	 */
+	public void addColumnPredicate(ColumnPredicate predicate) {
+		ColumnPredicate[] predicates = new ColumnPredicate[
+				this.columnPredicates.length + 1];
+		System.arraycopy(this.columnPredicates, 0, predicates, 0,
+				this.columnPredicates.length);
+		predicates[this.columnPredicates.length] = predicate;
+		this.columnPredicates = predicates;
+		this.predicateColumns.add(predicate.getColumn());
 	}
 
 
@@ -95,16 +308,34 @@ public class RowPattern {
 	 * @param schemaName The name of the schema to match, or '*'.
 	 */
 	public void setSchema(String schemaName) {
-
 		if (schemaName != null) {
-			this.schema = schemaName;
-			if (schemaName.equals("*")) {
-				this.anySchema = true;
+			List<String> specs = new ArrayList<String>();
+			specs.add(schemaName);
+			try {
+				this.setSchemas(specs);
+			} catch (RowPatternException e) {
+				// Do nothing, a single plain name always compiles.
 			}
 		}
 	}
 
 
+	/**
+	 * Set the schemas to match.
+	 * 
+	 * Each spec is an exact name, a glob, a "/regex/" or "*", see
+	 * NameMatcher.
+	 * @param specs The schema name specs, any of which may match.
+	 * @throws RowPatternException if a regex doesn't compile.
+	 */
+	public void setSchemas(List<String> specs) throws RowPatternException {
+		this.schemaMatcher = NameMatcher.compile(specs);
+		this.schema = this.schemaMatcher.toString();
+		this.anySchema = this.schemaMatcher.matchesAny();
+		this.clearNameMatches();
+	}
+
+
 	/**
 	 * Set the table to match.
 	 * 
@@ -113,14 +344,37 @@ public class RowPattern {
 	 */
 	public void setTable(String tableName) {
 		if (tableName != null) {
-			this.table = tableName;
-			if (tableName.equals("*")) {
-				this.anyTable = true;
+			List<String> specs = new ArrayList<String>();
+			specs.add(tableName);
+			try {
+				this.setTables(specs);
+			} catch (RowPatternException e) {
+				// Do nothing, a single plain name always compiles.
 			}
 		}
 	}
 
 
+	/**
+	 * Set the tables to match.
+	 * 
+	 * @param specs The table name specs, any of which may match.
+	 * @throws RowPatternException if a regex doesn't compile.
+	 */
+	public void setTables(List<String> specs) throws RowPatternException {
+		this.tableMatcher = NameMatcher.compile(specs);
+		this.table = this.tableMatcher.toString();
+		this.anyTable = this.tableMatcher.matchesAny();
+		this.clearNameMatches();
+	}
+
+
+	private void clearNameMatches() {
+		this.nameMatches.clear();
+		this.nameMatchCount.set(0);
+	}
+
+
 	/**
 	 * Add a change type to match.
 	 *
@@ -173,30 +427,69 @@ public class RowPattern {
 	}
 
 	public boolean matchSchema(OneRowChange orc) {
-		if (this.anySchema) {
-			return true;
-		}
-		return orc.getSchemaName().equalsIgnoreCase(this.schema);
+		return this.schemaMatcher.matches(orc.getSchemaName());
 	}
 
 
 	public boolean matchTable(OneRowChange orc) {
-		if (this.anyTable) {
+		return this.tableMatcher.matches(orc.getTableName());
+	}
+
+
+	/**
+	 * Check a schema and table name against the pattern.
+	 * 
+	 * The result is memoized per distinct (schema, table) pair, so the
+	 * globs and regexes are only run the first time a pair is seen.
+	 * 
+	 * @return true if both the schema and the table match.
+	 */
+	public boolean matchNames(String schemaName, String tableName) {
+		if (this.anySchema && this.anyTable) {
 			return true;
 		}
-		return orc.getTableName().equalsIgnoreCase(this.table);
-	}
+		if (schemaName == null || tableName == null) {
+			return false;
+		}
 
+		ConcurrentHashMap<String, Boolean> tables =
+				this.nameMatches.get(schemaName);
+		if (tables != null) {
+			Boolean matched = tables.get(tableName);
+			if (matched != null) {
+				return matched.booleanValue();
+			}
+		}
 
+		boolean matched = (this.schemaMatcher.matches(schemaName) &&
+				this.tableMatcher.matches(tableName));
+		if (this.nameMatchCount.incrementAndGet() > MAX_NAME_MATCHES) {
+			// Names are churning (e.g. temp tables), start over.
+			this.clearNameMatches();
+		}
+		if (tables == null) {
+			tables = new ConcurrentHashMap<String, Boolean>();
+			ConcurrentHashMap<String, Boolean> existing =
+					this.nameMatches.putIfAbsent(schemaName, tables);
+			if (existing != null) {
+				tables = existing;
+			}
+		}
+		tables.put(tableName, matched ? Boolean.TRUE : Boolean.FALSE);
+		return matched;
+	}
 
 
 	public String toString() {
 		return String.format("<RowPattern schema: '%s'  table: '%s'  " +
 				"matchInsert: %s  matchUpdate: %s  matchDelete: %s  " +
-				"anyChange: %s  anySchema: %s  anyTable: %s>",
+				"anyChange: %s  anySchema: %s  anyTable: %s  " +
+				"predicateColumns: %s  changedColumns: %s  " +
+				"unchangedColumns: %s>",
 				this.schema, this.table, this.matchInsert, this.matchUpdate,
 				this.matchDelete, this.anyChange, this.anySchema,
-				this.anyTable);
+				this.anyTable, this.predicateColumns, this.changedColumns,
+				this.unchangedColumns);
 	}
 
 }
@@ -0,0 +1,180 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.continuent.tungsten.replicator.dbms.DBMSData;
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.dbms.RowChangeData;
+import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.ORCRowView;
+import com.smartsheet.tin.filters.common.TableKeyTracker;
+
+/**
+ * Logs a breakdown of events that take longer than a threshold to match
+ * and publish.
+ *
+ * Each thread that handles events (the replicator's thread, or the
+ * pipeline lanes) has one Stats object, reused for every event, so
+ * nothing is allocated unless an event turns out to be slow.  The row,
+ * OneRowChange and compare counts are worked out from the event after the
+ * fact, and only for slow events.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class SlowEventLog {
+	private static Logger logger = Logger.getLogger(SlowEventLog.class);
+
+	/**
+	 * What one thread's current event has done so far.
+	 */
+	public static class Stats {
+		private long startNanos;
+		private long matchNanos;
+		private long publishNanos;
+		private long messages;
+		private long bytes;
+		private long lookupsAtStart;
+		private long dbLookupsAtStart;
+
+		public void matched(long nanos) {
+			this.matchNanos += nanos;
+		}
+
+		public void published(long nanos, long bytes) {
+			this.publishNanos += nanos;
+			++this.messages;
+			this.bytes += bytes;
+		}
+	}
+
+	private long thresholdNanos;
+	private TableKeyTracker keyTracker;
+	private FilterMetrics metrics;
+	private ObjectMapper mapper;
+	private final ThreadLocal<Stats> stats = new ThreadLocal<Stats>() {
+		@Override
+		protected Stats initialValue() {
+			return new Stats();
+		}
+	};
+
+	/**
+	 * @param thresholdMillis Events taking at least this long are logged.
+	 * @param keyTracker Counts the table lookups each thread makes.
+	 */
+	public SlowEventLog(long thresholdMillis, TableKeyTracker keyTracker,
+			FilterMetrics metrics) {
+		this.thresholdNanos = thresholdMillis * 1000000L;
+		this.keyTracker = keyTracker;
+		this.metrics = metrics;
+		this.mapper = new ObjectMapper();
+		this.keyTracker.setCountThreadLookups(true);
+	}
+
+
+	/**
+	 * Start timing an event on this thread.
+	 */
+	public Stats begin() {
+		Stats s = this.stats.get();
+		TableKeyTracker.LookupCounts lookups =
+				this.keyTracker.getThreadLookupCounts();
+		s.startNanos = System.nanoTime();
+		s.matchNanos = 0;
+		s.publishNanos = 0;
+		s.messages = 0;
+		s.bytes = 0;
+		s.lookupsAtStart = lookups.lookups;
+		s.dbLookupsAtStart = lookups.dbLookups;
+		return s;
+	}
+
+
+	/**
+	 * @return This thread's Stats, for adding to the current event.
+	 */
+	public Stats current() {
+		return this.stats.get();
+	}
+
+
+	/**
+	 * Finish timing an event on this thread, logging it if it was slow.
+	 *
+	 * @param rules The rules the event was matched against.
+	 */
+	public void finish(Stats s, ReplDBMSEvent event,
+			PKPublishFilterRules rules) {
+		long elapsed = System.nanoTime() - s.startNanos;
+		if (elapsed < this.thresholdNanos) {
+			return;
+		}
+		this.metrics.slowEvent();
+
+		TableKeyTracker.LookupCounts lookups =
+				this.keyTracker.getThreadLookupCounts();
+		int orcs = 0;
+		long rows = 0;
+		for (DBMSData edata : event.getData()) {
+			if (edata instanceof RowChangeData) {
+				for (OneRowChange orc :
+					((RowChangeData) edata).getRowChanges()) {
+					++orcs;
+					rows += ORCRowView.countRows(orc);
+				}
+			}
+		}
+
+		Map<String, Object> breakdown = new LinkedHashMap<String, Object>();
+		breakdown.put("seqno", event.getSeqno());
+		breakdown.put("eventId", event.getEventId());
+		breakdown.put("totalMs", millis(elapsed));
+		breakdown.put("matchMs", millis(s.matchNanos));
+		breakdown.put("publishMs", millis(s.publishNanos));
+		breakdown.put("otherMs", millis(elapsed - s.matchNanos -
+				s.publishNanos));
+		breakdown.put("oneRowChanges", orcs);
+		breakdown.put("rows", rows);
+		breakdown.put("filtersEvaluated",
+				(long) orcs * rules.getRowFilterCount());
+		breakdown.put("tableLookups", lookups.lookups - s.lookupsAtStart);
+		breakdown.put("dbLookups", lookups.dbLookups - s.dbLookupsAtStart);
+		breakdown.put("messages", s.messages);
+		breakdown.put("bytes", s.bytes);
+		try {
+			logger.warn("Slow event: " +
+					this.mapper.writeValueAsString(breakdown));
+		} catch (JsonProcessingException e) {
+			logger.warn("Slow event: " + breakdown);
+		}
+	}
+
+
+	private static double millis(long nanos) {
+		return Math.round(nanos / 100000.0) / 10.0;
+	}
+}
@@ -24,6 +24,7 @@ import static com.smartsheet.tin.filters.common.JsonFilterTools.fetchChildBoolea
 import static com.smartsheet.tin.filters.common.JsonFilterTools.confirmNodeType;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -37,6 +38,9 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
 import com.smartsheet.tin.filters.common.JsonFilterChildNotFound;
 import com.smartsheet.tin.filters.common.JsonFilterException;
+import com.smartsheet.tin.filters.common.ORCRowView;
+import com.smartsheet.tin.filters.common.ParallelRowExecutor;
+import com.smartsheet.tin.filters.common.TableKeyTracker;
 
 
 public class TransactionFilter {
@@ -60,17 +64,6 @@ public class TransactionFilter {
 	private String routing_key;
 	private String msg;
 
-	// If this TransactionFilter is publishing and not using a hard-coded
-	// message, then its message will be built from the messages for each
-	// matched and included RowFilter.  This accumulator is filled when
-	// processing a ReplDBMSEvent.
-	private List<String> row_messages;
-
-	// If any of the constituent RowFilters match and choose to publish,
-	// messages will be accumulated here.  This accumulator is filled when
-	// processing a ReplDBMSEvent.
-	private List<String> row_publish_messages;
-
 	public TransactionFilter() {
 		this.name = "";
 		this.cached_name = null;
@@ -87,9 +80,6 @@ public class TransactionFilter {
 		this.publish = false;
 		this.routing_key = null;
 		this.msg = null;
-		this.row_messages = new ArrayList<String>();
-		this.row_publish_messages = new ArrayList<String>();
-
 	}
 
 
@@ -327,14 +317,14 @@ public class TransactionFilter {
 	 * set to publish, even if the TransactionFilter does not meet its overall
 	 * matching criteria.  These filters are obtained via the method:
 	 *   getRowFilterMessagesToPublish()
-	 * on the returned object which returns a list of (routing_key, message)
-	 * Pairs.  If no RowFilters had a published match, the returned list will
-	 * be empty.
+	 * on the returned object which returns a list of PublishMessages.  If no
+	 * RowFilters had a published match, the returned list will be empty.
 	 *
 	 * In addition, the TransactionFilter itself may have matched and therefore
 	 * have a message to publish.  This message is obtained via the method:
-	 *   getTransactionFilterMessageToPublish()
-	 * on the returned object which returns a Pair of (routing key, message).
+	 *   getTransactionFilterMessagesToPublish()
+	 * on the returned object which returns the PublishMessages of the
+	 * message, possibly split into chunks.
 	 * The returned object's transactionFilterDidMatch() method can be used to
 	 * see if there is reason to fetch the TransactionFilter's message.
 	 * 
@@ -346,12 +336,29 @@ public class TransactionFilter {
 	 * ReplDBMSEvent.
 	 * 
 	 * @param event The transaction (or, potentially, transaction fragment).
+	 * @param key_tracker Source of table column info for column predicates.
 	 * @return
 	 */
-	public TransactionMatchResultAccumulator match(ReplDBMSEvent event) {
-		this.row_messages.clear();
-		this.row_publish_messages.clear();
+	public TransactionMatchResultAccumulator match(ReplDBMSEvent event,
+			TableKeyTracker key_tracker) {
+		return this.match(event, key_tracker, null);
+	}
 
+
+	/**
+	 * Like match(event, key_tracker), but transactions with enough rows
+	 * are matched across a fork/join pool, split by rows so that even a
+	 * single large OneRowChange is spread over the workers.  The compares
+	 * are recorded in the original OneRowChange order either way, so the
+	 * results (and the messages published from them) are the same.
+	 * 
+	 * @param event The transaction (or, potentially, transaction fragment).
+	 * @param key_tracker Source of table column info for column predicates.
+	 * @param parallel The pool to use, or null to match on this thread.
+	 * @return
+	 */
+	public TransactionMatchResultAccumulator match(ReplDBMSEvent event,
+			TableKeyTracker key_tracker, ParallelRowExecutor parallel) {
 		// Compare this TransactionFilter's RowFilters against each of the
 		// OneRowChange objects in this transaction.  Along the way, we keep
 		// track of whether or not each OneRowChange has been matched by at
@@ -360,22 +367,92 @@ public class TransactionFilter {
 		TransactionMatchResultAccumulator result = 
 				new TransactionMatchResultAccumulator(this, event);
 
+		List<OneRowChange> orcs = new ArrayList<OneRowChange>();
+		int total_rows = 0;
 		for (DBMSData edata : event.getData()) {
 			if (! (edata instanceof RowChangeData)) {
 				continue;
 			}
 			RowChangeData rcdata = (RowChangeData) edata;
 			for (OneRowChange orc : rcdata.getRowChanges()) {
-				for (RowFilter rf : this.row_filters) {
-					boolean matched = rf.match(orc);
-					result.recordRowFilterOrcCompare(rf, orc, matched);
+				orcs.add(orc);
+				total_rows += ORCRowView.countRows(orc);
+			}
+		}
+
+		if (parallel != null && parallel.shouldSplit(total_rows)) {
+			boolean[] matches = this.matchInParallel(orcs, key_tracker,
+					parallel);
+			int n_filters = this.row_filters.size();
+			for (int i = 0; i < orcs.size(); ++i) {
+				for (int j = 0; j < n_filters; ++j) {
+					result.recordRowFilterOrcCompare(this.row_filters.get(j),
+							orcs.get(i), matches[i * n_filters + j]);
 				}
 			}
+			return result;
+		}
+
+		for (OneRowChange orc : orcs) {
+			for (RowFilter rf : this.row_filters) {
+				boolean matched = rf.match(orc, key_tracker);
+				result.recordRowFilterOrcCompare(rf, orc, matched);
+			}
 		}
 		return result;
 	}
 
 
+	/**
+	 * Compare every RowFilter against every OneRowChange on the pool.
+	 * 
+	 * The work is split by rows: the OneRowChanges' rows are numbered one
+	 * after another (a OneRowChange with no rows still takes a number),
+	 * and each slice of numbers tests its part of each OneRowChange it
+	 * covers.  A OneRowChange matches a RowFilter if any of its slices do.
+	 * 
+	 * @return The outcomes, indexed by orc_index * n_filters + rf_index.
+	 */
+	private boolean[] matchInParallel(final List<OneRowChange> orcs,
+			final TableKeyTracker key_tracker, ParallelRowExecutor parallel) {
+		final List<RowFilter> filters = this.row_filters;
+		final int n_filters = filters.size();
+		final boolean[] matches = new boolean[orcs.size() * n_filters];
+		// starts[i] is the number of OneRowChange i's first row.
+		final int[] starts = new int[orcs.size() + 1];
+		for (int i = 0; i < orcs.size(); ++i) {
+			starts[i + 1] = starts[i] +
+					Math.max(1, ORCRowView.countRows(orcs.get(i)));
+		}
+		parallel.forEachRange(starts[orcs.size()],
+				new ParallelRowExecutor.RangeBody() {
+			@Override
+			public void run(int lo, int hi) {
+				int i = Arrays.binarySearch(starts, lo);
+				if (i < 0) {
+					// lo is inside OneRowChange (insertion point - 1).
+					i = -i - 2;
+				}
+				for (; i < orcs.size() && starts[i] < hi; ++i) {
+					OneRowChange orc = orcs.get(i);
+					int first_row = Math.max(lo, starts[i]) - starts[i];
+					int end_row = Math.min(hi, starts[i + 1]) - starts[i];
+					for (int j = 0; j < n_filters; ++j) {
+						// Slots only go from false to true, and the pool's
+						// join publishes them, so racing slices are fine.
+						if (! matches[i * n_filters + j] &&
+								filters.get(j).match(orc, key_tracker,
+										first_row, end_row)) {
+							matches[i * n_filters + j] = true;
+						}
+					}
+				}
+			}
+		});
+		return matches;
+	}
+
+
 	public String toString() {
 		return String.format("<TransactionFilter name: %s with %d RowFilters>",
 				this.getName(), this.row_filters.size());
@@ -30,10 +30,8 @@ import org.apache.log4j.Logger;
 
 import com.continuent.tungsten.replicator.dbms.OneRowChange;
 import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.smartsheet.tin.filters.common.ORCFormatter;
 import com.smartsheet.tin.filters.common.Pair;
-import com.smartsheet.tin.filters.common.TransactionInfo;
 
 public class TransactionMatchResultAccumulator {
 	private static Logger logger = Logger.getLogger(TransactionMatchResultAccumulator.class);
@@ -145,35 +143,69 @@ public class TransactionMatchResultAccumulator {
 	 * @return
 	 */
 	public boolean matched() {
+		return (this.mismatchReason() == null);
+	}
+
+
+	/**
+	 * Explain why the underlying event didn't match the filter, for the
+	 * decision trace.
+	 * 
+	 * @return The rule that wasn't met, or null if the event matched.
+	 */
+	public String mismatchReason() {
 		if (this.tfilter.mustMatchAllFilters()) {
 			if (! this.allRowFiltersMatched()) {
-				return false;
+				return "filter_match_rule ALL: not every row filter matched";
 			}
 		} else if (this.tfilter.mustMatchAnyFilters()) {
 			if (! this.anyRowFiltersMatched()) {
-				return false;
+				return "filter_match_rule ANY: no row filter matched";
 			}
 		} else if (this.tfilter.mustMatchNoFilters()) {
 			if (! this.noRowFiltersMatched()) {
-				return false;
+				return "filter_match_rule NONE: a row filter matched";
 			}
 		}
 		
 		if (this.tfilter.mustMatchAllRows()) {
 			if (! this.allRowFiltersMatched()) {
-				return false;
+				return "row_match_rule ALL: not every row filter matched";
 			}
 		} else if (this.tfilter.mustMatchAnyRows()) {
 			if (! this.anyRowFiltersMatched()) {
-				return false;
+				return "row_match_rule ANY: no row filter matched";
 			}
 		} else if (this.tfilter.mustMatchNoRows()) {
 			if (! this.noOrcsMatched()) {
-				return false;
+				return "row_match_rule NONE: a row was matched";
 			}
 		}
 
-		return true;
+		return null;
+	}
+
+
+	public TransactionFilter getTransactionFilter() {
+		return this.tfilter;
+	}
+
+
+	/**
+	 * @return Whether the RowFilter matched any OneRowChange, or null if it
+	 *         wasn't compared against any (the event had no rows).
+	 */
+	public Boolean rowFilterMatched(RowFilter rf) {
+		return this.row_filter_match_results.get(rf);
+	}
+
+
+	/**
+	 * @return The matched OneRowChanges and the RowFilter that matched
+	 *         each, in compare order.
+	 */
+	public List<Pair<OneRowChange, RowFilter>> getMatchedOrcsAndFilters() {
+		return this.matched_orcs_and_their_filters;
 	}
 
 
@@ -185,92 +217,56 @@ public class TransactionMatchResultAccumulator {
 	 * part of matches.
 	 * 
 	 * @throws PKPublishException
-	 * @return List of Pairs of Strings (routing_key, msg) to publish.
+	 * @return List of messages to publish.
 	 */
-	public List<Pair<String,String>> getRowFilterMessagesToPublish(
+	public List<PublishMessage> getRowFilterMessagesToPublish(
 			ORCFormatter orc_formatter) throws PKPublishException {
-		List<Pair<String,String>> routing_key_msg_tuples =
-				new ArrayList<Pair<String,String>>();
+		List<PublishMessage> messages = new ArrayList<PublishMessage>();
 		for (Pair<OneRowChange, RowFilter> orc_rf :
 			this.matched_orcs_and_their_filters) {
 			OneRowChange orc = orc_rf.first;
 			RowFilter rf = orc_rf.second;
 			if (rf.shouldPublish()) {
-				String routing_key = rf.getRoutingKeyForMatch(orc,
-						orc_formatter);
-				for (String msg : rf.getMessagesForMatch(orc, this.event,
-						orc_formatter)) {
-					routing_key_msg_tuples.add(Pair.of(routing_key, msg));
-				}
+				messages.addAll(rf.getPublishMessagesForMatch(orc, this.event,
+						orc_formatter));
 			}
 		}
-		return routing_key_msg_tuples;
+		return messages;
 	}
 
 
 	/**
-	 * If matched and should publish, get message its routing key.
+	 * If matched and should publish, get the messages and their routing key.
+	 * 
+	 * The transaction's message is split into chunks of at most
+	 * max_chunk_rows rows and (roughly) max_chunk_bytes bytes of row
+	 * messages.  Chunks are built lazily, as the returned Iterable is
+	 * walked, so only one chunk is held in memory at a time.  If both
+	 * limits are 0, the whole transaction is sent as a single, unchunked,
+	 * message.
 	 * 
-	 * If there is no message to publish, returns null (the caller should
-	 * have checked whether or not the transaction filter matched and if
-	 * it "intends" to publish).
+	 * If there is no message to publish, the returned Iterable is empty (the
+	 * caller should have checked whether or not the transaction filter
+	 * matched and if it "intends" to publish).
 	 * 
 	 * @param orc_formatter
-	 * @return Pair of Strings: routing key, message; or null if no message
+	 * @param max_chunk_rows Maximum rows per chunk, 0 for no limit.
+	 * @param max_chunk_bytes Maximum bytes of rows per chunk, 0 for no limit.
+	 * @return The messages to publish.
 	 * @throws PKPublishException
 	 */
-	public Pair<String,String> getTransactionFilterMessageToPublish(
-			ORCFormatter orc_formatter) throws PKPublishException {
+	public Iterable<PublishMessage> getTransactionFilterMessagesToPublish(
+			ORCFormatter orc_formatter, int max_chunk_rows,
+			int max_chunk_bytes) throws PKPublishException {
+		List<PublishMessage> no_messages = new ArrayList<PublishMessage>();
 		if (! this.matched() ) {
-			return null;
+			return no_messages;
 		}
 		if (! this.tfilter.shouldPublish()) {
-			return null;
+			return no_messages;
 		}
-		TransactionInfo ti = new TransactionInfo(this.tfilter.getName(),
-				this.event.getEventId(),
-				this.event.getExtractedTstamp().getTime());
-
-		String msg = "";
-		
-		// TODO: Cleaner handling of the two different message approaches.
-
-		if (this.tfilter.hasMessage()) {
-			ti.message = this.tfilter.getMessage();
-			try {
-				msg = orc_formatter.getMapper().writeValueAsString(ti);
-			} catch (JsonProcessingException e) {
-				String err = String.format("Failed to make JSON from " +
-						"TransactionInfo for filter: %s against " +
-						"eventId: %s, error: %s", this.tfilter.getName(),
-						this.event.getEventId(), e);
-				logger.error(err);
-				msg = ti.toBasicJSON();
-			}
-		} else {
-			for (Pair<OneRowChange,RowFilter> orc_rf :
-				this.matched_orcs_and_their_filters) {
-				OneRowChange orc = orc_rf.first;
-				RowFilter rf = orc_rf.second;
-				if (rf.shouldInclude())
-				{
-					for (String row_msg : rf.getMessagesForMatch(orc, event,
-							orc_formatter)) {
-						ti.addRow(row_msg);
-					}
-				}
-			}
-			try {
-				msg = orc_formatter.getMapper().writeValueAsString(ti);
-			} catch (JsonProcessingException e) {
-				String err = String.format("Failed getting message for " +
-						"filter: %s against eventId: %s: %s",
-						this.tfilter.getName(), this.event.getEventId(), e);
-				logger.error(err, e);
-				msg = ti.toBasicJSON();
-			}
-		}
-
-		return Pair.of(this.tfilter.getRoutingKey(), msg);
+		return new TransactionMessageChunks(this.tfilter, this.event,
+				this.matched_orcs_and_their_filters, orc_formatter,
+				max_chunk_rows, max_chunk_bytes);
 	}
 }
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2014-2015 Smartsheet.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+/**
+ * Lazily build the message(s) for a matched TransactionFilter, splitting
+ * the included rows into bounded chunks.
+ */
+package com.smartsheet.tin.filters.pkpublish;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.smartsheet.tin.filters.common.ORCFormatter;
+import com.smartsheet.tin.filters.common.Pair;
+import com.smartsheet.tin.filters.common.TransactionInfo;
+
+/**
+ * Each chunk is a TransactionInfo carrying the transaction's eventId, the
+ * chunk's index, and whether it is the final chunk.  Chunks are built
+ * one at a time as the iterator is walked, so the memory needed for a
+ * transaction message is bounded by the chunk size rather than by the size
+ * of the transaction.
+ *
+ * When neither a row nor a byte limit is given, a single chunk holding
+ * all of the rows is produced and the chunk fields are left out of the
+ * message, which keeps the message identical to an unchunked one.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class TransactionMessageChunks implements Iterable<PublishMessage> {
+	private static Logger logger = Logger.getLogger(
+			TransactionMessageChunks.class);
+
+	// Rows are formatted this many at a time when filling a chunk, so a
+	// chunk can overrun max_chunk_bytes by at most one batch of rows.
+	private static final int FORMAT_BATCH_ROWS = 64;
+
+	private TransactionFilter tfilter;
+	private ReplDBMSEvent event;
+	private List<Pair<OneRowChange, RowFilter>> matched_orcs_and_their_filters;
+	private ORCFormatter orc_formatter;
+	private int max_chunk_rows;
+	private int max_chunk_bytes;
+
+	public TransactionMessageChunks(TransactionFilter tfilter,
+			ReplDBMSEvent event,
+			List<Pair<OneRowChange, RowFilter>> matched_orcs_and_their_filters,
+			ORCFormatter orc_formatter, int max_chunk_rows,
+			int max_chunk_bytes) {
+		this.tfilter = tfilter;
+		this.event = event;
+		this.matched_orcs_and_their_filters = matched_orcs_and_their_filters;
+		this.orc_formatter = orc_formatter;
+		this.max_chunk_rows = max_chunk_rows;
+		this.max_chunk_bytes = max_chunk_bytes;
+	}
+
+
+	public boolean isChunked() {
+		return (this.max_chunk_rows > 0 || this.max_chunk_bytes > 0);
+	}
+
+
+	@Override
+	public Iterator<PublishMessage> iterator() {
+		return new ChunkIterator();
+	}
+
+
+	/**
+	 * Walks the matched (OneRowChange, RowFilter) pairs, remembering which
+	 * pair and which row within that pair's OneRowChange the next chunk
+	 * starts at.  Between chunks, the position is always on a row that
+	 * will get a message (or past the last pair), so a chunk is only
+	 * started if it will have rows, and the chunk before it knows whether
+	 * it is the last.
+	 */
+	private class ChunkIterator implements Iterator<PublishMessage> {
+		private int pair_idx;
+		private int row_idx;
+		// The current pair's row count, looked up once per pair.
+		private int row_count;
+		private int chunk_index;
+		private boolean done;
+
+		public ChunkIterator() {
+			this.pair_idx = 0;
+			this.row_idx = 0;
+			this.row_count = -1;
+			this.chunk_index = 0;
+			this.done = false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return ! this.done;
+		}
+
+		@Override
+		public PublishMessage next() {
+			if (this.done) {
+				throw new NoSuchElementException();
+			}
+			TransactionInfo ti = new TransactionInfo(tfilter.getName(),
+					event.getEventId(), event.getExtractedTstamp().getTime());
+
+			if (tfilter.hasMessage()) {
+				ti.message = tfilter.getMessage();
+				this.done = true;
+			} else {
+				if (this.chunk_index == 0) {
+					this.skipToNextRow();
+				}
+				this.fillChunk(ti);
+				this.done = (this.pair_idx >=
+						matched_orcs_and_their_filters.size());
+			}
+
+			if (isChunked()) {
+				ti.chunkIndex = this.chunk_index;
+				ti.lastChunk = this.done;
+			}
+			this.chunk_index++;
+			return new PublishMessage(tfilter.getRoutingKey(), this.toJSON(ti),
+					event.getExtractedTstamp().getTime(),
+					PublishMessage.Lane.TRANSACTION);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Add row messages to ti until the chunk limits are reached or
+		 * the included rows run out.
+		 */
+		private void fillChunk(TransactionInfo ti) {
+			long chunk_bytes = 0;
+			while (this.pair_idx < matched_orcs_and_their_filters.size()) {
+				Pair<OneRowChange, RowFilter> orc_rf =
+						matched_orcs_and_their_filters.get(this.pair_idx);
+				int want = this.row_count - this.row_idx;
+				if (max_chunk_rows > 0) {
+					want = Math.min(want, max_chunk_rows - ti.rows.size());
+				}
+				if (max_chunk_bytes > 0) {
+					want = Math.min(want, FORMAT_BATCH_ROWS);
+				}
+				if (want <= 0) {
+					return;
+				}
+
+				for (String row_msg : orc_rf.second.getMessagesForMatch(
+						orc_rf.first, event, orc_formatter, this.row_idx,
+						want)) {
+					ti.addRow(row_msg);
+					chunk_bytes += row_msg.length();
+				}
+				this.row_idx += want;
+				this.skipToNextRow();
+
+				if (max_chunk_bytes > 0 && chunk_bytes >= max_chunk_bytes) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Move the position to the next row that will get a message,
+		 * skipping rows the RowFilters don't select, pairs that aren't
+		 * included, and tables with no primary key.
+		 */
+		private void skipToNextRow() {
+			while (this.pair_idx < matched_orcs_and_their_filters.size()) {
+				Pair<OneRowChange, RowFilter> orc_rf =
+						matched_orcs_and_their_filters.get(this.pair_idx);
+				RowFilter rf = orc_rf.second;
+				if (rf.shouldInclude()) {
+					if (this.row_count < 0) {
+						this.row_count = rf.getRowCountForMatch(orc_rf.first,
+								orc_formatter);
+					}
+					int row = (this.row_idx < this.row_count) ?
+							rf.nextRowForMatch(orc_rf.first, event,
+									orc_formatter, this.row_idx) : -1;
+					if (row >= 0) {
+						this.row_idx = row;
+						return;
+					}
+				}
+				this.pair_idx++;
+				this.row_idx = 0;
+				this.row_count = -1;
+			}
+		}
+
+		private String toJSON(TransactionInfo ti) {
+			try {
+				return orc_formatter.getMapper().writeValueAsString(ti);
+			} catch (JsonProcessingException e) {
+				String err = String.format("Failed getting message for " +
+						"filter: %s against eventId: %s chunk: %d: %s",
+						tfilter.getName(), event.getEventId(),
+						this.chunk_index, e);
+				logger.error(err, e);
+				return ti.toBasicJSON();
+			}
+		}
+	}
+}
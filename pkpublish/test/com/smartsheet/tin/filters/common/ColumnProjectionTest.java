@@ -0,0 +1,157 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.dbms.RowChangeData.ActionType;
+import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class ColumnProjectionTest {
+	private ObjectMapper mapper;
+	private ORCFormatter formatter;
+
+	@Before
+	public void setUp() {
+		this.mapper = new ObjectMapper();
+		FilterMetrics metrics = new FilterMetrics();
+		TestTables.Tracker tracker = new TestTables.Tracker(metrics);
+		tracker.addTable("shop", "orders",
+				TestTables.table(1, "id", "status", "note"));
+		this.formatter = new ORCFormatter(tracker, metrics);
+	}
+
+	private ColumnProjection projection(String json) throws Exception {
+		return ColumnProjection.newFromJson(this.mapper.readTree(json));
+	}
+
+	private JsonNode format(OneRowChange orc, ColumnProjection projection)
+			throws Exception {
+		ReplDBMSEvent event = TestTables.event(1, orc);
+		List<String> rows = this.formatter.makeJSONStringsFromORC(orc, event,
+				projection, null, 0, Integer.MAX_VALUE);
+		assertEquals(1, rows.size());
+		return this.mapper.readTree(rows.get(0));
+	}
+
+	private static OneRowChange update() {
+		OneRowChange orc = TestTables.orc("shop", "orders", ActionType.UPDATE);
+		TestTables.addBeforeRow(orc, 7L, "open", "n");
+		TestTables.addAfterRow(orc, 7L, "shipped", "n");
+		return orc;
+	}
+
+	@Test
+	public void parsesColumnsAndFlags() throws Exception {
+		ColumnProjection cp = this.projection(
+				"{\"columns\": [\"status\"], \"changed_only\": true}");
+		assertEquals(Arrays.asList("status"), cp.getColumnNames());
+		assertTrue(cp.isChangedOnly());
+		assertFalse(cp.includeBeforeImage());
+
+		cp = this.projection("{\"columns\": \"*\", \"before_image\": true}");
+		assertNull(cp.getColumnNames());
+		assertTrue(cp.includeBeforeImage());
+	}
+
+	@Test(expected = JsonFilterException.class)
+	public void rejectsOtherColumnSpecs() throws Exception {
+		this.projection("{\"columns\": 3}");
+	}
+
+	@Test
+	public void resolvesNamesIgnoringCase() throws Exception {
+		TableKeyInfo tki = TestTables.table(1, "id", "status", "note");
+		ColumnProjection cp = this.projection(
+				"{\"columns\": [\"NOTE\", \"missing\", \"id\"]}");
+		assertTrue(Arrays.equals(new int[] { 3, -1, 1 }, cp.resolve(tki)));
+		cp = this.projection("{\"columns\": \"*\"}");
+		assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, cp.resolve(tki)));
+	}
+
+	@Test
+	public void sameOutputComparesEverySetting() throws Exception {
+		ColumnProjection a = this.projection("{\"columns\": [\"status\"]}");
+		assertTrue(ColumnProjection.sameOutput(a,
+				this.projection("{\"columns\": [\"status\"]}")));
+		assertFalse(ColumnProjection.sameOutput(a,
+				this.projection("{\"columns\": \"*\"}")));
+		assertFalse(ColumnProjection.sameOutput(a, this.projection(
+				"{\"columns\": [\"status\"], \"changed_only\": true}")));
+		assertFalse(ColumnProjection.sameOutput(a, null));
+		assertTrue(ColumnProjection.sameOutput(null, null));
+	}
+
+	@Test
+	public void withoutProjectionOnlyTheKeyIsSent() throws Exception {
+		JsonNode row = this.format(update(), null);
+		assertEquals(7, row.get("primaryKey").get(0).get("value").asLong());
+		assertNull(row.get("columns"));
+		assertNull(row.get("before"));
+	}
+
+	@Test
+	public void allColumnsOfTheAfterImage() throws Exception {
+		JsonNode row = this.format(update(),
+				this.projection("{\"columns\": \"*\"}"));
+		assertEquals("shipped", row.get("columns").get("status").asText());
+		assertEquals("n", row.get("columns").get("note").asText());
+		assertNull(row.get("before"));
+	}
+
+	@Test
+	public void changedOnlyWithBeforeImage() throws Exception {
+		JsonNode row = this.format(update(), this.projection(
+				"{\"columns\": \"*\", \"changed_only\": true, " +
+				"\"before_image\": true}"));
+		JsonNode columns = row.get("columns");
+		assertEquals(1, columns.size());
+		assertEquals("shipped", columns.get("status").asText());
+		JsonNode before = row.get("before");
+		assertEquals(1, before.size());
+		assertEquals("open", before.get("status").asText());
+	}
+
+	@Test
+	public void deletesUseTheBeforeImage() throws Exception {
+		OneRowChange orc = TestTables.orc("shop", "orders", ActionType.DELETE);
+		TestTables.addBeforeRow(orc, 9L, "open", "gone");
+		JsonNode row = this.format(orc, this.projection(
+				"{\"columns\": [\"note\"], \"before_image\": true}"));
+		assertEquals(9, row.get("primaryKey").get(0).get("value").asLong());
+		assertEquals("gone", row.get("columns").get("note").asText());
+		// A DELETE's only image is its before image.
+		assertNull(row.get("before"));
+	}
+}
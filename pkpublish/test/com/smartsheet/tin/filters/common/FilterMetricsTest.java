@@ -0,0 +1,148 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class FilterMetricsTest {
+	private FilterMetrics metrics;
+
+	@Before
+	public void setUp() {
+		this.metrics = new FilterMetrics();
+	}
+
+	private Object value(String name) {
+		return this.metrics.getValue(name);
+	}
+
+	@Test
+	public void lastPublishedSeqnoOnlyMovesForward() {
+		this.metrics.eventArrived(12, System.currentTimeMillis());
+		this.metrics.published(10, 0);
+		this.metrics.published(8, 0);
+		assertEquals(Long.valueOf(10), this.value("lastPublishedSeqno"));
+		assertEquals(Long.valueOf(2), this.value("seqnoLag"));
+	}
+
+	@Test
+	public void lostMessagesHoldTheLastPublishedSeqno() {
+		this.metrics.eventArrived(20, System.currentTimeMillis());
+		this.metrics.published(5, 0);
+		this.metrics.messageLost(7);
+		this.metrics.published(20, 0);
+		assertEquals(Long.valueOf(6), this.value("lastPublishedSeqno"));
+		assertEquals(Long.valueOf(14), this.value("seqnoLag"));
+		assertEquals(Long.valueOf(1), this.value("lostMessageCount"));
+	}
+
+	@Test
+	public void lostMessagesPullTheLastPublishedSeqnoBack() {
+		// A later event's message was confirmed before an earlier one's
+		// was nacked.
+		this.metrics.published(9, 0);
+		this.metrics.messageLost(4);
+		assertEquals(Long.valueOf(3), this.value("lastPublishedSeqno"));
+		// A later loss doesn't lift the hold.
+		this.metrics.messageLost(6);
+		this.metrics.published(9, 0);
+		assertEquals(Long.valueOf(3), this.value("lastPublishedSeqno"));
+		assertEquals(Long.valueOf(2), this.value("lostMessageCount"));
+	}
+
+	@Test
+	public void lostReportsAreOnlyCounted() {
+		this.metrics.messageLost(-1);
+		this.metrics.published(9, 0);
+		assertEquals(Long.valueOf(9), this.value("lastPublishedSeqno"));
+		assertEquals(Long.valueOf(1), this.value("lostMessageCount"));
+	}
+
+	private JsonNode distinctKeys() throws Exception {
+		return new ObjectMapper().readTree(this.metrics.makeReport())
+				.get("distinctKeys");
+	}
+
+	private static void assertNear(long expected, JsonNode value) {
+		long actual = value.asLong();
+		// Precision 10 is about 3% standard error.
+		assertTrue(expected + " vs " + actual,
+				Math.abs(actual - expected) <= expected / 10 + 1);
+	}
+
+	private void publishKeys(String table, int from, int to) {
+		for (int key = from; key < to; ++key) {
+			this.metrics.rowPublished(table, key);
+		}
+	}
+
+	@Test
+	public void distinctKeysPerTable() throws Exception {
+		this.metrics.setDistinctKeysMaxTables(2);
+		this.publishKeys("shop.orders", 0, 500);
+		this.publishKeys("shop.orders", 0, 500);
+		this.publishKeys("shop.items", 0, 50);
+		// Past the table limit, tables share one sketch.
+		this.publishKeys("shop.users", 0, 200);
+		this.publishKeys("shop.carts", 1000, 1100);
+
+		JsonNode report = this.distinctKeys();
+		List<String> tables = new ArrayList<String>();
+		Iterator<String> names = report.fieldNames();
+		while (names.hasNext()) {
+			tables.add(names.next());
+		}
+		assertEquals("[(other), shop.items, shop.orders]", tables.toString());
+		assertNear(500, report.get("shop.orders").get("interval"));
+		assertNear(50, report.get("shop.items").get("interval"));
+		assertNear(300, report.get("(other)").get("interval"));
+	}
+
+	@Test
+	public void todayCountsAcrossIntervals() throws Exception {
+		this.metrics.setDistinctKeysMaxTables(4);
+		this.publishKeys("shop.orders", 0, 400);
+		JsonNode first = this.distinctKeys().get("shop.orders");
+		assertNear(400, first.get("interval"));
+		assertNear(400, first.get("today"));
+
+		this.publishKeys("shop.orders", 200, 800);
+		JsonNode second = this.distinctKeys().get("shop.orders");
+		assertNear(600, second.get("interval"));
+		assertNear(800, second.get("today"));
+
+		// A quiet interval keeps the day's count.
+		JsonNode third = this.distinctKeys().get("shop.orders");
+		assertEquals(0, third.get("interval").asLong());
+		assertNear(800, third.get("today"));
+	}
+}
@@ -0,0 +1,100 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class HyperLogLogTest {
+
+	private static void assertClose(long expected, long estimate,
+			double error) {
+		assertTrue("estimate " + estimate + " for " + expected,
+				Math.abs(estimate - expected) <= expected * error);
+	}
+
+	@Test
+	public void emptyIsZero() {
+		assertEquals(0, new HyperLogLog(10).estimate());
+	}
+
+	@Test
+	public void smallCountsAreExact() {
+		HyperLogLog hll = new HyperLogLog(12);
+		for (long i = 0; i < 10; ++i) {
+			hll.add(i);
+		}
+		assertEquals(10, hll.estimate());
+	}
+
+	@Test
+	public void duplicatesDontCount() {
+		HyperLogLog hll = new HyperLogLog(10);
+		for (int pass = 0; pass < 5; ++pass) {
+			for (long i = 0; i < 1000; ++i) {
+				hll.add(i);
+			}
+		}
+		assertClose(1000, hll.estimate(), 0.10);
+	}
+
+	@Test
+	public void largeCountsAreWithinTheStandardError() {
+		// 1.04 / sqrt(1024) is about 3%, allow a few standard errors.
+		HyperLogLog hll = new HyperLogLog(10);
+		for (long i = 0; i < 100000; ++i) {
+			hll.add(i * 7919);
+		}
+		assertClose(100000, hll.estimate(), 0.10);
+	}
+
+	@Test
+	public void mergeEstimatesTheUnion() {
+		HyperLogLog a = new HyperLogLog(10);
+		HyperLogLog b = new HyperLogLog(10);
+		for (long i = 0; i < 20000; ++i) {
+			a.add(i);
+		}
+		for (long i = 10000; i < 30000; ++i) {
+			b.add(i);
+		}
+		a.merge(b);
+		assertClose(30000, a.estimate(), 0.10);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void mergeNeedsTheSamePrecision() {
+		new HyperLogLog(10).merge(new HyperLogLog(11));
+	}
+
+	@Test
+	public void resetForgets() {
+		HyperLogLog hll = new HyperLogLog(10);
+		for (long i = 0; i < 1000; ++i) {
+			hll.add(i);
+		}
+		hll.reset();
+		assertEquals(0, hll.estimate());
+	}
+}
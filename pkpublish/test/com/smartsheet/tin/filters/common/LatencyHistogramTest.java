@@ -0,0 +1,99 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void smallValuesGetABucketEach() {
+		for (long v = 0; v < 32; ++v) {
+			assertEquals(v, LatencyHistogram.bucketUpperBound(
+					LatencyHistogram.bucketFor(v)));
+		}
+	}
+
+	@Test
+	public void bucketBoundsAreCloseAboveEachValue() {
+		long[] values = { 32, 33, 47, 48, 100, 1000, 65535, 65536,
+				123456789L, Long.MAX_VALUE / 3 };
+		for (long v : values) {
+			long bound = LatencyHistogram.bucketUpperBound(
+					LatencyHistogram.bucketFor(v));
+			assertTrue("bound " + bound + " below " + v, bound >= v);
+			assertTrue("bound " + bound + " too far above " + v,
+					bound - v <= v / 16);
+		}
+	}
+
+	@Test
+	public void bucketsDontOverlap() {
+		long previous = -1;
+		for (int b = 0; b < 200; ++b) {
+			long bound = LatencyHistogram.bucketUpperBound(b);
+			assertTrue(bound > previous);
+			assertEquals(b, LatencyHistogram.bucketFor(bound));
+			assertEquals(b, LatencyHistogram.bucketFor(previous + 1));
+			previous = bound;
+		}
+	}
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		// 1..1000 microseconds.
+		for (long us = 1; us <= 1000; ++us) {
+			h.record(us * 1000);
+		}
+		LatencyHistogram.Snapshot s = h.snapshotAndReset();
+		assertEquals(1000, s.count);
+		assertEquals(1000.0, s.maxMicros, 0.0);
+		assertEquals(500.0, s.p50Micros, 500.0 / 16);
+		assertEquals(990.0, s.p99Micros, 990.0 / 16);
+		assertTrue(s.p50Micros >= 500.0);
+		assertTrue(s.p999Micros <= s.maxMicros);
+	}
+
+	@Test
+	public void snapshotStartsANewInterval() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(5000);
+		assertEquals(1, h.snapshotAndReset().count);
+		LatencyHistogram.Snapshot s = h.snapshotAndReset();
+		assertEquals(0, s.count);
+		assertEquals(0.0, s.maxMicros, 0.0);
+		assertEquals(0.0, s.p50Micros, 0.0);
+	}
+
+	@Test
+	public void negativeDurationsCountAsZero() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(-10);
+		LatencyHistogram.Snapshot s = h.snapshotAndReset();
+		assertEquals(1, s.count);
+		assertEquals(0.0, s.p50Micros, 0.0);
+	}
+}
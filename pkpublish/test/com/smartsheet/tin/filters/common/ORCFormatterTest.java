@@ -0,0 +1,102 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.dbms.RowChangeData.ActionType;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class ORCFormatterTest {
+	private ORCFormatter formatter;
+
+	@Before
+	public void setUp() {
+		FilterMetrics metrics = new FilterMetrics();
+		TestTables.Tracker tracker = new TestTables.Tracker(metrics);
+		tracker.addTable("shop", "orders",
+				TestTables.table(2, "region", "id", "status"));
+		this.formatter = new ORCFormatter(tracker, metrics);
+	}
+
+	private List<RowMessage> format(OneRowChange orc) {
+		return this.formatter.makeRowMessagesFromORC(orc,
+				TestTables.event(1, orc), null, null, 0, Integer.MAX_VALUE);
+	}
+
+	private static OneRowChange inserts() {
+		OneRowChange orc = TestTables.orc("shop", "orders", ActionType.INSERT);
+		TestTables.addAfterRow(orc, 1L, 10L, "open");
+		TestTables.addAfterRow(orc, 1L, 11L, "open");
+		TestTables.addAfterRow(orc, 1L, 10L, "shipped");
+		return orc;
+	}
+
+	@Test
+	public void rowKeysAreOffByDefault() {
+		List<RowMessage> rows = this.format(inserts());
+		assertEquals(3, rows.size());
+		for (RowMessage row : rows) {
+			assertEquals(0, row.getKeyHash());
+			assertNull(row.getKeyValues());
+		}
+		assertFalse(rows.get(0).sameRow(rows.get(2)));
+	}
+
+	@Test
+	public void keyHashesWithoutValues() {
+		this.formatter.setRowKeys(true, false);
+		List<RowMessage> rows = this.format(inserts());
+		assertEquals(rows.get(0).getKeyHash(), rows.get(2).getKeyHash());
+		assertTrue(rows.get(0).getKeyHash() != rows.get(1).getKeyHash());
+		assertNull(rows.get(0).getKeyValues());
+	}
+
+	@Test
+	public void keyValuesBringTheirHashes() {
+		this.formatter.setRowKeys(false, true);
+		List<RowMessage> rows = this.format(inserts());
+		assertEquals(2, rows.get(0).getKeyValues().length);
+		assertEquals(10L, rows.get(0).getKeyValues()[1]);
+		assertTrue(rows.get(0).getKeyHash() != 0);
+		assertTrue(rows.get(0).sameRow(rows.get(2)));
+		assertFalse(rows.get(0).sameRow(rows.get(1)));
+	}
+
+	@Test
+	public void deletesTakeTheKeyFromTheBeforeImage() {
+		this.formatter.setRowKeys(true, true);
+		long insert_hash = this.format(inserts()).get(0).getKeyHash();
+		OneRowChange orc = TestTables.orc("shop", "orders", ActionType.DELETE);
+		TestTables.addBeforeRow(orc, 1L, 10L, "shipped");
+		RowMessage row = this.format(orc).get(0);
+		assertEquals(insert_hash, row.getKeyHash());
+		assertEquals(10L, row.getKeyValues()[1]);
+	}
+}
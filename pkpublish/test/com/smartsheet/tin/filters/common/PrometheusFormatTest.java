@@ -0,0 +1,131 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class PrometheusFormatTest {
+
+	private static String render(Map<String, Object> values,
+			String... counters) {
+		Set<String> counter_names =
+				new HashSet<String>(Arrays.asList(counters));
+		return PrometheusFormat.render(values, counter_names, "pk1");
+	}
+
+	@Test
+	public void snakeCasesNames() {
+		assertEquals("total_event_count",
+				PrometheusFormat.snakeCase("totalEventCount"));
+		assertEquals("seqno_lag", PrometheusFormat.snakeCase("seqnoLag"));
+		assertEquals("errors", PrometheusFormat.snakeCase("errors"));
+	}
+
+	@Test
+	public void countersLoseCountAndGainTotal() {
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("totalEventCount", 42L);
+		values.put("ruleFileReloads", 3L);
+		String text = render(values, "totalEventCount", "ruleFileReloads");
+		assertTrue(text, text.contains(
+				"# TYPE pkpublish_total_event_total counter\n" +
+				"pkpublish_total_event_total{filter=\"pk1\"} 42\n"));
+		assertTrue(text, text.contains(
+				"pkpublish_rule_file_reloads_total{filter=\"pk1\"} 3\n"));
+		assertFalse(text, text.contains("_count_total"));
+	}
+
+	@Test
+	public void gaugesKeepTheirNames() {
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("seqnoLag", 7L);
+		values.put("memoryMb", 1.5);
+		values.put("brokerBlocked", true);
+		values.put("circuitBreakerState", "HALF_OPEN");
+		String text = render(values);
+		assertTrue(text, text.contains(
+				"# TYPE pkpublish_seqno_lag gauge\n" +
+				"pkpublish_seqno_lag{filter=\"pk1\"} 7\n"));
+		assertTrue(text, text.contains(
+				"pkpublish_memory_mb{filter=\"pk1\"} 1.5\n"));
+		assertTrue(text, text.contains(
+				"pkpublish_broker_blocked{filter=\"pk1\"} 1\n"));
+		assertTrue(text, text.contains(
+				"pkpublish_circuit_breaker_state{filter=\"pk1\"," +
+				"value=\"HALF_OPEN\"} 1\n"));
+	}
+
+	@Test
+	public void histogramsArePerStageQuantiles() {
+		LatencyHistogram.Snapshot s = new LatencyHistogram.Snapshot();
+		s.count = 5;
+		s.p50Micros = 250;
+		s.p99Micros = 1000;
+		s.p999Micros = 2000;
+		s.maxMicros = 3000000;
+		Map<String, LatencyHistogram.Snapshot> stages =
+				new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+		stages.put("match", s);
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("latency", stages);
+		String text = render(values);
+		assertTrue(text, text.contains(
+				"# TYPE pkpublish_latency_seconds gauge\n"));
+		assertTrue(text, text.contains(
+				"pkpublish_latency_seconds{filter=\"pk1\"," +
+				"stage=\"match\",quantile=\"0.5\"} 2.5E-4\n"));
+		assertTrue(text, text.contains(
+				"pkpublish_latency_seconds{filter=\"pk1\"," +
+				"stage=\"match\",quantile=\"1\"} 3\n"));
+		assertTrue(text, text.contains(
+				"pkpublish_latency_interval_count{filter=\"pk1\"," +
+				"stage=\"match\"} 5\n"));
+	}
+
+	@Test
+	public void labelValuesAreEscaped() {
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("lastError", "bad \"quote\"\\\n");
+		String text = PrometheusFormat.render(values, new HashSet<String>(),
+				"a\"b");
+		assertTrue(text, text.contains(
+				"pkpublish_last_error{filter=\"a\\\"b\"," +
+				"value=\"bad \\\"quote\\\"\\\\\\n\"} 1\n"));
+	}
+
+	@Test
+	public void otherValuesAreLeftOut() {
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("topTables", Arrays.asList("a", "b"));
+		values.put("publisherStats", new LinkedHashMap<String, Object>());
+		assertEquals("", render(values));
+	}
+}
@@ -0,0 +1,148 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import java.io.Serializable;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.continuent.tungsten.replicator.database.Column;
+import com.continuent.tungsten.replicator.dbms.DBMSData;
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.dbms.OneRowChange.ColumnSpec;
+import com.continuent.tungsten.replicator.dbms.OneRowChange.ColumnVal;
+import com.continuent.tungsten.replicator.dbms.RowChangeData;
+import com.continuent.tungsten.replicator.dbms.RowChangeData.ActionType;
+import com.continuent.tungsten.replicator.event.DBMSEvent;
+import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
+import com.continuent.tungsten.replicator.event.ReplOption;
+
+/**
+ * Tables, rows and events for tests, built without a database.
+ *
+ * Columns are at positions 1..n, as Tungsten numbers them, and the first
+ * key_count columns of a table are its primary key.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class TestTables {
+
+	/**
+	 * A key tracker that serves the tables it was given, rather than
+	 * looking them up in a database.
+	 */
+	public static class Tracker extends TableKeyTracker {
+		private Map<String, TableKeyInfo> tables;
+
+		public Tracker(FilterMetrics metrics) {
+			super(null, null, null, metrics);
+			this.tables = new HashMap<String, TableKeyInfo>();
+		}
+
+		public void addTable(String schema, String table, TableKeyInfo tki) {
+			this.tables.put(schema + "." + table, tki);
+		}
+
+		@Override
+		public synchronized TableKeyInfo lookupTableInfo(OneRowChange orc) {
+			return this.tables.get(orc.getSchemaName() + "." +
+					orc.getTableName());
+		}
+	}
+
+	/**
+	 * @param key_count How many of the columns, from the first, are the
+	 *        primary key.  Key columns are BIGINTs, the rest VARCHARs.
+	 * @param names The column names, in table order.
+	 */
+	public static TableKeyInfo table(int key_count, String... names) {
+		TableKeyInfo tki = new TableKeyInfo();
+		for (int i = 0; i < names.length; ++i) {
+			boolean key = i < key_count;
+			Column col = new Column(names[i], key ? Types.BIGINT :
+					Types.VARCHAR);
+			col.setPosition(i + 1);
+			col.setTypeDescription(key ? "BIGINT" : "VARCHAR");
+			tki.addColumn(col);
+			if (key) {
+				tki.addKey(col);
+			}
+		}
+		return tki;
+	}
+
+	public static OneRowChange orc(String schema, String table,
+			ActionType action) {
+		return new OneRowChange(schema, table, action);
+	}
+
+	/**
+	 * Add a row to the after (column) image, with a value for every
+	 * column of the table.
+	 */
+	public static void addAfterRow(OneRowChange orc, Serializable... values) {
+		addRow(orc, orc.getColumnSpec(), orc.getColumnValues(), values);
+	}
+
+	/**
+	 * Add a row to the before (key) image, with a value for every column
+	 * of the table.
+	 */
+	public static void addBeforeRow(OneRowChange orc, Serializable... values) {
+		addRow(orc, orc.getKeySpec(), orc.getKeyValues(), values);
+	}
+
+	private static void addRow(OneRowChange orc, ArrayList<ColumnSpec> specs,
+			ArrayList<ArrayList<ColumnVal>> image, Serializable[] values) {
+		if (specs.isEmpty()) {
+			for (int i = 0; i < values.length; ++i) {
+				ColumnSpec spec = orc.new ColumnSpec();
+				spec.setIndex(i + 1);
+				specs.add(spec);
+			}
+		}
+		ArrayList<ColumnVal> row = new ArrayList<ColumnVal>();
+		for (Serializable value : values) {
+			ColumnVal val = orc.new ColumnVal();
+			val.setValue(value);
+			row.add(val);
+		}
+		image.add(row);
+	}
+
+	/**
+	 * @return An event holding the OneRowChanges.
+	 */
+	public static ReplDBMSEvent event(long seqno, OneRowChange... orcs) {
+		RowChangeData rcd = new RowChangeData();
+		for (OneRowChange orc : orcs) {
+			rcd.appendOneRowChange(orc);
+		}
+		ArrayList<DBMSData> data = new ArrayList<DBMSData>();
+		data.add(rcd);
+		return new ReplDBMSEvent(seqno, new DBMSEvent(
+				"mysql-bin.000001:0000000000000100;0",
+				new LinkedList<ReplOption>(), data, true,
+				new Timestamp(1000)));
+	}
+}
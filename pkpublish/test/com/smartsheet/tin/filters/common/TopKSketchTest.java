@@ -0,0 +1,104 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class TopKSketchTest {
+
+	@Test
+	public void exactWhileUnderCapacity() {
+		TopKSketch sketch = new TopKSketch(8, TopKSketch.Rank.ROWS);
+		sketch.addRows("a", 5);
+		sketch.addRows("b", 10);
+		sketch.addRows("c", 1);
+		sketch.addMessage("b", 100);
+		List<TopKSketch.Entry> top = sketch.snapshotAndReset(2);
+		assertEquals(2, top.size());
+		assertEquals("b", top.get(0).key);
+		assertEquals(10, top.get(0).rows);
+		assertEquals(1, top.get(0).messages);
+		assertEquals(100, top.get(0).bytes);
+		assertEquals(0, top.get(0).error);
+		assertEquals("a", top.get(1).key);
+		assertEquals(5, top.get(1).rows);
+	}
+
+	@Test
+	public void newKeyTakesOverTheLowestRank() {
+		TopKSketch sketch = new TopKSketch(2, TopKSketch.Rank.ROWS);
+		sketch.addRows("a", 10);
+		sketch.addRows("b", 3);
+		sketch.addRows("c", 1);
+		List<TopKSketch.Entry> top = sketch.snapshotAndReset(2);
+		assertEquals("a", top.get(0).key);
+		assertEquals(10, top.get(0).rows);
+		// c replaced b, inheriting its rank as the error.
+		assertEquals("c", top.get(1).key);
+		assertEquals(1, top.get(1).rows);
+		assertEquals(3, top.get(1).error);
+	}
+
+	@Test
+	public void heavyKeysSurviveManyLightOnes() {
+		TopKSketch sketch = new TopKSketch(16, TopKSketch.Rank.ROWS);
+		for (int i = 0; i < 10000; ++i) {
+			sketch.addRows("light" + i, 1);
+			if (i % 10 == 0) {
+				sketch.addRows("heavy", 1);
+			}
+		}
+		List<TopKSketch.Entry> top = sketch.snapshotAndReset(1);
+		assertEquals("heavy", top.get(0).key);
+		assertTrue(top.get(0).rows <= 1000);
+		assertTrue(top.get(0).rows + top.get(0).error >= 1000);
+	}
+
+	@Test
+	public void rankedByBytes() {
+		TopKSketch sketch = new TopKSketch(4, TopKSketch.Rank.BYTES);
+		sketch.addMessage("many-small", 10);
+		sketch.addMessage("many-small", 10);
+		sketch.addMessage("many-small", 10);
+		sketch.addMessage("one-big", 1000);
+		// Rows aren't the rank, so they only count for tracked keys.
+		sketch.addRows("untracked", 50);
+		List<TopKSketch.Entry> top = sketch.snapshotAndReset(4);
+		assertEquals(2, top.size());
+		assertEquals("one-big", top.get(0).key);
+		assertEquals("many-small", top.get(1).key);
+		assertEquals(3, top.get(1).messages);
+	}
+
+	@Test
+	public void snapshotStartsOver() {
+		TopKSketch sketch = new TopKSketch(4, TopKSketch.Rank.MESSAGES);
+		sketch.addMessage("a", 1);
+		assertEquals(1, sketch.snapshotAndReset(4).size());
+		assertEquals(0, sketch.snapshotAndReset(4).size());
+	}
+}
@@ -0,0 +1,92 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.tin.filters.common.RowMessage;
+
+/**
+ * The buffer is kept blocked, so nothing is drained (and no message queue
+ * is needed).
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class BlockedBufferTest {
+	private BlockedBuffer buffer;
+
+	@Before
+	public void setUp() {
+		this.buffer = new BlockedBuffer(null, true, 1 << 20);
+		this.buffer.blocked();
+	}
+
+	@After
+	public void tearDown() {
+		this.buffer.release(0);
+	}
+
+	private static PublishMessage row(String routing_key, long key_hash,
+			Object key) {
+		return new PublishMessage(routing_key, new RowMessage("{}", "shop",
+				"orders", "UPDATE", key_hash, new Object[] { key }, 1000));
+	}
+
+	@Test
+	public void inactiveBufferDoesntTakeMessages() throws Exception {
+		BlockedBuffer idle = new BlockedBuffer(null, true, 1 << 20);
+		assertFalse(idle.offer(row("rk", 7, Long.valueOf(1))));
+	}
+
+	@Test
+	public void sameRowIsCoalesced() throws Exception {
+		assertTrue(this.buffer.offer(row("rk", 7, Long.valueOf(1))));
+		assertTrue(this.buffer.offer(row("rk", 7, Integer.valueOf(1))));
+		assertEquals(1, this.buffer.getBufferedMessages());
+		assertEquals(1, this.buffer.getCoalescedCount());
+	}
+
+	@Test
+	public void collidingHashesAreKeptApart() throws Exception {
+		this.buffer.offer(row("rk", 7, Long.valueOf(1)));
+		this.buffer.offer(row("rk", 7, Long.valueOf(2)));
+		this.buffer.offer(row("other", 7, Long.valueOf(1)));
+		assertEquals(3, this.buffer.getBufferedMessages());
+		assertEquals(0, this.buffer.getCoalescedCount());
+	}
+
+	@Test
+	public void withoutCoalescingEveryMessageIsKept() throws Exception {
+		BlockedBuffer plain = new BlockedBuffer(null, false, 1 << 20);
+		plain.blocked();
+		try {
+			plain.offer(row("rk", 7, Long.valueOf(1)));
+			plain.offer(row("rk", 7, Long.valueOf(1)));
+			assertEquals(2, plain.getBufferedMessages());
+		} finally {
+			plain.release(0);
+		}
+	}
+}
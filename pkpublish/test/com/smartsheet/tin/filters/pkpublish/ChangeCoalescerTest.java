@@ -0,0 +1,124 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.RowMessage;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class ChangeCoalescerTest {
+	private List<PublishMessage> emitted;
+	private ChangeCoalescer coalescer;
+
+	@Before
+	public void setUp() {
+		this.emitted = new ArrayList<PublishMessage>();
+		this.coalescer = new ChangeCoalescer(0, 0, 16,
+				new ChangeCoalescer.Emitter() {
+					@Override
+					public void emit(PublishMessage msg, long seqno) {
+						emitted.add(msg);
+					}
+				}, new FilterMetrics());
+	}
+
+	private static PublishMessage row(String routing_key, long key_hash,
+			Object key, String json) {
+		return new PublishMessage(routing_key, new RowMessage(json, "shop",
+				"orders", "UPDATE", key_hash, new Object[] { key }, 1000));
+	}
+
+	@Test
+	public void sameRowKeepsTheLatest() throws Exception {
+		this.coalescer.add(row("rk", 7, Long.valueOf(1), "{\"v\":1}"), 1);
+		// The same key value, of another class.
+		this.coalescer.add(row("rk", 7, Integer.valueOf(1), "{\"v\":2}"), 2);
+		this.coalescer.flush();
+		assertEquals(1, this.emitted.size());
+		String json = this.emitted.get(0).getBody();
+		assertTrue(json, json.startsWith("{\"v\":2,"));
+		assertTrue(json, json.contains("\"seqno\":2"));
+		assertTrue(json, json.contains("\"coalescedCount\":1"));
+	}
+
+	@Test
+	public void collidingHashesAreDifferentRows() throws Exception {
+		// Equal hashes, different keys: both rows must be published.
+		this.coalescer.add(row("rk", 7, Long.valueOf(1), "{\"v\":1}"), 1);
+		this.coalescer.add(row("rk", 7, Long.valueOf(2), "{\"v\":2}"), 2);
+		this.coalescer.add(row("rk", 7, Long.valueOf(1), "{\"v\":3}"), 3);
+		this.coalescer.flush();
+		assertEquals(2, this.emitted.size());
+		assertTrue(this.emitted.get(0).getBody().startsWith("{\"v\":3,"));
+		assertTrue(this.emitted.get(1).getBody().startsWith("{\"v\":2,"));
+	}
+
+	@Test
+	public void differentRoutingKeysAreKeptApart() throws Exception {
+		this.coalescer.add(row("a", 7, Long.valueOf(1), "{\"v\":1}"), 1);
+		this.coalescer.add(row("b", 7, Long.valueOf(1), "{\"v\":2}"), 2);
+		this.coalescer.flush();
+		assertEquals(2, this.emitted.size());
+	}
+
+	@Test
+	public void rowsWithoutKeyValuesAreNeverMerged() throws Exception {
+		PublishMessage a = new PublishMessage("rk", new RowMessage("{}",
+				"shop", "orders", "UPDATE", 7, null, 1000));
+		PublishMessage b = new PublishMessage("rk", new RowMessage("{}",
+				"shop", "orders", "UPDATE", 7, null, 1000));
+		this.coalescer.add(a, 1);
+		this.coalescer.add(b, 2);
+		this.coalescer.flush();
+		assertEquals(2, this.emitted.size());
+	}
+
+	@Test
+	public void otherMessagesPassThroughInOrder() throws Exception {
+		PublishMessage txn = new PublishMessage("txn", "{}", 1000,
+				PublishMessage.Lane.TRANSACTION);
+		this.coalescer.add(row("rk", 7, Long.valueOf(1), "{\"v\":1}"), 1);
+		this.coalescer.add(txn, 1);
+		this.coalescer.flush();
+		assertEquals(2, this.emitted.size());
+		assertSame(txn, this.emitted.get(1));
+	}
+
+	@Test
+	public void fullWindowFlushes() throws Exception {
+		for (long i = 0; i < 17; ++i) {
+			this.coalescer.add(row("rk", i, Long.valueOf(i), "{}"), i);
+		}
+		assertEquals(16, this.emitted.size());
+		this.coalescer.flush();
+		assertEquals(17, this.emitted.size());
+	}
+}
@@ -0,0 +1,191 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.dbms.OneRowChange.ColumnSpec;
+import com.continuent.tungsten.replicator.dbms.OneRowChange.ColumnVal;
+import com.continuent.tungsten.replicator.dbms.RowChangeData.ActionType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.JsonFilterException;
+import com.smartsheet.tin.filters.common.ORCRowView;
+import com.smartsheet.tin.filters.common.TableKeyInfo;
+import com.smartsheet.tin.filters.common.TestTables;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class ChangedColumnsFilterTest {
+	private TableKeyInfo tki;
+
+	@Before
+	public void setUp() {
+		this.tki = TestTables.table(1, "id", "status", "note", "updated_at");
+	}
+
+	private static ChangedColumnsFilter filter(boolean want_changed,
+			String... columns) {
+		return new ChangedColumnsFilter(Arrays.asList(columns), want_changed);
+	}
+
+	private static OneRowChange update(Serializable[] before,
+			Serializable[] after) {
+		OneRowChange orc = TestTables.orc("s", "t", ActionType.UPDATE);
+		TestTables.addBeforeRow(orc, before);
+		TestTables.addAfterRow(orc, after);
+		return orc;
+	}
+
+	private boolean test(ChangedColumnsFilter ccf, OneRowChange orc) {
+		return ccf.test(new ORCRowView(orc), this.tki, 0);
+	}
+
+	@Test
+	public void changedColumns() {
+		OneRowChange touched = update(
+				new Serializable[] { 1L, "open", "a", 100L },
+				new Serializable[] { 1L, "open", "a", 200L });
+		assertFalse(test(filter(true, "status", "note"), touched));
+		assertTrue(test(filter(true, "status", "updated_at"), touched));
+
+		OneRowChange closed = update(
+				new Serializable[] { 1L, "open", "a", 100L },
+				new Serializable[] { 1L, "closed", "a", 200L });
+		assertTrue(test(filter(true, "status", "note"), closed));
+	}
+
+	@Test
+	public void unchangedColumns() {
+		OneRowChange orc = update(
+				new Serializable[] { 1L, "open", "a", 100L },
+				new Serializable[] { 1L, "closed", "b", 200L });
+		assertFalse(test(filter(false, "status", "note"), orc));
+		assertTrue(test(filter(false, "id", "note"), orc));
+	}
+
+	@Test
+	public void equalValuesOfOtherTypesArentChanges() {
+		OneRowChange orc = update(
+				new Serializable[] { 1L, "open", "a", Integer.valueOf(100) },
+				new Serializable[] { 1L, "open", "a", Long.valueOf(100) });
+		assertFalse(test(filter(true, "updated_at"), orc));
+	}
+
+	@Test
+	public void otherChangeTypesPass() {
+		OneRowChange orc = TestTables.orc("s", "t", ActionType.INSERT);
+		TestTables.addAfterRow(orc, 1L, "open", "a", 100L);
+		assertTrue(test(filter(true, "status"), orc));
+		assertTrue(test(filter(false, "status"), orc));
+	}
+
+	@Test
+	public void unknownColumnsNeverMatch() {
+		OneRowChange orc = update(
+				new Serializable[] { 1L, "open", "a", 100L },
+				new Serializable[] { 1L, "closed", "a", 100L });
+		assertFalse(test(filter(true, "missing"), orc));
+	}
+
+	@Test
+	public void minimalRowImage() {
+		// The after image only has the key and the column that changed.
+		OneRowChange orc = TestTables.orc("s", "t", ActionType.UPDATE);
+		TestTables.addBeforeRow(orc, 1L, "open", "a", 100L);
+		addImageColumns(orc.getColumnSpec(), orc, 1, 2);
+		ArrayList<ColumnVal> row = new ArrayList<ColumnVal>();
+		row.add(value(orc, 1L));
+		row.add(value(orc, "closed"));
+		orc.getColumnValues().add(row);
+
+		assertTrue(test(filter(true, "status"), orc));
+		// Columns missing from the after image didn't change.
+		assertFalse(test(filter(true, "note", "updated_at"), orc));
+	}
+
+	@Test
+	public void columnsPastTheFirstMaskWord() {
+		String[] names = new String[70];
+		Serializable[] before = new Serializable[70];
+		Serializable[] after = new Serializable[70];
+		for (int i = 0; i < names.length; ++i) {
+			names[i] = "c" + i;
+			before[i] = Long.valueOf(i);
+			after[i] = Long.valueOf(i);
+		}
+		after[68] = Long.valueOf(-1);
+		this.tki = TestTables.table(1, names);
+		OneRowChange orc = update(before, after);
+		assertTrue(test(filter(true, "c3", "c68"), orc));
+		assertFalse(test(filter(true, "c3", "c67"), orc));
+	}
+
+	@Test
+	public void rowPatternOptions() throws Exception {
+		RowPattern rp = RowPattern.newFromJson(new ObjectMapper().readTree(
+				"{\"schema\": \"s\", \"table\": \"t\", " +
+				"\"change_types\": [\"UPDATE\"], " +
+				"\"changed_columns\": [\"status\"], " +
+				"\"unchanged_columns\": [\"note\"]}"));
+		TestTables.Tracker tracker = new TestTables.Tracker(
+				new FilterMetrics());
+		tracker.addTable("s", "t", this.tki);
+		assertTrue(rp.match(update(
+				new Serializable[] { 1L, "open", "a", 100L },
+				new Serializable[] { 1L, "closed", "a", 100L }), tracker));
+		assertFalse(rp.match(update(
+				new Serializable[] { 1L, "open", "a", 100L },
+				new Serializable[] { 1L, "closed", "b", 100L }), tracker));
+		assertFalse(rp.match(update(
+				new Serializable[] { 1L, "open", "a", 100L },
+				new Serializable[] { 1L, "open", "a", 200L }), tracker));
+	}
+
+	@Test(expected = JsonFilterException.class)
+	public void columnsMustBeAList() throws Exception {
+		ChangedColumnsFilter.newFromJson(new ObjectMapper().readTree(
+				"\"status\""), true);
+	}
+
+	private static void addImageColumns(ArrayList<ColumnSpec> specs,
+			OneRowChange orc, int... positions) {
+		for (int pos : positions) {
+			ColumnSpec spec = orc.new ColumnSpec();
+			spec.setIndex(pos);
+			specs.add(spec);
+		}
+	}
+
+	private static ColumnVal value(OneRowChange orc, Serializable value) {
+		ColumnVal val = orc.new ColumnVal();
+		val.setValue(value);
+		return val;
+	}
+}
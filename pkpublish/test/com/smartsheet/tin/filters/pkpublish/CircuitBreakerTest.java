@@ -0,0 +1,187 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class CircuitBreakerTest {
+
+	@Test
+	public void opensAfterTheThreshold() {
+		CircuitBreaker breaker = new CircuitBreaker(3, 10, 100);
+		assertFalse(breaker.recordFailure());
+		assertFalse(breaker.recordFailure());
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.recordFailure());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void successResetsTheFailureCount() {
+		CircuitBreaker breaker = new CircuitBreaker(2, 10, 100);
+		assertFalse(breaker.recordFailure());
+		breaker.recordSuccess();
+		assertFalse(breaker.recordFailure());
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void halfOpenLetsOneProbeThrough() {
+		CircuitBreaker breaker = new CircuitBreaker(1, 10, 100);
+		assertTrue(breaker.recordFailure());
+		breaker.reconnected();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void failedProbeReopens() {
+		CircuitBreaker breaker = new CircuitBreaker(5, 10, 100);
+		breaker.trip();
+		breaker.reconnected();
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.recordFailure());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		// Reconnecting again lets a new probe through.
+		breaker.reconnected();
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void tripOnlyCountsOnce() {
+		CircuitBreaker breaker = new CircuitBreaker(5, 10, 100);
+		assertTrue(breaker.trip());
+		assertFalse(breaker.trip());
+		assertEquals(1, breaker.getTransitionCount());
+		// Reconnecting only matters while open.
+		breaker.reconnected();
+		breaker.reconnected();
+		assertEquals(2, breaker.getTransitionCount());
+	}
+
+	@Test
+	public void backoffDoublesUpToTheMax() {
+		CircuitBreaker breaker = new CircuitBreaker(1, 100, 1000);
+		long[] ceilings = { 100, 200, 400, 800, 1000, 1000 };
+		for (long ceiling : ceilings) {
+			long delay = breaker.nextBackoffMillis();
+			assertTrue(delay + " > " + ceiling, delay <= ceiling);
+			assertTrue(delay + " < " + ceiling / 2, delay >= ceiling / 2);
+		}
+		// Closing the breaker after a reconnect starts the backoff over.
+		breaker.trip();
+		breaker.reconnected();
+		breaker.recordSuccess();
+		assertTrue(breaker.nextBackoffMillis() <= 100);
+	}
+
+	@Test
+	public void awaitNotOpenReturnsOnceHalfOpen() throws Exception {
+		final CircuitBreaker breaker = new CircuitBreaker(1, 10, 100);
+		breaker.trip();
+		Thread reconnect = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				breaker.reconnected();
+			}
+		});
+		reconnect.start();
+		breaker.awaitNotOpen(10000);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		reconnect.join();
+	}
+
+	@Test
+	public void retryBackoffIsCappedAndLeavesReconnectsAlone() {
+		CircuitBreaker breaker = new CircuitBreaker(1, 100, 1000);
+		for (int attempt = 0; attempt < 6; ++attempt) {
+			long delay = breaker.retryBackoffMillis(attempt, 250);
+			assertTrue(delay + " > 250", delay <= 250);
+		}
+		assertEquals(0, breaker.retryBackoffMillis(3, 0));
+		// Retries don't push out the next reconnect.
+		assertTrue(breaker.nextBackoffMillis() <= 100);
+	}
+
+	@Test
+	public void awaitRequestWaitsForTheProbe() throws Exception {
+		final CircuitBreaker breaker = new CircuitBreaker(1, 10, 100);
+		breaker.trip();
+		breaker.reconnected();
+		assertTrue(breaker.allowRequest());
+		Thread probe = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				breaker.recordSuccess();
+			}
+		});
+		probe.start();
+		assertTrue(breaker.awaitRequest(10000));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		probe.join();
+	}
+
+	@Test
+	public void awaitRequestFailsWhenTheProbeFails() throws Exception {
+		final CircuitBreaker breaker = new CircuitBreaker(1, 10, 100);
+		breaker.trip();
+		breaker.reconnected();
+		assertTrue(breaker.allowRequest());
+		Thread probe = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				breaker.recordFailure();
+			}
+		});
+		probe.start();
+		assertFalse(breaker.awaitRequest(10000));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		probe.join();
+		// Open: no waiting at all.
+		assertFalse(breaker.awaitRequest(10000));
+	}
+}
@@ -0,0 +1,219 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.dbms.RowChangeData.ActionType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.JsonFilterException;
+import com.smartsheet.tin.filters.common.ORCRowView;
+import com.smartsheet.tin.filters.common.TestTables;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class ColumnPredicateTest {
+	// 2^53, above which doubles can't tell neighboring integers apart.
+	private static final long BIG = 9007199254740992L;
+
+	private static ColumnPredicate predicate(String json) throws Exception {
+		return ColumnPredicate.newFromJson(new ObjectMapper().readTree(json));
+	}
+
+	/**
+	 * Test a predicate on column "v" (position 2) of an inserted row.
+	 */
+	private static boolean test(String json, Serializable value)
+			throws Exception {
+		OneRowChange orc = TestTables.orc("s", "t", ActionType.INSERT);
+		TestTables.addAfterRow(orc, 1L, value);
+		return predicate(json).test(new ORCRowView(orc), 0, 2);
+	}
+
+	/**
+	 * Test a predicate on column "v" of an updated row.
+	 */
+	private static boolean testUpdate(String json, Serializable before,
+			Serializable after) throws Exception {
+		OneRowChange orc = TestTables.orc("s", "t", ActionType.UPDATE);
+		TestTables.addBeforeRow(orc, 1L, before);
+		TestTables.addAfterRow(orc, 1L, after);
+		return predicate(json).test(new ORCRowView(orc), 0, 2);
+	}
+
+	@Test
+	public void longEqualsAnyNumberType() throws Exception {
+		String eq = "{\"column\": \"v\", \"equals\": 3}";
+		assertTrue(test(eq, Integer.valueOf(3)));
+		assertTrue(test(eq, Long.valueOf(3)));
+		assertTrue(test(eq, new BigDecimal("3.00")));
+		assertTrue(test(eq, BigInteger.valueOf(3)));
+		assertTrue(test(eq, Double.valueOf(3.0)));
+		assertFalse(test(eq, new BigDecimal("3.5")));
+		assertFalse(test(eq, "3"));
+		assertFalse(test(eq, null));
+	}
+
+	@Test
+	public void bigValuesCompareExactly() throws Exception {
+		String eq = "{\"column\": \"v\", \"equals\": " + (BIG + 1) + "}";
+		assertTrue(test(eq, new BigDecimal(BIG + 1)));
+		assertFalse(test(eq, new BigDecimal(BIG)));
+		assertTrue(test(eq, BigInteger.valueOf(BIG + 1)));
+		assertFalse(test(eq, BigInteger.valueOf(BIG)));
+		// An unsigned BIGINT past the range of a long.
+		assertFalse(test(eq, BigInteger.valueOf(Long.MAX_VALUE).shiftLeft(1)));
+
+		String in = "{\"column\": \"v\", \"in\": [1, " + (BIG + 1) + "]}";
+		assertTrue(test(in, new BigDecimal(BIG + 1)));
+		assertFalse(test(in, new BigDecimal(BIG)));
+		assertTrue(test(in, new BigDecimal("1.0")));
+		assertFalse(test(in, BigInteger.valueOf(BIG)));
+
+		String range = "{\"column\": \"v\", \"range\": {\"max\": " + BIG +
+				"}}";
+		assertTrue(test(range, new BigDecimal(BIG)));
+		assertFalse(test(range, new BigDecimal(BIG + 1)));
+		assertFalse(test(range, BigInteger.valueOf(BIG + 1)));
+		assertFalse(test(range,
+				BigInteger.valueOf(Long.MAX_VALUE).shiftLeft(1)));
+	}
+
+	@Test
+	public void rangeBoundsAreInclusive() throws Exception {
+		String range = "{\"column\": \"v\", \"range\": {\"min\": 10, " +
+				"\"max\": 20}}";
+		assertTrue(test(range, 10));
+		assertTrue(test(range, 20L));
+		assertFalse(test(range, 21));
+		assertTrue(test(range, new BigDecimal("19.99")));
+		assertFalse(test(range, new BigDecimal("20.01")));
+		assertFalse(test(range, Double.NaN));
+		assertFalse(test(range, "15"));
+	}
+
+	@Test
+	public void doubleLiterals() throws Exception {
+		assertTrue(test("{\"column\": \"v\", \"equals\": 1.5}", 1.5));
+		assertTrue(test("{\"column\": \"v\", \"in\": [1.5, 2]}", 2L));
+		assertTrue(test("{\"column\": \"v\", \"range\": {\"min\": 0.5}}",
+				1));
+	}
+
+	@Test
+	public void stringLiteralsParseAsTheValuesType() throws Exception {
+		assertTrue(test("{\"column\": \"v\", \"equals\": \"open\"}", "open"));
+		assertTrue(test("{\"column\": \"v\", \"equals\": \"open\"}",
+				"open".getBytes("UTF-8")));
+		assertTrue(test("{\"column\": \"v\", \"equals\": \"1.50\"}",
+				new BigDecimal("1.5")));
+		assertTrue(test("{\"column\": \"v\", \"equals\": \"2015-06-01\"}",
+				Timestamp.valueOf("2015-06-01 00:00:00")));
+		assertTrue(test("{\"column\": \"v\", \"range\": " +
+				"{\"min\": \"2015-06-01\", \"max\": \"2015-07-01\"}}",
+				Timestamp.valueOf("2015-06-15 12:00:00")));
+		assertFalse(test("{\"column\": \"v\", \"equals\": \"x\"}", 3L));
+		assertTrue(test("{\"column\": \"v\", \"in\": [\"a\", \"b\"]}", "b"));
+	}
+
+	@Test
+	public void isNull() throws Exception {
+		assertTrue(test("{\"column\": \"v\", \"is_null\": true}", null));
+		assertFalse(test("{\"column\": \"v\", \"is_null\": true}", 1));
+		assertTrue(test("{\"column\": \"v\", \"is_null\": false}", 1));
+		assertTrue(test("{\"column\": \"v\", \"equals\": null}", null));
+	}
+
+	@Test
+	public void changed() throws Exception {
+		String any = "{\"column\": \"v\", \"changed\": true}";
+		assertTrue(testUpdate(any, 1L, 2L));
+		assertFalse(testUpdate(any, 1L, 1));
+		assertFalse(test(any, 1L));
+
+		String from_to = "{\"column\": \"v\", \"changed\": " +
+				"{\"from\": 1, \"to\": 2}}";
+		assertTrue(testUpdate(from_to, 1, 2));
+		assertFalse(testUpdate(from_to, 3, 2));
+		assertFalse(testUpdate(from_to, 1, 3));
+	}
+
+	@Test(expected = JsonFilterException.class)
+	public void exactlyOneOperator() throws Exception {
+		predicate("{\"column\": \"v\", \"equals\": 1, \"is_null\": true}");
+	}
+
+	@Test(expected = JsonFilterException.class)
+	public void mixedInListIsRejected() throws Exception {
+		predicate("{\"column\": \"v\", \"in\": [1, \"a\"]}");
+	}
+
+	@Test
+	public void rowPatternMatchesAnyRowAndSelectsEach() throws Exception {
+		RowPattern rp = RowPattern.newFromJson(new ObjectMapper().readTree(
+				"{\"schema\": \"s\", \"table\": \"t\", " +
+				"\"change_types\": [\"INSERT\"], \"column_predicates\": [" +
+				"{\"column\": \"status\", \"equals\": \"open\"}, " +
+				"{\"column\": \"id\", \"range\": {\"min\": 10}}]}"));
+		TestTables.Tracker tracker = new TestTables.Tracker(
+				new FilterMetrics());
+		tracker.addTable("s", "t", TestTables.table(1, "id", "status"));
+
+		OneRowChange orc = TestTables.orc("s", "t", ActionType.INSERT);
+		TestTables.addAfterRow(orc, 5L, "open");
+		TestTables.addAfterRow(orc, 15L, "closed");
+		assertFalse(rp.match(orc, tracker));
+
+		TestTables.addAfterRow(orc, 20L, "open");
+		assertTrue(rp.match(orc, tracker));
+		// Only the last row is in the slice [2, 3).
+		assertFalse(rp.match(orc, tracker, 0, 2));
+		assertTrue(rp.match(orc, tracker, 2, 3));
+
+		ORCRowView view = new ORCRowView(orc);
+		assertFalse(rp.selectRow(view, tracker.lookupTableInfo(orc), 0));
+		assertFalse(rp.selectRow(view, tracker.lookupTableInfo(orc), 1));
+		assertTrue(rp.selectRow(view, tracker.lookupTableInfo(orc), 2));
+	}
+
+	@Test
+	public void missingColumnNeverMatches() throws Exception {
+		RowPattern rp = RowPattern.newFromJson(new ObjectMapper().readTree(
+				"{\"schema\": \"s\", \"table\": \"t\", " +
+				"\"change_types\": [\"INSERT\"], \"column_predicates\": [" +
+				"{\"column\": \"nope\", \"is_null\": true}]}"));
+		TestTables.Tracker tracker = new TestTables.Tracker(
+				new FilterMetrics());
+		tracker.addTable("s", "t", TestTables.table(1, "id", "status"));
+		OneRowChange orc = TestTables.orc("s", "t", ActionType.INSERT);
+		TestTables.addAfterRow(orc, 5L, null);
+		assertFalse(rp.match(orc, tracker));
+	}
+}
@@ -0,0 +1,202 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class FileSinkTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File directory;
+	private File moved;
+	private FileSink sink;
+
+	@Before
+	public void setUp() throws Exception {
+		this.directory = File.createTempFile("filesink", "");
+		this.directory.delete();
+		this.directory.mkdir();
+		this.moved = new File(this.directory.getPath() + ".moved");
+	}
+
+	@After
+	public void tearDown() {
+		if (this.sink != null) {
+			this.sink.release();
+		}
+		for (File dir : new File[] { this.directory, this.moved }) {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					f.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void ndjsonRecordsRoundTrip() throws Exception {
+		this.sink = new FileSink(this.directory.getPath(),
+				FileSink.Format.NDJSON, 1 << 20, 4096, 60000);
+		this.sink.connect();
+		this.sink.publishMessage("a.b", "{\"x\": 1}");
+		this.sink.publishMessage("a.c", "two\nlines \"quoted\"");
+		this.sink.release();
+
+		List<String[]> records = readNdjson(this.directory);
+		assertEquals(2, records.size());
+		assertEquals("a.b", records.get(0)[0]);
+		assertEquals("{\"x\": 1}", records.get(0)[1]);
+		assertEquals("a.c", records.get(1)[0]);
+		assertEquals("two\nlines \"quoted\"", records.get(1)[1]);
+	}
+
+	@Test
+	public void binaryRecordsRoundTrip() throws Exception {
+		this.sink = new FileSink(this.directory.getPath(),
+				FileSink.Format.BINARY, 1 << 20, 4096, 60000);
+		this.sink.connect();
+		this.sink.publishMessage("k", "caf\u00e9");
+		this.sink.publishMessage("k2", "");
+		this.sink.release();
+
+		List<String[]> records = readBinary(this.directory);
+		assertEquals(2, records.size());
+		assertEquals("k", records.get(0)[0]);
+		assertEquals("caf\u00e9", records.get(0)[1]);
+		assertEquals("k2", records.get(1)[0]);
+		assertEquals("", records.get(1)[1]);
+	}
+
+	@Test
+	public void rollsToNewFiles() throws Exception {
+		this.sink = new FileSink(this.directory.getPath(),
+				FileSink.Format.NDJSON, 100, 4096, 0);
+		this.sink.connect();
+		for (int i = 0; i < 6; ++i) {
+			this.sink.publishMessage("key", "message number " + i +
+					" with some padding");
+		}
+		this.sink.release();
+
+		assertTrue(this.directory.listFiles().length > 1);
+		List<String[]> records = readNdjson(this.directory);
+		assertEquals(6, records.size());
+		for (int i = 0; i < 6; ++i) {
+			assertEquals("message number " + i + " with some padding",
+					records.get(i)[1]);
+		}
+	}
+
+	@Test
+	public void failedWriteKeepsTheBatch() throws Exception {
+		// Roll on every write, so losing the directory fails the next one.
+		this.sink = new FileSink(this.directory.getPath(),
+				FileSink.Format.NDJSON, 1, 4096, 0);
+		this.sink.connect();
+		this.sink.publishMessage("key", "one");
+		assertTrue(this.sink.isAvailable());
+
+		assertTrue(this.directory.renameTo(this.moved));
+		this.sink.publishMessage("key", "two");
+		this.sink.publishMessage("key", "three");
+		assertFalse(this.sink.isAvailable());
+		this.sink.awaitAvailable(10);
+		assertFalse(this.sink.isAvailable());
+
+		assertTrue(this.directory.mkdir());
+		this.sink.awaitAvailable(10);
+		assertTrue(this.sink.isAvailable());
+		this.sink.release();
+
+		List<String[]> before = readNdjson(this.moved);
+		assertEquals(1, before.size());
+		assertEquals("one", before.get(0)[1]);
+		List<String[]> after = readNdjson(this.directory);
+		assertEquals(2, after.size());
+		assertEquals("two", after.get(0)[1]);
+		assertEquals("three", after.get(1)[1]);
+	}
+
+	@Test(expected = MessageSinkException.class)
+	public void publishBeforeConnectFails() throws Exception {
+		this.sink = new FileSink(this.directory.getPath(),
+				FileSink.Format.NDJSON, 1 << 20, 4096, 60000);
+		this.sink.publishMessage("key", "msg");
+	}
+
+	private static File[] sortedFiles(File dir) {
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static List<String[]> readNdjson(File dir) throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		List<String[]> records = new ArrayList<String[]>();
+		for (File f : sortedFiles(dir)) {
+			for (String line : Files.readAllLines(f.toPath(), UTF8)) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				JsonNode node = mapper.readTree(line);
+				records.add(new String[] { node.get("routingKey").asText(),
+						node.get("message").asText() });
+			}
+		}
+		return records;
+	}
+
+	private static List<String[]> readBinary(File dir) throws Exception {
+		List<String[]> records = new ArrayList<String[]>();
+		for (File f : sortedFiles(dir)) {
+			ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+			while (buf.hasRemaining()) {
+				records.add(new String[] { readString(buf), readString(buf) });
+			}
+		}
+		return records;
+	}
+
+	private static String readString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,116 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class LoopbackAMQPSinkTest {
+	private static final String[] QUEUES = {
+		"star", "hash", "leading", "middle", "all", "exact" };
+
+	private static LoopbackAMQPSink topicSink() throws Exception {
+		return new LoopbackAMQPSink("test-topic", "topic",
+				"star:a.*, hash:a.#, leading:#.c, middle:a.#.c, all:#, " +
+				"exact:a.b.c", 100);
+	}
+
+	/**
+	 * Publish a message and see which queues got it.
+	 */
+	private static String routedTo(LoopbackAMQPSink sink, String routingKey)
+			throws Exception {
+		sink.publishMessage(routingKey, "msg");
+		TreeSet<String> got = new TreeSet<String>();
+		for (String queue : QUEUES) {
+			if (sink.poll(queue, 0) != null) {
+				got.add(queue);
+			}
+		}
+		return got.toString();
+	}
+
+	private static String queues(String... names) {
+		return new TreeSet<String>(Arrays.asList(names)).toString();
+	}
+
+	@Test
+	public void starMatchesOneWord() throws Exception {
+		LoopbackAMQPSink sink = topicSink();
+		assertEquals(queues("star", "hash", "all"), routedTo(sink, "a.b"));
+		assertEquals(queues("hash", "all"), routedTo(sink, "a"));
+	}
+
+	@Test
+	public void hashMatchesZeroOrMoreWords() throws Exception {
+		LoopbackAMQPSink sink = topicSink();
+		assertEquals(queues("hash", "leading", "middle", "all", "exact"),
+				routedTo(sink, "a.b.c"));
+		assertEquals(queues("star", "hash", "leading", "middle", "all"),
+				routedTo(sink, "a.c"));
+		assertEquals(queues("hash", "leading", "middle", "all"),
+				routedTo(sink, "a.x.y.c"));
+		assertEquals(queues("leading", "all"), routedTo(sink, "c"));
+	}
+
+	@Test
+	public void wordsMustMatchWhole() throws Exception {
+		LoopbackAMQPSink sink = topicSink();
+		assertEquals(queues("all"), routedTo(sink, "ab.c.d"));
+		assertEquals(queues("all"), routedTo(sink, "x.cc"));
+	}
+
+	@Test
+	public void patternCharactersAreLiteral() throws Exception {
+		LoopbackAMQPSink sink = new LoopbackAMQPSink("test-regex", "topic",
+				"q:a+b.*", 10);
+		sink.publishMessage("a+b.x", "msg");
+		sink.publishMessage("aab.x", "msg");
+		assertEquals("a+b.x", sink.poll("q", 0)[0]);
+		assertEquals(null, sink.poll("q", 0));
+		assertEquals(1L, ((LoopbackAMQPSink.Stats) sink.getStats())
+				.unroutableCount);
+	}
+
+	@Test
+	public void directAndFanout() throws Exception {
+		LoopbackAMQPSink direct = new LoopbackAMQPSink("test-direct",
+				"direct", "q1:a.*, q2:a.b", 10);
+		direct.publishMessage("a.b", "msg");
+		assertEquals(null, direct.poll("q1", 0));
+		assertEquals("a.b", direct.poll("q2", 0)[0]);
+
+		LoopbackAMQPSink fanout = new LoopbackAMQPSink("test-fanout",
+				"fanout", "q1:x, q2:y", 10);
+		fanout.publishMessage("z", "msg");
+		assertEquals("z", fanout.poll("q1", 0)[0]);
+		assertEquals("z", fanout.poll("q2", 0)[0]);
+	}
+
+	@Test(expected = MessageSinkException.class)
+	public void bindingNeedsAQueue() throws Exception {
+		new LoopbackAMQPSink("test-bad", "topic", ":a.b", 10);
+	}
+}
@@ -0,0 +1,319 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.RowMessage;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class MessageSpoolTest {
+	private static final long WAIT_MILLIS = 10000;
+
+	/**
+	 * A sink that fails every publish while it's down.
+	 */
+	private static class FlakySink implements MessageSink {
+		volatile boolean up = false;
+		List<PublishMessage> published = Collections.synchronizedList(
+				new ArrayList<PublishMessage>());
+
+		@Override
+		public void connect() {
+		}
+
+		@Override
+		public void publishMessage(String routingKey, String msg)
+				throws MessageSinkException {
+			this.publishMessage(new PublishMessage(routingKey, msg, 0));
+		}
+
+		@Override
+		public void publishMessage(PublishMessage msg)
+				throws MessageSinkException {
+			if (! this.up) {
+				throw new MessageSinkException("down");
+			}
+			this.published.add(msg);
+		}
+
+		@Override
+		public boolean isAvailable() {
+			return this.up;
+		}
+
+		@Override
+		public void awaitAvailable(long timeoutMillis)
+				throws InterruptedException {
+			Thread.sleep(Math.min(timeoutMillis, 10));
+		}
+
+		@Override
+		public Object getStats() {
+			return null;
+		}
+
+		@Override
+		public void setPublishListener(PublishListener listener) {
+		}
+
+		@Override
+		public void release() {
+		}
+	}
+
+	private File directory;
+	private FlakySink sink;
+	private FilterMetrics metrics;
+	private MessageSpool spool;
+
+	@Before
+	public void setUp() throws Exception {
+		this.directory = File.createTempFile("spool", "");
+		this.directory.delete();
+		this.directory.mkdir();
+		this.sink = new FlakySink();
+		this.metrics = new FilterMetrics();
+		this.spool = this.newSpool();
+		this.spool.open();
+	}
+
+	@After
+	public void tearDown() {
+		this.spool.close();
+		for (File f : this.directory.listFiles()) {
+			f.delete();
+		}
+		this.directory.delete();
+	}
+
+	private MessageSpool newSpool() {
+		return new MessageSpool(this.directory.getPath(), 4096, 1 << 20,
+				MessageSpool.FsyncPolicy.NEVER, 1000, this.sink, this.metrics);
+	}
+
+	/**
+	 * Wait for the replay thread to publish count messages and stop
+	 * spooling.
+	 */
+	private void awaitReplayed(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while ((this.sink.published.size() < count || this.spool.isSpooling())
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, this.sink.published.size());
+		assertFalse(this.spool.isSpooling());
+	}
+
+	@Test
+	public void publishesDirectlyWhileTheSinkIsUp() throws Exception {
+		this.sink.up = true;
+		this.spool.publish(new PublishMessage("rk", "one", 1), 1);
+		assertFalse(this.spool.isSpooling());
+		assertEquals(1, this.sink.published.size());
+	}
+
+	@Test
+	public void replaysInOrderWithTheirMetadata() throws Exception {
+		this.spool.publish(new PublishMessage("rk.row", new RowMessage(
+				"{\"a\":1}", "s", "t", "UPDATE", 77, new Object[] { 1L },
+				1234)), 1);
+		this.spool.publish(new PublishMessage("rk.txn", "{}", 5555,
+				PublishMessage.Lane.TRANSACTION), 2);
+		assertTrue(this.spool.isSpooling());
+		assertTrue(this.sink.published.isEmpty());
+
+		this.sink.up = true;
+		this.awaitReplayed(2);
+
+		PublishMessage row = this.sink.published.get(0);
+		assertEquals("rk.row", row.getRoutingKey());
+		assertEquals("{\"a\":1}", row.getBody());
+		assertEquals(1234, row.getEventTimestamp());
+		assertNotNull(row.getRow());
+		assertEquals(77, row.getRow().getKeyHash());
+		assertEquals("s", row.getRow().getSchema());
+		assertEquals("t", row.getRow().getTable());
+		assertEquals("UPDATE", row.getRow().getChangeType());
+
+		PublishMessage txn = this.sink.published.get(1);
+		assertEquals("rk.txn", txn.getRoutingKey());
+		assertEquals(PublishMessage.Lane.TRANSACTION, txn.getLane());
+		assertEquals(5555, txn.getEventTimestamp());
+		assertEquals(2, this.spool.getLastReplayedSeqno());
+	}
+
+	@Test
+	public void reopenReplaysWhatWasLeft() throws Exception {
+		this.spool.publish(new PublishMessage("rk", "one", 1), 1);
+		this.spool.publish(new PublishMessage("rk", "two", 1), 2);
+		this.spool.close();
+
+		this.spool = this.newSpool();
+		this.spool.open();
+		assertTrue(this.spool.isSpooling());
+		this.sink.up = true;
+		this.awaitReplayed(2);
+		assertEquals("one", this.sink.published.get(0).getBody());
+		assertEquals("two", this.sink.published.get(1).getBody());
+	}
+
+	/**
+	 * Wait for the replay to catch up and switch back to direct publishing.
+	 */
+	private void awaitCaughtUp() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (this.spool.isSpooling() &&
+				System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(this.spool.isSpooling());
+	}
+
+	/**
+	 * Spool count messages, big enough that they fill more than one
+	 * segment, and close the spool.
+	 */
+	private void spoolAndClose(int count) throws Exception {
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < 500; ++i) {
+			padding.append('.');
+		}
+		for (int i = 0; i < count; ++i) {
+			this.spool.publish(new PublishMessage("rk", "msg-" + i + padding,
+					1), i);
+		}
+		this.spool.close();
+	}
+
+	/**
+	 * @return The spool's segment files, oldest first.
+	 */
+	private List<File> segmentFiles() {
+		List<File> segments = new ArrayList<File>();
+		for (File f : this.directory.listFiles()) {
+			if (f.getName().endsWith(".seg")) {
+				segments.add(f);
+			}
+		}
+		// Segment ids are zero-padded, so names sort by id.
+		Collections.sort(segments);
+		return segments;
+	}
+
+	@Test
+	public void corruptRecordQuarantinesTheRestOfItsSegment()
+			throws Exception {
+		this.spoolAndClose(12);
+		List<File> segments = this.segmentFiles();
+		assertTrue(segments.size() > 1);
+		File first = segments.get(0);
+		flipByte(first, "msg-3".getBytes("UTF-8"));
+
+		this.spool = this.newSpool();
+		this.spool.open();
+		this.sink.up = true;
+		this.awaitCaughtUp();
+		assertEquals(Long.valueOf(1),
+				this.metrics.getValue("spoolCorruptSegmentCount"));
+		assertTrue(new File(first.getPath() + ".corrupt").exists());
+
+		// The records before the damage were replayed, and so was the
+		// next segment.
+		List<PublishMessage> published = this.sink.published;
+		assertTrue(published.size() > 3 && published.size() < 12);
+		for (int i = 0; i < 3; ++i) {
+			assertTrue(published.get(i).getBody().startsWith("msg-" + i + "."));
+		}
+		assertTrue(published.get(published.size() - 1).getBody()
+				.startsWith("msg-11."));
+
+		// The spool carries on once the segment is set aside.
+		this.sink.up = false;
+		this.spool.publish(new PublishMessage("rk", "again", 1), 12);
+		this.sink.up = true;
+		this.awaitCaughtUp();
+		assertEquals("again",
+				published.get(published.size() - 1).getBody());
+	}
+
+	@Test
+	public void damagedLastRecordIsAnUnfinishedWrite() throws Exception {
+		this.spool.publish(new PublishMessage("rk", "one", 1), 1);
+		this.spool.publish(new PublishMessage("rk", "two", 1), 2);
+		this.spool.close();
+		List<File> segments = this.segmentFiles();
+		assertEquals(1, segments.size());
+		flipByte(segments.get(0), "two".getBytes("UTF-8"));
+
+		// A crash mid-write looks the same, so the record is dropped
+		// rather than quarantined.
+		this.spool = this.newSpool();
+		this.spool.open();
+		this.sink.up = true;
+		this.awaitReplayed(1);
+		assertEquals("one", this.sink.published.get(0).getBody());
+		assertEquals(Long.valueOf(0),
+				this.metrics.getValue("spoolCorruptSegmentCount"));
+	}
+
+	/**
+	 * Flip a byte of the first occurrence of pattern in the file.
+	 */
+	private static void flipByte(File file, byte[] pattern)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			byte[] data = new byte[(int) raf.length()];
+			raf.readFully(data);
+			for (int i = 0; i + pattern.length <= data.length; ++i) {
+				int j = 0;
+				while (j < pattern.length && data[i + j] == pattern[j]) {
+					++j;
+				}
+				if (j == pattern.length) {
+					raf.seek(i);
+					raf.write(data[i] ^ 0xff);
+					return;
+				}
+			}
+			throw new IOException("pattern not found in " + file);
+		} finally {
+			raf.close();
+		}
+	}
+}
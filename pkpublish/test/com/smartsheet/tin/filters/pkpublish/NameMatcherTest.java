@@ -0,0 +1,118 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class NameMatcherTest {
+
+	private static NameMatcher compile(String... specs)
+			throws RowPatternException {
+		return NameMatcher.compile(Arrays.asList(specs));
+	}
+
+	@Test
+	public void exactNamesIgnoreCase() throws Exception {
+		NameMatcher nm = compile("videostore", "Orders");
+		assertTrue(nm.matches("VideoStore"));
+		assertTrue(nm.matches("orders"));
+		assertFalse(nm.matches("videostore2"));
+		assertFalse(nm.matches(null));
+		assertFalse(nm.matchesAny());
+	}
+
+	@Test
+	public void star() throws Exception {
+		NameMatcher nm = compile("videostore", "*");
+		assertTrue(nm.matchesAny());
+		assertTrue(nm.matches("anything"));
+	}
+
+	@Test
+	public void globs() throws Exception {
+		NameMatcher nm = compile("tenant_*", "log_20??");
+		assertTrue(nm.matches("tenant_"));
+		assertTrue(nm.matches("TENANT_42"));
+		assertFalse(nm.matches("my_tenant_42"));
+		assertTrue(nm.matches("log_2015"));
+		assertFalse(nm.matches("log_201"));
+		assertFalse(nm.matches("log_20155"));
+	}
+
+	@Test
+	public void globsQuoteRegexCharacters() throws Exception {
+		NameMatcher nm = compile("a.b*", "c+?");
+		assertTrue(nm.matches("a.bc"));
+		assertFalse(nm.matches("axbc"));
+		assertTrue(nm.matches("c+d"));
+		assertFalse(nm.matches("ccd"));
+	}
+
+	@Test
+	public void regexesAreAnchored() throws Exception {
+		NameMatcher nm = compile("/tenant_[0-9]+/", "/a|b/");
+		assertTrue(nm.matches("tenant_12"));
+		assertTrue(nm.matches("Tenant_12"));
+		assertFalse(nm.matches("tenant_12x"));
+		assertFalse(nm.matches("xtenant_12"));
+		// The alternation stays inside its own spec.
+		assertTrue(nm.matches("a"));
+		assertTrue(nm.matches("b"));
+		assertFalse(nm.matches("ab"));
+	}
+
+	@Test
+	public void everyKindAtOnce() throws Exception {
+		NameMatcher nm = compile("users", "tenant_*", "/audit_\\d+/");
+		assertTrue(nm.matches("users"));
+		assertTrue(nm.matches("tenant_x"));
+		assertTrue(nm.matches("audit_7"));
+		assertFalse(nm.matches("audit_x"));
+	}
+
+	@Test(expected = RowPatternException.class)
+	public void invalidRegex() throws Exception {
+		compile("/tenant_[/");
+	}
+
+	@Test
+	public void rowPatternSchemaAndTableLists() throws Exception {
+		RowPattern rp = RowPattern.newFromJson(new ObjectMapper().readTree(
+				"{\"schema\": [\"shop\", \"tenant_*\"], " +
+				"\"table\": \"/orders(_archive)?/\", " +
+				"\"change_types\": [\"INSERT\"]}"));
+		assertTrue(rp.matchNames("shop", "orders"));
+		assertTrue(rp.matchNames("tenant_7", "orders_archive"));
+		assertFalse(rp.matchNames("tenant_7", "orders_old"));
+		assertFalse(rp.matchNames("other", "orders"));
+		// The memoized answers are the same.
+		assertTrue(rp.matchNames("tenant_7", "orders_archive"));
+		assertFalse(rp.matchNames("other", "orders"));
+	}
+}
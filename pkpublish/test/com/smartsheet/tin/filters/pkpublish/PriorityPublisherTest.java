@@ -0,0 +1,192 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.smartsheet.tin.filters.pkpublish.PublishMessage.Lane;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class PriorityPublisherTest {
+	private static final long WAIT_MILLIS = 10000;
+
+	/**
+	 * Records what it publishes, holding the first publish until opened.
+	 */
+	private static class GatedSink implements MessageSink {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		volatile boolean available = true;
+		List<String> published = new ArrayList<String>();
+
+		@Override
+		public void connect() {
+		}
+
+		@Override
+		public void publishMessage(String routingKey, String msg)
+				throws MessageSinkException {
+			this.publishMessage(new PublishMessage(routingKey, msg, 0));
+		}
+
+		@Override
+		public void publishMessage(PublishMessage msg)
+				throws MessageSinkException {
+			this.entered.countDown();
+			try {
+				this.gate.await();
+			} catch (InterruptedException e) {
+				throw new MessageSinkException("interrupted");
+			}
+			synchronized (this) {
+				this.published.add(msg.getBody());
+				this.notifyAll();
+			}
+		}
+
+		@Override
+		public boolean isAvailable() {
+			return this.available;
+		}
+
+		@Override
+		public void awaitAvailable(long timeoutMillis) {
+		}
+
+		@Override
+		public Object getStats() {
+			return null;
+		}
+
+		@Override
+		public void setPublishListener(PublishListener listener) {
+		}
+
+		@Override
+		public void release() {
+		}
+
+		synchronized List<String> awaitPublished(int count)
+				throws InterruptedException {
+			long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+			while (this.published.size() < count &&
+					System.currentTimeMillis() < deadline) {
+				this.wait(100);
+			}
+			return new ArrayList<String>(this.published);
+		}
+	}
+
+	private GatedSink sink;
+	private PriorityPublisher publisher;
+
+	@After
+	public void tearDown() {
+		if (this.publisher != null) {
+			this.sink.gate.countDown();
+			this.publisher.release(0);
+		}
+	}
+
+	private void start(String weights) throws Exception {
+		this.sink = new GatedSink();
+		this.publisher = new PriorityPublisher(this.sink, 100,
+				PriorityPublisher.parseWeights(weights));
+		this.publisher.connect();
+	}
+
+	private void queue(Lane lane, String... bodies) throws Exception {
+		for (String body : bodies) {
+			this.publisher.publishMessage(new PublishMessage("key", body, 0,
+					lane));
+		}
+	}
+
+	@Test
+	public void drainsByWeightedRoundRobin() throws Exception {
+		this.start("1,2,1");
+		// Hold the drain thread on d0 while the lanes fill up.
+		this.queue(Lane.DATA, "d0");
+		assertTrue(this.sink.entered.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		this.queue(Lane.DATA, "d1", "d2", "d3", "d4");
+		this.queue(Lane.TRANSACTION, "t0", "t1", "t2", "t3", "t4");
+		this.queue(Lane.METRICS, "m0", "m1", "m2");
+		this.sink.gate.countDown();
+
+		// d0 used the data lane's credit for the first round.  Each round
+		// after that: metrics first, then transaction, then data.
+		assertEquals(Arrays.asList("d0", "m0", "t0", "t1",
+				"m1", "t2", "t3", "d1",
+				"m2", "t4", "d2",
+				"d3",
+				"d4"), this.sink.awaitPublished(13));
+		// The drain thread counts a message just after the sink takes it.
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (this.publisher.getQueuedMessages() > 0 &&
+				System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		PriorityPublisher.Stats stats =
+				(PriorityPublisher.Stats) this.publisher.getStats();
+		assertEquals(5, stats.lanes[Lane.DATA.ordinal()].publishCount);
+		assertEquals(5, stats.lanes[Lane.TRANSACTION.ordinal()].publishCount);
+		assertEquals(3, stats.lanes[Lane.METRICS.ordinal()].publishCount);
+	}
+
+	@Test
+	public void lanesKeepTheirOrder() throws Exception {
+		this.start("3,1,1");
+		this.queue(Lane.DATA, "d0");
+		assertTrue(this.sink.entered.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		this.queue(Lane.DATA, "d1", "d2", "d3", "d4", "d5");
+		this.queue(Lane.TRANSACTION, "t0", "t1");
+		this.sink.gate.countDown();
+
+		assertEquals(Arrays.asList("d0", "t0", "d1", "d2",
+				"t1", "d3", "d4", "d5"), this.sink.awaitPublished(8));
+	}
+
+	@Test(expected = MessageSinkException.class)
+	public void refusesWhileTheSinkIsUnavailable() throws Exception {
+		this.start("1,1,1");
+		this.sink.available = false;
+		this.queue(Lane.DATA, "d0");
+	}
+
+	@Test(expected = MessageSinkException.class)
+	public void weightsNeedThreeNumbers() throws Exception {
+		PriorityPublisher.parseWeights("1,2");
+	}
+
+	@Test(expected = MessageSinkException.class)
+	public void weightsMustBeNumbers() throws Exception {
+		PriorityPublisher.parseWeights("1,x,3");
+	}
+}
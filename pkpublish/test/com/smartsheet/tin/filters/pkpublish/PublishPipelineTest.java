@@ -0,0 +1,203 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.continuent.tungsten.replicator.ReplicatorException;
+import com.continuent.tungsten.replicator.dbms.RowChangeData.ActionType;
+import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.ORCFormatter;
+import com.smartsheet.tin.filters.common.TestTables;
+
+/**
+ * Partitioned by schema, with two lanes: schema "a" goes to lane 1 and
+ * schema "b" to lane 0.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class PublishPipelineTest {
+	private static final long WAIT_MILLIS = 10000;
+
+	private List<Long> processed;
+	// The seqno to hold up, until release is counted down.
+	private volatile long holdSeqno;
+	private CountDownLatch release;
+	private volatile long failSeqno;
+	private PublishPipeline pipeline;
+
+	@Before
+	public void setUp() {
+		this.processed = Collections.synchronizedList(new ArrayList<Long>());
+		this.holdSeqno = -1;
+		this.release = new CountDownLatch(1);
+		this.failSeqno = -1;
+	}
+
+	@After
+	public void tearDown() {
+		this.release.countDown();
+		if (this.pipeline != null) {
+			this.pipeline.release();
+		}
+	}
+
+	private void start(int max_in_flight) throws PKPublishException {
+		ORCFormatter[] formatters = new ORCFormatter[2];
+		for (int i = 0; i < formatters.length; ++i) {
+			formatters[i] = new ORCFormatter(null, new FilterMetrics());
+		}
+		this.pipeline = new PublishPipeline(formatters, "schema",
+				max_in_flight, new PublishPipeline.EventProcessor() {
+			@Override
+			public void process(ReplDBMSEvent event,
+					PKPublishFilterRules rules, ORCFormatter formatter)
+							throws ReplicatorException {
+				if (event.getSeqno() == holdSeqno) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (event.getSeqno() == failSeqno) {
+					throw new ReplicatorException("publish failed");
+				}
+				processed.add(event.getSeqno());
+			}
+		});
+		this.pipeline.start();
+	}
+
+	private static ReplDBMSEvent event(long seqno, String schema) {
+		return TestTables.event(seqno, TestTables.orc(schema, "t",
+				ActionType.INSERT));
+	}
+
+	private void awaitLowWatermark(long ticket) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (this.pipeline.getLowWatermark() < ticket &&
+				System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(ticket, this.pipeline.getLowWatermark());
+	}
+
+	@Test
+	public void lowWatermarkWaitsForTheSlowestLane() throws Exception {
+		this.start(10);
+		this.holdSeqno = 1;
+		this.pipeline.submit(event(1, "a"), null);
+		this.pipeline.submit(event(2, "b"), null);
+		this.pipeline.submit(event(3, "b"), null);
+
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (this.processed.size() < 2 &&
+				System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		// Lane 0 is done, but ticket 1 isn't.
+		assertEquals(2, this.processed.size());
+		assertEquals(0, this.pipeline.getLowWatermark());
+
+		this.release.countDown();
+		this.awaitLowWatermark(3);
+		this.pipeline.drain();
+		assertEquals(3, this.processed.size());
+	}
+
+	@Test
+	public void submitWaitsOnceMaxInFlightBehind() throws Exception {
+		this.start(2);
+		this.holdSeqno = 1;
+		this.pipeline.submit(event(1, "a"), null);
+		this.pipeline.submit(event(2, "b"), null);
+
+		// Ticket 3 needs ticket 1 done.
+		final CountDownLatch submitted = new CountDownLatch(1);
+		Thread submitter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pipeline.submit(event(3, "b"), null);
+					submitted.countDown();
+				} catch (Exception e) {
+					// The latch stays up, and the test fails.
+				}
+			}
+		});
+		submitter.start();
+		assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+
+		this.release.countDown();
+		assertTrue(submitted.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		submitter.join();
+	}
+
+	@Test
+	public void eventsInALaneStayInOrder() throws Exception {
+		this.start(100);
+		for (long seqno = 1; seqno <= 50; ++seqno) {
+			this.pipeline.submit(event(seqno, "a"), null);
+		}
+		this.pipeline.drain();
+		for (int i = 0; i < 50; ++i) {
+			assertEquals(Long.valueOf(i + 1), this.processed.get(i));
+		}
+	}
+
+	@Test
+	public void laneFailureIsRethrown() throws Exception {
+		this.start(10);
+		this.failSeqno = 2;
+		this.pipeline.submit(event(1, "a"), null);
+		this.pipeline.submit(event(2, "a"), null);
+		try {
+			this.pipeline.drain();
+			fail("drain() didn't rethrow the lane's failure");
+		} catch (ReplicatorException e) {
+			// Expected.
+		}
+		try {
+			this.pipeline.submit(event(3, "b"), null);
+			fail("submit() didn't rethrow the lane's failure");
+		} catch (ReplicatorException e) {
+			// Expected.
+		}
+	}
+
+	@Test(expected = PKPublishException.class)
+	public void unknownPartitioning() throws Exception {
+		new PublishPipeline(new ORCFormatter[1], "table", 1, null);
+	}
+}
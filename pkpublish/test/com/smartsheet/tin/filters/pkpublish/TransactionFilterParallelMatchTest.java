@@ -0,0 +1,148 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.dbms.RowChangeData.ActionType;
+import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.Pair;
+import com.smartsheet.tin.filters.common.ParallelRowExecutor;
+import com.smartsheet.tin.filters.common.TestTables;
+
+/**
+ * Matching on the pool must give the same results, in the same order, as
+ * matching on one thread.
+ *
+ * @author scott.wimer@smartsheet.com
+ */
+public class TransactionFilterParallelMatchTest {
+	private TestTables.Tracker tracker;
+	private ParallelRowExecutor parallel;
+	private TransactionFilter tfilter;
+
+	@Before
+	public void setUp() throws Exception {
+		this.tracker = new TestTables.Tracker(new FilterMetrics());
+		this.tracker.addTable("s", "orders",
+				TestTables.table(1, "id", "status"));
+		this.tracker.addTable("s", "users", TestTables.table(1, "id", "name"));
+		// Split anything with 2 or more rows.
+		this.parallel = new ParallelRowExecutor(4, 2);
+		this.tfilter = TransactionFilter.newFromJson(new ObjectMapper()
+				.readTree("{\"name\": \"t\", \"filter_match_rule\": \"ANY\", " +
+				"\"row_match_rule\": \"ANY\", \"row_filters\": [" +
+				rowFilter("orders", "{\"column\": \"status\", " +
+						"\"equals\": \"late\"}") + ", " +
+				rowFilter("users", "{\"column\": \"name\", " +
+						"\"equals\": \"bob\"}") + ", " +
+				rowFilter("orders", "{\"column\": \"id\", " +
+						"\"range\": {\"max\": 0}}") + "]}"));
+	}
+
+	@After
+	public void tearDown() {
+		this.parallel.release();
+	}
+
+	private static String rowFilter(String table, String predicate) {
+		return "{\"row_pattern\": {\"schema\": \"s\", \"table\": \"" +
+				table + "\", \"change_types\": [\"INSERT\", \"DELETE\"], " +
+				"\"column_predicates\": [" + predicate + "]}}";
+	}
+
+	/**
+	 * @param match_at The row that matches the first filter, or -1.
+	 */
+	private static OneRowChange orders(int rows, int match_at) {
+		OneRowChange orc = TestTables.orc("s", "orders", ActionType.INSERT);
+		for (int i = 0; i < rows; ++i) {
+			TestTables.addAfterRow(orc, Long.valueOf(i + 1),
+					i == match_at ? "late" : "ok");
+		}
+		return orc;
+	}
+
+	private void assertSameAsSequential(ReplDBMSEvent event) {
+		TransactionMatchResultAccumulator sequential =
+				this.tfilter.match(event, this.tracker);
+		TransactionMatchResultAccumulator pooled =
+				this.tfilter.match(event, this.tracker, this.parallel);
+		for (RowFilter rf : this.tfilter.getRowFilters()) {
+			assertEquals(sequential.rowFilterMatched(rf),
+					pooled.rowFilterMatched(rf));
+		}
+		List<Pair<OneRowChange, RowFilter>> expected =
+				sequential.getMatchedOrcsAndFilters();
+		List<Pair<OneRowChange, RowFilter>> actual =
+				pooled.getMatchedOrcsAndFilters();
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertSame(expected.get(i).first, actual.get(i).first);
+			assertSame(expected.get(i).second, actual.get(i).second);
+		}
+		assertEquals(sequential.mismatchReason(), pooled.mismatchReason());
+	}
+
+	@Test
+	public void matchInTheLastSliceOfOneBigChange() {
+		// Well past one slice, so the change is split across workers.
+		OneRowChange big = orders(5000, 4999);
+		assertSameAsSequential(TestTables.event(1, big));
+		TransactionMatchResultAccumulator pooled =
+				this.tfilter.match(TestTables.event(1, big), this.tracker,
+						this.parallel);
+		assertEquals(1, pooled.getMatchedOrcsAndFilters().size());
+		assertSame(big, pooled.getMatchedOrcsAndFilters().get(0).first);
+	}
+
+	@Test
+	public void manyChangesAcrossSliceBoundaries() {
+		OneRowChange users = TestTables.orc("s", "users", ActionType.DELETE);
+		for (int i = 0; i < 300; ++i) {
+			TestTables.addBeforeRow(users, Long.valueOf(i),
+					i == 150 ? "bob" : "al");
+		}
+		OneRowChange empty = TestTables.orc("s", "orders", ActionType.INSERT);
+		assertSameAsSequential(TestTables.event(1,
+				orders(100, -1), empty, orders(1, 0), users, orders(63, 62),
+				empty, orders(130, 64), orders(500, -1)));
+	}
+
+	@Test
+	public void nothingMatches() {
+		assertSameAsSequential(TestTables.event(1, orders(1000, -1),
+				orders(3, -1)));
+		TransactionMatchResultAccumulator pooled = this.tfilter.match(
+				TestTables.event(1, orders(1000, -1)), this.tracker,
+				this.parallel);
+		assertTrue(pooled.getMatchedOrcsAndFilters().isEmpty());
+	}
+}
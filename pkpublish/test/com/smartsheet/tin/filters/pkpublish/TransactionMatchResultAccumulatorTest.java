@@ -0,0 +1,124 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class TransactionMatchResultAccumulatorTest {
+
+	private static String rowFilter(String table) {
+		return "{\"row_pattern\":{\"schema\":\"s\",\"table\":\"" + table +
+				"\",\"change_types\":[\"INSERT\"]}}";
+	}
+
+	private static TransactionMatchResultAccumulator accumulator(
+			String filter_match_rule, String row_match_rule) throws Exception {
+		String json = "{\"name\":\"t\",\"filter_match_rule\":\"" +
+				filter_match_rule + "\",\"row_match_rule\":\"" +
+				row_match_rule + "\",\"row_filters\":[" +
+				rowFilter("a") + "," + rowFilter("b") + "]}";
+		TransactionFilter tf = TransactionFilter.newFromJson(
+				new ObjectMapper().readTree(json));
+		return new TransactionMatchResultAccumulator(tf, null);
+	}
+
+	/**
+	 * Compare the first row filter against one row and the second against
+	 * another.
+	 */
+	private static void record(TransactionMatchResultAccumulator acc,
+			boolean first, boolean second) {
+		TransactionFilter tf = acc.getTransactionFilter();
+		acc.recordRowFilterOrcCompare(tf.getRowFilters().get(0),
+				new OneRowChange(), first);
+		acc.recordRowFilterOrcCompare(tf.getRowFilters().get(1),
+				new OneRowChange(), second);
+	}
+
+	@Test
+	public void filterMatchRuleAll() throws Exception {
+		TransactionMatchResultAccumulator acc = accumulator("ALL", "ANY");
+		record(acc, true, false);
+		assertEquals("filter_match_rule ALL: not every row filter matched",
+				acc.mismatchReason());
+
+		acc = accumulator("ALL", "ANY");
+		record(acc, true, true);
+		assertNull(acc.mismatchReason());
+	}
+
+	@Test
+	public void filterMatchRuleAny() throws Exception {
+		TransactionMatchResultAccumulator acc = accumulator("ANY", "ANY");
+		record(acc, false, false);
+		assertEquals("filter_match_rule ANY: no row filter matched",
+				acc.mismatchReason());
+
+		acc = accumulator("ANY", "ANY");
+		record(acc, false, true);
+		assertNull(acc.mismatchReason());
+	}
+
+	@Test
+	public void filterMatchRuleNone() throws Exception {
+		TransactionMatchResultAccumulator acc = accumulator("NONE", "NONE");
+		record(acc, false, true);
+		assertEquals("filter_match_rule NONE: a row filter matched",
+				acc.mismatchReason());
+
+		acc = accumulator("NONE", "NONE");
+		record(acc, false, false);
+		assertNull(acc.mismatchReason());
+	}
+
+	@Test
+	public void rowMatchRuleAll() throws Exception {
+		TransactionMatchResultAccumulator acc = accumulator("ANY", "ALL");
+		record(acc, true, false);
+		assertEquals("row_match_rule ALL: not every row filter matched",
+				acc.mismatchReason());
+	}
+
+	@Test
+	public void rowMatchRuleNone() throws Exception {
+		TransactionMatchResultAccumulator acc = accumulator("ANY", "NONE");
+		record(acc, true, false);
+		assertEquals("row_match_rule NONE: a row was matched",
+				acc.mismatchReason());
+	}
+
+	@Test
+	public void nothingComparedMatchesAll() throws Exception {
+		// With no comparisons, every (i.e. none) of the filters matched.
+		TransactionMatchResultAccumulator acc = accumulator("ALL", "ALL");
+		assertNull(acc.mismatchReason());
+		acc = accumulator("ANY", "ANY");
+		assertEquals("filter_match_rule ANY: no row filter matched",
+				acc.mismatchReason());
+	}
+}
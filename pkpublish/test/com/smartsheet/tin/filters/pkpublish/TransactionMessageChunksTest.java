@@ -0,0 +1,152 @@
+/**
+* Copyright 2014-2015 Smartsheet.com, Inc.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+
+package com.smartsheet.tin.filters.pkpublish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.continuent.tungsten.replicator.dbms.DBMSData;
+import com.continuent.tungsten.replicator.dbms.OneRowChange;
+import com.continuent.tungsten.replicator.event.DBMSEvent;
+import com.continuent.tungsten.replicator.event.ReplDBMSEvent;
+import com.continuent.tungsten.replicator.event.ReplOption;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.smartsheet.tin.filters.common.FilterMetrics;
+import com.smartsheet.tin.filters.common.ORCFormatter;
+import com.smartsheet.tin.filters.common.Pair;
+
+/**
+ * @author scott.wimer@smartsheet.com
+ */
+public class TransactionMessageChunksTest {
+	private ObjectMapper mapper;
+	private TransactionFilter tfilter;
+	private ReplDBMSEvent event;
+	private ORCFormatter formatter;
+
+	@Before
+	public void setUp() {
+		this.mapper = new ObjectMapper();
+		this.tfilter = new TransactionFilter();
+		this.tfilter.setName("t");
+		this.tfilter.setRoutingKey("rk");
+		this.event = new ReplDBMSEvent(42, new DBMSEvent(
+				"mysql-bin.000001:0000000000000100;0",
+				new LinkedList<ReplOption>(), new ArrayList<DBMSData>(), true,
+				new Timestamp(1000)));
+		this.formatter = new ORCFormatter(null, new FilterMetrics());
+	}
+
+	/**
+	 * Included rows, each followed by a row a filter excluded.
+	 */
+	private static List<Pair<OneRowChange, RowFilter>> rows(int count) {
+		List<Pair<OneRowChange, RowFilter>> pairs =
+				new ArrayList<Pair<OneRowChange, RowFilter>>();
+		for (int i = 0; i < count; ++i) {
+			RowFilter included = new RowFilter();
+			included.setMessage("m" + i);
+			included.setInclude(true);
+			pairs.add(Pair.of(new OneRowChange(), included));
+			RowFilter excluded = new RowFilter();
+			excluded.setMessage("x");
+			excluded.setInclude(false);
+			pairs.add(Pair.of(new OneRowChange(), excluded));
+		}
+		return pairs;
+	}
+
+	/**
+	 * @return The parsed body of every chunk.
+	 */
+	private List<JsonNode> chunks(int count, int max_rows) throws Exception {
+		List<JsonNode> bodies = new ArrayList<JsonNode>();
+		for (PublishMessage msg : new TransactionMessageChunks(this.tfilter,
+				this.event, rows(count), this.formatter, max_rows, 0)) {
+			assertEquals("rk", msg.getRoutingKey());
+			bodies.add(this.mapper.readTree(msg.getBody()));
+		}
+		return bodies;
+	}
+
+	private static void assertChunk(JsonNode chunk, int index, int rows,
+			boolean last) {
+		assertEquals(index, chunk.get("chunkIndex").asInt());
+		assertEquals(rows, chunk.get("rows").size());
+		assertEquals(last, chunk.get("lastChunk").asBoolean());
+	}
+
+	@Test
+	public void evenSplit() throws Exception {
+		List<JsonNode> chunks = this.chunks(4, 2);
+		assertEquals(2, chunks.size());
+		assertChunk(chunks.get(0), 0, 2, false);
+		assertChunk(chunks.get(1), 1, 2, true);
+	}
+
+	@Test
+	public void shortLastChunk() throws Exception {
+		List<JsonNode> chunks = this.chunks(3, 2);
+		assertEquals(2, chunks.size());
+		assertChunk(chunks.get(0), 0, 2, false);
+		assertChunk(chunks.get(1), 1, 1, true);
+	}
+
+	@Test
+	public void exactlyOneChunk() throws Exception {
+		List<JsonNode> chunks = this.chunks(2, 2);
+		assertEquals(1, chunks.size());
+		assertChunk(chunks.get(0), 0, 2, true);
+	}
+
+	@Test
+	public void noRowsIsOneEmptyChunk() throws Exception {
+		List<JsonNode> chunks = this.chunks(0, 2);
+		assertEquals(1, chunks.size());
+		assertChunk(chunks.get(0), 0, 0, true);
+	}
+
+	@Test
+	public void rowsKeepTheirOrder() throws Exception {
+		List<JsonNode> chunks = this.chunks(5, 1);
+		assertEquals(5, chunks.size());
+		for (int i = 0; i < 5; ++i) {
+			assertChunk(chunks.get(i), i, 1, i == 4);
+			assertEquals("m" + i, chunks.get(i).get("rows").get(0).asText());
+		}
+	}
+
+	@Test
+	public void unlimitedIsNotChunked() throws Exception {
+		TransactionMessageChunks chunks = new TransactionMessageChunks(
+				this.tfilter, this.event, rows(3), this.formatter, 0, 0);
+		assertFalse(chunks.isChunked());
+		assertTrue(chunks.iterator().hasNext());
+	}
+}